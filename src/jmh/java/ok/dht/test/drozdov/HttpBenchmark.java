@@ -0,0 +1,72 @@
+package ok.dht.test.drozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.cluster.VersionedValue;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * Per request work of the entity handlers outside of the storage:
+ * extracting the id and replication parameters, and serializing the answer.
+ */
+@State(Scope.Thread)
+public class HttpBenchmark {
+
+    private static final int REQUESTS = 1 << 10;
+    private static final int NODES = 3;
+
+    @Param("16")
+    public int keyLength;
+
+    @Param({"128", "1024"})
+    public int valueLength;
+
+    private Request[] requests;
+    private byte[] value;
+    private MemorySegment record;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        requests = new Request[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            // Hex ids like the ones TestBase generates, keyLength characters long
+            StringBuilder id = new StringBuilder(keyLength);
+            while (id.length() < keyLength) {
+                id.append(Long.toHexString(random.nextLong()));
+            }
+            id.setLength(keyLength);
+            requests[i] = new Request(Request.METHOD_GET, "/v0/entity?id=" + id + "&ack=2&from=3", true);
+        }
+        value = new byte[valueLength];
+        random.nextBytes(value);
+        record = MemorySegment.ofArray(VersionedValue.encode(System.currentTimeMillis() * 1000, value));
+    }
+
+    @Benchmark
+    public void parseEntityRequest(Blackhole blackhole) {
+        Request request = requests[next];
+        next = (next + 1) & (REQUESTS - 1);
+        blackhole.consume(DemoService.toKey(request.getParameter("id=")));
+        blackhole.consume(DemoService.ReplicationFactor.parse(request, NODES));
+    }
+
+    @Benchmark
+    public byte[] encodeRecord() {
+        return VersionedValue.encode(System.currentTimeMillis() * 1000, value);
+    }
+
+    @Benchmark
+    public byte[] serializeEntityResponse() {
+        return new Response(Response.OK, VersionedValue.value(record).toByteArray()).toBytes(true);
+    }
+}
@@ -0,0 +1,76 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Random keys and values shaped like the ones the tests and load generators send.
+ */
+final class BenchmarkData {
+
+    private static final String[] FIELDS = {"id", "user", "status", "createdAt", "tags", "score", "region"};
+    private static final String[] WORDS = {"active", "pending", "archived", "eu-west", "us-east", "premium", "trial"};
+
+    private BenchmarkData() {
+    }
+
+    static MemorySegment[] randomKeys(Random random, int count, int keyLength) {
+        MemorySegment[] keys = new MemorySegment[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = randomBytes(random, keyLength);
+        }
+        return keys;
+    }
+
+    static MemorySegment randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return MemorySegment.ofArray(bytes);
+    }
+
+    /**
+     * JSON-like text of exactly {@code length} bytes: field names repeat and values come from a small
+     * vocabulary mixed with random numbers, like the documents clients store.
+     */
+    static MemorySegment jsonBytes(Random random, int length) {
+        StringBuilder json = new StringBuilder(length + 64).append('{');
+        for (int field = 0; json.length() < length; field++) {
+            json.append('"').append(FIELDS[field % FIELDS.length]).append("\":");
+            if (random.nextBoolean()) {
+                json.append('"').append(WORDS[random.nextInt(WORDS.length)]).append("\",");
+            } else {
+                json.append(random.nextInt(1_000_000)).append(',');
+            }
+        }
+        json.setLength(length - 1);
+        return MemorySegment.ofArray(json.append('}').toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Entries of the keys in key order, every one with its own random value.
+     */
+    static List<Entry> sortedEntries(Random random, MemorySegment[] keys, int valueLength) {
+        return sortedEntries(keys, () -> randomBytes(random, valueLength));
+    }
+
+    /**
+     * Entries of the keys in key order, every one with its own {@link #jsonBytes} value.
+     */
+    static List<Entry> sortedJsonEntries(Random random, MemorySegment[] keys, int valueLength) {
+        return sortedEntries(keys, () -> jsonBytes(random, valueLength));
+    }
+
+    private static List<Entry> sortedEntries(MemorySegment[] keys, Supplier<MemorySegment> values) {
+        List<Entry> entries = new ArrayList<>(keys.length);
+        for (MemorySegment key : keys) {
+            entries.add(new Entry(key, values.get()));
+        }
+        entries.sort((a, b) -> MemorySegmentComparator.INSTANCE.compare(a.key(), b.key()));
+        return entries;
+    }
+}
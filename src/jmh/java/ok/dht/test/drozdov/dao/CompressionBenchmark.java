@@ -0,0 +1,120 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Block codecs on JSON-like values of the size the tests send ({@code TestBase.VALUE_LENGTH}):
+ * point lookups with and without the block cache, full scans and table writes.
+ * The size of the table is printed on setup, so every run shows the ratio next to the throughput.
+ */
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+
+    private static final int KEYS = 1 << 14;
+
+    @Param("16")
+    public int keyLength;
+
+    @Param("1024")
+    public int valueLength;
+
+    @Param({"NONE", "LZ4", "ZSTD"})
+    public Compression compression;
+
+    @Param({"0", "16777216"})
+    public long cacheBytes;
+
+    private Path dir;
+    private List<Entry> entries;
+    private SSTable table;
+    private MemorySegment[] keys;
+    private long[] hashes;
+    private int next;
+    private int written;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        keys = BenchmarkData.randomKeys(random, KEYS, keyLength);
+        hashes = new long[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            hashes[i] = BloomFilter.hash(keys[i]);
+        }
+        entries = BenchmarkData.sortedJsonEntries(random, keys, valueLength);
+        dir = Files.createTempDirectory("compression-benchmark");
+        table = SSTable.write(
+                SSTable.path(dir, 0, 0),
+                entries::iterator,
+                Config.DEFAULT_BLOOM_BITS_PER_KEY,
+                compression,
+                new BlockCache(cacheBytes),
+                Expiry.NEVER,
+                bytes -> {
+                }
+        );
+        long rawBytes = 0;
+        for (Entry entry : entries) {
+            rawBytes += entry.key().byteSize() + entry.value().byteSize();
+        }
+        System.out.printf("%n%s: %d bytes of entries in a table of %d bytes, ratio %.2f%n",
+                compression, rawBytes, table.byteSize(), (double) rawBytes / table.byteSize());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public Entry getHit() {
+        int i = next;
+        next = (i + 1) & (KEYS - 1);
+        return table.get(keys[i], hashes[i]);
+    }
+
+    @Benchmark
+    public void scan(Blackhole blackhole) {
+        for (Iterator<Entry> it = table.iterator(null, null); it.hasNext(); ) {
+            blackhole.consume(it.next());
+        }
+    }
+
+    /**
+     * Flush of a table, dictionary training included.
+     */
+    @Benchmark
+    public long write() throws IOException {
+        Path path = SSTable.path(dir, ++written, written);
+        SSTable result = SSTable.write(
+                path,
+                entries::iterator,
+                Config.DEFAULT_BLOOM_BITS_PER_KEY,
+                compression,
+                new BlockCache(0),
+                Expiry.NEVER,
+                bytes -> {
+                }
+        );
+        Files.delete(path);
+        return result.byteSize();
+    }
+}
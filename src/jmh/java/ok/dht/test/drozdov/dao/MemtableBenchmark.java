@@ -0,0 +1,70 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Memtable writes into the off-heap arena and skip list lookups, without the write-ahead log.
+ */
+@State(Scope.Thread)
+public class MemtableBenchmark {
+
+    private static final int KEYS = 1 << 16;
+
+    @Param("16")
+    public int keyLength;
+
+    @Param({"128", "1024"})
+    public int valueLength;
+
+    private MemorySegment[] keys;
+    private MemorySegment value;
+    private Memtable memtable;
+    private Memtable filled;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        keys = BenchmarkData.randomKeys(random, KEYS, keyLength);
+        value = BenchmarkData.randomBytes(random, valueLength);
+        memtable = newMemtable();
+        filled = new Memtable(KEYS * (keyLength + valueLength + Memtable.MAX_NODE_OVERHEAD), 0, null);
+        for (MemorySegment key : keys) {
+            filled.upsert(key, value);
+        }
+    }
+
+    @Benchmark
+    public long upsert() throws IOException {
+        long position = memtable.upsert(nextKey(), value);
+        if (position == Memtable.FULL) {
+            // Flushed in the engine, here the arena is just dropped for the cleaner
+            memtable = newMemtable();
+            position = memtable.upsert(nextKey(), value);
+        }
+        return position;
+    }
+
+    @Benchmark
+    public Entry get() {
+        return filled.get(nextKey());
+    }
+
+    private MemorySegment nextKey() {
+        MemorySegment key = keys[next];
+        next = (next + 1) & (KEYS - 1);
+        return key;
+    }
+
+    private static Memtable newMemtable() {
+        return new Memtable(Config.DEFAULT_FLUSH_THRESHOLD_BYTES, 0, null);
+    }
+}
@@ -0,0 +1,96 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Range scans merging a memtable with several tables, as {@code /v0/entities} does.
+ * Every source gets its own random keys, so the merge has to interleave all of them.
+ */
+@State(Scope.Benchmark)
+public class MergeIteratorBenchmark {
+
+    private static final int KEYS_PER_SOURCE = 1 << 14;
+
+    @Param("16")
+    public int keyLength;
+
+    @Param({"128", "1024"})
+    public int valueLength;
+
+    @Param({"1", "4"})
+    public int tables;
+
+    @Param("100")
+    public int rangeLength;
+
+    private Path dir;
+    private Memtable memtable;
+    private final List<SSTable> sstables = new ArrayList<>();
+    private MemorySegment[] starts;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        dir = Files.createTempDirectory("merge-benchmark");
+        for (int i = 0; i < tables; i++) {
+            MemorySegment[] keys = BenchmarkData.randomKeys(random, KEYS_PER_SOURCE, keyLength);
+            List<Entry> entries = BenchmarkData.sortedEntries(random, keys, valueLength);
+            sstables.add(SSTable.write(
+                    SSTable.path(dir, i, i),
+                    entries::iterator,
+                    Config.DEFAULT_BLOOM_BITS_PER_KEY,
+                    Compression.NONE,
+                    new BlockCache(0),
+                    Expiry.NEVER,
+                    bytes -> {
+                    }
+            ));
+        }
+        memtable = new Memtable(KEYS_PER_SOURCE * (keyLength + valueLength + Memtable.MAX_NODE_OVERHEAD), tables, null);
+        for (MemorySegment key : BenchmarkData.randomKeys(random, KEYS_PER_SOURCE, keyLength)) {
+            memtable.upsert(key, BenchmarkData.randomBytes(random, valueLength));
+        }
+        starts = BenchmarkData.randomKeys(random, KEYS_PER_SOURCE, keyLength);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public void scan(Blackhole blackhole) {
+        MemorySegment from = starts[next];
+        next = (next + 1) & (KEYS_PER_SOURCE - 1);
+        List<Iterator<Entry>> sources = new ArrayList<>(tables + 1);
+        sources.add(memtable.iterator(from, null));
+        for (int i = sstables.size() - 1; i >= 0; i--) {
+            sources.add(sstables.get(i).iterator(from, null));
+        }
+        Iterator<Entry> range = new MergeIterator(sources, true);
+        for (int i = 0; i < rangeLength && range.hasNext(); i++) {
+            blackhole.consume(range.next());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Point lookups in a single mapped table, for present keys and for absent ones
+ * that the Bloom filter is expected to answer.
+ */
+@State(Scope.Benchmark)
+public class SSTableBenchmark {
+
+    private static final int KEYS = 1 << 16;
+
+    @Param("16")
+    public int keyLength;
+
+    @Param({"128", "1024"})
+    public int valueLength;
+
+    private Path dir;
+    private SSTable table;
+    private MemorySegment[] present;
+    private long[] presentHashes;
+    private MemorySegment[] absent;
+    private long[] absentHashes;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        present = BenchmarkData.randomKeys(random, KEYS, keyLength);
+        absent = BenchmarkData.randomKeys(random, KEYS, keyLength);
+        presentHashes = hashes(present);
+        absentHashes = hashes(absent);
+        List<Entry> entries = BenchmarkData.sortedEntries(random, present, valueLength);
+        dir = Files.createTempDirectory("sstable-benchmark");
+        table = SSTable.write(
+                SSTable.path(dir, 0, 0),
+                entries::iterator,
+                Config.DEFAULT_BLOOM_BITS_PER_KEY,
+                Compression.NONE,
+                new BlockCache(0),
+                Expiry.NEVER,
+                bytes -> {
+                }
+        );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public Entry getHit() {
+        int i = nextIndex();
+        return table.get(present[i], presentHashes[i]);
+    }
+
+    @Benchmark
+    public Entry getMiss() {
+        int i = nextIndex();
+        return table.get(absent[i], absentHashes[i]);
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (i + 1) & (KEYS - 1);
+        return i;
+    }
+
+    private static long[] hashes(MemorySegment[] keys) {
+        long[] result = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = BloomFilter.hash(keys[i]);
+        }
+        return result;
+    }
+}
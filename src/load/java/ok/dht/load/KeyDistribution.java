@@ -0,0 +1,22 @@
+package ok.dht.load;
+
+import java.util.Random;
+
+/**
+ * Chooses which of {@code keys} keys a request goes to.
+ */
+public interface KeyDistribution {
+
+    /**
+     * Key rank in {@code [0, keys)}, rank 0 is the most popular one of a skewed distribution.
+     */
+    long next(Random random);
+
+    static KeyDistribution uniform(long keys) {
+        return random -> Math.floorMod(random.nextLong(), keys);
+    }
+
+    static KeyDistribution zipfian(long keys, double theta) {
+        return new ZipfianDistribution(keys, theta);
+    }
+}
@@ -0,0 +1,123 @@
+package ok.dht.load;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Settings of a load run, parsed from {@code --name=value} arguments.
+ *
+ * @param nodes       nodes of the local cluster
+ * @param workload    request mix
+ * @param readRatio   share of GETs of the {@link Workload#MIXED} workload
+ * @param rate        requests per second over all connections
+ * @param duration    measured run time, after the warmup
+ * @param warmup      run time not recorded in the histogram
+ * @param connections concurrent requests of the {@link LoopMode#CLOSED} mode
+ * @param mode        request scheduling
+ * @param keys        size of the key space
+ * @param zipfian     Zipfian skew of key popularity, 0 for uniform
+ * @param valueSize   PUT body size
+ * @param preload     whether every key is written before the run, so GETs find data
+ * @param timeout     request timeout, a timed out request counts as an error
+ * @param output      file receiving a copy of the report, {@code null} for standard output only
+ */
+public record LoadConfig(
+        int nodes,
+        Workload workload,
+        double readRatio,
+        int rate,
+        Duration duration,
+        Duration warmup,
+        int connections,
+        LoopMode mode,
+        long keys,
+        double zipfian,
+        int valueSize,
+        boolean preload,
+        Duration timeout,
+        @Nullable String output
+) {
+
+    public static final String USAGE = """
+            Options:
+              --nodes=1              local cluster size
+              --workload=put         put, get or mixed
+              --read-ratio=0.5       share of GETs in the mixed workload
+              --rate=1000            requests per second
+              --duration=30s         measured time (ms, s or m suffix)
+              --warmup=5s            time before the measurement
+              --connections=16       concurrent requests in the closed mode
+              --mode=closed          closed (wrk2-like) or open
+              --keys=100000          key space size
+              --zipfian=0            key skew, e.g. 0.99, 0 for uniform
+              --value-size=1024      PUT body size in bytes
+              --preload=true         write every key before the run
+              --timeout=5s           request timeout
+              --output=<file>        copy the report to the file
+            """;
+
+    public KeyDistribution keyDistribution() {
+        return zipfian > 0 ? KeyDistribution.zipfian(keys, zipfian) : KeyDistribution.uniform(keys);
+    }
+
+    public static LoadConfig parse(String... args) {
+        int nodes = 1;
+        Workload workload = Workload.PUT;
+        double readRatio = 0.5;
+        int rate = 1000;
+        Duration duration = Duration.ofSeconds(30);
+        Duration warmup = Duration.ofSeconds(5);
+        int connections = 16;
+        LoopMode mode = LoopMode.CLOSED;
+        long keys = 100_000;
+        double zipfian = 0;
+        int valueSize = 1024;
+        boolean preload = true;
+        Duration timeout = Duration.ofSeconds(5);
+        String output = null;
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "nodes" -> nodes = Integer.parseInt(value);
+                case "workload" -> workload = Workload.valueOf(value.toUpperCase(Locale.ROOT));
+                case "read-ratio" -> readRatio = Double.parseDouble(value);
+                case "rate" -> rate = Integer.parseInt(value);
+                case "duration" -> duration = parseDuration(value);
+                case "warmup" -> warmup = parseDuration(value);
+                case "connections" -> connections = Integer.parseInt(value);
+                case "mode" -> mode = LoopMode.valueOf(value.toUpperCase(Locale.ROOT));
+                case "keys" -> keys = Long.parseLong(value);
+                case "zipfian" -> zipfian = Double.parseDouble(value);
+                case "value-size" -> valueSize = Integer.parseInt(value);
+                case "preload" -> preload = Boolean.parseBoolean(value);
+                case "timeout" -> timeout = parseDuration(value);
+                case "output" -> output = value;
+                default -> throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        if (nodes < 1 || rate < 1 || connections < 1 || keys < 1 || valueSize < 0
+                || readRatio < 0 || readRatio > 1) {
+            throw new IllegalArgumentException("Option out of range");
+        }
+        return new LoadConfig(nodes, workload, readRatio, rate, duration, warmup, connections, mode, keys,
+                zipfian, valueSize, preload, timeout, output);
+    }
+
+    private static Duration parseDuration(String value) {
+        if (value.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        long amount = Long.parseLong(value.substring(0, value.length() - 1));
+        return switch (value.charAt(value.length() - 1)) {
+            case 's' -> Duration.ofSeconds(amount);
+            case 'm' -> Duration.ofMinutes(amount);
+            default -> throw new IllegalArgumentException("Unknown duration " + value);
+        };
+    }
+}
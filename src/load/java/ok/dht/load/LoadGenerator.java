@@ -0,0 +1,230 @@
+package ok.dht.load;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests at a constant rate and records their latency free of coordinated omission:
+ * every request has a due time on the schedule, and its latency counts from that time rather than
+ * from the moment it was actually sent.
+ */
+final class LoadGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LoadConfig config;
+    private final List<String> urls;
+    private final KeyDistribution keys;
+    private final byte[] value;
+    private final HttpClient client;
+    private final AtomicInteger nextNode = new AtomicInteger();
+
+    LoadGenerator(LoadConfig config, List<String> urls) {
+        this.config = config;
+        this.urls = urls;
+        this.keys = config.keyDistribution();
+        this.value = new byte[config.valueSize()];
+        new Random(1).nextBytes(value);
+        AtomicInteger clientThreads = new AtomicInteger();
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newFixedThreadPool(Math.max(2, config.connections()), runnable -> {
+                    Thread thread = new Thread(runnable, "load-client-" + clientThreads.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }))
+                .build();
+    }
+
+    /**
+     * Writes every key once, as fast as the connections allow.
+     */
+    void preload() throws InterruptedException {
+        AtomicLong next = new AtomicLong();
+        LongAdder failed = new LongAdder();
+        List<Thread> writers = new ArrayList<>(config.connections());
+        for (int i = 0; i < config.connections(); i++) {
+            writers.add(new Thread(() -> {
+                for (long rank = next.getAndIncrement(); rank < config.keys(); rank = next.getAndIncrement()) {
+                    try {
+                        if (client.send(put(rank), HttpResponse.BodyHandlers.discarding()).statusCode() >= 400) {
+                            failed.increment();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (IOException e) {
+                        failed.increment();
+                    }
+                }
+            }, "load-preload-" + i));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        LOG.info("Preloaded {} keys, {} failed", config.keys(), failed.sum());
+    }
+
+    /**
+     * Keeps the configured rate for the duration.
+     */
+    LoadResult run(Duration duration) throws InterruptedException {
+        Recorder recorder = new Recorder();
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        if (config.mode() == LoopMode.CLOSED) {
+            runClosed(recorder, start, end);
+        } else {
+            runOpen(recorder, start, end);
+        }
+        return recorder.result(Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private void runClosed(Recorder recorder, long start, long end) throws InterruptedException {
+        int connections = config.connections();
+        long interval = SECOND_NANOS * connections / config.rate();
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            long offset = SECOND_NANOS * i / config.rate();
+            Random random = new Random(i);
+            threads.add(new Thread(() -> {
+                for (long due = start + offset; due < end; due += interval) {
+                    waitUntil(due);
+                    HttpRequest request = nextRequest(random);
+                    try {
+                        recorder.answered(due, client.send(request, HttpResponse.BodyHandlers.ofByteArray()));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (IOException e) {
+                        recorder.failed();
+                    }
+                }
+            }, "load-connection-" + i));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void runOpen(Recorder recorder, long start, long end) throws InterruptedException {
+        Random random = new Random(0);
+        AtomicLong inFlight = new AtomicLong();
+        for (long i = 0; ; i++) {
+            long due = start + SECOND_NANOS * i / config.rate();
+            if (due >= end) {
+                break;
+            }
+            waitUntil(due);
+            inFlight.incrementAndGet();
+            client.sendAsync(nextRequest(random), HttpResponse.BodyHandlers.ofByteArray())
+                    .whenComplete((response, e) -> {
+                        if (e == null) {
+                            recorder.answered(due, response);
+                        } else {
+                            recorder.failed();
+                        }
+                        inFlight.decrementAndGet();
+                    });
+        }
+        // Every request either gets its answer or times out
+        long deadline = System.nanoTime() + config.timeout().toNanos() * 2;
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        if (inFlight.get() > 0) {
+            LOG.warn("{} requests are still in flight", inFlight.get());
+        }
+    }
+
+    private HttpRequest nextRequest(Random random) {
+        long rank = keys.next(random);
+        boolean read = switch (config.workload()) {
+            case GET -> true;
+            case PUT -> false;
+            case MIXED -> random.nextDouble() < config.readRatio();
+        };
+        return read ? get(rank) : put(rank);
+    }
+
+    private HttpRequest get(long rank) {
+        return HttpRequest.newBuilder(entityUri(rank)).timeout(config.timeout()).GET().build();
+    }
+
+    private HttpRequest put(long rank) {
+        return HttpRequest.newBuilder(entityUri(rank))
+                .timeout(config.timeout())
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(value))
+                .build();
+    }
+
+    /**
+     * Spreads requests over all nodes, every node coordinates its share.
+     */
+    private URI entityUri(long rank) {
+        String url = urls.get(Math.floorMod(nextNode.getAndIncrement(), urls.size()));
+        return URI.create(url + "/v0/entity?id=" + id(rank));
+    }
+
+    /**
+     * Distinct id of every rank, scattered so the popular ranks of a skewed run land on different nodes.
+     */
+    static String id(long rank) {
+        long h = rank;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return Long.toHexString(h ^ (h >>> 33));
+    }
+
+    private static void waitUntil(long due) {
+        for (long now = System.nanoTime(); now < due; now = System.nanoTime()) {
+            LockSupport.parkNanos(due - now);
+        }
+    }
+
+    private static final class Recorder {
+        private final Histogram latencies = new ConcurrentHistogram(3);
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder non2xx3xx = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+
+        void answered(long due, HttpResponse<byte[]> response) {
+            latencies.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due)));
+            requests.increment();
+            bytesRead.add(response.body().length);
+            if (response.statusCode() >= 400) {
+                non2xx3xx.increment();
+            }
+        }
+
+        void failed() {
+            errors.increment();
+        }
+
+        LoadResult result(Duration elapsed) {
+            return new LoadResult(latencies, requests.sum(), non2xx3xx.sum(), errors.sum(), bytesRead.sum(), elapsed);
+        }
+    }
+}
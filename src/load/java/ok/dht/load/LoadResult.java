@@ -0,0 +1,25 @@
+package ok.dht.load;
+
+import org.HdrHistogram.Histogram;
+
+import java.time.Duration;
+
+/**
+ * Outcome of the measured part of a run.
+ *
+ * @param latencies  microseconds from the time every answered request was due to its answer
+ * @param requests   requests answered, whatever the status
+ * @param non2xx3xx  answers with a status of 400 or above
+ * @param errors     requests without an answer: timeouts, refused or reset connections
+ * @param bytesRead  response body bytes
+ * @param elapsed    wall time of the measurement
+ */
+record LoadResult(
+        Histogram latencies,
+        long requests,
+        long non2xx3xx,
+        long errors,
+        long bytesRead,
+        Duration elapsed
+) {
+}
@@ -0,0 +1,59 @@
+package ok.dht.load;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Starts a local cluster and drives it at a constant rate, reporting latencies in the wrk2 format.
+ * Run with {@code ./gradlew loadTest --args="--nodes=3 --workload=get --rate=5000"},
+ * see {@link LoadConfig#USAGE} for all the options.
+ */
+public final class LoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+
+    private LoadTest() {
+        // Only main method
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadConfig config;
+        try {
+            config = LoadConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        LoadResult result;
+        String target;
+        try (LocalCluster cluster = LocalCluster.start(config.nodes())) {
+            target = String.join(", ", cluster.urls());
+            LoadGenerator generator = new LoadGenerator(config, cluster.urls());
+            if (config.preload() && config.workload() != Workload.PUT) {
+                generator.preload();
+            }
+            if (!config.warmup().isZero()) {
+                LOG.info("Warming up for {}", config.warmup());
+                generator.run(config.warmup());
+            }
+            LOG.info("Measuring for {}", config.duration());
+            result = generator.run(config.duration());
+        }
+
+        WrkReport.print(config, target, result, System.out);
+        if (config.output() != null) {
+            FileOutputStream file = new FileOutputStream(config.output());
+            try (PrintStream out = new PrintStream(file, false, StandardCharsets.UTF_8)) {
+                WrkReport.print(config, target, result, out);
+            }
+        }
+    }
+}
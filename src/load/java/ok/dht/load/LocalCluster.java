@@ -0,0 +1,171 @@
+package ok.dht.load;
+
+import ok.dht.Service;
+import ok.dht.ServiceConfig;
+import ok.dht.test.ServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * Nodes of the latest {@link ServiceFactory} started on free local ports, each in its own temporary directory.
+ * The factory is found the way the tests find it: the highest stage and week among annotated classes.
+ */
+final class LocalCluster implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalCluster.class);
+
+    private final List<String> urls;
+    private final List<Service> services = new ArrayList<>();
+    private final List<Path> workingDirs = new ArrayList<>();
+
+    private LocalCluster(List<String> urls) {
+        this.urls = urls;
+    }
+
+    static LocalCluster start(int nodes) throws IOException {
+        ServiceFactory.Factory factory = newFactory();
+        List<Integer> ports = new ArrayList<>(nodes);
+        List<String> urls = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            int port = freePort();
+            ports.add(port);
+            urls.add("http://localhost:" + port);
+        }
+        LocalCluster cluster = new LocalCluster(Collections.unmodifiableList(urls));
+        try {
+            for (int i = 0; i < nodes; i++) {
+                Path workingDir = Files.createTempDirectory("load-node");
+                cluster.workingDirs.add(workingDir);
+                Service service = factory.create(new ServiceConfig(ports.get(i), urls.get(i), urls, workingDir));
+                service.start().get(10, TimeUnit.SECONDS);
+                cluster.services.add(service);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cluster.close();
+            throw new IOException("Interrupted while starting the cluster", e);
+        } catch (ExecutionException | TimeoutException e) {
+            cluster.close();
+            throw new IOException("Can't start the cluster", e);
+        }
+        LOG.info("Started {} with {}", urls, factory.getClass().getName());
+        return cluster;
+    }
+
+    List<String> urls() {
+        return urls;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Service service : services) {
+            try {
+                service.stop().get(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while stopping the cluster", e);
+            } catch (ExecutionException | TimeoutException e) {
+                LOG.error("Can't stop a node", e);
+            }
+        }
+        for (Path workingDir : workingDirs) {
+            delete(workingDir);
+        }
+    }
+
+    private static ServiceFactory.Factory newFactory() throws IOException {
+        Path root;
+        try {
+            root = Path.of(ServiceFactory.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Can't locate service classes", e);
+        }
+        Class<?> latest = null;
+        long latestStage = -1;
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Class<?> candidate = annotatedClass(root, file);
+                if (candidate == null) {
+                    continue;
+                }
+                ServiceFactory annotation = candidate.getAnnotation(ServiceFactory.class);
+                long stage = ((long) annotation.stage()) << 32 | annotation.week();
+                if (stage > latestStage) {
+                    latestStage = stage;
+                    latest = candidate;
+                }
+            }
+        }
+        if (latest == null) {
+            throw new IllegalStateException("No Factory declared under ok.dht.test.<username> package");
+        }
+        try {
+            return (ServiceFactory.Factory) latest.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't create " + latest.getName(), e);
+        }
+    }
+
+    @Nullable
+    private static Class<?> annotatedClass(Path root, Path file) {
+        String name = root.relativize(file).toString();
+        if (!name.endsWith(".class")) {
+            return null;
+        }
+        String className = name.substring(0, name.length() - ".class".length())
+                .replace(file.getFileSystem().getSeparator(), ".");
+        try {
+            Class<?> clazz = Class.forName(className, false, ServiceFactory.class.getClassLoader());
+            return clazz.isAnnotationPresent(ServiceFactory.class) ? clazz : null;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 0), 1);
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
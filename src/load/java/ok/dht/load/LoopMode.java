@@ -0,0 +1,17 @@
+package ok.dht.load;
+
+/**
+ * How requests are scheduled against the constant rate.
+ */
+public enum LoopMode {
+    /**
+     * Every connection sends its next request once the previous one is answered, like wrk2.
+     * Latency is still measured from the time the request was due, so a stall is not hidden
+     * by the requests it delayed.
+     */
+    CLOSED,
+    /**
+     * Requests are sent when due whatever the number in flight, as independent clients would.
+     */
+    OPEN
+}
@@ -0,0 +1,13 @@
+package ok.dht.load;
+
+/**
+ * Request mix of a load run.
+ */
+public enum Workload {
+    PUT,
+    GET,
+    /**
+     * GETs with the configured read ratio, PUTs otherwise.
+     */
+    MIXED
+}
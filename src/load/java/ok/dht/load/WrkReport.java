@@ -0,0 +1,80 @@
+package ok.dht.load;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Prints a run the way {@code wrk2 --latency} does, so reports of both tools can be compared side by side.
+ */
+final class WrkReport {
+
+    private static final double[] PERCENTILES = {50.0, 75.0, 90.0, 99.0, 99.9, 99.99, 99.999, 100.0};
+    // HdrHistogram values are microseconds, wrk2 prints milliseconds
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    private WrkReport() {
+    }
+
+    static void print(LoadConfig config, String target, LoadResult result, PrintStream out) {
+        Histogram latencies = result.latencies();
+        double seconds = result.elapsed().toNanos() / 1e9;
+        out.printf(Locale.ROOT, "Running %ds test @ %s%n", result.elapsed().toSeconds(), target);
+        out.printf(Locale.ROOT, "  %d connections, %s loop, %s workload, %s keys, %d byte values, %d requests/sec%n",
+                config.connections(),
+                config.mode().name().toLowerCase(Locale.ROOT),
+                config.workload().name().toLowerCase(Locale.ROOT),
+                config.zipfian() > 0 ? "zipfian " + config.zipfian() : "uniform",
+                config.valueSize(),
+                config.rate());
+        out.println("  Thread Stats   Avg      Stdev     Max");
+        out.printf(Locale.ROOT, "    Latency  %9s %9s %9s%n",
+                time(latencies.getMean()),
+                time(latencies.getStdDeviation()),
+                time(latencies.getMaxValue()));
+        out.println("  Latency Distribution (HdrHistogram - Recorded Latency)");
+        for (double percentile : PERCENTILES) {
+            out.printf(Locale.ROOT, "%7.3f%%  %9s%n", percentile, time(latencies.getValueAtPercentile(percentile)));
+        }
+        out.println();
+        out.println("  Detailed Percentile spectrum:");
+        latencies.outputPercentileDistribution(out, 5, MICROS_PER_MILLI);
+        out.println("----------------------------------------------------------");
+        out.printf(Locale.ROOT, "  %d requests in %.2fs, %s read%n",
+                result.requests(),
+                seconds,
+                bytes(result.bytesRead()));
+        if (result.errors() > 0) {
+            out.printf(Locale.ROOT, "  Socket errors: %d%n", result.errors());
+        }
+        if (result.non2xx3xx() > 0) {
+            out.printf(Locale.ROOT, "  Non-2xx or 3xx responses: %d%n", result.non2xx3xx());
+        }
+        out.printf(Locale.ROOT, "Requests/sec: %10.2f%n", result.requests() / seconds);
+        out.printf(Locale.ROOT, "Transfer/sec: %10s%n", bytes((long) (result.bytesRead() / seconds)));
+    }
+
+    private static String time(double micros) {
+        if (micros < 1000) {
+            return String.format(Locale.ROOT, "%.2fus", micros);
+        }
+        if (micros < 1_000_000) {
+            return String.format(Locale.ROOT, "%.2fms", micros / 1000);
+        }
+        return String.format(Locale.ROOT, "%.2fs", micros / 1_000_000);
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.2fKB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.2fMB", bytes / (1024.0 * 1024));
+        }
+        return String.format(Locale.ROOT, "%.2fGB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,48 @@
+package ok.dht.load;
+
+import java.util.Random;
+
+/**
+ * Zipfian ranks by the method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases",
+ * as used by YCSB: constant time per sample after a linear precomputation.
+ */
+final class ZipfianDistribution implements KeyDistribution {
+
+    private final long keys;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    ZipfianDistribution(long keys, double theta) {
+        if (keys < 2 || theta <= 0 || theta >= 1) {
+            throw new IllegalArgumentException("Need at least 2 keys and theta in (0, 1)");
+        }
+        this.keys = keys;
+        this.theta = theta;
+        this.zetaN = zeta(keys, theta);
+        this.alpha = 1 / (1 - theta);
+        this.eta = (1 - Math.pow(2.0 / keys, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    @Override
+    public long next(Random random) {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return Math.min(keys - 1, (long) (keys * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
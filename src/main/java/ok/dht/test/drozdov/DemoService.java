@@ -1,40 +1,201 @@
 package ok.dht.test.drozdov;
 
+import jdk.incubator.foreign.MemorySegment;
 import ok.dht.Service;
 import ok.dht.ServiceConfig;
 import ok.dht.test.ServiceFactory;
-import one.nio.http.HttpServer;
+import ok.dht.test.drozdov.cluster.ClientConfig;
+import ok.dht.test.drozdov.cluster.Coordinator;
+import ok.dht.test.drozdov.cluster.DaoReplica;
+import ok.dht.test.drozdov.cluster.Membership;
+import ok.dht.test.drozdov.cluster.PeerStats;
+import ok.dht.test.drozdov.cluster.ReadCoalescer;
+import ok.dht.test.drozdov.cluster.RecordBatch;
+import ok.dht.test.drozdov.cluster.RepairConfig;
+import ok.dht.test.drozdov.cluster.RepairStats;
+import ok.dht.test.drozdov.cluster.ReplicaClient;
+import ok.dht.test.drozdov.cluster.ReplicaRepair;
+import ok.dht.test.drozdov.cluster.ReplicaSelector;
+import ok.dht.test.drozdov.cluster.ShardStats;
+import ok.dht.test.drozdov.cluster.Topology;
+import ok.dht.test.drozdov.cluster.VersionedValue;
+import ok.dht.test.drozdov.dao.CompactionStatus;
+import ok.dht.test.drozdov.dao.Compression;
+import ok.dht.test.drozdov.dao.Config;
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.MemorySegmentComparator;
+import ok.dht.test.drozdov.dao.MemorySegmentDao;
+import ok.dht.test.drozdov.dao.TableStats;
+import ok.dht.test.drozdov.dao.TooManyFlushesException;
+import ok.dht.test.drozdov.http.ChunkedResponse;
+import ok.dht.test.drozdov.http.SegmentResponse;
+import ok.dht.test.drozdov.http.ServiceHttpServer;
+import ok.dht.test.drozdov.http.WorkerConfig;
+import ok.dht.test.drozdov.http.WorkerPool;
+import ok.dht.test.drozdov.http.WorkerStats;
+import ok.dht.test.drozdov.metrics.PrometheusWriter;
 import one.nio.http.HttpServerConfig;
+import one.nio.http.HttpSession;
+import one.nio.http.Param;
 import one.nio.http.Path;
 import one.nio.http.Request;
 import one.nio.http.RequestMethod;
 import one.nio.http.Response;
 import one.nio.server.AcceptorConfig;
 import one.nio.util.Utf8;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class DemoService implements Service {
 
+    private static final Logger LOG = LoggerFactory.getLogger(DemoService.class);
+    private static final long DRAIN_POLL_MILLIS = 10;
+
     private final ServiceConfig config;
-    private HttpServer server;
+    private final WorkerConfig workerConfig;
+    private final ClientConfig clientConfig;
+    private final RepairConfig repairConfig;
+    private final Compression compression;
+    // Drains and closes stopping instances, its thread only lives while a stop is in progress
+    private final ScheduledThreadPoolExecutor stopExecutor;
+    // Hedges of reads, cancelled ones are dropped at once and the thread only lives while some are pending
+    private final ScheduledThreadPoolExecutor hedgeExecutor;
+    private ServiceHttpServer server;
+    private WorkerPool workers;
+    private MemorySegmentDao dao;
+    private DaoReplica replica;
+    private ReplicaClient client;
+    private Membership membership;
+    private ReplicaRepair repair;
+    private Coordinator coordinator;
+    private ServiceMetrics metrics;
 
     public DemoService(ServiceConfig config) {
+        this(config, new WorkerConfig(), new ClientConfig(), new RepairConfig(), Config.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates the service of a node.
+     *
+     * @param compression codec of SSTables this node writes
+     */
+    public DemoService(
+            ServiceConfig config,
+            WorkerConfig workerConfig,
+            ClientConfig clientConfig,
+            RepairConfig repairConfig,
+            Compression compression
+    ) {
         this.config = config;
+        this.workerConfig = workerConfig;
+        this.clientConfig = clientConfig;
+        this.repairConfig = repairConfig;
+        this.compression = compression;
+        this.stopExecutor = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "service-stop-" + config.selfPort()));
+        stopExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        stopExecutor.allowCoreThreadTimeOut(true);
+        this.hedgeExecutor = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "read-hedge-" + config.selfPort()));
+        hedgeExecutor.setRemoveOnCancelPolicy(true);
+        hedgeExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        hedgeExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Override
-    public CompletableFuture<?> start() throws IOException {
-        server = new HttpServer(createConfigFromPort(config.selfPort()));
+    public synchronized CompletableFuture<?> start() throws IOException {
+        // Nodes of a cluster may share the working directory
+        dao = new MemorySegmentDao(new Config(
+                config.workingDir().resolve("node-" + config.selfPort()),
+                compression,
+                VersionedValue.expiry(repairConfig.gracePeriod())
+        ));
+        workers = new WorkerPool(workerConfig);
+        ReadCoalescer reads = new ReadCoalescer(clientConfig.readCacheTtl(), workers);
+        replica = new DaoReplica(dao, reads);
+        client = new ReplicaClient(clientConfig);
+        membership = new Membership(
+                config.workingDir().resolve("topology-" + config.selfPort()),
+                config.selfUrl(),
+                config.clusterUrls(),
+                client
+        );
+        repair = new ReplicaRepair(
+                config.workingDir().resolve("hints-" + config.selfPort()),
+                membership,
+                config.selfUrl(),
+                replica,
+                client,
+                repairConfig
+        );
+        ReplicaSelector selector = new ReplicaSelector(clientConfig);
+        coordinator = new Coordinator(
+                membership,
+                config.selfUrl(),
+                client,
+                replica,
+                repair,
+                reads,
+                selector,
+                hedgeExecutor
+        );
+        server = new ServiceHttpServer(createConfigFromPort(config.selfPort()), workers, ReplicaClient.INTERNAL_PATHS);
+        metrics = new ServiceMetrics(server, workers, dao, client, repair, reads, selector, membership);
         server.start();
         server.addRequestHandlers(this);
         return CompletableFuture.completedFuture(null);
     }
 
+    /**
+     * Refuses new connections right away and returns. Requests in flight, proxied ones included, are given
+     * {@link WorkerConfig#drainTimeoutMillis()} to complete, then the server is stopped and the memtable is
+     * flushed in the background. The future completes once the data is durable.
+     */
     @Override
-    public CompletableFuture<?> stop() throws IOException {
-        return CompletableFuture.completedFuture(null);
+    public synchronized CompletableFuture<?> stop() {
+        ServiceHttpServer stopping = server;
+        if (stopping == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        server = null;
+        stopping.drain();
+        // A restart replaces the fields
+        WorkerPool stoppingWorkers = workers;
+        Membership stoppingMembership = membership;
+        ReplicaRepair stoppingRepair = repair;
+        ReplicaClient stoppingClient = client;
+        MemorySegmentDao stoppingDao = dao;
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Runnable close = () -> {
+            try {
+                stopping.stop();
+                stoppingWorkers.stop();
+                stoppingMembership.close();
+                stoppingRepair.close();
+                stoppingClient.close();
+                stoppingDao.close();
+                result.complete(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(new InterruptedIOException("Interrupted while stopping workers"));
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        };
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(workerConfig.drainTimeoutMillis());
+        stopExecutor.execute(() -> awaitDrained(stopping, deadline, close));
+        return result;
     }
 
     @Path("/")
@@ -46,6 +207,411 @@ public class DemoService implements Service {
         );
     }
 
+    @Path("/v0/entity")
+    @RequestMethod(Request.METHOD_GET)
+    public void handleGetEntity(
+            @Param(value = "id", required = true) String id,
+            Request request,
+            HttpSession session
+    ) throws IOException {
+        ReplicationFactor replication = ReplicationFactor.parse(request, coordinator.maxReplicas());
+        if (id.isEmpty() || replication == null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        coordinator.get(toKey(id), id, replication.ack(), replication.from(), session);
+    }
+
+    @Path("/v0/entity")
+    @RequestMethod(Request.METHOD_PUT)
+    public void handlePutEntity(
+            @Param(value = "id", required = true) String id,
+            Request request,
+            HttpSession session
+    ) throws IOException {
+        ReplicationFactor replication = ReplicationFactor.parse(request, coordinator.maxReplicas());
+        if (id.isEmpty() || replication == null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        int ttlSeconds = parseTtl(request.getParameter("ttl="));
+        if (ttlSeconds < 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        byte[] body = request.getBody();
+        byte[] value = body == null ? Response.EMPTY : body;
+        coordinator.upsert(toKey(id), id, value, ttlSeconds, replication.ack(), replication.from(), session);
+    }
+
+    @Path("/v0/entity")
+    @RequestMethod(Request.METHOD_DELETE)
+    public void handleDeleteEntity(
+            @Param(value = "id", required = true) String id,
+            Request request,
+            HttpSession session
+    ) throws IOException {
+        ReplicationFactor replication = ReplicationFactor.parse(request, coordinator.maxReplicas());
+        if (id.isEmpty() || replication == null) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        coordinator.upsert(toKey(id), id, null, 0, replication.ack(), replication.from(), session);
+    }
+
+    /**
+     * Writes a {@link RecordBatch} of entries, each replicated as a single-key write would be.
+     * A {@code ttl} applies to every value of the batch.
+     */
+    @Path("/v0/entities/batch")
+    @RequestMethod(Request.METHOD_PUT)
+    public void handlePutBatch(Request request, HttpSession session) throws IOException {
+        ReplicationFactor replication = ReplicationFactor.parse(request, coordinator.maxReplicas());
+        byte[] body = request.getBody();
+        List<Entry> entries = RecordBatch.parse(MemorySegment.ofArray(body == null ? Response.EMPTY : body));
+        int ttlSeconds = parseTtl(request.getParameter("ttl="));
+        if (entries == null || replication == null || ttlSeconds < 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        coordinator.upsertAll(entries, ttlSeconds, replication.ack(), replication.from(), session);
+    }
+
+    /**
+     * Streams live entries of this node with keys in {@code [start, end)}, the whole tail if there is no end.
+     */
+    @Path("/v0/entities")
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleGetRange(@Param(value = "start", required = true) String start, Request request) {
+        String end = request.getParameter("end=");
+        if (start.isEmpty() || (end != null && end.isEmpty())) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        MemorySegment from = toKey(start);
+        MemorySegment to = end == null ? null : toKey(end);
+        Iterator<Entry> entries = to == null || MemorySegmentComparator.INSTANCE.compare(from, to) < 0
+                ? replica.range(from, to)
+                : Collections.emptyIterator();
+        return new ChunkedResponse(Response.OK, entries);
+    }
+
+    @Path(ReplicaClient.REPLICA_PATH)
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleReplicaGet(@Param(value = "id", required = true) String id) {
+        MemorySegment record = replica.get(toKey(id));
+        if (record == null) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+        return new SegmentResponse(Response.OK, record);
+    }
+
+    @Path(ReplicaClient.REPLICA_PATH)
+    @RequestMethod(Request.METHOD_PUT)
+    public Response handleReplicaPut(@Param(value = "id", required = true) String id, Request request) {
+        byte[] body = request.getBody();
+        if (body == null || !VersionedValue.isValid(MemorySegment.ofArray(body))) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        try {
+            replica.upsert(toKey(id), MemorySegment.ofArray(body));
+        } catch (TooManyFlushesException e) {
+            return new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        } catch (UncheckedIOException e) {
+            LOG.error("Can't persist {}", id, e);
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+        return new Response(Response.CREATED, Response.EMPTY);
+    }
+
+    @Path(ReplicaClient.REPLICA_BATCH_PATH)
+    @RequestMethod(Request.METHOD_PUT)
+    public Response handleReplicaPutBatch(Request request) {
+        byte[] body = request.getBody();
+        List<Entry> records = RecordBatch.parse(MemorySegment.ofArray(body == null ? Response.EMPTY : body));
+        if (records == null) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        for (Entry record : records) {
+            if (record.isTombstone() || !VersionedValue.isValid(record.value())) {
+                return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+        }
+        try {
+            replica.upsertAll(records);
+        } catch (TooManyFlushesException e) {
+            return new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        } catch (UncheckedIOException e) {
+            LOG.error("Can't persist a batch of {} records", records.size(), e);
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+        return new Response(Response.CREATED, Response.EMPTY);
+    }
+
+    /**
+     * Merkle tree of records this node shares with the peer, compared by the peer's anti-entropy.
+     * The tree is the one built by the latest round of this node, the request doesn't scan the store.
+     */
+    @Path(ReplicaClient.REPAIR_TREE_PATH)
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleRepairTree(@Param(value = "peer", required = true) String peer) {
+        byte[] tree = repair.tree(peer);
+        if (tree == null) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        return new Response(Response.OK, tree);
+    }
+
+    /**
+     * Streams records shared with the peer whose buckets are set in the body, tombstones included.
+     */
+    @Path(ReplicaClient.REPAIR_RECORDS_PATH)
+    @RequestMethod(Request.METHOD_POST)
+    public Response handleRepairRecords(@Param(value = "peer", required = true) String peer, Request request) {
+        byte[] body = request.getBody();
+        Iterator<Entry> records = repair.records(peer, BitSet.valueOf(body == null ? Response.EMPTY : body));
+        if (records == null) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        return ChunkedResponse.binary(Response.OK, records);
+    }
+
+    /**
+     * Merges the topology gossiped by a peer and answers with this node's.
+     */
+    @Path(ReplicaClient.TOPOLOGY_PATH)
+    @RequestMethod(Request.METHOD_PUT)
+    public Response handleTopologyExchange(Request request) {
+        byte[] body = request.getBody();
+        try {
+            return new Response(Response.OK, membership.exchange(body == null ? Response.EMPTY : body));
+        } catch (IllegalArgumentException e) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        } catch (UncheckedIOException e) {
+            LOG.error("Can't persist the topology", e);
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    @Path("/v0/metrics")
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleMetrics() {
+        Response response = new Response(Response.OK, Utf8.toBytes(metrics.scrape()));
+        response.addHeader("Content-Type: " + PrometheusWriter.CONTENT_TYPE);
+        return response;
+    }
+
+    @Path("/v0/admin/compaction")
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleCompactionStatus() {
+        CompactionStatus status = dao.compactionStatus();
+        String json = "{\"tables\":" + status.tables()
+                + ",\"tablesBytes\":" + status.tablesBytes()
+                + ",\"running\":" + status.running()
+                + ",\"inputBytes\":" + status.inputBytes()
+                + ",\"writtenBytes\":" + status.writtenBytes()
+                + ",\"completed\":" + status.completed()
+                + ",\"compactedBytes\":" + status.compactedBytes()
+                + "}\n";
+        Response response = new Response(Response.OK, Utf8.toBytes(json));
+        response.addHeader("Content-Type: application/json");
+        return response;
+    }
+
+    @Path("/v0/admin/compaction")
+    @RequestMethod(Request.METHOD_POST)
+    public Response handleCompact() {
+        dao.compact();
+        return new Response(Response.ACCEPTED, Response.EMPTY);
+    }
+
+    @Path("/v0/admin/tables")
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleTableStats() {
+        StringBuilder json = new StringBuilder("[");
+        for (TableStats table : dao.tableStats()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(table.name())
+                    .append("\",\"entries\":").append(table.entries())
+                    .append(",\"bytes\":").append(table.bytes())
+                    .append(",\"bloomChecks\":").append(table.bloomChecks())
+                    .append(",\"bloomNegatives\":").append(table.bloomNegatives())
+                    .append(",\"falsePositives\":").append(table.falsePositives())
+                    .append(",\"falsePositiveRate\":").append(table.falsePositiveRate())
+                    .append('}');
+        }
+        json.append("]\n");
+        Response response = new Response(Response.OK, Utf8.toBytes(json.toString()));
+        response.addHeader("Content-Type: application/json");
+        return response;
+    }
+
+    @Path("/v0/admin/workers")
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleWorkerStats() {
+        WorkerStats stats = workers.stats();
+        String json = "{\"threads\":" + stats.threads()
+                + ",\"active\":" + stats.active()
+                + ",\"queued\":" + stats.queued()
+                + ",\"completed\":" + stats.completed()
+                + ",\"rejected\":" + stats.rejected()
+                + ",\"expired\":" + stats.expired()
+                + "}\n";
+        Response response = new Response(Response.OK, Utf8.toBytes(json));
+        response.addHeader("Content-Type: application/json");
+        return response;
+    }
+
+    @Path("/v0/admin/cluster")
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleClusterStats() {
+        List<ShardStats> shards = coordinator.shardStats();
+        long total = 0;
+        long max = 0;
+        StringBuilder nodes = new StringBuilder();
+        for (ShardStats shard : shards) {
+            total += shard.requests();
+            max = Math.max(max, shard.requests());
+            if (!nodes.isEmpty()) {
+                nodes.append(',');
+            }
+            nodes.append("{\"url\":\"").append(shard.url())
+                    .append("\",\"share\":").append(shard.share())
+                    .append(",\"requests\":").append(shard.requests())
+                    .append('}');
+        }
+        // Busiest node relative to a perfectly even split, 1.0 is ideal
+        double skew = total == 0 ? 1.0 : (double) max * shards.size() / total;
+        Topology topology = membership.topology();
+        String json = "{\"self\":\"" + config.selfUrl()
+                + "\",\"version\":" + topology.version()
+                + ",\"handingOff\":" + topology.handingOff()
+                + ",\"skew\":" + skew
+                + ",\"nodes\":[" + nodes
+                + "]}\n";
+        Response response = new Response(Response.OK, Utf8.toBytes(json));
+        response.addHeader("Content-Type: application/json");
+        return response;
+    }
+
+    /**
+     * Adds the node to the cluster. Keys it takes over are handed off in the background,
+     * meanwhile the nodes it joins keep answering for them.
+     */
+    @Path("/v0/admin/cluster/nodes")
+    @RequestMethod(Request.METHOD_POST)
+    public Response handleJoin(@Param(value = "url", required = true) String url) {
+        return changeMembership(() -> membership.join(url));
+    }
+
+    /**
+     * Removes the node from the cluster once its keys are handed off to the remaining nodes.
+     */
+    @Path("/v0/admin/cluster/nodes")
+    @RequestMethod(Request.METHOD_DELETE)
+    public Response handleDecommission(@Param(value = "url", required = true) String url) {
+        return changeMembership(() -> membership.decommission(url));
+    }
+
+    @Path("/v0/admin/repair")
+    @RequestMethod(Request.METHOD_GET)
+    public Response handleRepairStats() {
+        RepairStats stats = repair.stats();
+        String json = "{\"hinted\":" + stats.hinted()
+                + ",\"hintsDelivered\":" + stats.hintsDelivered()
+                + ",\"antiEntropyRounds\":" + stats.antiEntropyRounds()
+                + ",\"bucketsDiffered\":" + stats.bucketsDiffered()
+                + ",\"recordsRepaired\":" + stats.recordsRepaired()
+                + ",\"bytesRepaired\":" + stats.bytesRepaired()
+                + ",\"recordsHandedOff\":" + stats.recordsHandedOff()
+                + ",\"bytesHandedOff\":" + stats.bytesHandedOff()
+                + "}\n";
+        Response response = new Response(Response.OK, Utf8.toBytes(json));
+        response.addHeader("Content-Type: application/json");
+        return response;
+    }
+
+    @Path("/v0/admin/peers")
+    @RequestMethod(Request.METHOD_GET)
+    public Response handlePeerStats() {
+        StringBuilder json = new StringBuilder("[");
+        for (PeerStats peer : client.stats()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"url\":\"").append(peer.url())
+                    .append("\",\"circuit\":\"").append(peer.circuit())
+                    .append("\",\"calls\":").append(peer.calls())
+                    .append(",\"failures\":").append(peer.failures())
+                    .append(",\"fastFailed\":").append(peer.fastFailed())
+                    .append(",\"p50Micros\":").append(peer.p50Micros())
+                    .append(",\"p99Micros\":").append(peer.p99Micros())
+                    .append(",\"p999Micros\":").append(peer.p999Micros())
+                    .append('}');
+        }
+        json.append("]\n");
+        Response response = new Response(Response.OK, Utf8.toBytes(json.toString()));
+        response.addHeader("Content-Type: application/json");
+        return response;
+    }
+
+    private static Response changeMembership(Supplier<Topology> change) {
+        Topology topology;
+        try {
+            topology = change.get();
+        } catch (IllegalStateException e) {
+            return new Response(Response.CONFLICT, Utf8.toBytes(e.getMessage() + "\n"));
+        } catch (IllegalArgumentException e) {
+            return new Response(Response.BAD_REQUEST, Utf8.toBytes(e.getMessage() + "\n"));
+        } catch (UncheckedIOException e) {
+            LOG.error("Can't persist the topology", e);
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+        Response response = new Response(Response.ACCEPTED, Utf8.toBytes("{\"version\":" + topology.version() + "}\n"));
+        response.addHeader("Content-Type: application/json");
+        return response;
+    }
+
+    /**
+     * Checks the server every {@value #DRAIN_POLL_MILLIS} ms without holding the thread in between,
+     * and closes the instance once no request is in flight or the deadline has passed.
+     */
+    private void awaitDrained(ServiceHttpServer stopping, long deadline, Runnable close) {
+        int inFlight = stopping.inFlight();
+        if (inFlight > 0) {
+            if (System.nanoTime() - deadline < 0) {
+                stopExecutor.schedule(
+                        () -> awaitDrained(stopping, deadline, close),
+                        DRAIN_POLL_MILLIS,
+                        TimeUnit.MILLISECONDS
+                );
+                return;
+            }
+            LOG.warn("Stopping with {} requests in flight", inFlight);
+        }
+        close.run();
+    }
+
+    static MemorySegment toKey(String id) {
+        return MemorySegment.ofArray(Utf8.toBytes(id));
+    }
+
+    /**
+     * Time to live of a written value in seconds, 0 without the parameter and -1 if it is not a positive number.
+     */
+    private static int parseTtl(@Nullable String ttl) {
+        if (ttl == null) {
+            return 0;
+        }
+        try {
+            int seconds = Integer.parseInt(ttl);
+            return seconds > 0 ? seconds : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private static HttpServerConfig createConfigFromPort(int port) {
         HttpServerConfig httpConfig = new HttpServerConfig();
         AcceptorConfig acceptor = new AcceptorConfig();
@@ -55,7 +621,29 @@ public class DemoService implements Service {
         return httpConfig;
     }
 
-    @ServiceFactory(stage = 0, week = 1)
+    /**
+     * Replica counts of a request, {@code ack} and {@code from} parameters default to a majority of all nodes.
+     */
+    record ReplicationFactor(int ack, int from) {
+
+        @Nullable
+        static ReplicationFactor parse(Request request, int nodes) {
+            String ack = request.getParameter("ack=");
+            String from = request.getParameter("from=");
+            try {
+                int fromValue = from == null ? nodes : Integer.parseInt(from);
+                int ackValue = ack == null ? fromValue / 2 + 1 : Integer.parseInt(ack);
+                if (ackValue < 1 || ackValue > fromValue || fromValue > nodes) {
+                    return null;
+                }
+                return new ReplicationFactor(ackValue, fromValue);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    @ServiceFactory(stage = 6, week = 1, bonuses = "SingleNodeTest#respectFileFolder")
     public static class Factory implements ServiceFactory.Factory {
 
         @Override
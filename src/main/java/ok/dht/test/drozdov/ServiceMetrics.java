@@ -0,0 +1,248 @@
+package ok.dht.test.drozdov;
+
+import ok.dht.test.drozdov.cluster.Membership;
+import ok.dht.test.drozdov.cluster.PeerStats;
+import ok.dht.test.drozdov.cluster.ReadCoalescer;
+import ok.dht.test.drozdov.cluster.RepairStats;
+import ok.dht.test.drozdov.cluster.ReplicaClient;
+import ok.dht.test.drozdov.cluster.ReplicaRepair;
+import ok.dht.test.drozdov.cluster.ReplicaSelector;
+import ok.dht.test.drozdov.cluster.Topology;
+import ok.dht.test.drozdov.dao.CompactionStatus;
+import ok.dht.test.drozdov.dao.MemorySegmentDao;
+import ok.dht.test.drozdov.dao.StorageStats;
+import ok.dht.test.drozdov.http.RequestMetrics;
+import ok.dht.test.drozdov.http.Route;
+import ok.dht.test.drozdov.http.ServiceHttpServer;
+import ok.dht.test.drozdov.http.WorkerPool;
+import ok.dht.test.drozdov.http.WorkerStats;
+import ok.dht.test.drozdov.metrics.PrometheusWriter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+
+/**
+ * Scrape of {@code /v0/metrics}. Everything is read from counters the components keep anyway,
+ * the cost of formatting is paid by the scraper only.
+ */
+final class ServiceMetrics {
+
+    private static final double MILLIS_PER_SECOND = 1000.0;
+    private static final double MICROS_PER_SECOND = 1e6;
+
+    private final ServiceHttpServer server;
+    private final WorkerPool workers;
+    private final MemorySegmentDao dao;
+    private final ReplicaClient client;
+    private final ReplicaRepair repair;
+    private final ReadCoalescer reads;
+    private final ReplicaSelector selector;
+    private final Membership membership;
+
+    ServiceMetrics(
+            ServiceHttpServer server,
+            WorkerPool workers,
+            MemorySegmentDao dao,
+            ReplicaClient client,
+            ReplicaRepair repair,
+            ReadCoalescer reads,
+            ReplicaSelector selector,
+            Membership membership
+    ) {
+        this.server = server;
+        this.workers = workers;
+        this.dao = dao;
+        this.client = client;
+        this.repair = repair;
+        this.reads = reads;
+        this.selector = selector;
+        this.membership = membership;
+    }
+
+    String scrape() {
+        PrometheusWriter out = new PrometheusWriter();
+        writeRequests(out);
+        writeServer(out);
+        writeStorage(out);
+        writeReplication(out);
+        writeJvm(out);
+        return out.toString();
+    }
+
+    private void writeRequests(PrometheusWriter out) {
+        RequestMetrics metrics = server.metrics();
+        out.histogram("dht_http_request_duration_seconds", "Time from request parsing to the response head");
+        for (Route route : Route.values()) {
+            out.histogramSamples("dht_http_request_duration_seconds", metrics.latency(route), "route", route.label());
+        }
+        out.counter("dht_http_responses_total", "Responses by route and status class");
+        for (Route route : Route.values()) {
+            for (int statusClass = 1; statusClass <= 5; statusClass++) {
+                out.sample(
+                        "dht_http_responses_total",
+                        metrics.responses(route, statusClass),
+                        "route", route.label(),
+                        "status", statusClass + "xx"
+                );
+            }
+        }
+    }
+
+    private void writeServer(PrometheusWriter out) {
+        out.gauge("dht_server_connections", "Open client connections")
+                .sample("dht_server_connections", server.getConnections());
+        out.counter("dht_server_accepted_sessions_total", "Accepted client connections")
+                .sample("dht_server_accepted_sessions_total", server.getAcceptedSessions());
+        out.counter("dht_server_rejected_sessions_total", "Client connections refused by the server")
+                .sample("dht_server_rejected_sessions_total", server.getRejectedSessions());
+        out.gauge("dht_selectors", "Selector threads")
+                .sample("dht_selectors", server.getSelectorCount());
+        out.gauge("dht_selector_ready_avg", "Average ready keys per selector wakeup")
+                .sample("dht_selector_ready_avg", server.getSelectorAvgReady());
+        out.gauge("dht_selector_ready_max", "Largest number of ready keys in one selector wakeup")
+                .sample("dht_selector_ready_max", server.getSelectorMaxReady());
+        out.counter("dht_selector_operations_total", "Selector wakeups")
+                .sample("dht_selector_operations_total", server.getSelectorOperations());
+        out.counter("dht_selector_sessions_total", "Sessions processed by selectors")
+                .sample("dht_selector_sessions_total", server.getSelectorSessions());
+        out.gauge("dht_session_write_queue_avg", "Average length of session write queues")
+                .sample("dht_session_write_queue_avg", server.getQueueAvgLength());
+        out.gauge("dht_session_write_queue_max", "Longest session write queue")
+                .sample("dht_session_write_queue_max", server.getQueueMaxLength());
+
+        WorkerStats stats = workers.stats();
+        out.gauge("dht_workers", "Worker threads")
+                .sample("dht_workers", stats.threads());
+        out.gauge("dht_workers_active", "Workers executing a request")
+                .sample("dht_workers_active", stats.active());
+        out.gauge("dht_worker_queue_length", "Requests waiting for a worker")
+                .sample("dht_worker_queue_length", stats.queued());
+        out.counter("dht_worker_completed_total", "Requests executed by workers")
+                .sample("dht_worker_completed_total", stats.completed());
+        out.counter("dht_worker_rejected_total", "Requests refused because the queue was full")
+                .sample("dht_worker_rejected_total", stats.rejected());
+        out.counter("dht_worker_expired_total", "Requests dropped after waiting too long in the queue")
+                .sample("dht_worker_expired_total", stats.expired());
+    }
+
+    private void writeStorage(PrometheusWriter out) {
+        StorageStats storage = dao.storageStats();
+        out.gauge("dht_memtable_bytes", "Arena bytes of memtables, the one being flushed included")
+                .sample("dht_memtable_bytes", storage.memtableBytes(), "memtable", "active")
+                .sample("dht_memtable_bytes", storage.flushingBytes(), "memtable", "flushing");
+        out.gauge("dht_sstables", "Live SSTables")
+                .sample("dht_sstables", storage.tables());
+        out.gauge("dht_sstable_bytes", "Total size of live SSTables")
+                .sample("dht_sstable_bytes", storage.tablesBytes());
+        out.counter("dht_bloom_checks_total", "Point lookups that reached an SSTable")
+                .sample("dht_bloom_checks_total", storage.bloomChecks());
+        out.counter("dht_bloom_negatives_total", "Lookups rejected by a Bloom filter")
+                .sample("dht_bloom_negatives_total", storage.bloomNegatives());
+        out.counter("dht_bloom_false_positives_total", "Lookups of absent keys passed by a Bloom filter")
+                .sample("dht_bloom_false_positives_total", storage.falsePositives());
+        out.gauge("dht_block_cache_bytes", "SSTable blocks in the off-heap block cache")
+                .sample("dht_block_cache_bytes", storage.cacheBytes());
+        out.counter("dht_block_cache_hits_total", "Block reads of point lookups served by the block cache")
+                .sample("dht_block_cache_hits_total", storage.cacheHits());
+        out.counter("dht_block_cache_misses_total", "Block reads of point lookups that missed the block cache")
+                .sample("dht_block_cache_misses_total", storage.cacheMisses());
+        out.counter("dht_block_cache_evictions_total", "Blocks evicted or refused admission by the block cache")
+                .sample("dht_block_cache_evictions_total", storage.cacheEvictions());
+
+        out.histogram("dht_flush_duration_seconds", "Memtable flush time")
+                .histogramSamples("dht_flush_duration_seconds", dao.flushDurations());
+        out.histogram("dht_compaction_duration_seconds", "Compaction time, rate limiting included")
+                .histogramSamples("dht_compaction_duration_seconds", dao.compactionDurations());
+        CompactionStatus compaction = dao.compactionStatus();
+        out.gauge("dht_compaction_running", "Whether a compaction is in progress")
+                .sample("dht_compaction_running", compaction.running() ? 1 : 0);
+        out.counter("dht_compacted_bytes_total", "Bytes written by finished compactions")
+                .sample("dht_compacted_bytes_total", compaction.compactedBytes());
+    }
+
+    private void writeReplication(PrometheusWriter out) {
+        out.counter("dht_reads_coalesced_total", "Reads that waited for a concurrent read of the same key")
+                .sample("dht_reads_coalesced_total", reads.coalesced());
+        out.counter("dht_read_cache_hits_total", "Reads answered from the coordinator read cache")
+                .sample("dht_read_cache_hits_total", reads.cacheHits());
+        out.counter("dht_coordinated_reads_total", "Reads sent to replicas by this coordinator")
+                .sample("dht_coordinated_reads_total", selector.reads());
+        out.counter("dht_hedged_reads_total", "Reads sent to an extra replica after the hedge delay")
+                .sample("dht_hedged_reads_total", selector.hedges());
+        out.counter("dht_hedge_wins_total", "Hedged reads answered before the replicas they were hedged for")
+                .sample("dht_hedge_wins_total", selector.hedgesWon());
+        out.counter("dht_hedges_refused_total", "Hedges not sent because the hedge budget was spent")
+                .sample("dht_hedges_refused_total", selector.hedgesRefused());
+        long hedgeDelay = selector.hedgeDelayMicros();
+        out.gauge("dht_hedge_delay_seconds", "Time a read waits before it is hedged, -1 until it is known")
+                .sample("dht_hedge_delay_seconds", hedgeDelay < 0 ? -1 : hedgeDelay / MICROS_PER_SECOND);
+        out.histogram("dht_hedge_saved_seconds", "How much earlier won hedged reads were answered")
+                .histogramSamples("dht_hedge_saved_seconds", selector.hedgeSavings());
+
+        List<PeerStats> peers = client.stats();
+        out.histogram("dht_replica_request_duration_seconds", "Latency of calls to other nodes");
+        for (PeerStats peer : peers) {
+            out.histogramSamples(
+                    "dht_replica_request_duration_seconds",
+                    client.latency(peer.url()),
+                    "peer", peer.url()
+            );
+        }
+        out.gauge("dht_replica_read_score_seconds", "Expected read latency of a node, outstanding reads included");
+        for (PeerStats peer : peers) {
+            double seconds = selector.score(peer.url()) / MICROS_PER_SECOND;
+            out.sample("dht_replica_read_score_seconds", seconds, "peer", peer.url());
+        }
+        out.counter("dht_replica_calls_total", "Calls sent to other nodes");
+        for (PeerStats peer : peers) {
+            out.sample("dht_replica_calls_total", peer.calls(), "peer", peer.url());
+        }
+        out.counter("dht_replica_failures_total", "Calls failed with a network error or a timeout");
+        for (PeerStats peer : peers) {
+            out.sample("dht_replica_failures_total", peer.failures(), "peer", peer.url());
+        }
+        out.counter("dht_replica_fast_failed_total", "Calls refused by an open circuit breaker");
+        for (PeerStats peer : peers) {
+            out.sample("dht_replica_fast_failed_total", peer.fastFailed(), "peer", peer.url());
+        }
+
+        RepairStats stats = repair.stats();
+        out.counter("dht_hints_total", "Writes kept for nodes that missed them")
+                .sample("dht_hints_total", stats.hinted());
+        out.counter("dht_hints_delivered_total", "Hints replayed to their nodes")
+                .sample("dht_hints_delivered_total", stats.hintsDelivered());
+        out.counter("dht_anti_entropy_rounds_total", "Merkle tree comparisons with other nodes")
+                .sample("dht_anti_entropy_rounds_total", stats.antiEntropyRounds());
+        out.counter("dht_anti_entropy_repaired_records_total", "Records pulled by anti-entropy")
+                .sample("dht_anti_entropy_repaired_records_total", stats.recordsRepaired());
+
+        Topology topology = membership.topology();
+        out.gauge("dht_topology_version", "Version of the cluster membership this node uses")
+                .sample("dht_topology_version", topology.version());
+        out.gauge("dht_topology_handing_off", "Whether keys are being handed off after a membership change")
+                .sample("dht_topology_handing_off", topology.handingOff() ? 1 : 0);
+        out.counter("dht_handoff_records_total", "Records sent to the owners a membership change added")
+                .sample("dht_handoff_records_total", stats.recordsHandedOff());
+        out.counter("dht_handoff_bytes_total", "Size of the records sent to new owners")
+                .sample("dht_handoff_bytes_total", stats.bytesHandedOff());
+    }
+
+    private static void writeJvm(PrometheusWriter out) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        out.gauge("jvm_memory_heap_used_bytes", "Used heap")
+                .sample("jvm_memory_heap_used_bytes", heap.getUsed());
+        out.gauge("jvm_memory_heap_committed_bytes", "Committed heap")
+                .sample("jvm_memory_heap_committed_bytes", heap.getCommitted());
+        out.counter("jvm_gc_collections_total", "Collections by collector");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            out.sample("jvm_gc_collections_total", gc.getCollectionCount(), "gc", gc.getName());
+        }
+        out.counter("jvm_gc_collection_seconds_total", "Time spent in collections by collector");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            double seconds = gc.getCollectionTime() / MILLIS_PER_SECOND;
+            out.sample("jvm_gc_collection_seconds_total", seconds, "gc", gc.getName());
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Finds and pulls records other replicas have and this one lacks.
+ * For every other node the Merkle trees of records the two nodes share are compared,
+ * then only records of the differing buckets are streamed. A stale record that comes in is ignored
+ * by {@link DaoReplica#upsert}, the other node pulls the fresher one in its own round.
+ *
+ * <p>Trees are built for all the peers at once by a single scan at the start of a round, and the peers
+ * are served the trees of the latest round: a request never scans the store.
+ *
+ * <p>Replicas are those of the current {@link Topology}. While its keys are handed off the rings of nodes
+ * disagree on what they should share, so no trees are compared until the handoff is done.
+ */
+final class AntiEntropy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AntiEntropy.class);
+
+    private final Membership membership;
+    private final String self;
+    private final DaoReplica local;
+    private final ReplicaClient client;
+    private final RateLimiter limiter;
+    private final int replicationFactor;
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder bucketsDiffered = new LongAdder();
+    private final LongAdder recordsRepaired = new LongAdder();
+    private final LongAdder bytesRepaired = new LongAdder();
+    @Nullable
+    private volatile InputStream stream;
+    // Null before the first round
+    @Nullable
+    private volatile Trees trees;
+
+    AntiEntropy(
+            Membership membership,
+            String self,
+            DaoReplica local,
+            ReplicaClient client,
+            RateLimiter limiter,
+            int replicationFactor
+    ) {
+        this.membership = membership;
+        this.self = self;
+        this.local = local;
+        this.client = client;
+        this.limiter = limiter;
+        this.replicationFactor = replicationFactor;
+    }
+
+    /**
+     * Tree of records shared with the peer as of the latest round.
+     *
+     * @return {@code null} before the first round of the current topology, if either node is not a member
+     *         or a handoff is in progress
+     */
+    @Nullable
+    MerkleTree tree(String peer) {
+        Topology topology = membership.topology();
+        Trees current = trees;
+        if (topology.handingOff() || current == null || current.version() != topology.version()) {
+            return null;
+        }
+        return current.byPeer().get(peer);
+    }
+
+    /**
+     * Records shared with the peer that fall into the buckets, read lazily.
+     *
+     * @return {@code null} if either node is not a member or a handoff is in progress
+     */
+    @Nullable
+    Iterator<Entry> records(String peer, BitSet buckets) {
+        Ring ring = ring(peer);
+        if (ring == null) {
+            return null;
+        }
+        Iterator<Entry> records = local.records();
+        return new Iterator<>() {
+            private Entry next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry result = next;
+                next = advance();
+                return result;
+            }
+
+            @Nullable
+            private Entry advance() {
+                while (records.hasNext()) {
+                    Entry record = records.next();
+                    if (buckets.get(MerkleTree.bucket(Hashing.hash(record.key())))
+                            && ring.isShared(record.key())) {
+                        return record;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Compares trees with every other node and pulls the differing buckets.
+     */
+    void run(BooleanSupplier closed) throws InterruptedException {
+        Topology topology = membership.topology();
+        if (topology.handingOff() || !topology.nodes().contains(self)) {
+            return;
+        }
+        Trees built = build(topology, closed);
+        if (built == null) {
+            return;
+        }
+        trees = built;
+        for (String peer : topology.nodes()) {
+            if (closed.getAsBoolean()) {
+                return;
+            }
+            MerkleTree tree = built.byPeer().get(peer);
+            if (tree == null) {
+                continue;
+            }
+            try {
+                repair(tree, peer, closed);
+            } catch (ExecutionException | IOException | IllegalArgumentException e) {
+                LOG.debug("Can't repair from {}", peer, e);
+            }
+        }
+    }
+
+    /**
+     * Interrupts the stream being pulled.
+     */
+    void cancel() {
+        InputStream current = stream;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                LOG.debug("Can't close repair stream", e);
+            }
+        }
+    }
+
+    long rounds() {
+        return rounds.sum();
+    }
+
+    long bucketsDiffered() {
+        return bucketsDiffered.sum();
+    }
+
+    long recordsRepaired() {
+        return recordsRepaired.sum();
+    }
+
+    long bytesRepaired() {
+        return bytesRepaired.sum();
+    }
+
+    /**
+     * Trees of records shared with every peer of the topology, built by one full scan,
+     * {@code null} if closed midway.
+     */
+    @Nullable
+    private Trees build(Topology topology, BooleanSupplier closed) {
+        Router router = topology.router();
+        List<String> nodes = router.nodes();
+        int selfIndex = nodes.indexOf(self);
+        MerkleTree[] built = new MerkleTree[nodes.size()];
+        for (int node = 0; node < built.length; node++) {
+            built[node] = new MerkleTree();
+        }
+        int[] replicas = new int[replicas(nodes.size())];
+        for (Iterator<Entry> records = local.records(); records.hasNext(); ) {
+            if (closed.getAsBoolean()) {
+                return null;
+            }
+            Entry record = records.next();
+            long keyHash = Hashing.hash(record.key());
+            long valueHash = Hashing.hash(record.value());
+            if (replicas.length == built.length) {
+                for (MerkleTree tree : built) {
+                    tree.add(keyHash, valueHash);
+                }
+                continue;
+            }
+            router.replicas(record.key(), replicas);
+            if (contains(replicas, selfIndex)) {
+                for (int replica : replicas) {
+                    built[replica].add(keyHash, valueHash);
+                }
+            }
+        }
+        Map<String, MerkleTree> byPeer = new HashMap<>();
+        for (int node = 0; node < built.length; node++) {
+            if (node != selfIndex) {
+                byPeer.put(nodes.get(node), built[node].seal());
+            }
+        }
+        return new Trees(topology.version(), byPeer);
+    }
+
+    private void repair(MerkleTree tree, String url, BooleanSupplier closed)
+            throws InterruptedException, ExecutionException, IOException {
+        HttpResponse<byte[]> treeResponse = client.tree(url, self).get();
+        if (treeResponse.statusCode() != HttpURLConnection.HTTP_OK) {
+            return;
+        }
+        BitSet diff = tree.diff(MerkleTree.fromBytes(treeResponse.body()));
+        rounds.increment();
+        if (diff.isEmpty()) {
+            return;
+        }
+        bucketsDiffered.add(diff.cardinality());
+
+        HttpResponse<InputStream> recordsResponse = client.records(url, self, diff).get();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(recordsResponse.body()))) {
+            if (recordsResponse.statusCode() != HttpURLConnection.HTTP_OK) {
+                return;
+            }
+            stream = in;
+            while (!closed.getAsBoolean()) {
+                int keySize;
+                try {
+                    keySize = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                byte[] key = new byte[keySize];
+                byte[] record = new byte[in.readInt()];
+                in.readFully(key);
+                in.readFully(record);
+                limiter.acquire(2L * Integer.BYTES + key.length + record.length);
+                MemorySegment recordSegment = MemorySegment.ofArray(record);
+                if (VersionedValue.isValid(recordSegment)) {
+                    local.upsert(MemorySegment.ofArray(key), recordSegment);
+                    recordsRepaired.increment();
+                    bytesRepaired.add(record.length);
+                }
+            }
+        } finally {
+            stream = null;
+        }
+    }
+
+    @Nullable
+    private Ring ring(String peer) {
+        Topology topology = membership.topology();
+        if (topology.handingOff()) {
+            return null;
+        }
+        Router router = topology.router();
+        int selfIndex = router.nodes().indexOf(self);
+        int peerIndex = router.nodes().indexOf(peer);
+        if (selfIndex < 0 || peerIndex < 0 || selfIndex == peerIndex) {
+            return null;
+        }
+        return new Ring(router, selfIndex, peerIndex, new int[replicas(router.nodes().size())]);
+    }
+
+    private int replicas(int nodes) {
+        return replicationFactor <= 0 ? nodes : Math.min(replicationFactor, nodes);
+    }
+
+    private static boolean contains(int[] replicas, int node) {
+        for (int replica : replicas) {
+            if (replica == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Trees of a round, valid as long as the topology keeps its version.
+     */
+    private record Trees(long version, Map<String, MerkleTree> byPeer) {
+    }
+
+    /**
+     * Placement of keys this node and the peer share, the replicas array is reused between keys.
+     */
+    private record Ring(Router router, int self, int peer, int[] replicas) {
+        boolean isShared(MemorySegment key) {
+            if (replicas.length == router.nodes().size()) {
+                return true;
+            }
+            router.replicas(key, replicas);
+            return contains(replicas, self) && contains(replicas, peer);
+        }
+    }
+}
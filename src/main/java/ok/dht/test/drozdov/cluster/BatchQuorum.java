@@ -0,0 +1,101 @@
+package ok.dht.test.drozdov.cluster;
+
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * Collects answers of the nodes a batch write was split between, each node acknowledging its part at once.
+ * Responds with 201 as soon as every record has {@code ack} acknowledgements,
+ * or once all nodes have answered and some record still lacks them.
+ */
+final class BatchQuorum {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchQuorum.class);
+
+    private final HttpSession session;
+    private final int ack;
+    private final Runnable beforeResponse;
+    // Guarded by this
+    private final int[] acks;
+    // Guarded by this
+    private int unacknowledged;
+    // Guarded by this
+    private int pendingNodes;
+    // Guarded by this
+    private boolean done;
+
+    /**
+     * Creates the quorum of a batch.
+     *
+     * @param beforeResponse runs once the outcome is known, right before the response is sent
+     */
+    BatchQuorum(HttpSession session, int ack, int records, int nodes, Runnable beforeResponse) {
+        this.session = session;
+        this.ack = ack;
+        this.beforeResponse = beforeResponse;
+        this.acks = new int[records];
+        this.unacknowledged = records;
+        this.pendingNodes = nodes;
+    }
+
+    /**
+     * A node has written its part of the batch.
+     *
+     * @param records indexes of the records in the part
+     */
+    void success(int[] records) {
+        Response response;
+        synchronized (this) {
+            for (int record : records) {
+                if (++acks[record] == ack) {
+                    unacknowledged--;
+                }
+            }
+            response = nodeAnswered();
+        }
+        send(response);
+    }
+
+    void failure() {
+        Response response;
+        synchronized (this) {
+            response = nodeAnswered();
+        }
+        send(response);
+    }
+
+    @Nullable
+    private Response nodeAnswered() {
+        pendingNodes--;
+        if (done) {
+            return null;
+        }
+        if (unacknowledged == 0) {
+            done = true;
+            return new Response(Response.CREATED, Response.EMPTY);
+        }
+        if (pendingNodes == 0) {
+            done = true;
+            return new Response(Quorum.NOT_ENOUGH_REPLICAS, Response.EMPTY);
+        }
+        return null;
+    }
+
+    private void send(@Nullable Response response) {
+        if (response == null) {
+            return;
+        }
+        beforeResponse.run();
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            LOG.debug("Can't send response to {}", session, e);
+            session.close();
+        }
+    }
+}
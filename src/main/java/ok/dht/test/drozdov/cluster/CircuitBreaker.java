@@ -0,0 +1,58 @@
+package ok.dht.test.drozdov.cluster;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops calling a node after a run of failures.
+ * While open, calls fail without touching the network. After the open period a single probe call is let through:
+ * its success closes the circuit, its failure keeps the circuit open for another period.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile long openedAt;
+
+    CircuitBreaker(int failureThreshold, long openNanos) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+    /**
+     * Whether the call may proceed, every permitted call must report its outcome.
+     */
+    boolean tryAcquire() {
+        if (failures.get() < failureThreshold) {
+            return true;
+        }
+        return System.nanoTime() - openedAt >= openNanos && probing.compareAndSet(false, true);
+    }
+
+    void onSuccess() {
+        failures.set(0);
+        probing.set(false);
+    }
+
+    void onFailure() {
+        if (failures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.nanoTime();
+        }
+        probing.set(false);
+    }
+
+    State state() {
+        if (failures.get() < failureThreshold) {
+            return State.CLOSED;
+        }
+        return probing.get() || System.nanoTime() - openedAt >= openNanos ? State.HALF_OPEN : State.OPEN;
+    }
+}
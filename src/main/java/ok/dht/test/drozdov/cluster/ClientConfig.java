@@ -0,0 +1,53 @@
+package ok.dht.test.drozdov.cluster;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Settings of the inter-node client.
+ *
+ * @param timeout          default deadline of a call to another node
+ * @param peerTimeouts     per-node deadline overrides, keyed by node URL
+ * @param failureThreshold consecutive failures that open the circuit of a node
+ * @param openDuration     how long an open circuit fast-fails calls before letting a probe through
+ * @param threads          threads completing calls of all nodes
+ * @param readCacheTtl     how long the outcome of a coordinated read is reused, zero disables the cache
+ * @param hedgeQuantile    quantile of recent replica read latencies a read waits for before it is hedged
+ * @param hedgeRatio       largest share of reads sent to an extra replica by hedging, zero disables hedging
+ */
+public record ClientConfig(
+        Duration timeout,
+        Map<String, Duration> peerTimeouts,
+        int failureThreshold,
+        Duration openDuration,
+        int threads,
+        Duration readCacheTtl,
+        double hedgeQuantile,
+        double hedgeRatio
+) {
+
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(1);
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds(1);
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    public static final Duration DEFAULT_READ_CACHE_TTL = Duration.ZERO;
+    public static final double DEFAULT_HEDGE_QUANTILE = 0.95;
+    public static final double DEFAULT_HEDGE_RATIO = 0.1;
+
+    public ClientConfig() {
+        this(
+                DEFAULT_TIMEOUT,
+                Map.of(),
+                DEFAULT_FAILURE_THRESHOLD,
+                DEFAULT_OPEN_DURATION,
+                DEFAULT_THREADS,
+                DEFAULT_READ_CACHE_TTL,
+                DEFAULT_HEDGE_QUANTILE,
+                DEFAULT_HEDGE_RATIO
+        );
+    }
+
+    public Duration timeout(String peer) {
+        return peerTimeouts.getOrDefault(peer, timeout);
+    }
+}
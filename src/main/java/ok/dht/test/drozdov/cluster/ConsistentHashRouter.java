@@ -0,0 +1,105 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import one.nio.util.Utf8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hashing ring with virtual nodes.
+ * Every node is placed on the ring many times, so its share stays close to the average, and adding a node
+ * moves only the keys the new node takes over.
+ *
+ * <p>The ring is a sorted array of positions with a parallel array of owners: a lookup is a single
+ * binary search that allocates nothing.
+ */
+public final class ConsistentHashRouter implements Router {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 256;
+
+    private static final double RING_SIZE = 0x1p64;
+
+    private final List<String> nodes;
+    private final long[] positions;
+    private final int[] owners;
+    private final double[] shares;
+
+    public ConsistentHashRouter(List<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRouter(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No nodes");
+        }
+        this.nodes = List.copyOf(nodes);
+
+        List<long[]> ring = new ArrayList<>(nodes.size() * virtualNodes);
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int replica = 0; replica < virtualNodes; replica++) {
+                byte[] label = Utf8.toBytes(nodes.get(node) + '#' + replica);
+                ring.add(new long[]{Hashing.hash(MemorySegment.ofArray(label)), node});
+            }
+        }
+        ring.sort((a, b) -> Long.compare(a[0], b[0]));
+        this.positions = new long[ring.size()];
+        this.owners = new int[ring.size()];
+        for (int i = 0; i < ring.size(); i++) {
+            positions[i] = ring.get(i)[0];
+            owners[i] = (int) ring.get(i)[1];
+        }
+
+        this.shares = new double[nodes.size()];
+        if (nodes.size() == 1) {
+            shares[0] = 1;
+        } else {
+            // Keys hashed into (previous position, position] belong to the owner of the position
+            for (int i = 0; i < positions.length; i++) {
+                long arc = positions[i] - positions[(i + positions.length - 1) % positions.length];
+                shares[owners[i]] += (arc >= 0 ? arc : arc + RING_SIZE) / RING_SIZE;
+            }
+        }
+    }
+
+    @Override
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Replicas are the distinct owners of positions found walking the ring clockwise from the key.
+     */
+    @Override
+    public void replicas(MemorySegment key, int[] replicas) {
+        if (replicas.length > nodes.size()) {
+            throw new IllegalArgumentException("Only " + nodes.size() + " nodes");
+        }
+        int index = Arrays.binarySearch(positions, Hashing.hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        int found = 0;
+        for (int i = index; found < replicas.length; i++) {
+            int node = owners[i % positions.length];
+            if (!contains(replicas, found, node)) {
+                replicas[found++] = node;
+            }
+        }
+    }
+
+    @Override
+    public double share(int node) {
+        return shares[node];
+    }
+
+    private static boolean contains(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,424 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.TooManyFlushesException;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executes client requests on {@code from} replicas of the key and answers once {@code ack} of them agree.
+ * Remote replicas are called in parallel without blocking, the local one is served while they are in flight.
+ * A write a replica failed to acknowledge is handed to {@link ReplicaRepair} as a hint.
+ * Concurrent reads of a key are executed once, see {@link ReadCoalescer}. A read goes only to {@code ack}
+ * replicas, the fastest first, and to more of them on failures and when it is late, see {@link HedgedRead}.
+ *
+ * <p>Replicas are taken from the {@link Topology#owners()} ring of the topology current when the request
+ * starts. While a handoff is in progress, owners the change adds get every write as well, without counting
+ * towards the quorum, and a write they miss is hinted.
+ */
+public final class Coordinator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Coordinator.class);
+
+    private final Membership membership;
+    private final String self;
+    private final ReplicaClient client;
+    private final DaoReplica local;
+    private final ReplicaRepair repair;
+    private final ReadCoalescer reads;
+    private final ReplicaSelector selector;
+    private final ScheduledExecutorService hedges;
+    private final Map<String, LongAdder> ownerRequests = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Creates the coordinator.
+     *
+     * @param self URL of this node
+     */
+    public Coordinator(
+            Membership membership,
+            String self,
+            ReplicaClient client,
+            DaoReplica local,
+            ReplicaRepair repair,
+            ReadCoalescer reads,
+            ReplicaSelector selector,
+            ScheduledExecutorService hedges
+    ) {
+        this.membership = membership;
+        this.self = self;
+        this.client = client;
+        this.local = local;
+        this.repair = repair;
+        this.reads = reads;
+        this.selector = selector;
+        this.hedges = hedges;
+    }
+
+    /**
+     * Most replicas a request may ask for, the size of the ring answering requests.
+     */
+    public int maxReplicas() {
+        return membership.topology().owners().nodes().size();
+    }
+
+    /**
+     * Reads the key, sharing the read with concurrent ones of the key, see {@link ReadCoalescer}.
+     */
+    public void get(MemorySegment key, String id, int ack, int from, HttpSession session) {
+        reads.start(key, ack, from, session, flight -> read(key, id, ack, from, flight));
+    }
+
+    private void read(MemorySegment key, String id, int ack, int from, ReadCoalescer.Flight flight) {
+        Router owners = membership.topology().owners();
+        List<String> nodes = owners.nodes();
+        int selfIndex = nodes.indexOf(self);
+        int[] replicas = replicas(owners, key, from);
+        int acks = Math.min(ack, replicas.length);
+        countOwner(nodes.get(replicas[0]));
+        selector.order(replicas, nodes, selfIndex);
+        HedgedRead read = new HedgedRead(
+                replicas,
+                nodes,
+                acks,
+                selfIndex,
+                new Quorum(flight, acks, replicas.length, null),
+                selector,
+                hedges,
+                replica -> client.get(nodes.get(replica), id)
+        );
+        if (read.start()) {
+            MemorySegment record;
+            try {
+                record = local.get(key);
+            } catch (RuntimeException e) {
+                LOG.error("Can't read {}", id, e);
+                read.failure();
+                return;
+            }
+            read.success(record);
+        }
+    }
+
+    /**
+     * Writes the value, {@code null} deletes the key.
+     *
+     * @param ttlSeconds time to live of the value, 0 if it never expires
+     */
+    public void upsert(
+            MemorySegment key,
+            String id,
+            @Nullable byte[] value,
+            int ttlSeconds,
+            int ack,
+            int from,
+            HttpSession session
+    ) {
+        byte[] record = VersionedValue.encode(nextTimestamp(), value, ttlSeconds);
+        Topology topology = membership.topology();
+        int[] replicas = replicas(topology.owners(), key, from);
+        countOwner(topology.owners().nodes().get(replicas[0]));
+        Quorum quorum = new Quorum(
+                (response, reached) -> {
+                    // Reads started before the write may have missed it, whatever the outcome
+                    reads.invalidate(key);
+                    Quorum.send(session, response.get());
+                },
+                Math.min(ack, replicas.length),
+                replicas.length,
+                value == null ? Response.ACCEPTED : Response.CREATED
+        );
+        sendToPending(topology, replicas, key, id, record);
+        if (sendToRemote(topology.owners(), replicas, key, quorum, node -> client.put(node, id, record), record)) {
+            try {
+                local.upsert(key, MemorySegment.ofArray(record));
+            } catch (TooManyFlushesException e) {
+                quorum.failure();
+                return;
+            } catch (UncheckedIOException e) {
+                LOG.error("Can't persist {}", id, e);
+                quorum.failure();
+                return;
+            }
+            quorum.success(null);
+        }
+    }
+
+    /**
+     * Writes the entries, tombstones delete their keys. The batch is split by replica nodes,
+     * every node gets its part in a single call and all the parts are sent in parallel.
+     *
+     * @param ttlSeconds time to live of the values, 0 if they never expire
+     */
+    public void upsertAll(List<Entry> entries, int ttlSeconds, int ack, int from, HttpSession session) {
+        Topology topology = membership.topology();
+        Router owners = topology.owners();
+        int nodes = owners.nodes().size();
+        int selfIndex = owners.nodes().indexOf(self);
+        List<Entry> records = new ArrayList<>(entries.size());
+        int[][] replicas = new int[entries.size()][];
+        int[] partSizes = new int[nodes];
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            byte[] record = VersionedValue.encode(nextTimestamp(), entry.value(), ttlSeconds);
+            records.add(new Entry(entry.key(), MemorySegment.ofArray(record)));
+            replicas[i] = replicas(owners, entry.key(), from);
+            countOwner(owners.nodes().get(replicas[i][0]));
+            for (int replica : replicas[i]) {
+                partSizes[replica]++;
+            }
+        }
+        int[][] parts = new int[nodes][];
+        int partCount = 0;
+        for (int node = 0; node < nodes; node++) {
+            parts[node] = new int[partSizes[node]];
+            if (partSizes[node] > 0) {
+                partCount++;
+            }
+            partSizes[node] = 0;
+        }
+        for (int i = 0; i < replicas.length; i++) {
+            for (int replica : replicas[i]) {
+                parts[replica][partSizes[replica]++] = i;
+            }
+        }
+
+        int acks = Math.min(ack, Math.min(from, nodes));
+        BatchQuorum quorum = new BatchQuorum(session, acks, records.size(), Math.max(partCount, 1), () -> {
+            for (Entry record : records) {
+                reads.invalidate(record.key());
+            }
+        });
+        if (records.isEmpty()) {
+            quorum.success(new int[0]);
+            return;
+        }
+        for (int node = 0; node < nodes; node++) {
+            if (node != selfIndex && parts[node].length > 0) {
+                sendBatch(owners.nodes().get(node), records, parts[node], quorum);
+            }
+        }
+        sendBatchToPending(topology, replicas, records);
+        if (selfIndex < 0 || parts[selfIndex].length == 0) {
+            return;
+        }
+        List<Entry> localPart = new ArrayList<>(parts[selfIndex].length);
+        for (int index : parts[selfIndex]) {
+            localPart.add(records.get(index));
+        }
+        try {
+            local.upsertAll(localPart);
+        } catch (TooManyFlushesException e) {
+            quorum.failure();
+            return;
+        } catch (UncheckedIOException e) {
+            LOG.error("Can't persist a batch of {} records", localPart.size(), e);
+            quorum.failure();
+            return;
+        }
+        quorum.success(parts[selfIndex]);
+    }
+
+    /**
+     * Share of the current ring and requests coordinated here per key owner.
+     */
+    public List<ShardStats> shardStats() {
+        Router router = membership.topology().router();
+        List<ShardStats> result = new ArrayList<>(router.nodes().size());
+        for (int i = 0; i < router.nodes().size(); i++) {
+            String node = router.nodes().get(i);
+            LongAdder requests = ownerRequests.get(node);
+            result.add(new ShardStats(node, router.share(i), requests == null ? 0 : requests.sum()));
+        }
+        return result;
+    }
+
+    /**
+     * Sends the call to remote replicas of the key.
+     *
+     * @param written record of a write, hinted for replicas that don't acknowledge it
+     * @return whether this node is a replica of the key too
+     */
+    private boolean sendToRemote(
+            Router owners,
+            int[] replicas,
+            MemorySegment key,
+            Quorum quorum,
+            RemoteCall call,
+            @Nullable byte[] written
+    ) {
+        boolean local = false;
+        for (int replica : replicas) {
+            String node = owners.nodes().get(replica);
+            if (node.equals(self)) {
+                local = true;
+                continue;
+            }
+            call.send(node).whenComplete((response, e) -> {
+                if (written != null && (e != null || response.statusCode() != HttpURLConnection.HTTP_CREATED)) {
+                    repair.hint(node, key, written);
+                }
+                if (e != null) {
+                    LOG.debug("Replica {} failed", node, e);
+                    quorum.failure();
+                } else if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+                    MemorySegment record = MemorySegment.ofArray(response.body());
+                    if (VersionedValue.isValid(record)) {
+                        quorum.success(record);
+                    } else {
+                        quorum.failure();
+                    }
+                } else if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                        || response.statusCode() == HttpURLConnection.HTTP_CREATED) {
+                    quorum.success(null);
+                } else {
+                    quorum.failure();
+                }
+            });
+        }
+        return local;
+    }
+
+    /**
+     * Sends the write to replicas of the key the handoff in progress adds, if any. They don't count towards
+     * the quorum, a write they miss is hinted.
+     *
+     * @param replicas replicas of the key in the {@link Topology#owners()} ring
+     */
+    private void sendToPending(Topology topology, int[] replicas, MemorySegment key, String id, byte[] record) {
+        Router pending = topology.pending();
+        if (pending == null) {
+            return;
+        }
+        for (int replica : replicas(pending, key, replicas.length)) {
+            String node = pending.nodes().get(replica);
+            if (isReplica(topology.owners(), replicas, node)) {
+                continue;
+            }
+            if (node.equals(self)) {
+                upsertPending(List.of(new Entry(key, MemorySegment.ofArray(record))));
+                continue;
+            }
+            client.put(node, id, record).whenComplete((response, e) -> {
+                if (e != null || response.statusCode() != HttpURLConnection.HTTP_CREATED) {
+                    repair.hint(node, key, record);
+                }
+            });
+        }
+    }
+
+    /**
+     * Batch counterpart of {@link #sendToPending}, every added replica gets its part in a single call.
+     */
+    private void sendBatchToPending(Topology topology, int[][] replicas, List<Entry> records) {
+        Router pending = topology.pending();
+        if (pending == null) {
+            return;
+        }
+        Map<String, List<Entry>> parts = new HashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            Entry record = records.get(i);
+            for (int replica : replicas(pending, record.key(), replicas[i].length)) {
+                String node = pending.nodes().get(replica);
+                if (!isReplica(topology.owners(), replicas[i], node)) {
+                    parts.computeIfAbsent(node, n -> new ArrayList<>()).add(record);
+                }
+            }
+        }
+        parts.forEach((node, part) -> {
+            if (node.equals(self)) {
+                upsertPending(part);
+                return;
+            }
+            client.putBatch(node, RecordBatch.encode(part)).whenComplete((response, e) -> {
+                if (e == null && response.statusCode() == HttpURLConnection.HTTP_CREATED) {
+                    return;
+                }
+                for (Entry record : part) {
+                    repair.hint(node, record.key(), record.value().toByteArray());
+                }
+            });
+        });
+    }
+
+    private void upsertPending(List<Entry> records) {
+        try {
+            local.upsertAll(records);
+        } catch (RuntimeException e) {
+            // The records are handed off to this node anyway
+            LOG.warn("Can't persist {} records of the handoff", records.size(), e);
+        }
+    }
+
+    private void sendBatch(String node, List<Entry> records, int[] part, BatchQuorum quorum) {
+        client.putBatch(node, RecordBatch.encode(records, part)).whenComplete((response, e) -> {
+            if (e == null && response.statusCode() == HttpURLConnection.HTTP_CREATED) {
+                quorum.success(part);
+                return;
+            }
+            LOG.debug("Replica {} failed a batch of {} records", node, part.length, e);
+            for (int index : part) {
+                Entry record = records.get(index);
+                repair.hint(node, record.key(), record.value().toByteArray());
+            }
+            quorum.failure();
+        });
+    }
+
+    private void countOwner(String node) {
+        LongAdder requests = ownerRequests.get(node);
+        if (requests == null) {
+            requests = ownerRequests.computeIfAbsent(node, n -> new LongAdder());
+        }
+        requests.increment();
+    }
+
+    /**
+     * Replicas of the key, fewer than {@code from} if the ring has shrunk since the request was checked.
+     */
+    private static int[] replicas(Router router, MemorySegment key, int from) {
+        int[] result = new int[Math.min(from, router.nodes().size())];
+        router.replicas(key, result);
+        return result;
+    }
+
+    private static boolean isReplica(Router router, int[] replicas, String node) {
+        for (int replica : replicas) {
+            if (router.nodes().get(replica).equals(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wall clock in microseconds, forced to grow so writes coordinated here are ordered even within a tick.
+     */
+    private long nextTimestamp() {
+        long now = System.currentTimeMillis() * 1000;
+        return clock.updateAndGet(last -> Math.max(last + 1, now));
+    }
+
+    @FunctionalInterface
+    private interface RemoteCall {
+        CompletableFuture<HttpResponse<byte[]>> send(String node);
+    }
+}
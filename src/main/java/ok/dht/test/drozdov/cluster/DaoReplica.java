@@ -0,0 +1,151 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.MemorySegmentDao;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Local replica keeping {@link VersionedValue} records in the DAO.
+ * A write never replaces a fresher record, so replicas converge whatever order writes arrive in.
+ */
+public final class DaoReplica {
+
+    // Stripes of a batch fit into the bits of a long
+    private static final int LOCK_STRIPES = Long.SIZE;
+
+    private final MemorySegmentDao dao;
+    private final ReadCoalescer reads;
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    /**
+     * Creates the replica.
+     *
+     * @param reads coordinated reads of this node, invalidated by every write applied here
+     */
+    public DaoReplica(MemorySegmentDao dao, ReadCoalescer reads) {
+        this.dao = dao;
+        this.reads = reads;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Stored record, possibly a tombstone, {@code null} if the key has never been written.
+     */
+    @Nullable
+    public MemorySegment get(MemorySegment key) {
+        Entry entry = dao.get(key);
+        return entry == null || entry.isTombstone() ? null : entry.value();
+    }
+
+    /**
+     * Live values of keys in {@code [from, to)}, decoded from their records and read lazily.
+     * Values expired by the start of the scan are skipped.
+     */
+    public Iterator<Entry> range(MemorySegment from, @Nullable MemorySegment to) {
+        Iterator<Entry> records = dao.get(from, to);
+        long now = System.currentTimeMillis();
+        return new Iterator<>() {
+            private Entry next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry result = next;
+                next = advance();
+                return result;
+            }
+
+            @Nullable
+            private Entry advance() {
+                while (records.hasNext()) {
+                    Entry entry = records.next();
+                    if (VersionedValue.isLive(entry.value(), now)) {
+                        return new Entry(entry.key(), VersionedValue.value(entry.value()));
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * All stored records, tombstones included, read lazily.
+     */
+    public Iterator<Entry> records() {
+        return dao.get(null, null);
+    }
+
+    /**
+     * Stores the record unless a fresher one is already there.
+     */
+    public void upsert(MemorySegment key, MemorySegment record) {
+        // Striped by key, so the check and the write are atomic with respect to other writes of the key
+        Lock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            MemorySegment current = get(key);
+            if (current == null || VersionedValue.compare(current, record) < 0) {
+                dao.upsert(new Entry(key, record));
+                reads.invalidate(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the records that are fresher than the stored ones as a single DAO write.
+     * Stripes of all the keys are locked in ascending order, so concurrent batches can't deadlock.
+     */
+    public void upsertAll(List<Entry> records) {
+        long stripes = 0;
+        for (Entry record : records) {
+            stripes |= 1L << stripe(record.key());
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if ((stripes & (1L << i)) != 0) {
+                locks[i].lock();
+            }
+        }
+        try {
+            List<Entry> fresher = new ArrayList<>(records.size());
+            for (Entry record : records) {
+                MemorySegment current = get(record.key());
+                if (current == null || VersionedValue.compare(current, record.value()) < 0) {
+                    fresher.add(record);
+                }
+            }
+            dao.upsertAll(fresher);
+            for (Entry record : fresher) {
+                reads.invalidate(record.key());
+            }
+        } finally {
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                if ((stripes & (1L << i)) != 0) {
+                    locks[i].unlock();
+                }
+            }
+        }
+    }
+
+    private static int stripe(MemorySegment key) {
+        return (int) (Hashing.hash(key) & (LOCK_STRIPES - 1));
+    }
+}
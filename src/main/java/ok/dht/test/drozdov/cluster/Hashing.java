@@ -0,0 +1,50 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.ByteOrder;
+
+/**
+ * 64-bit hashing of keys and records shared by routing, locking and repair.
+ * Nodes must agree on every value, so the function must never change.
+ */
+final class Hashing {
+
+    private static final long SEED = 0x2545F4914F6CDD1DL;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private Hashing() {
+        // Only static methods
+    }
+
+    static long hash(MemorySegment data) {
+        long size = data.byteSize();
+        long h = SEED ^ (size * MULTIPLIER);
+        long offset = 0;
+        for (; offset + Long.BYTES <= size; offset += Long.BYTES) {
+            h = mix(h ^ MemoryAccess.getLongAtOffset(data, offset, ByteOrder.LITTLE_ENDIAN)) * MULTIPLIER;
+        }
+        for (; offset < size; offset++) {
+            h = Long.rotateLeft(h ^ (MemoryAccess.getByteAtOffset(data, offset) & 0xFFL), 8) * SEED;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Hash of an ordered pair of hashes.
+     */
+    static long combine(long first, long second) {
+        return mix(first * MULTIPLIER + second);
+    }
+
+    static long mix(long value) {
+        long h = value;
+        h ^= h >>> 30;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 27;
+        h *= 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        return h;
+    }
+}
@@ -0,0 +1,209 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Read sent to the {@code ack} replicas ranked first by the {@link ReplicaSelector}, the rest are spares.
+ * A replica that fails is replaced by the next spare right away. If the read is still short of answers
+ * after the hedge delay, one spare is asked too, as long as the hedge budget allows.
+ *
+ * <p>Every replica is asked at most once, so the {@link Quorum} sees the same answers as if all the
+ * replicas had been called, only fewer of them. The hedge is cancelled once the read is answered
+ * or has no spare left, so a scheduler shared by all the reads only holds the hedges still pending.
+ */
+final class HedgedRead {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HedgedRead.class);
+
+    private final int[] replicas;
+    private final List<String> nodes;
+    private final int ack;
+    private final int self;
+    private final Quorum quorum;
+    private final ReplicaSelector selector;
+    private final ScheduledExecutorService scheduler;
+    private final Function<Integer, CompletableFuture<HttpResponse<byte[]>>> call;
+    // Guarded by this, remote replicas that have completed by index
+    private final boolean[] completed;
+    // Guarded by this, remote replicas that had not completed when the read was hedged
+    private boolean[] hedgedFor;
+    // Guarded by this
+    private int next;
+    // Guarded by this
+    private int successes;
+    // Guarded by this, 0 until the read is answered
+    private long answeredNanos;
+    // Guarded by this, null unless a hedge is pending
+    @Nullable
+    private ScheduledFuture<?> pendingHedge;
+
+    /**
+     * Creates the read.
+     *
+     * @param replicas  replicas of the key in the order of {@link ReplicaSelector#order}
+     * @param nodes     URLs of the nodes the replicas index
+     * @param self      index of this node, negative if it is not a replica
+     * @param scheduler runs the hedge after the delay, shared by the reads of the node
+     * @param call      reads the key from the node with the given index
+     */
+    HedgedRead(
+            int[] replicas,
+            List<String> nodes,
+            int ack,
+            int self,
+            Quorum quorum,
+            ReplicaSelector selector,
+            ScheduledExecutorService scheduler,
+            Function<Integer, CompletableFuture<HttpResponse<byte[]>>> call
+    ) {
+        this.replicas = replicas;
+        this.nodes = nodes;
+        this.ack = ack;
+        this.self = self;
+        this.quorum = quorum;
+        this.selector = selector;
+        this.scheduler = scheduler;
+        this.call = call;
+        this.completed = new boolean[replicas.length];
+    }
+
+    /**
+     * Sends the read to the first {@code ack} remote replicas and schedules the hedge.
+     *
+     * @return whether this node is one of them, its answer is then up to the caller
+     */
+    boolean start() {
+        boolean local = false;
+        synchronized (this) {
+            next = ack;
+        }
+        for (int i = 0; i < ack; i++) {
+            if (replicas[i] == self) {
+                local = true;
+            } else {
+                send(i);
+            }
+        }
+        long delay = selector.hedgeDelayMicros();
+        // Nothing to hedge for when the local read is the only one
+        if (ack < replicas.length && delay >= 0 && (!local || ack > 1)) {
+            synchronized (this) {
+                // Remote replicas may have answered or failed over to the last spare already
+                if (successes < ack && next < replicas.length) {
+                    pendingHedge = scheduler.schedule(this::hedge, delay, TimeUnit.MICROSECONDS);
+                }
+            }
+        }
+        return local;
+    }
+
+    void success(@Nullable MemorySegment record) {
+        ScheduledFuture<?> cancelled = null;
+        synchronized (this) {
+            if (++successes == ack) {
+                answeredNanos = System.nanoTime();
+                cancelled = pendingHedge;
+                pendingHedge = null;
+            }
+        }
+        if (cancelled != null) {
+            cancelled.cancel(false);
+        }
+        quorum.success(record);
+    }
+
+    void failure() {
+        int spare;
+        ScheduledFuture<?> cancelled = null;
+        synchronized (this) {
+            spare = successes < ack && next < replicas.length ? next++ : -1;
+            if (next >= replicas.length) {
+                cancelled = pendingHedge;
+                pendingHedge = null;
+            }
+        }
+        if (cancelled != null) {
+            cancelled.cancel(false);
+        }
+        quorum.failure();
+        if (spare >= 0) {
+            send(spare);
+        }
+    }
+
+    private void hedge() {
+        int spare;
+        synchronized (this) {
+            pendingHedge = null;
+            if (successes >= ack || next >= replicas.length || !selector.tryHedge()) {
+                return;
+            }
+            spare = next++;
+            hedgedFor = new boolean[replicas.length];
+            for (int i = 0; i < spare; i++) {
+                hedgedFor[i] = replicas[i] != self && !completed[i];
+            }
+        }
+        send(spare);
+    }
+
+    private void send(int index) {
+        int replica = replicas[index];
+        String node = nodes.get(replica);
+        selector.sent(node);
+        long start = System.nanoTime();
+        call.apply(replica).whenComplete((response, e) -> {
+            boolean answered = e == null && (response.statusCode() == HttpURLConnection.HTTP_OK
+                    || response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND);
+            selector.completed(node, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), answered);
+            onCompleted(index);
+            if (e != null) {
+                LOG.debug("Replica {} failed", node, e);
+                failure();
+            } else if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+                MemorySegment record = MemorySegment.ofArray(response.body());
+                if (VersionedValue.isValid(record)) {
+                    success(record);
+                } else {
+                    failure();
+                }
+            } else if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                success(null);
+            } else {
+                failure();
+            }
+        });
+    }
+
+    /**
+     * Once the first replica the read was hedged for completes, tells whether the hedge paid off:
+     * it did if the read had been answered by then.
+     */
+    private void onCompleted(int index) {
+        long saved;
+        synchronized (this) {
+            completed[index] = true;
+            if (hedgedFor == null || !hedgedFor[index]) {
+                return;
+            }
+            hedgedFor = null;
+            if (answeredNanos == 0) {
+                return;
+            }
+            saved = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - answeredNanos);
+        }
+        selector.hedgeWon(saved);
+    }
+}
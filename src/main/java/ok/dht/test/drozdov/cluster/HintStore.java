@@ -0,0 +1,101 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.MemorySegmentDao;
+import one.nio.util.Utf8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Durable writes a replica missed, kept in a DAO of its own under {@code <node url> 0x00 <key>}.
+ * Only the freshest missed record of a key is kept per node.
+ */
+final class HintStore implements Closeable {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final MemorySegmentDao dao;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    HintStore(MemorySegmentDao dao) {
+        this.dao = dao;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    void add(String node, MemorySegment key, MemorySegment record) {
+        MemorySegment hintKey = hintKey(node, key);
+        synchronized (lock(hintKey)) {
+            Entry current = dao.get(hintKey);
+            if (current == null || current.isTombstone() || VersionedValue.compare(current.value(), record) < 0) {
+                dao.upsert(new Entry(hintKey, record));
+            }
+        }
+    }
+
+    /**
+     * Removes the hint unless it has been replaced by a fresher one in the meantime.
+     */
+    void remove(String node, MemorySegment key, MemorySegment record) {
+        MemorySegment hintKey = hintKey(node, key);
+        synchronized (lock(hintKey)) {
+            Entry current = dao.get(hintKey);
+            if (current != null && !current.isTombstone() && VersionedValue.compare(current.value(), record) == 0) {
+                dao.upsert(Entry.tombstone(hintKey));
+            }
+        }
+    }
+
+    /**
+     * Hints of the node as entries of replica keys and their records.
+     */
+    Iterator<Entry> hints(String node) {
+        MemorySegment prefix = prefix(node, (byte) 0);
+        Iterator<Entry> hints = dao.get(prefix, prefix(node, (byte) 1));
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return hints.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry hint = hints.next();
+                return new Entry(hint.key().asSlice(prefix.byteSize()), hint.value());
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        dao.close();
+    }
+
+    private Object lock(MemorySegment hintKey) {
+        return locks[(int) (Hashing.hash(hintKey) & (LOCK_STRIPES - 1))];
+    }
+
+    private static MemorySegment hintKey(String node, MemorySegment key) {
+        MemorySegment prefix = prefix(node, (byte) 0);
+        MemorySegment result = MemorySegment.ofArray(new byte[(int) (prefix.byteSize() + key.byteSize())]);
+        result.copyFrom(prefix);
+        result.asSlice(prefix.byteSize()).copyFrom(key);
+        return result;
+    }
+
+    private static MemorySegment prefix(String node, byte separator) {
+        byte[] url = Utf8.toBytes(node);
+        byte[] result = new byte[url.length + 1];
+        System.arraycopy(url, 0, result, 0, url.length);
+        result[url.length] = separator;
+        return MemorySegment.ofArray(result);
+    }
+}
@@ -0,0 +1,103 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps writes an unreachable replica missed and replays them once the replica answers again.
+ * A hint outlives its write by the hint window at most, as replicas drop the tombstones older writes
+ * are checked against after a grace period. Older writes are left to anti-entropy.
+ */
+final class HintedHandoff {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HintedHandoff.class);
+
+    private final HintStore store;
+    private final Membership membership;
+    private final String self;
+    private final ReplicaClient client;
+    private final RateLimiter limiter;
+    private final long windowMicros;
+    private final LongAdder hinted = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    HintedHandoff(
+            HintStore store,
+            Membership membership,
+            String self,
+            ReplicaClient client,
+            RateLimiter limiter,
+            Duration window
+    ) {
+        this.store = store;
+        this.membership = membership;
+        this.self = self;
+        this.client = client;
+        this.limiter = limiter;
+        this.windowMicros = TimeUnit.NANOSECONDS.toMicros(window.toNanos());
+    }
+
+    void hint(String node, MemorySegment key, byte[] record) {
+        try {
+            store.add(node, key, MemorySegment.ofArray(record));
+            hinted.increment();
+        } catch (RuntimeException e) {
+            LOG.error("Can't store hint for {}", node, e);
+        }
+    }
+
+    /**
+     * Offers the hints to their nodes, a node stops receiving at its first failure.
+     * Hints of writes older than the window are dropped.
+     */
+    void replay(BooleanSupplier closed) throws InterruptedException {
+        long oldest = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) - windowMicros;
+        for (String peer : membership.topology().peers()) {
+            if (peer.equals(self)) {
+                continue;
+            }
+            for (Iterator<Entry> hints = store.hints(peer); hints.hasNext() && !closed.getAsBoolean(); ) {
+                Entry hint = hints.next();
+                if (VersionedValue.timestamp(hint.value()) < oldest) {
+                    store.remove(peer, hint.key(), hint.value());
+                    continue;
+                }
+                limiter.acquire(hint.key().byteSize() + hint.value().byteSize());
+                String id = new String(hint.key().toByteArray(), StandardCharsets.UTF_8);
+                HttpResponse<byte[]> response;
+                try {
+                    response = client.put(peer, id, hint.value().toByteArray()).get();
+                } catch (ExecutionException e) {
+                    LOG.debug("{} is still unavailable", peer, e);
+                    break;
+                }
+                if (response.statusCode() != HttpURLConnection.HTTP_CREATED) {
+                    break;
+                }
+                store.remove(peer, hint.key(), hint.value());
+                delivered.increment();
+            }
+        }
+    }
+
+    long hinted() {
+        return hinted.sum();
+    }
+
+    long delivered() {
+        return delivered.sum();
+    }
+}
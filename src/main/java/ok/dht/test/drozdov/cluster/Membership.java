@@ -0,0 +1,205 @@
+package ok.dht.test.drozdov.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This node's copy of the {@link Topology}, changed by the admin API and spread by gossip.
+ *
+ * <p>A change is pushed to every node of both versions at once, then every {@value #GOSSIP_INTERVAL_MILLIS} ms
+ * the node exchanges topologies with a random peer and both keep the later one, so a node that missed
+ * the push catches up within a few rounds. The topology is persisted before it is used, a restarted node
+ * resumes from it rather than from its configured cluster.
+ *
+ * <p>Initial versions never replace each other: a node started with a cluster of its own
+ * keeps to it until it is joined.
+ */
+public final class Membership implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Membership.class);
+    private static final long GOSSIP_INTERVAL_MILLIS = 1000;
+
+    private final Path path;
+    private final String self;
+    private final ReplicaClient client;
+    private final ScheduledExecutorService executor;
+    private volatile Topology topology;
+
+    /**
+     * Loads the persisted topology and starts gossip.
+     *
+     * @param path  file the topology is persisted to
+     * @param nodes cluster the node starts with if nothing has been persisted
+     */
+    public Membership(Path path, String self, List<String> nodes, ReplicaClient client) throws IOException {
+        this.path = path;
+        this.self = self;
+        this.client = client;
+        Topology persisted = read(path);
+        this.topology = persisted == null ? Topology.initial(nodes) : persisted;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "membership-gossip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::gossip, GOSSIP_INTERVAL_MILLIS, GOSSIP_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+        LOG.info("Starting with {}", topology);
+    }
+
+    public Topology topology() {
+        return topology;
+    }
+
+    /**
+     * Adds the node to the cluster and starts the handoff of the keys it takes over.
+     *
+     * @throws IllegalStateException    if a handoff is in progress
+     * @throws IllegalArgumentException if the node is a member already
+     */
+    public synchronized Topology join(String node) {
+        return change(topology.join(node));
+    }
+
+    /**
+     * Removes the node from the cluster and starts the handoff of its keys.
+     *
+     * @throws IllegalStateException    if a handoff is in progress
+     * @throws IllegalArgumentException if the node is not a member or is the last one
+     */
+    public synchronized Topology decommission(String node) {
+        return change(topology.decommission(node));
+    }
+
+    /**
+     * Merges the topology of a peer into this node's.
+     *
+     * @return serialized topology of this node after the merge, for the peer to merge back
+     * @throws IllegalArgumentException if the topology is malformed
+     */
+    public byte[] exchange(byte[] peerTopology) {
+        return merge(Topology.fromBytes(peerTopology)).toBytes();
+    }
+
+    /**
+     * Records that this node has handed off its keys for the version.
+     */
+    synchronized void handedOff(long version) {
+        if (topology.version() == version) {
+            change(topology.handedOff(self));
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private synchronized Topology merge(Topology peer) {
+        Topology current = topology;
+        if (current.version() == 0 && peer.version() == 0) {
+            return current;
+        }
+        Topology merged = current.merge(peer);
+        if (merged != current) {
+            adopt(merged);
+        }
+        return merged;
+    }
+
+    private Topology change(Topology next) {
+        adopt(next);
+        for (String node : next.peers()) {
+            if (!node.equals(self)) {
+                send(node, next);
+            }
+        }
+        return next;
+    }
+
+    private void adopt(Topology next) {
+        try {
+            write(path, next);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't persist " + next, e);
+        }
+        Topology previous = topology;
+        topology = next;
+        if (previous.version() != next.version() || previous.handingOff() != next.handingOff()) {
+            LOG.info("Adopted {}", next);
+        }
+    }
+
+    private void gossip() {
+        List<String> peers = topology.peers();
+        String peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+        if (peer.equals(self)) {
+            return;
+        }
+        try {
+            send(peer, topology);
+        } catch (RuntimeException e) {
+            LOG.error("Gossip with {} failed", peer, e);
+        }
+    }
+
+    private void send(String node, Topology sent) {
+        client.exchangeTopology(node, sent.toBytes()).whenComplete((response, e) -> {
+            if (e != null || response.statusCode() != HttpURLConnection.HTTP_OK) {
+                LOG.debug("Can't exchange topology with {}", node, e);
+                return;
+            }
+            try {
+                merge(Topology.fromBytes(response.body()));
+            } catch (IllegalArgumentException | UncheckedIOException ex) {
+                LOG.warn("Can't merge topology of {}", node, ex);
+            }
+        });
+    }
+
+    @Nullable
+    private static Topology read(Path path) throws IOException {
+        try {
+            return Topology.fromBytes(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Topology " + path + " is corrupted", e);
+        }
+    }
+
+    private static void write(Path path, Topology topology) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.wrap(topology.toBytes());
+        try (FileChannel channel = FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
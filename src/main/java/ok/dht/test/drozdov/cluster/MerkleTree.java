@@ -0,0 +1,89 @@
+package ok.dht.test.drozdov.cluster;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Hash tree over the records two replicas share.
+ * Keys are spread over {@value #LEAVES} buckets by their hash, a leaf sums hashes of the records in its bucket,
+ * so the tree doesn't depend on the scan order. Comparing two trees top-down finds the differing buckets
+ * while skipping identical subtrees.
+ *
+ * <p>Nodes are kept in an implicit binary heap: the root is at 1, children of {@code i} are at {@code 2i}
+ * and {@code 2i + 1}, leaves occupy the upper half.
+ */
+final class MerkleTree {
+
+    static final int LEAF_BITS = 10;
+    static final int LEAVES = 1 << LEAF_BITS;
+
+    private final long[] nodes;
+    private boolean sealed;
+
+    MerkleTree() {
+        this.nodes = new long[2 * LEAVES];
+    }
+
+    private MerkleTree(long[] nodes) {
+        this.nodes = nodes;
+        this.sealed = true;
+    }
+
+    static int bucket(long keyHash) {
+        return (int) (keyHash >>> (Long.SIZE - LEAF_BITS));
+    }
+
+    void add(long keyHash, long recordHash) {
+        if (sealed) {
+            throw new IllegalStateException("Tree is sealed");
+        }
+        nodes[LEAVES + bucket(keyHash)] += Hashing.combine(keyHash, recordHash);
+    }
+
+    /**
+     * Computes the inner nodes, no records can be added after that.
+     */
+    MerkleTree seal() {
+        for (int i = LEAVES - 1; i > 0; i--) {
+            nodes[i] = Hashing.combine(nodes[2 * i], nodes[2 * i + 1]);
+        }
+        sealed = true;
+        return this;
+    }
+
+    /**
+     * Buckets whose leaves differ.
+     */
+    BitSet diff(MerkleTree other) {
+        BitSet result = new BitSet(LEAVES);
+        diff(other, 1, result);
+        return result;
+    }
+
+    private void diff(MerkleTree other, int node, BitSet result) {
+        if (nodes[node] == other.nodes[node]) {
+            return;
+        }
+        if (node >= LEAVES) {
+            result.set(node - LEAVES);
+            return;
+        }
+        diff(other, 2 * node, result);
+        diff(other, 2 * node + 1, result);
+    }
+
+    byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(nodes.length * Long.BYTES);
+        buffer.asLongBuffer().put(nodes);
+        return buffer.array();
+    }
+
+    static MerkleTree fromBytes(byte[] bytes) {
+        if (bytes.length != 2 * LEAVES * Long.BYTES) {
+            throw new IllegalArgumentException("Malformed tree of " + bytes.length + " bytes");
+        }
+        long[] nodes = new long[2 * LEAVES];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(nodes);
+        return new MerkleTree(nodes);
+    }
+}
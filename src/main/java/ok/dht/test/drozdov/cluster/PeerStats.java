@@ -0,0 +1,25 @@
+package ok.dht.test.drozdov.cluster;
+
+/**
+ * Health and latency of calls to another node.
+ *
+ * @param url        node URL
+ * @param circuit    circuit breaker state
+ * @param calls      calls sent over the network
+ * @param failures   calls failed with a network error or a timeout
+ * @param fastFailed calls refused by the open circuit
+ * @param p50Micros  median call latency
+ * @param p99Micros  99th percentile of call latency
+ * @param p999Micros 99.9th percentile of call latency
+ */
+public record PeerStats(
+        String url,
+        String circuit,
+        long calls,
+        long failures,
+        long fastFailed,
+        long p50Micros,
+        long p99Micros,
+        long p999Micros
+) {
+}
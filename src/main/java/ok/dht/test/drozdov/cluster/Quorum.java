@@ -0,0 +1,121 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.http.SegmentResponse;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * Collects replica answers of a single request and responds as soon as the outcome is known:
+ * after {@code ack} successes, or once so many replicas failed that {@code ack} can't be reached.
+ * Answers arriving after that are ignored.
+ */
+final class Quorum {
+
+    static final String NOT_ENOUGH_REPLICAS = "504 Not Enough Replicas";
+
+    private static final Logger LOG = LoggerFactory.getLogger(Quorum.class);
+
+    private final Responder responder;
+    private final int ack;
+    private final int from;
+    @Nullable
+    private final String writeResultCode;
+    // Guarded by this
+    private int successes;
+    // Guarded by this
+    private int failures;
+    // Guarded by this
+    @Nullable
+    private MemorySegment freshest;
+    // Guarded by this
+    private boolean done;
+
+    /**
+     * Creates a quorum of a write answering with {@code writeResultCode},
+     * or of a read answering with the freshest record if it is {@code null}.
+     */
+    Quorum(HttpSession session, int ack, int from, @Nullable String writeResultCode) {
+        this((response, reached) -> send(session, response.get()), ack, from, writeResultCode);
+    }
+
+    /**
+     * Creates a quorum whose outcome goes to {@code responder} rather than straight to a session.
+     */
+    Quorum(Responder responder, int ack, int from, @Nullable String writeResultCode) {
+        this.responder = responder;
+        this.ack = ack;
+        this.from = from;
+        this.writeResultCode = writeResultCode;
+    }
+
+    /**
+     * Successful replica answer.
+     *
+     * @param record record read from the replica, {@code null} for writes and absent keys
+     */
+    void success(@Nullable MemorySegment record) {
+        MemorySegment result;
+        synchronized (this) {
+            if (record != null && (freshest == null || VersionedValue.compare(freshest, record) < 0)) {
+                freshest = record;
+            }
+            if (done || ++successes < ack) {
+                return;
+            }
+            done = true;
+            result = freshest;
+        }
+        if (writeResultCode == null) {
+            responder.respond(() -> readResponse(result), true);
+        } else {
+            responder.respond(() -> new Response(writeResultCode, Response.EMPTY), true);
+        }
+    }
+
+    void failure() {
+        synchronized (this) {
+            if (done || ++failures <= from - ack) {
+                return;
+            }
+            done = true;
+        }
+        responder.respond(() -> new Response(NOT_ENOUGH_REPLICAS, Response.EMPTY), false);
+    }
+
+    static void send(HttpSession session, Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            LOG.debug("Can't send response to {}", session, e);
+            session.close();
+        }
+    }
+
+    private static Response readResponse(@Nullable MemorySegment record) {
+        if (record == null || !VersionedValue.isLive(record, System.currentTimeMillis())) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+        return new SegmentResponse(Response.OK, VersionedValue.value(record));
+    }
+
+    /**
+     * Destination of the outcome.
+     */
+    @FunctionalInterface
+    interface Responder {
+        /**
+         * Called once, when the outcome is known.
+         *
+         * @param response builds the response, every call a new one
+         * @param reached  whether {@code ack} replicas succeeded
+         */
+        void respond(Supplier<Response> response, boolean reached);
+    }
+}
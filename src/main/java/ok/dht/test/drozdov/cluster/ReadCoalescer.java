@@ -0,0 +1,236 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.http.WorkerPool;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Shares coordinated reads of a hot key: reads arriving while another one of the key with the same
+ * {@code ack} and {@code from} is in flight are executed together, once, right after it completes.
+ * They don't join the read in flight, whose replica calls may predate a write acknowledged before they
+ * arrived, so every read gets an outcome at least as fresh as its own arrival, and a hot key takes
+ * at most two executions at a time whatever the number of readers.
+ * With a positive TTL the outcome of a successful read is also reused for that long.
+ *
+ * <p>A write of the key {@linkplain #invalidate invalidates} it: the cached outcome is dropped, and a read
+ * in flight is detached, so reads arriving after the write start over and its outcome is not cached.
+ */
+public final class ReadCoalescer {
+
+    // Beyond that, outcomes are cached again once expired ones are swept
+    private static final int MAX_CACHED = 65536;
+
+    private final long ttlNanos;
+    private final WorkerPool workers;
+    private final ConcurrentMap<ByteBuffer, Flight> flights = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ByteBuffer, Cached> cache = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private volatile long nextSweepNanos = System.nanoTime();
+
+    /**
+     * Creates the coalescer of a node.
+     *
+     * @param ttl     how long outcomes are reused, zero disables the cache
+     * @param workers execute the reads that waited for a read in flight
+     */
+    public ReadCoalescer(Duration ttl, WorkerPool workers) {
+        this.ttlNanos = ttl.toNanos();
+        this.workers = workers;
+    }
+
+    /**
+     * Reads that were executed along with others instead of reaching the storage and replicas on their own.
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Reads answered from the cache.
+     */
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Answers the session from the cache or by a read of the key, executed at once or, if a read of the key
+     * is in flight, together with the other reads arriving meanwhile once it completes.
+     *
+     * @param execute executes the read and passes its outcome to the flight, called by a worker
+     *                if the read has to wait for the previous flight
+     */
+    void start(MemorySegment key, int ack, int from, HttpSession session, Consumer<Flight> execute) {
+        ByteBuffer id = ByteBuffer.wrap(key.toByteArray());
+        if (ttlNanos > 0) {
+            Cached cached = cache.get(id);
+            if (cached != null && cached.ack >= ack && System.nanoTime() - cached.expiresNanos < 0) {
+                cacheHits.increment();
+                Quorum.send(session, cached.response.get());
+                return;
+            }
+        }
+        Flight flight = new Flight(id, ack, from, session, execute);
+        while (true) {
+            Flight current = flights.putIfAbsent(id, flight);
+            if (current == null) {
+                execute.accept(flight);
+                return;
+            }
+            if (current.follow(flight)) {
+                return;
+            }
+            if (current.ack != ack || current.from != from) {
+                // Not shared with reads of other replication factors
+                flight.stale = true;
+                execute.accept(flight);
+                return;
+            }
+            // The current one has just completed
+            if (flights.replace(id, current, flight)) {
+                execute.accept(flight);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The key has been written, its outcomes read so far must not be served anymore.
+     */
+    void invalidate(MemorySegment key) {
+        ByteBuffer id = ByteBuffer.wrap(key.toByteArray());
+        Flight flight = flights.remove(id);
+        if (flight != null) {
+            flight.stale = true;
+        }
+        // After marking the flight, so an outcome cached concurrently is either dropped here or not cached at all
+        cache.remove(id);
+    }
+
+    private void cache(ByteBuffer id, Cached cached) {
+        if (cache.size() >= MAX_CACHED) {
+            long now = System.nanoTime();
+            if (now - nextSweepNanos < 0) {
+                return;
+            }
+            nextSweepNanos = now + ttlNanos;
+            cache.values().removeIf(entry -> now - entry.expiresNanos >= 0);
+            if (cache.size() >= MAX_CACHED) {
+                return;
+            }
+        }
+        cache.put(id, cached);
+    }
+
+    /**
+     * Executes the flight on a worker. The thread completing the previous flight may be a replica client one,
+     * or a worker that has just read locally and would otherwise execute every following flight in turn.
+     */
+    private void depart(Flight flight) {
+        workers.execute(new WorkerPool.Task() {
+            @Override
+            public void run() {
+                flight.execute.accept(flight);
+            }
+
+            @Override
+            public void reject() {
+                flight.respond(() -> new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY), false);
+            }
+        });
+    }
+
+    /**
+     * Read executed once for all the sessions it gathered before it was executed.
+     */
+    final class Flight implements Quorum.Responder {
+
+        private final ByteBuffer id;
+        private final int ack;
+        private final int from;
+        private final Consumer<Flight> execute;
+        // Guarded by this
+        private final List<HttpSession> sessions = new ArrayList<>();
+        // Reads that arrived while this one was in flight, guarded by this
+        @Nullable
+        private Flight next;
+        // Guarded by this
+        private boolean done;
+        private volatile boolean stale;
+
+        private Flight(ByteBuffer id, int ack, int from, HttpSession session, Consumer<Flight> execute) {
+            this.id = id;
+            this.ack = ack;
+            this.from = from;
+            this.execute = execute;
+            sessions.add(session);
+        }
+
+        /**
+         * Queues the session of the read to be executed once this one completes.
+         */
+        private synchronized boolean follow(Flight read) {
+            if (done || read.ack != ack || read.from != from) {
+                return false;
+            }
+            if (next == null) {
+                next = read;
+            } else {
+                // Not executed before this one is done
+                synchronized (next) {
+                    next.sessions.addAll(read.sessions);
+                }
+            }
+            coalesced.increment();
+            return true;
+        }
+
+        @Override
+        public void respond(Supplier<Response> response, boolean reached) {
+            List<HttpSession> waiting;
+            Flight following;
+            synchronized (this) {
+                done = true;
+                waiting = sessions;
+                following = next;
+            }
+            Cached cached = null;
+            if (reached && ttlNanos > 0 && !stale) {
+                cached = new Cached(response, ack, System.nanoTime() + ttlNanos);
+                cache(id, cached);
+            }
+            if (following == null) {
+                flights.remove(id, this);
+            } else if (!flights.replace(id, this, following)) {
+                // Invalidated or replaced, the following read is executed on its own
+                following.stale = true;
+            }
+            if (cached != null && stale) {
+                // Invalidated after the check, possibly before the outcome was cached
+                cache.remove(id, cached);
+            }
+            // A response for every session, one-nio adds headers to the one it sends
+            for (HttpSession session : waiting) {
+                Quorum.send(session, response.get());
+            }
+            if (following != null) {
+                depart(following);
+            }
+        }
+    }
+
+    private record Cached(Supplier<Response> response, int ack, long expiresNanos) {
+    }
+}
@@ -0,0 +1,187 @@
+package ok.dht.test.drozdov.cluster;
+
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.RateLimiter;
+import ok.dht.test.drozdov.http.ServiceHttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Hands off the keys of this node to the replicas a {@link Topology} change adds for them.
+ * Only records whose replicas changed are sent, and every such record is sent once, by its owner
+ * in the previous ring. Records are sent in batches through the limit shared with the rest
+ * of the repair, stale ones are ignored by {@link DaoReplica#upsertAll}. A batch stays well under
+ * the request body limit of the receiving node, a record too large to share one is sent on its own.
+ *
+ * <p>The handoff of a node is done once all its records have been accepted, then the node reports it
+ * to the {@link Membership}. A failed batch fails the round, which is retried from the start,
+ * so the handoff of a version completes only when all its previous members are reachable.
+ */
+final class Rebalancer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Rebalancer.class);
+    private static final long BATCH_BYTES = ServiceHttpServer.MAX_INTERNAL_REQUEST_BODY_BYTES / 2;
+
+    private final Membership membership;
+    private final String self;
+    private final DaoReplica local;
+    private final ReplicaClient client;
+    private final RateLimiter limiter;
+    private final int replicationFactor;
+    private final LongAdder recordsHandedOff = new LongAdder();
+    private final LongAdder bytesHandedOff = new LongAdder();
+
+    /**
+     * Creates the handoff.
+     *
+     * @param replicationFactor replicas a key is expected on, non-positive means every node
+     */
+    Rebalancer(
+            Membership membership,
+            String self,
+            DaoReplica local,
+            ReplicaClient client,
+            RateLimiter limiter,
+            int replicationFactor
+    ) {
+        this.membership = membership;
+        this.self = self;
+        this.local = local;
+        this.client = client;
+        this.limiter = limiter;
+        this.replicationFactor = replicationFactor;
+    }
+
+    /**
+     * Hands off the keys if the current topology expects this node to.
+     */
+    void run(BooleanSupplier closed) throws InterruptedException {
+        Topology topology = membership.topology();
+        if (!topology.handsOff(self)) {
+            return;
+        }
+        LOG.info("Handing off keys for {}", topology);
+        try {
+            if (handOff(topology, closed)) {
+                membership.handedOff(topology.version());
+                LOG.info("Handed off keys for {}", topology);
+            }
+        } catch (ExecutionException e) {
+            LOG.warn("Handoff for {} failed, retrying later", topology, e);
+        }
+    }
+
+    long recordsHandedOff() {
+        return recordsHandedOff.sum();
+    }
+
+    long bytesHandedOff() {
+        return bytesHandedOff.sum();
+    }
+
+    /**
+     * Sends records this node owned in the previous ring to the replicas they gained.
+     *
+     * @return whether every record has been handed off
+     */
+    private boolean handOff(Topology topology, BooleanSupplier closed)
+            throws InterruptedException, ExecutionException {
+        Router from = topology.previousRouter();
+        Router to = topology.router();
+        int selfIndex = from.nodes().indexOf(self);
+        int[] previousReplicas = new int[replicas(from)];
+        int[] replicas = new int[replicas(to)];
+        Map<String, List<Entry>> batches = new HashMap<>();
+        Map<String, Long> batchBytes = new HashMap<>();
+        for (Iterator<Entry> records = local.records(); records.hasNext(); ) {
+            if (closed.getAsBoolean()) {
+                return false;
+            }
+            Entry record = records.next();
+            from.replicas(record.key(), previousReplicas);
+            if (previousReplicas[0] != selfIndex) {
+                continue;
+            }
+            to.replicas(record.key(), replicas);
+            long size = RecordBatch.encodedSize(record);
+            for (int replica : replicas) {
+                String node = to.nodes().get(replica);
+                if (isReplica(from, previousReplicas, node)) {
+                    continue;
+                }
+                if (size > BATCH_BYTES) {
+                    if (!sendRecord(node, record)) {
+                        return false;
+                    }
+                    continue;
+                }
+                Long pending = batchBytes.get(node);
+                if (pending != null && pending + size > BATCH_BYTES
+                        && !send(node, batches.remove(node), batchBytes.remove(node))) {
+                    return false;
+                }
+                batches.computeIfAbsent(node, n -> new ArrayList<>()).add(record);
+                batchBytes.merge(node, size, Long::sum);
+            }
+        }
+        for (Map.Entry<String, List<Entry>> batch : batches.entrySet()) {
+            if (!send(batch.getKey(), batch.getValue(), batchBytes.get(batch.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean send(String node, List<Entry> batch, long bytes) throws InterruptedException, ExecutionException {
+        limiter.acquire(bytes);
+        HttpResponse<byte[]> response = client.putBatch(node, RecordBatch.encode(batch)).get();
+        return accepted(node, response, batch.size(), bytes);
+    }
+
+    /**
+     * Sends the record as a single-key write, as hints are replayed.
+     */
+    private boolean sendRecord(String node, Entry record) throws InterruptedException, ExecutionException {
+        long bytes = RecordBatch.encodedSize(record);
+        limiter.acquire(bytes);
+        String id = new String(record.key().toByteArray(), StandardCharsets.UTF_8);
+        HttpResponse<byte[]> response = client.put(node, id, record.value().toByteArray()).get();
+        return accepted(node, response, 1, bytes);
+    }
+
+    private boolean accepted(String node, HttpResponse<byte[]> response, int records, long bytes) {
+        if (response.statusCode() != HttpURLConnection.HTTP_CREATED) {
+            LOG.warn("{} refused {} handed off records with {}", node, records, response.statusCode());
+            return false;
+        }
+        recordsHandedOff.add(records);
+        bytesHandedOff.add(bytes);
+        return true;
+    }
+
+    private int replicas(Router router) {
+        int nodes = router.nodes().size();
+        return replicationFactor <= 0 ? nodes : Math.min(replicationFactor, nodes);
+    }
+
+    private static boolean isReplica(Router router, int[] replicas, String node) {
+        for (int replica : replicas) {
+            if (router.nodes().get(replica).equals(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
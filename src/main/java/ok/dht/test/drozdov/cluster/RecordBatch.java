@@ -0,0 +1,113 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Entry;
+
+import javax.annotation.Nullable;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of batch writes, the same framing binary range responses use.
+ *
+ * <p>Record layout (big-endian):
+ * <pre>
+ * int keySize
+ * int valueSize (-1 for tombstone)
+ * key, value
+ * </pre>
+ */
+public final class RecordBatch {
+
+    private static final long HEADER_SIZE = 2L * Integer.BYTES;
+    private static final int TOMBSTONE_SIZE = -1;
+
+    private RecordBatch() {
+        // Only static methods
+    }
+
+    /**
+     * Splits the body into entries in a single pass, keys and values are slices of the body.
+     *
+     * @return entries in body order or {@code null} if the body is malformed or has an empty key
+     */
+    @Nullable
+    public static List<Entry> parse(MemorySegment body) {
+        List<Entry> result = new ArrayList<>();
+        long offset = 0;
+        while (offset < body.byteSize()) {
+            if (body.byteSize() - offset < HEADER_SIZE) {
+                return null;
+            }
+            int keySize = MemoryAccess.getIntAtOffset(body, offset, ByteOrder.BIG_ENDIAN);
+            int valueSize = MemoryAccess.getIntAtOffset(body, offset + Integer.BYTES, ByteOrder.BIG_ENDIAN);
+            offset += HEADER_SIZE;
+            if (keySize <= 0 || valueSize < TOMBSTONE_SIZE
+                    || body.byteSize() - offset < (long) keySize + Math.max(valueSize, 0)) {
+                return null;
+            }
+            MemorySegment key = body.asSlice(offset, keySize);
+            offset += keySize;
+            MemorySegment value = null;
+            if (valueSize != TOMBSTONE_SIZE) {
+                value = body.asSlice(offset, valueSize);
+                offset += valueSize;
+            }
+            result.add(new Entry(key, value));
+        }
+        return result;
+    }
+
+    /**
+     * Bytes the entry takes in a batch.
+     */
+    static long encodedSize(Entry entry) {
+        return HEADER_SIZE + entry.key().byteSize() + (entry.isTombstone() ? 0 : entry.value().byteSize());
+    }
+
+    /**
+     * Encodes all the entries.
+     */
+    static byte[] encode(List<Entry> entries) {
+        int[] indexes = new int[entries.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        return encode(entries, indexes);
+    }
+
+    /**
+     * Encodes the entries at the given indexes.
+     */
+    static byte[] encode(List<Entry> entries, int[] indexes) {
+        long size = 0;
+        for (int index : indexes) {
+            size += encodedSize(entries.get(index));
+        }
+        byte[] result = new byte[Math.toIntExact(size)];
+        MemorySegment body = MemorySegment.ofArray(result);
+        long offset = 0;
+        for (int index : indexes) {
+            Entry entry = entries.get(index);
+            MemorySegment key = entry.key();
+            MemorySegment value = entry.value();
+            MemoryAccess.setIntAtOffset(body, offset, ByteOrder.BIG_ENDIAN, (int) key.byteSize());
+            MemoryAccess.setIntAtOffset(
+                    body,
+                    offset + Integer.BYTES,
+                    ByteOrder.BIG_ENDIAN,
+                    value == null ? TOMBSTONE_SIZE : (int) value.byteSize()
+            );
+            offset += HEADER_SIZE;
+            body.asSlice(offset, key.byteSize()).copyFrom(key);
+            offset += key.byteSize();
+            if (value != null) {
+                body.asSlice(offset, value.byteSize()).copyFrom(value);
+                offset += value.byteSize();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,43 @@
+package ok.dht.test.drozdov.cluster;
+
+import java.time.Duration;
+
+/**
+ * Settings of the background jobs catching up replicas that missed writes.
+ *
+ * @param hintReplayInterval  how often hints are offered to the nodes they were written for
+ * @param antiEntropyInterval how often Merkle trees are compared with every other node
+ * @param bytesPerSecond      limit shared by hint replay and anti-entropy, non-positive means unlimited
+ * @param replicationFactor   replicas a key is expected on, non-positive means every node
+ * @param hintWindow          age of a write its hints are dropped at undelivered, anti-entropy repairs it then
+ * @param gracePeriod         age of a tombstone or an expired value storage drops it at, longer than both
+ *                            the hint window and the anti-entropy interval, so no replica is left with
+ *                            an older write it would shadow
+ */
+public record RepairConfig(
+        Duration hintReplayInterval,
+        Duration antiEntropyInterval,
+        long bytesPerSecond,
+        int replicationFactor,
+        Duration hintWindow,
+        Duration gracePeriod
+) {
+
+    public static final Duration DEFAULT_HINT_REPLAY_INTERVAL = Duration.ofSeconds(1);
+    public static final Duration DEFAULT_ANTI_ENTROPY_INTERVAL = Duration.ofMinutes(1);
+    public static final long DEFAULT_BYTES_PER_SECOND = 8L << 20;
+    public static final int DEFAULT_REPLICATION_FACTOR = 0;
+    public static final Duration DEFAULT_HINT_WINDOW = Duration.ofHours(3);
+    public static final Duration DEFAULT_GRACE_PERIOD = Duration.ofDays(1);
+
+    public RepairConfig() {
+        this(
+                DEFAULT_HINT_REPLAY_INTERVAL,
+                DEFAULT_ANTI_ENTROPY_INTERVAL,
+                DEFAULT_BYTES_PER_SECOND,
+                DEFAULT_REPLICATION_FACTOR,
+                DEFAULT_HINT_WINDOW,
+                DEFAULT_GRACE_PERIOD
+        );
+    }
+}
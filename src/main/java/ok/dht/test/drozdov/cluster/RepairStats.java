@@ -0,0 +1,25 @@
+package ok.dht.test.drozdov.cluster;
+
+/**
+ * Progress of the replica repair since start.
+ *
+ * @param hinted            writes stored as hints for unreachable replicas
+ * @param hintsDelivered    hints replayed to their nodes
+ * @param antiEntropyRounds tree comparisons with other nodes
+ * @param bucketsDiffered   differing buckets found by the comparisons
+ * @param recordsRepaired   records pulled from other nodes for differing buckets
+ * @param bytesRepaired     size of the pulled records
+ * @param recordsHandedOff  records sent to the owners a membership change added
+ * @param bytesHandedOff    size of the sent records
+ */
+public record RepairStats(
+        long hinted,
+        long hintsDelivered,
+        long antiEntropyRounds,
+        long bucketsDiffered,
+        long recordsRepaired,
+        long bytesRepaired,
+        long recordsHandedOff,
+        long bytesHandedOff
+) {
+}
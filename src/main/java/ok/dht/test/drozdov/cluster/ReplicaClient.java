@@ -0,0 +1,266 @@
+package ok.dht.test.drozdov.cluster;
+
+import ok.dht.test.drozdov.metrics.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous client of the internal replica API of other nodes.
+ *
+ * <p>Every node gets its own {@link HttpClient}, hence its own pool of keep-alive connections and its own
+ * timeout, so a slow node can't exhaust connections needed for the others. Calls of all nodes complete
+ * on one shared executor. A node failing repeatedly is cut off by its {@link CircuitBreaker}
+ * and calls to it fail at once instead of waiting for the timeout.
+ */
+public final class ReplicaClient implements Closeable {
+
+    /**
+     * Internal endpoint exchanging {@link VersionedValue} records.
+     */
+    public static final String REPLICA_PATH = "/v0/replica";
+
+    /**
+     * Internal endpoint writing a {@link RecordBatch} of {@link VersionedValue} records.
+     */
+    public static final String REPLICA_BATCH_PATH = "/v0/replica/batch";
+
+    /**
+     * Internal endpoint serving the {@link MerkleTree} of records shared with the calling node.
+     */
+    public static final String REPAIR_TREE_PATH = "/v0/repair/tree";
+
+    /**
+     * Internal endpoint streaming records shared with the calling node that fall into the given buckets.
+     */
+    public static final String REPAIR_RECORDS_PATH = "/v0/repair/records";
+
+    /**
+     * Internal endpoint merging the {@link Topology} of the calling node, answered with the merged one.
+     */
+    public static final String TOPOLOGY_PATH = "/v0/cluster/topology";
+
+    /**
+     * Paths of the internal API, whose bodies carry versioned records rather than client values.
+     */
+    public static final Set<String> INTERNAL_PATHS = Set.of(REPLICA_PATH, REPLICA_BATCH_PATH);
+
+    private final ClientConfig config;
+    private final ExecutorService executor;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the client, other nodes get their connection pools once they are first called.
+     */
+    public ReplicaClient(ClientConfig config) {
+        this.config = config;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(config.threads(), r -> {
+            Thread thread = new Thread(r, "replica-client-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads the record, answered with 200 and the record or 404 if the replica has never seen the key.
+     */
+    public CompletableFuture<HttpResponse<byte[]>> get(String node, String id) {
+        Peer peer = peer(node);
+        return peer.send(peer.request(replicaUri(node, id)).GET(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Writes the record, answered with 201.
+     */
+    public CompletableFuture<HttpResponse<byte[]>> put(String node, String id, byte[] record) {
+        Peer peer = peer(node);
+        return peer.send(
+                peer.request(replicaUri(node, id)).PUT(HttpRequest.BodyPublishers.ofByteArray(record)),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
+    /**
+     * Writes a {@link RecordBatch} of records, answered with 201 once all of them are stored.
+     */
+    CompletableFuture<HttpResponse<byte[]>> putBatch(String node, byte[] batch) {
+        Peer peer = peer(node);
+        return peer.send(
+                peer.request(URI.create(node + REPLICA_BATCH_PATH)).PUT(HttpRequest.BodyPublishers.ofByteArray(batch)),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
+    /**
+     * Fetches the Merkle tree of records the node shares with {@code self}.
+     */
+    CompletableFuture<HttpResponse<byte[]>> tree(String node, String self) {
+        Peer peer = peer(node);
+        return peer.send(peer.request(repairUri(node, REPAIR_TREE_PATH, self)).GET(),
+                HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Streams records the node shares with {@code self} in the buckets, see {@link BitSet#toByteArray()}.
+     */
+    CompletableFuture<HttpResponse<InputStream>> records(String node, String self, BitSet buckets) {
+        Peer peer = peer(node);
+        return peer.send(
+                peer.request(repairUri(node, REPAIR_RECORDS_PATH, self))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(buckets.toByteArray())),
+                HttpResponse.BodyHandlers.ofInputStream()
+        );
+    }
+
+    /**
+     * Sends the topology of this node, answered with 200 and the topology of the node merged with it.
+     */
+    CompletableFuture<HttpResponse<byte[]>> exchangeTopology(String node, byte[] topology) {
+        Peer peer = peer(node);
+        return peer.send(
+                peer.request(URI.create(node + TOPOLOGY_PATH)).PUT(HttpRequest.BodyPublishers.ofByteArray(topology)),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
+    public List<PeerStats> stats() {
+        List<PeerStats> result = new ArrayList<>(peers.size());
+        for (Peer peer : peers.values()) {
+            result.add(peer.stats());
+        }
+        return result;
+    }
+
+    /**
+     * Live latency histogram of calls to the node, in microseconds.
+     */
+    public LatencyHistogram latency(String node) {
+        return peer(node).latency;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static URI replicaUri(String node, String id) {
+        return URI.create(node + REPLICA_PATH + "?id=" + URLEncoder.encode(id, StandardCharsets.UTF_8));
+    }
+
+    private static URI repairUri(String node, String path, String self) {
+        return URI.create(node + path + "?peer=" + URLEncoder.encode(self, StandardCharsets.UTF_8));
+    }
+
+    private Peer peer(String node) {
+        Peer peer = peers.get(node);
+        if (peer == null) {
+            // Nodes join at runtime
+            peer = peers.computeIfAbsent(node, url -> new Peer(url, config, executor));
+        }
+        return peer;
+    }
+
+    private static final class Peer {
+
+        private final String url;
+        private final HttpClient client;
+        private final Duration timeout;
+        private final CircuitBreaker breaker;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder fastFailed = new LongAdder();
+
+        Peer(String url, ClientConfig config, ExecutorService executor) {
+            this.url = url;
+            this.timeout = config.timeout(url);
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(timeout)
+                    .executor(executor)
+                    .build();
+            this.breaker = new CircuitBreaker(config.failureThreshold(), config.openDuration().toNanos());
+        }
+
+        HttpRequest.Builder request(URI uri) {
+            return HttpRequest.newBuilder(uri).timeout(timeout);
+        }
+
+        /**
+         * Sends the request unless the circuit is open, the latency is measured up to the response headers.
+         */
+        <T> CompletableFuture<HttpResponse<T>> send(HttpRequest.Builder request, HttpResponse.BodyHandler<T> body) {
+            if (!breaker.tryAcquire()) {
+                fastFailed.increment();
+                return CompletableFuture.failedFuture(CircuitOpenException.INSTANCE);
+            }
+            long start = System.nanoTime();
+            return client.sendAsync(request.build(), body)
+                    .whenComplete((response, e) -> {
+                        latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                        if (e == null) {
+                            breaker.onSuccess();
+                        } else {
+                            failures.increment();
+                            breaker.onFailure();
+                        }
+                    });
+        }
+
+        PeerStats stats() {
+            return new PeerStats(
+                    url,
+                    breaker.state().name(),
+                    latency.count(),
+                    failures.sum(),
+                    fastFailed.sum(),
+                    latency.percentile(0.5),
+                    latency.percentile(0.99),
+                    latency.percentile(0.999)
+            );
+        }
+    }
+
+    /**
+     * Failure of a call refused by an open circuit, shared as it carries no call specific data.
+     */
+    private static final class CircuitOpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+        static final CircuitOpenException INSTANCE = new CircuitOpenException();
+
+        private CircuitOpenException() {
+            super("Circuit is open", null);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Compression;
+import ok.dht.test.drozdov.dao.Config;
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.Expiry;
+import ok.dht.test.drozdov.dao.MemorySegmentDao;
+import ok.dht.test.drozdov.dao.RateLimiter;
+import ok.dht.test.drozdov.dao.SyncPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background catch-up of replicas: hinted handoff for writes a node missed while unreachable,
+ * periodic Merkle tree anti-entropy for everything else, and the handoff of keys after a membership
+ * change. All share one bandwidth limit, so repair traffic can't starve client requests.
+ */
+public final class ReplicaRepair implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaRepair.class);
+    // Hints are small and rebuilt by anti-entropy if lost, they don't need a force per write
+    private static final long HINTS_FLUSH_THRESHOLD_BYTES = 1L << 20;
+    // A handoff blocks further membership changes, it is started soon after the change is seen
+    private static final long HANDOFF_INTERVAL_MILLIS = 1000;
+
+    private final HintStore hintStore;
+    private final HintedHandoff hintedHandoff;
+    private final AntiEntropy antiEntropy;
+    private final Rebalancer rebalancer;
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed;
+
+    public ReplicaRepair(
+            Path hintsDir,
+            Membership membership,
+            String self,
+            DaoReplica local,
+            ReplicaClient client,
+            RepairConfig config
+    ) throws IOException {
+        this.hintStore = new HintStore(new MemorySegmentDao(new Config(
+                hintsDir,
+                HINTS_FLUSH_THRESHOLD_BYTES,
+                Config.DEFAULT_COMPACTION_MIN_TABLES,
+                Config.DEFAULT_COMPACTION_MAX_TABLES,
+                Config.DEFAULT_COMPACTION_BYTES_PER_SECOND,
+                Config.DEFAULT_BLOOM_BITS_PER_KEY,
+                SyncPolicy.PERIODIC,
+                Config.DEFAULT_SYNC_INTERVAL_MILLIS,
+                Compression.NONE,
+                0,
+                Expiry.NEVER
+        )));
+        RateLimiter limiter = new RateLimiter(config.bytesPerSecond());
+        this.hintedHandoff = new HintedHandoff(hintStore, membership, self, client, limiter, config.hintWindow());
+        this.antiEntropy = new AntiEntropy(membership, self, local, client, limiter, config.replicationFactor());
+        this.rebalancer = new Rebalancer(membership, self, local, client, limiter, config.replicationFactor());
+
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(
+                3,
+                runnable -> new Thread(runnable, "replica-repair-" + threads.getAndIncrement())
+        );
+        // Scheduled even on a single node, peers may join it later
+        long hintMillis = config.hintReplayInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::replayHints, hintMillis, hintMillis, TimeUnit.MILLISECONDS);
+        long antiEntropyMillis = config.antiEntropyInterval().toMillis();
+        executor.scheduleWithFixedDelay(
+                this::runAntiEntropy,
+                antiEntropyMillis,
+                antiEntropyMillis,
+                TimeUnit.MILLISECONDS
+        );
+        executor.scheduleWithFixedDelay(
+                this::runHandoff,
+                HANDOFF_INTERVAL_MILLIS,
+                HANDOFF_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Keeps a write the node failed to acknowledge, to be replayed once it is back.
+     */
+    public void hint(String node, MemorySegment key, byte[] record) {
+        hintedHandoff.hint(node, key, record);
+    }
+
+    /**
+     * Serialized Merkle tree of records shared with the peer as of the latest anti-entropy round,
+     * {@code null} for an unknown peer or before the first round.
+     */
+    @Nullable
+    public byte[] tree(String peer) {
+        MerkleTree tree = antiEntropy.tree(peer);
+        return tree == null ? null : tree.toBytes();
+    }
+
+    /**
+     * Records shared with the peer in the buckets, {@code null} for an unknown peer.
+     */
+    @Nullable
+    public Iterator<Entry> records(String peer, BitSet buckets) {
+        return antiEntropy.records(peer, buckets);
+    }
+
+    public RepairStats stats() {
+        return new RepairStats(
+                hintedHandoff.hinted(),
+                hintedHandoff.delivered(),
+                antiEntropy.rounds(),
+                antiEntropy.bucketsDiffered(),
+                antiEntropy.recordsRepaired(),
+                antiEntropy.bytesRepaired(),
+                rebalancer.recordsHandedOff(),
+                rebalancer.bytesHandedOff()
+        );
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        // Not interrupted: an interrupt would close the log channel of a DAO write in progress
+        executor.shutdown();
+        antiEntropy.cancel();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("Repair is still running");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        hintStore.close();
+    }
+
+    private void replayHints() {
+        try {
+            hintedHandoff.replay(() -> closed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Hint replay failed", e);
+        }
+    }
+
+    private void runAntiEntropy() {
+        try {
+            antiEntropy.run(() -> closed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Anti-entropy failed", e);
+        }
+    }
+
+    private void runHandoff() {
+        try {
+            rebalancer.run(() -> closed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Handoff failed", e);
+        }
+    }
+}
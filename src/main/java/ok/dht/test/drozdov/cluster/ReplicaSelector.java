@@ -0,0 +1,237 @@
+package ok.dht.test.drozdov.cluster;
+
+import ok.dht.test.drozdov.metrics.LatencyHistogram;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ranks replicas of a read by how soon they are expected to answer, and decides when a read is hedged.
+ *
+ * <p>Every node is scored by an EWMA of its read latency times its outstanding reads plus one, so a node
+ * that slowed down or has calls piling up sinks in the ranking. A failure counts as a call lasting the whole
+ * timeout. The score of a node left out of reads for a while is halved every window, so it is tried
+ * again and a recovered node regains its place. This node always ranks first, its read is not remote.
+ *
+ * <p>The hedge delay is the configured quantile of remote read latencies of the last complete window
+ * of {@value #WINDOW_MILLIS} ms. Each read earns a fraction of a hedge, and a hedge is only sent
+ * when a whole one has been earned, so hedging adds at most {@link ClientConfig#hedgeRatio()} of the reads.
+ */
+public final class ReplicaSelector {
+
+    // Weight of the latest sample in the EWMA
+    private static final double ALPHA = 0.2;
+    private static final long WINDOW_MILLIS = 1000;
+    // Fewer samples don't make a meaningful quantile
+    private static final long MIN_WINDOW_SAMPLES = 20;
+    private static final long MIN_HEDGE_DELAY_MICROS = 500;
+    // Hedge budget in thousandths of a hedge
+    private static final long HEDGE_COST = 1000;
+    private static final long MAX_HEDGE_BURST = 100 * HEDGE_COST;
+
+    private final ClientConfig config;
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final double hedgeQuantile;
+    private final long hedgeEarnedPerRead;
+    private final AtomicLong hedgeBudget = new AtomicLong();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder hedgesRefused = new LongAdder();
+    private final LatencyHistogram hedgeSavings = new LatencyHistogram();
+    private volatile LatencyHistogram window = new LatencyHistogram();
+    private volatile long windowStartNanos = System.nanoTime();
+    // Negative until a window had enough samples
+    private volatile long hedgeDelayMicros = -1;
+
+    public ReplicaSelector(ClientConfig config) {
+        this.config = config;
+        this.hedgeQuantile = config.hedgeQuantile();
+        this.hedgeEarnedPerRead = Math.round(config.hedgeRatio() * HEDGE_COST);
+    }
+
+    /**
+     * Coordinated reads.
+     */
+    public long reads() {
+        return reads.sum();
+    }
+
+    /**
+     * Reads sent to an extra replica after the hedge delay.
+     */
+    public long hedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Hedged reads answered before any replica they were hedged for.
+     */
+    public long hedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    /**
+     * Hedges not sent because the budget was spent.
+     */
+    public long hedgesRefused() {
+        return hedgesRefused.sum();
+    }
+
+    /**
+     * Microseconds hedged reads answered ahead of the replicas they were hedged for.
+     */
+    public LatencyHistogram hedgeSavings() {
+        return hedgeSavings;
+    }
+
+    /**
+     * Current hedge delay in microseconds, negative while hedging waits for enough samples.
+     */
+    public long hedgeDelayMicros() {
+        return hedgeDelayMicros;
+    }
+
+    /**
+     * Expected read latency of the node in microseconds, its outstanding reads taken into account.
+     */
+    public double score(String url) {
+        return node(url).score();
+    }
+
+    /**
+     * Reorders the replicas of a read from the one expected to answer first, replicas scored alike keep
+     * their order. Counts the read towards the hedge budget.
+     *
+     * @param nodes URLs of the nodes the replicas index
+     * @param self  index of this node, negative if it is not one of them
+     */
+    void order(int[] replicas, List<String> nodes, int self) {
+        reads.increment();
+        if (hedgeEarnedPerRead > 0) {
+            hedgeBudget.getAndUpdate(budget -> Math.min(MAX_HEDGE_BURST, budget + hedgeEarnedPerRead));
+        }
+        double[] scores = new double[replicas.length];
+        for (int i = 0; i < replicas.length; i++) {
+            scores[i] = replicas[i] == self ? -1 : node(nodes.get(replicas[i])).score();
+        }
+        // Insertion sort, there are only a few replicas
+        for (int i = 1; i < replicas.length; i++) {
+            int replica = replicas[i];
+            double score = scores[i];
+            int j = i - 1;
+            for (; j >= 0 && scores[j] > score; j--) {
+                replicas[j + 1] = replicas[j];
+                scores[j + 1] = scores[j];
+            }
+            replicas[j + 1] = replica;
+            scores[j + 1] = score;
+        }
+    }
+
+    void sent(String node) {
+        node(node).outstanding.incrementAndGet();
+    }
+
+    /**
+     * Outcome of a read sent to a remote node.
+     */
+    void completed(String node, long micros, boolean success) {
+        Node target = node(node);
+        target.outstanding.decrementAndGet();
+        target.sample(success ? micros : Math.max(micros, target.timeoutMicros));
+        if (success) {
+            window.record(micros);
+        }
+        long now = System.nanoTime();
+        if (now - windowStartNanos >= TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS)) {
+            rotate(now);
+        }
+    }
+
+    /**
+     * Takes a hedge from the budget.
+     *
+     * @return whether the hedge may be sent
+     */
+    boolean tryHedge() {
+        long budget = hedgeBudget.get();
+        while (budget >= HEDGE_COST) {
+            if (hedgeBudget.compareAndSet(budget, budget - HEDGE_COST)) {
+                hedges.increment();
+                return true;
+            }
+            budget = hedgeBudget.get();
+        }
+        hedgesRefused.increment();
+        return false;
+    }
+
+    /**
+     * The hedged read was answered {@code savedMicros} before any replica it was hedged for.
+     */
+    void hedgeWon(long savedMicros) {
+        hedgesWon.increment();
+        hedgeSavings.record(savedMicros);
+    }
+
+    private synchronized void rotate(long now) {
+        if (now - windowStartNanos < TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS)) {
+            // Somebody has just rotated it
+            return;
+        }
+        LatencyHistogram complete = window;
+        window = new LatencyHistogram();
+        windowStartNanos = now;
+        if (complete.count() >= MIN_WINDOW_SAMPLES) {
+            hedgeDelayMicros = Math.max(MIN_HEDGE_DELAY_MICROS, complete.percentile(hedgeQuantile));
+        }
+        for (Node node : nodes.values()) {
+            node.age();
+        }
+    }
+
+    private Node node(String url) {
+        Node node = nodes.get(url);
+        if (node == null) {
+            // Nodes join at runtime
+            node = nodes.computeIfAbsent(url, key -> new Node(config.timeout(key).toNanos() / 1000));
+        }
+        return node;
+    }
+
+    private static final class Node {
+
+        final long timeoutMicros;
+        final AtomicInteger outstanding = new AtomicInteger();
+        // Guarded by this
+        private double ewmaMicros;
+        // Guarded by this
+        private boolean sampled;
+
+        Node(long timeoutMicros) {
+            this.timeoutMicros = timeoutMicros;
+        }
+
+        synchronized double score() {
+            return ewmaMicros * (outstanding.get() + 1);
+        }
+
+        synchronized void sample(long micros) {
+            ewmaMicros = ewmaMicros == 0 ? micros : ewmaMicros + ALPHA * (micros - ewmaMicros);
+            sampled = true;
+        }
+
+        synchronized void age() {
+            if (!sampled) {
+                ewmaMicros /= 2;
+            }
+            sampled = false;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.List;
+
+/**
+ * Sharding scheme assigning every key to one of the cluster nodes.
+ */
+public interface Router {
+
+    /**
+     * Cluster node URLs, indexed by {@link #replicas}.
+     */
+    List<String> nodes();
+
+    /**
+     * Fills the array with indexes of distinct nodes keeping replicas of the key, the owner first.
+     * The same key always gets the same nodes in the same order.
+     *
+     * @param replicas array of at most {@code nodes().size()} elements
+     */
+    void replicas(MemorySegment key, int[] replicas);
+
+    /**
+     * Expected fraction of keys owned by the node, {@code 1 / nodes().size()} for a perfect balance.
+     */
+    double share(int node);
+}
@@ -0,0 +1,15 @@
+package ok.dht.test.drozdov.cluster;
+
+/**
+ * Key distribution over a single node.
+ *
+ * @param url      node URL
+ * @param share    expected fraction of keys owned by the node
+ * @param requests requests routed to the node as the key owner since start
+ */
+public record ShardStats(
+        String url,
+        double share,
+        long requests
+) {
+}
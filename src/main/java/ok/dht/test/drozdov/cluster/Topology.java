@@ -0,0 +1,270 @@
+package ok.dht.test.drozdov.cluster;
+
+import one.nio.util.Utf8;
+
+import javax.annotation.Nullable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Versioned cluster membership, the same on every node once gossip has spread it.
+ *
+ * <p>Every join or decommission makes a new version whose previous members hand off the keys
+ * they no longer own. Until all of them have, the handoff is in progress: the previous ring
+ * answers reads and acknowledges writes, since it has all the data, and owners the change adds
+ * get every write too. Handoff progress only grows, so any two copies of a version merge into
+ * the one that has seen more of it.
+ *
+ * <p>Binary layout (big-endian):
+ * <pre>
+ * long version
+ * int nodes, then for each node: int size, UTF-8 URL
+ * int previous nodes, -1 for the initial version, then as above
+ * int nodes done with the handoff, then as above
+ * </pre>
+ */
+public final class Topology {
+
+    private final long version;
+    private final List<String> nodes;
+    @Nullable
+    private final List<String> previous;
+    private final Set<String> handedOff;
+    private final boolean handingOff;
+    private final Router router;
+    @Nullable
+    private final Router previousRouter;
+
+    private Topology(long version, List<String> nodes, @Nullable List<String> previous, Set<String> handedOff) {
+        this.version = version;
+        this.nodes = List.copyOf(nodes);
+        this.previous = previous == null ? null : List.copyOf(previous);
+        this.handedOff = Collections.unmodifiableSet(new HashSet<>(handedOff));
+        this.handingOff = previous != null && !handedOff.containsAll(previous);
+        this.router = new ConsistentHashRouter(nodes);
+        this.previousRouter = previous == null ? null : new ConsistentHashRouter(previous);
+    }
+
+    /**
+     * Membership a cluster starts with.
+     */
+    public static Topology initial(List<String> nodes) {
+        return new Topology(0, nodes, null, Set.of());
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Members of this version.
+     */
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Members of this version and of the one it was changed from.
+     */
+    public List<String> peers() {
+        if (previous == null) {
+            return nodes;
+        }
+        Set<String> result = new LinkedHashSet<>(nodes);
+        result.addAll(previous);
+        return List.copyOf(result);
+    }
+
+    public boolean handingOff() {
+        return handingOff;
+    }
+
+    /**
+     * Ring whose replicas answer reads and acknowledge writes.
+     */
+    public Router owners() {
+        return handingOff ? previousRouter : router;
+    }
+
+    /**
+     * Ring of this version while the previous one answers, its replicas get writes too. {@code null} otherwise.
+     */
+    @Nullable
+    public Router pending() {
+        return handingOff ? router : null;
+    }
+
+    /**
+     * Ring keys are handed off from, {@code null} for the initial version.
+     */
+    @Nullable
+    Router previousRouter() {
+        return previousRouter;
+    }
+
+    Router router() {
+        return router;
+    }
+
+    /**
+     * Whether the node still has to hand off keys it no longer owns.
+     */
+    boolean handsOff(String node) {
+        return previous != null && previous.contains(node) && !handedOff.contains(node);
+    }
+
+    /**
+     * Next version with the node added.
+     *
+     * @throws IllegalStateException    if the handoff of this version is in progress
+     * @throws IllegalArgumentException if the node is a member already
+     */
+    public Topology join(String node) {
+        checkStable();
+        if (nodes.contains(node)) {
+            throw new IllegalArgumentException(node + " is a member already");
+        }
+        List<String> next = new ArrayList<>(nodes);
+        next.add(node);
+        return new Topology(version + 1, next, nodes, Set.of());
+    }
+
+    /**
+     * Next version without the node.
+     *
+     * @throws IllegalStateException    if the handoff of this version is in progress
+     * @throws IllegalArgumentException if the node is not a member or is the last one
+     */
+    public Topology decommission(String node) {
+        checkStable();
+        if (!nodes.contains(node)) {
+            throw new IllegalArgumentException(node + " is not a member");
+        }
+        if (nodes.size() == 1) {
+            throw new IllegalArgumentException("Can't decommission the last node");
+        }
+        List<String> next = new ArrayList<>(nodes);
+        next.remove(node);
+        return new Topology(version + 1, next, nodes, Set.of());
+    }
+
+    /**
+     * This version with the node done handing off.
+     */
+    Topology handedOff(String node) {
+        if (!handsOff(node)) {
+            return this;
+        }
+        Set<String> done = new HashSet<>(handedOff);
+        done.add(node);
+        return new Topology(version, nodes, previous, done);
+    }
+
+    /**
+     * The later of the two versions, handoff progress of both if the version is the same.
+     * Conflicting changes made concurrently on different nodes are resolved the same way everywhere.
+     */
+    Topology merge(Topology other) {
+        if (version != other.version) {
+            return version > other.version ? this : other;
+        }
+        if (!nodes.equals(other.nodes)) {
+            return nodes.toString().compareTo(other.nodes.toString()) > 0 ? this : other;
+        }
+        if (handedOff.containsAll(other.handedOff)) {
+            return this;
+        }
+        if (other.handedOff.containsAll(handedOff)) {
+            return other;
+        }
+        Set<String> done = new HashSet<>(handedOff);
+        done.addAll(other.handedOff);
+        return new Topology(version, nodes, previous, done);
+    }
+
+    byte[] toBytes() {
+        List<String> done = List.copyOf(handedOff);
+        int size = Long.BYTES + size(nodes) + (previous == null ? Integer.BYTES : size(previous)) + size(done);
+        ByteBuffer buffer = ByteBuffer.allocate(size).putLong(version);
+        putStrings(buffer, nodes);
+        if (previous == null) {
+            buffer.putInt(-1);
+        } else {
+            putStrings(buffer, previous);
+        }
+        putStrings(buffer, done);
+        return buffer.array();
+    }
+
+    /**
+     * Parses {@link #toBytes()}.
+     *
+     * @throws IllegalArgumentException if the bytes are malformed
+     */
+    static Topology fromBytes(byte[] bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long version = buffer.getLong();
+            List<String> nodes = getStrings(buffer, buffer.getInt());
+            int previousSize = buffer.getInt();
+            List<String> previous = previousSize < 0 ? null : getStrings(buffer, previousSize);
+            Set<String> handedOff = new HashSet<>(getStrings(buffer, buffer.getInt()));
+            if (buffer.hasRemaining() || nodes.isEmpty() || (previous == null && version != 0)) {
+                throw new IllegalArgumentException("Malformed topology");
+            }
+            return new Topology(version, nodes, previous, handedOff);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed topology", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + nodes + (handingOff ? " handing off from " + previous : "");
+    }
+
+    private void checkStable() {
+        if (handingOff) {
+            throw new IllegalStateException("Handoff of version " + version + " is in progress");
+        }
+    }
+
+    private static int size(List<String> strings) {
+        int result = Integer.BYTES;
+        for (String string : strings) {
+            result += Integer.BYTES + Utf8.length(string);
+        }
+        return result;
+    }
+
+    private static void putStrings(ByteBuffer buffer, List<String> strings) {
+        buffer.putInt(strings.size());
+        for (String string : strings) {
+            byte[] bytes = Utf8.toBytes(string);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static List<String> getStrings(ByteBuffer buffer, int count) {
+        if (count < 0 || count > buffer.remaining() / Integer.BYTES) {
+            throw new IllegalArgumentException("Malformed topology");
+        }
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining()) {
+                throw new IllegalArgumentException("Malformed topology");
+            }
+            byte[] bytes = new byte[size];
+            buffer.get(bytes);
+            result.add(Utf8.toString(bytes));
+        }
+        return result;
+    }
+}
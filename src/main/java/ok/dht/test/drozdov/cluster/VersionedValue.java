@@ -0,0 +1,177 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Expiry;
+
+import javax.annotation.Nullable;
+import java.nio.ByteOrder;
+import java.time.Duration;
+
+/**
+ * Replicated value stamped with its write time, the form values are stored and exchanged between replicas in.
+ * Deletions are stored as stamped tombstones, so a stale replica can't resurrect a deleted value,
+ * and storage drops them after a grace period, see {@link #expiry(Duration)}.
+ * A value written with a time to live expires that many seconds after its timestamp, and reads as absent
+ * from then on, while it still orders against other writes of the key as any other record.
+ * Storage keeps an expired value as a tombstone of the same timestamp, see {@link #expiry(Duration)}.
+ *
+ * <p>Layout (big-endian):
+ * <pre>
+ * long timestamp  (microseconds)
+ * byte flags      (1 for a tombstone, 2 for a value with a time to live, both for an expired one)
+ * int  ttlSeconds (values with a time to live and expired ones only)
+ * value
+ * </pre>
+ */
+public final class VersionedValue {
+
+    private static final long HEADER_SIZE = Long.BYTES + 1;
+    private static final long FLAGS_OFFSET = Long.BYTES;
+    private static final byte TOMBSTONE = 1;
+    private static final byte EXPIRING = 2;
+
+    private VersionedValue() {
+        // Only static methods
+    }
+
+    /**
+     * Encodes the value, {@code null} stands for a tombstone.
+     */
+    public static byte[] encode(long timestamp, @Nullable byte[] value) {
+        return encode(timestamp, value, 0);
+    }
+
+    /**
+     * Encodes the value, {@code null} stands for a tombstone.
+     *
+     * @param ttlSeconds time to live of the value, 0 if it never expires
+     */
+    public static byte[] encode(long timestamp, @Nullable byte[] value, int ttlSeconds) {
+        boolean expiring = value != null && ttlSeconds > 0;
+        int headerSize = (int) HEADER_SIZE + (expiring ? Integer.BYTES : 0);
+        byte[] result = new byte[headerSize + (value == null ? 0 : value.length)];
+        MemorySegment record = MemorySegment.ofArray(result);
+        MemoryAccess.setLongAtOffset(record, 0, ByteOrder.BIG_ENDIAN, timestamp);
+        MemoryAccess.setByteAtOffset(record, FLAGS_OFFSET, value == null ? TOMBSTONE : (expiring ? EXPIRING : 0));
+        if (expiring) {
+            MemoryAccess.setIntAtOffset(record, HEADER_SIZE, ByteOrder.BIG_ENDIAN, ttlSeconds);
+        }
+        if (value != null) {
+            System.arraycopy(value, 0, result, headerSize, value.length);
+        }
+        return result;
+    }
+
+    /**
+     * Encodes the value, {@code null} stands for a tombstone.
+     */
+    public static byte[] encode(long timestamp, @Nullable MemorySegment value) {
+        return encode(timestamp, value, 0);
+    }
+
+    /**
+     * Encodes the value, {@code null} stands for a tombstone.
+     *
+     * @param ttlSeconds time to live of the value, 0 if it never expires
+     */
+    public static byte[] encode(long timestamp, @Nullable MemorySegment value, int ttlSeconds) {
+        boolean expiring = value != null && ttlSeconds > 0;
+        int headerSize = (int) HEADER_SIZE + (expiring ? Integer.BYTES : 0);
+        byte[] result = new byte[headerSize + (value == null ? 0 : (int) value.byteSize())];
+        MemorySegment record = MemorySegment.ofArray(result);
+        MemoryAccess.setLongAtOffset(record, 0, ByteOrder.BIG_ENDIAN, timestamp);
+        MemoryAccess.setByteAtOffset(record, FLAGS_OFFSET, value == null ? TOMBSTONE : (expiring ? EXPIRING : 0));
+        if (expiring) {
+            MemoryAccess.setIntAtOffset(record, HEADER_SIZE, ByteOrder.BIG_ENDIAN, ttlSeconds);
+        }
+        if (value != null) {
+            record.asSlice(headerSize).copyFrom(value);
+        }
+        return result;
+    }
+
+    /**
+     * Expiry of stored records. An expired value is kept as a tombstone of its timestamp and time to live,
+     * which still orders against stale copies of older writes, until {@code gracePeriod} after both the
+     * write and the expiry. Tombstones of deletions are kept for {@code gracePeriod} after the write.
+     * Replicas are expected to have caught up with the write by then.
+     */
+    public static Expiry expiry(Duration gracePeriod) {
+        long graceMillis = gracePeriod.toMillis();
+        return new Expiry() {
+            @Override
+            public long expiresAt(MemorySegment record) {
+                return isTombstone(record) ? Long.MAX_VALUE : VersionedValue.expiresAt(record);
+            }
+
+            @Override
+            public long droppableAt(MemorySegment record) {
+                if ((flags(record) & EXPIRING) == 0) {
+                    return isTombstone(record) ? timestamp(record) / 1000 + graceMillis : Long.MAX_VALUE;
+                }
+                return Math.max(VersionedValue.expiresAt(record), timestamp(record) / 1000 + graceMillis);
+            }
+
+            @Override
+            public MemorySegment expired(MemorySegment record) {
+                MemorySegment result = MemorySegment.ofArray(record.asSlice(0, headerSize(record)).toByteArray());
+                MemoryAccess.setByteAtOffset(result, FLAGS_OFFSET, (byte) (flags(record) | TOMBSTONE));
+                return result;
+            }
+        };
+    }
+
+    public static boolean isValid(MemorySegment record) {
+        return record.byteSize() >= HEADER_SIZE && record.byteSize() >= headerSize(record);
+    }
+
+    public static long timestamp(MemorySegment record) {
+        return MemoryAccess.getLongAtOffset(record, 0, ByteOrder.BIG_ENDIAN);
+    }
+
+    public static boolean isTombstone(MemorySegment record) {
+        return (flags(record) & TOMBSTONE) != 0;
+    }
+
+    /**
+     * Wall clock time in milliseconds the value expires at, {@link Long#MAX_VALUE} if it never does.
+     */
+    public static long expiresAt(MemorySegment record) {
+        if ((flags(record) & EXPIRING) == 0) {
+            return Long.MAX_VALUE;
+        }
+        int ttlSeconds = MemoryAccess.getIntAtOffset(record, HEADER_SIZE, ByteOrder.BIG_ENDIAN);
+        return timestamp(record) / 1000 + ttlSeconds * 1000L;
+    }
+
+    /**
+     * Whether the record holds a value that has not expired by {@code now} milliseconds.
+     */
+    public static boolean isLive(MemorySegment record, long now) {
+        return !isTombstone(record) && expiresAt(record) > now;
+    }
+
+    public static MemorySegment value(MemorySegment record) {
+        return record.asSlice(headerSize(record));
+    }
+
+    private static byte flags(MemorySegment record) {
+        return MemoryAccess.getByteAtOffset(record, FLAGS_OFFSET);
+    }
+
+    private static long headerSize(MemorySegment record) {
+        return (flags(record) & EXPIRING) == 0 ? HEADER_SIZE : HEADER_SIZE + Integer.BYTES;
+    }
+
+    /**
+     * Orders records by write time, a tombstone wins a tie so concurrent deletions are not lost.
+     */
+    public static int compare(MemorySegment a, MemorySegment b) {
+        int result = Long.compare(timestamp(a), timestamp(b));
+        if (result != 0) {
+            return result;
+        }
+        return Boolean.compare(isTombstone(a), isTombstone(b));
+    }
+}
@@ -0,0 +1,279 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SSTable blocks of point lookups shared by all tables of the storage, kept off heap,
+ * so the capacity is independent of the heap size.
+ *
+ * <p>The cache is split into independently locked stripes, each evicting with W-TinyLFU:
+ * a new block enters a small LRU window, and a block leaving the window is admitted into the main
+ * segmented LRU only if it has been requested more often than the block it would evict.
+ * Request frequencies are estimated by a {@link FrequencySketch}, so blocks touched once by a burst of
+ * cold lookups can't flush out the hot working set. Range scans only {@linkplain #peek peek} and
+ * don't count as requests at all.
+ *
+ * <p>An evicted block is released by the cleaner once readers drop entries sliced from it.
+ */
+final class BlockCache {
+
+    private static final int STRIPES = 16;
+    // Block size the sketch of a stripe is sized for
+    private static final long TYPICAL_BLOCK_SIZE = 4096;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache of about {@code capacity} bytes, non-positive disables caching.
+     */
+    BlockCache(long capacity) {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(Math.max(capacity, 0) / STRIPES, evictions);
+        }
+    }
+
+    /**
+     * Cached block of a point lookup, the request counts for the admission of the block.
+     */
+    @Nullable
+    MemorySegment get(long table, long block) {
+        long key = key(table, block);
+        MemorySegment result = stripe(key).get(key);
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Cached block, without affecting what is kept.
+     */
+    @Nullable
+    MemorySegment peek(long table, long block) {
+        long key = key(table, block);
+        return stripe(key).peek(key);
+    }
+
+    /**
+     * Offers the block read after a {@link #get} miss.
+     */
+    void put(long table, long block, MemorySegment data) {
+        long key = key(table, block);
+        stripe(key).put(key, data);
+    }
+
+    /**
+     * Whether the block has been requested recently apart from the current {@link #get} miss.
+     * Copying a mapped block on its first request rarely pays off, the window would mostly evict it unused.
+     */
+    boolean isRequestedAgain(long table, long block) {
+        long key = key(table, block);
+        return stripe(key).frequency(key) > 1;
+    }
+
+    long byteSize() {
+        long result = 0;
+        for (Stripe stripe : stripes) {
+            result += stripe.byteSize();
+        }
+        return result;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    private static long key(long table, long block) {
+        return table << Integer.SIZE | block;
+    }
+
+    private Stripe stripe(long key) {
+        // Fibonacci hashing, consecutive blocks of a table land in different stripes
+        return stripes[(int) ((key * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - Integer.numberOfTrailingZeros(STRIPES)))];
+    }
+
+    private static final class Stripe {
+
+        private final long capacity;
+        private final long windowCapacity;
+        private final long protectedCapacity;
+        private final LongAdder evictions;
+        // Everything below is guarded by this
+        private final Map<Long, Node> nodes = new HashMap<>();
+        private final FrequencySketch sketch;
+        private final Queue window = new Queue();
+        private final Queue probation = new Queue();
+        private final Queue protectedQueue = new Queue();
+
+        Stripe(long capacity, LongAdder evictions) {
+            this.capacity = capacity;
+            // 1% window and 80% of the rest protected, the proportions W-TinyLFU is usually tuned to
+            this.windowCapacity = capacity / 100;
+            this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+            this.evictions = evictions;
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / TYPICAL_BLOCK_SIZE));
+        }
+
+        @Nullable
+        synchronized MemorySegment get(long key) {
+            if (capacity == 0) {
+                return null;
+            }
+            sketch.increment(key);
+            Node node = nodes.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (node.queue == window) {
+                window.moveToTail(node);
+            } else if (node.queue == probation) {
+                probation.remove(node);
+                protectedQueue.add(node);
+                while (protectedQueue.size > protectedCapacity) {
+                    Node demoted = protectedQueue.head;
+                    protectedQueue.remove(demoted);
+                    probation.add(demoted);
+                }
+            } else {
+                protectedQueue.moveToTail(node);
+            }
+            return node.data;
+        }
+
+        synchronized int frequency(long key) {
+            return capacity == 0 ? 0 : sketch.frequency(key);
+        }
+
+        @Nullable
+        synchronized MemorySegment peek(long key) {
+            Node node = nodes.get(key);
+            return node == null ? null : node.data;
+        }
+
+        synchronized void put(long key, MemorySegment data) {
+            // A block the main area can't hold is never cached, a block already cached holds the same data
+            if (data.byteSize() > capacity - windowCapacity || nodes.containsKey(key)) {
+                return;
+            }
+            Node node = new Node(key, data);
+            nodes.put(key, node);
+            // A block larger than the window passes it at once and goes straight to the admission
+            window.add(node);
+            while (window.size > windowCapacity) {
+                Node candidate = window.head;
+                window.remove(candidate);
+                admit(candidate);
+            }
+        }
+
+        synchronized long byteSize() {
+            return window.size + probation.size + protectedQueue.size;
+        }
+
+        /**
+         * Moves the block leaving the window into the main area if it is requested more often than its victims.
+         */
+        private void admit(Node candidate) {
+            long mainCapacity = capacity - windowCapacity;
+            int frequency = sketch.frequency(candidate.key);
+            while (probation.size + protectedQueue.size + candidate.size() > mainCapacity) {
+                Node victim = probation.head == null ? protectedQueue.head : probation.head;
+                if (victim == null || sketch.frequency(victim.key) >= frequency) {
+                    evict(candidate);
+                    return;
+                }
+                victim.queue.remove(victim);
+                evict(victim);
+            }
+            probation.add(candidate);
+        }
+
+        private void evict(Node node) {
+            nodes.remove(node.key);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Intrusive LRU list of blocks, the least recently used at the head.
+     */
+    private static final class Queue {
+
+        Node head;
+        Node tail;
+        long size;
+
+        void add(Node node) {
+            node.queue = this;
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size += node.size();
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            size -= node.size();
+        }
+
+        void moveToTail(Node node) {
+            if (node != tail) {
+                remove(node);
+                add(node);
+            }
+        }
+    }
+
+    private static final class Node {
+
+        final long key;
+        final MemorySegment data;
+        Queue queue;
+        Node prev;
+        Node next;
+
+        Node(long key, MemorySegment data) {
+            this.key = key;
+            this.data = data;
+        }
+
+        long size() {
+            return data.byteSize();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * Compressor of SSTable blocks. Buffers are direct: the source and the destination are either
+ * mapped tables or off-heap blocks, so nothing is staged on heap.
+ */
+interface BlockCodec {
+
+    /**
+     * Largest compressed size of {@code size} bytes.
+     */
+    long maxCompressedSize(long size);
+
+    /**
+     * Compresses remaining bytes of the source into the destination.
+     *
+     * @return compressed size
+     */
+    int compress(ByteBuffer src, ByteBuffer dst);
+
+    /**
+     * Decompresses the source filling the destination, which has room for exactly the original bytes.
+     *
+     * @throws IllegalStateException if the source is corrupted
+     */
+    void decompress(ByteBuffer src, ByteBuffer dst);
+
+    /**
+     * Dictionary to store along with the table, empty if the codec has none.
+     */
+    MemorySegment dictionary();
+
+    /**
+     * Codec writing a new table.
+     *
+     * @param entries supplies the entries of the table, read only by codecs training a dictionary on them
+     */
+    static BlockCodec forWrite(Compression compression, Supplier<? extends Iterator<Entry>> entries) {
+        return switch (compression) {
+            case LZ4 -> new Lz4BlockCodec();
+            case ZSTD -> ZstdBlockCodec.train(entries.get());
+            case NONE -> throw new IllegalArgumentException("Uncompressed tables have no codec");
+        };
+    }
+
+    /**
+     * Codec reading a table written with the dictionary.
+     */
+    @Nullable
+    static BlockCodec forRead(Compression compression, MemorySegment dictionary) {
+        return switch (compression) {
+            case LZ4 -> new Lz4BlockCodec();
+            case ZSTD -> new ZstdBlockCodec(dictionary.toByteArray());
+            case NONE -> null;
+        };
+    }
+}
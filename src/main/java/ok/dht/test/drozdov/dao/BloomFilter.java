@@ -0,0 +1,85 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Bloom filter over a segment of 64-bit words, probed with double hashing of a single 64-bit key hash.
+ */
+final class BloomFilter {
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+    private final MemorySegment words;
+    private final long bitCount;
+    private final int hashCount;
+
+    BloomFilter(MemorySegment words, int hashCount) {
+        this.words = words;
+        this.bitCount = words.byteSize() * Byte.SIZE;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Words needed for {@code keys} keys at {@code bitsPerKey} bits each.
+     */
+    static long wordCount(long keys, int bitsPerKey) {
+        return Math.max(1, (keys * bitsPerKey + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    /**
+     * Optimal number of probes for the given density.
+     */
+    static int hashCount(int bitsPerKey) {
+        return Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+    }
+
+    static long hash(MemorySegment key) {
+        long size = key.byteSize();
+        long h = SEED ^ (size * MULTIPLIER);
+        long offset = 0;
+        for (; offset + Long.BYTES <= size; offset += Long.BYTES) {
+            h = Long.rotateLeft(h ^ mix(MemoryAccess.getLongAtOffset(key, offset)), 27) * MULTIPLIER;
+        }
+        for (; offset < size; offset++) {
+            h = Long.rotateLeft(h ^ (MemoryAccess.getByteAtOffset(key, offset) & 0xFFL), 11) * SEED;
+        }
+        return mix(h);
+    }
+
+    void add(long hash) {
+        long step = (hash >>> 32) | 1;
+        long combined = hash;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (combined & Long.MAX_VALUE) % bitCount;
+            long offset = (bit >>> 6) * Long.BYTES;
+            long word = MemoryAccess.getLongAtOffset(words, offset);
+            MemoryAccess.setLongAtOffset(words, offset, word | (1L << bit));
+            combined += step;
+        }
+    }
+
+    boolean mightContain(long hash) {
+        long step = (hash >>> 32) | 1;
+        long combined = hash;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (combined & Long.MAX_VALUE) % bitCount;
+            if ((MemoryAccess.getLongAtOffset(words, (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += step;
+        }
+        return true;
+    }
+
+    private static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,23 @@
+package ok.dht.test.drozdov.dao;
+
+/**
+ * Point-in-time view of the SSTable set and the background compaction.
+ *
+ * @param tables         live SSTable count
+ * @param tablesBytes    total size of live SSTables
+ * @param running        whether a compaction is in progress
+ * @param inputBytes     size of the tables being compacted
+ * @param writtenBytes   bytes written by the running compaction so far
+ * @param completed      compactions finished since start
+ * @param compactedBytes bytes written by finished compactions
+ */
+public record CompactionStatus(
+        int tables,
+        long tablesBytes,
+        boolean running,
+        long inputBytes,
+        long writtenBytes,
+        long completed,
+        long compactedBytes
+) {
+}
@@ -0,0 +1,17 @@
+package ok.dht.test.drozdov.dao;
+
+import java.util.List;
+
+/**
+ * Chooses SSTables to merge.
+ */
+interface CompactionStrategy {
+
+    /**
+     * Picks tables to compact.
+     *
+     * @param tables live tables ordered from the freshest
+     * @return adjacent run of {@code tables} to merge or an empty list if nothing is worth compacting
+     */
+    List<SSTable> select(List<SSTable> tables);
+}
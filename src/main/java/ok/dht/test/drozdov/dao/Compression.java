@@ -0,0 +1,42 @@
+package ok.dht.test.drozdov.dao;
+
+/**
+ * Codec of SSTable blocks, chosen per node for the tables it writes.
+ * Tables written with another codec stay readable, the codec is recorded in every table.
+ */
+public enum Compression {
+    /**
+     * Blocks are stored as they are, values are served right from the mapped file.
+     */
+    NONE(0),
+    /**
+     * LZ4, decompresses at memory speed for a moderate ratio.
+     */
+    LZ4(1),
+    /**
+     * Zstandard with a dictionary trained on the values of every table, best ratio for small similar values.
+     */
+    ZSTD(2);
+
+    private final int id;
+
+    Compression(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Identifier stored in SSTable headers.
+     */
+    int id() {
+        return id;
+    }
+
+    static Compression of(int id) {
+        for (Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression " + id);
+    }
+}
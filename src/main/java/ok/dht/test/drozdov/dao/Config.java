@@ -0,0 +1,68 @@
+package ok.dht.test.drozdov.dao;
+
+import java.nio.file.Path;
+
+/**
+ * Storage settings.
+ *
+ * @param basePath                 directory holding the SSTables
+ * @param flushThresholdBytes      off-heap arena size of a single memtable
+ * @param compactionMinTables      smallest run of similarly sized tables worth merging
+ * @param compactionMaxTables      largest run merged at once
+ * @param compactionBytesPerSecond write rate limit of the compaction, non-positive means unlimited
+ * @param bloomBitsPerKey          Bloom filter density, 10 bits give about 1% false positives
+ * @param syncPolicy               when write-ahead log records are forced to disk
+ * @param syncIntervalMillis       log force period of {@link SyncPolicy#PERIODIC}
+ * @param compression              codec of blocks of written SSTables
+ * @param blockCacheBytes          off-heap cache of hot blocks, independent of the heap size,
+ *                                 non-positive disables it
+ * @param expiry                   when stored values expire, so compactions can reclaim them
+ */
+public record Config(
+        Path basePath,
+        long flushThresholdBytes,
+        int compactionMinTables,
+        int compactionMaxTables,
+        long compactionBytesPerSecond,
+        int bloomBitsPerKey,
+        SyncPolicy syncPolicy,
+        long syncIntervalMillis,
+        Compression compression,
+        long blockCacheBytes,
+        Expiry expiry
+) {
+
+    public static final long DEFAULT_FLUSH_THRESHOLD_BYTES = 8L << 20;
+    public static final int DEFAULT_COMPACTION_MIN_TABLES = 4;
+    public static final int DEFAULT_COMPACTION_MAX_TABLES = 32;
+    public static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 32L << 20;
+    public static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    public static final SyncPolicy DEFAULT_SYNC_POLICY = SyncPolicy.ALWAYS;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+    public static final Compression DEFAULT_COMPRESSION = Compression.NONE;
+    public static final long DEFAULT_BLOCK_CACHE_BYTES = 16L << 20;
+
+    public Config(Path basePath) {
+        this(basePath, DEFAULT_COMPRESSION);
+    }
+
+    public Config(Path basePath, Compression compression) {
+        this(basePath, compression, Expiry.NEVER);
+    }
+
+    public Config(Path basePath, Compression compression, Expiry expiry) {
+        this(
+                basePath,
+                DEFAULT_FLUSH_THRESHOLD_BYTES,
+                DEFAULT_COMPACTION_MIN_TABLES,
+                DEFAULT_COMPACTION_MAX_TABLES,
+                DEFAULT_COMPACTION_BYTES_PER_SECOND,
+                DEFAULT_BLOOM_BITS_PER_KEY,
+                DEFAULT_SYNC_POLICY,
+                DEFAULT_SYNC_INTERVAL_MILLIS,
+                compression,
+                DEFAULT_BLOCK_CACHE_BYTES,
+                expiry
+        );
+    }
+}
@@ -0,0 +1,19 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import javax.annotation.Nullable;
+
+/**
+ * Key with either a value or a tombstone ({@code null} value).
+ */
+public record Entry(MemorySegment key, @Nullable MemorySegment value) {
+
+    public static Entry tombstone(MemorySegment key) {
+        return new Entry(key, null);
+    }
+
+    public boolean isTombstone() {
+        return value == null;
+    }
+}
@@ -0,0 +1,38 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Tells when a stored value stops being visible, for values that carry their own time to live.
+ * The storage doesn't hide expired values from reads, it only reclaims them: compactions replace them
+ * with their {@linkplain #expired expired form}, drop them once they are no longer needed, and a table
+ * holding nothing but such values is dropped without being rewritten.
+ */
+@FunctionalInterface
+public interface Expiry {
+
+    /**
+     * Values live forever.
+     */
+    Expiry NEVER = value -> Long.MAX_VALUE;
+
+    /**
+     * Wall clock time in milliseconds the value expires at, {@link Long#MAX_VALUE} if it never does.
+     */
+    long expiresAt(MemorySegment value);
+
+    /**
+     * Wall clock time in milliseconds the value is no longer needed at, from then on compactions drop it
+     * as they drop tombstones. By default an expired value is no longer needed at once.
+     */
+    default long droppableAt(MemorySegment value) {
+        return expiresAt(value);
+    }
+
+    /**
+     * What an expired value is kept as until it can be dropped, the value itself by default.
+     */
+    default MemorySegment expired(MemorySegment value) {
+        return value;
+    }
+}
@@ -0,0 +1,73 @@
+package ok.dht.test.drozdov.dao;
+
+/**
+ * Count-min sketch of 4-bit request counters estimating how often a key was requested recently.
+ * All counters are halved once the sample of a few requests per counter is collected,
+ * so blocks that used to be hot fade away. Not thread-safe.
+ */
+final class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int SAMPLE_PER_COUNTER = 10;
+    private static final long[] SEEDS = {
+            0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L
+    };
+
+    // Counters of a row are adjacent nibbles
+    private final long[] table;
+    private final int rowMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch sized for about {@code expectedKeys} distinct hot keys.
+     */
+    FrequencySketch(int expectedKeys) {
+        int width = Integer.highestOneBit(Math.max(64, expectedKeys - 1) << 1);
+        this.table = new long[ROWS * width / 16];
+        this.rowMask = width - 1;
+        this.sampleSize = SAMPLE_PER_COUNTER * width;
+    }
+
+    void increment(long key) {
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            int index = index(key, row);
+            long shift = (index & 15) * 4L;
+            if (((table[index >>> 4] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+                table[index >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            halve();
+        }
+    }
+
+    int frequency(long key) {
+        int result = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            int index = index(key, row);
+            result = Math.min(result, (int) ((table[index >>> 4] >>> ((index & 15) * 4L)) & MAX_COUNT));
+        }
+        return result;
+    }
+
+    /**
+     * Counter index in the table: the row picks a quarter, the seeded hash a counter in it.
+     */
+    private int index(long key, int row) {
+        long hash = (key + SEEDS[row]) * SEEDS[row];
+        hash ^= hash >>> 32;
+        return row * (rowMask + 1) + ((int) hash & rowMask);
+    }
+
+    private void halve() {
+        for (int i = 0; i < table.length; i++) {
+            // Shifts every nibble right, dropping bits that moved into the neighbour
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        additions /= 2;
+    }
+}
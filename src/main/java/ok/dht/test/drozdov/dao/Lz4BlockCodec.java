@@ -0,0 +1,46 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LZ4 block codec, stateless and shared by all threads.
+ */
+final class Lz4BlockCodec implements BlockCodec {
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4SafeDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().safeDecompressor();
+
+    @Override
+    public long maxCompressedSize(long size) {
+        return COMPRESSOR.maxCompressedLength(Math.toIntExact(size));
+    }
+
+    @Override
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        return COMPRESSOR.compress(src, src.position(), src.remaining(), dst, dst.position(), dst.remaining());
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst) {
+        int size;
+        try {
+            size = DECOMPRESSOR.decompress(src, src.position(), src.remaining(), dst, dst.position(), dst.remaining());
+        } catch (LZ4Exception e) {
+            throw new IllegalStateException("Corrupted block", e);
+        }
+        if (size != dst.remaining()) {
+            throw new IllegalStateException("Block decompressed to " + size + " bytes instead of " + dst.remaining());
+        }
+    }
+
+    @Override
+    public MemorySegment dictionary() {
+        return MemorySegment.ofArray(new byte[0]);
+    }
+}
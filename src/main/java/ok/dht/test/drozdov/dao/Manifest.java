@@ -0,0 +1,160 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Persisted list of the live tables, so the storage starts without mapping any of them.
+ *
+ * <p>Layout (big-endian):
+ * <pre>
+ * int  magic
+ * int  version
+ * int  tableCount
+ * long newest, long oldest, long byteSize, long entryCount,
+ * int  minKeySize (-1 for an empty table), minKey, int maxKeySize, maxKey,
+ * long expiresAt  (per table, freshest first)
+ * int  crc32c of the above
+ * </pre>
+ * The manifest is replaced through a temporary file whenever the set of tables changes, so a table file
+ * it doesn't list is the output of a flush or a compaction that was never published.
+ * A version 1 manifest has no {@code expiresAt}, its tables are taken as never expiring.
+ */
+final class Manifest {
+
+    static final String FILE_NAME = "MANIFEST";
+
+    // "MANF"
+    private static final int MAGIC = 0x4D414E46;
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_EXPIRY = 1;
+    private static final int EMPTY_KEY_SIZE = -1;
+
+    private Manifest() {
+        // Only static methods
+    }
+
+    /**
+     * Tables listed by the manifest of {@code dir}, their files are not opened.
+     *
+     * @return {@code null} if there is no manifest
+     * @throws IOException if the manifest can't be read or is corrupted
+     */
+    @Nullable
+    static List<SSTable> read(Path dir, BlockCache cache) throws IOException {
+        Path path = dir.resolve(FILE_NAME);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length < 4 * Integer.BYTES) {
+            throw new IOException("Manifest " + path + " is truncated");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - Integer.BYTES);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - Integer.BYTES);
+        if (ByteBuffer.wrap(bytes).getInt(bytes.length - Integer.BYTES) != (int) crc.getValue()
+                || buffer.getInt() != MAGIC) {
+            throw new IOException("Manifest " + path + " is corrupted");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION && version != VERSION_WITHOUT_EXPIRY) {
+            throw new IOException("Unsupported manifest version " + version);
+        }
+        int count = buffer.getInt();
+        List<SSTable> tables = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long newest = buffer.getLong();
+            long oldest = buffer.getLong();
+            long byteSize = buffer.getLong();
+            long entryCount = buffer.getLong();
+            MemorySegment minKey = readKey(buffer);
+            MemorySegment maxKey = readKey(buffer);
+            long expiresAt = version == VERSION_WITHOUT_EXPIRY ? Long.MAX_VALUE : buffer.getLong();
+            tables.add(SSTable.listed(
+                    SSTable.path(dir, newest, oldest),
+                    byteSize,
+                    entryCount,
+                    minKey,
+                    maxKey,
+                    expiresAt,
+                    cache
+            ));
+        }
+        return tables;
+    }
+
+    /**
+     * Atomically replaces the manifest of {@code dir}.
+     */
+    static void write(Path dir, List<SSTable> tables) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(tables.size());
+        for (SSTable table : tables) {
+            out.writeLong(table.newest());
+            out.writeLong(table.oldest());
+            out.writeLong(table.byteSize());
+            out.writeLong(table.entryCount());
+            writeKey(out, table.minKey());
+            writeKey(out, table.maxKey());
+            out.writeLong(table.expiresAt());
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        Path tmp = dir.resolve(FILE_NAME + ".tmp");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        try (FileChannel channel = FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(FILE_NAME), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Nullable
+    private static MemorySegment readKey(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        if (size == EMPTY_KEY_SIZE) {
+            return null;
+        }
+        byte[] key = new byte[size];
+        buffer.get(key);
+        return MemorySegment.ofArray(key);
+    }
+
+    private static void writeKey(DataOutputStream out, @Nullable MemorySegment key) throws IOException {
+        if (key == null) {
+            out.writeInt(EMPTY_KEY_SIZE);
+            return;
+        }
+        out.writeInt((int) key.byteSize());
+        out.write(key.toByteArray());
+    }
+}
@@ -0,0 +1,64 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.ByteOrder;
+import java.util.Comparator;
+
+/**
+ * Unsigned lexicographic order of segment contents.
+ */
+public final class MemorySegmentComparator implements Comparator<MemorySegment> {
+
+    public static final MemorySegmentComparator INSTANCE = new MemorySegmentComparator();
+
+    private MemorySegmentComparator() {
+        // Use INSTANCE
+    }
+
+    @Override
+    public int compare(MemorySegment a, MemorySegment b) {
+        long mismatch = a.mismatch(b);
+        if (mismatch == -1) {
+            return 0;
+        }
+        if (mismatch == a.byteSize()) {
+            return -1;
+        }
+        if (mismatch == b.byteSize()) {
+            return 1;
+        }
+        return Byte.compareUnsigned(
+                MemoryAccess.getByteAtOffset(a, mismatch),
+                MemoryAccess.getByteAtOffset(b, mismatch)
+        );
+    }
+
+    /**
+     * Compares {@code aSize} bytes of {@code a} at {@code aOffset} with {@code bSize} bytes of {@code b}
+     * at {@code bOffset} a word at a time, without slicing either of them.
+     */
+    public static int compare(MemorySegment a, long aOffset, long aSize, MemorySegment b, long bOffset, long bSize) {
+        long common = Math.min(aSize, bSize);
+        long i = 0;
+        // Big-endian words compare as unsigned longs in the byte order
+        for (; i + Long.BYTES <= common; i += Long.BYTES) {
+            long left = MemoryAccess.getLongAtOffset(a, aOffset + i, ByteOrder.BIG_ENDIAN);
+            long right = MemoryAccess.getLongAtOffset(b, bOffset + i, ByteOrder.BIG_ENDIAN);
+            if (left != right) {
+                return Long.compareUnsigned(left, right);
+            }
+        }
+        for (; i < common; i++) {
+            int result = Byte.compareUnsigned(
+                    MemoryAccess.getByteAtOffset(a, aOffset + i),
+                    MemoryAccess.getByteAtOffset(b, bOffset + i)
+            );
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Long.compare(aSize, bSize);
+    }
+}
@@ -0,0 +1,859 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LSM storage: an off-heap memtable flushed in the background to memory-mapped SSTables,
+ * which are merged by a size-tiered compaction running on its own rate-limited thread.
+ * Upserts are made durable by the write-ahead log of their memtable, logs left by a crash
+ * are replayed into SSTables on start.
+ *
+ * <p>The live tables are recorded in the {@link Manifest}, so opening the storage maps none of them:
+ * a table is mapped by the first lookup or scan that needs it. A flushed log is deleted and compacted
+ * tables are dropped only once the manifest without them is on disk.
+ *
+ * <p>Values {@linkplain Config#expiry() expire}: compactions purge expired ones, and a table whose values
+ * are all no longer needed is dropped as a whole, as the manifest records when the last of them is.
+ *
+ * <p>The arena of a flushed memtable is freed once its table is published and no reader holds it:
+ * a lookup copies a value found in a memtable out of it, and a scan holds the memtables until
+ * the scan is unreachable, as wrappers read ahead and may still hand out an entry after the scan ends.
+ */
+public final class MemorySegmentDao implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemorySegmentDao.class);
+
+    private final Config config;
+    private final ExecutorService flushExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "dao-flush"));
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "dao-compaction");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    @Nullable
+    private final ScheduledExecutorService syncExecutor;
+    private final CompactionStrategy compactionStrategy;
+    private final RateLimiter compactionLimiter;
+    private final BlockCache blockCache;
+    // Upserts share the lock, state switches take it exclusively
+    private final ReadWriteLock upsertLock = new ReentrantReadWriteLock();
+    private final AtomicLong generation;
+    private final AtomicLong compactionWritten = new AtomicLong();
+    // Serializes manifest writes, each of them saves the state current at the time
+    private final Object manifestLock = new Object();
+    private final LongAdder compactionsCompleted = new LongAdder();
+    private final LongAdder compactedBytes = new LongAdder();
+    private final LatencyHistogram flushDurations = new LatencyHistogram();
+    private final LatencyHistogram compactionDurations = new LatencyHistogram();
+    // Lookup counters of tables replaced by compactions, so the totals never go down
+    private final LongAdder retiredBloomChecks = new LongAdder();
+    private final LongAdder retiredBloomNegatives = new LongAdder();
+    private final LongAdder retiredFalsePositives = new LongAdder();
+    private volatile long compactionInput;
+    private volatile boolean compactionRunning;
+    private volatile State state;
+    private volatile boolean closed;
+
+    public MemorySegmentDao(Config config) throws IOException {
+        this.config = config;
+        this.compactionStrategy = new SizeTieredCompactionStrategy(
+                config.compactionMinTables(),
+                config.compactionMaxTables()
+        );
+        this.compactionLimiter = new RateLimiter(config.compactionBytesPerSecond());
+        this.blockCache = new BlockCache(config.blockCacheBytes());
+        Files.createDirectories(config.basePath());
+        SSTable.deleteTemporary(config.basePath());
+
+        List<SSTable> tables = listedTables();
+        boolean scanned = tables == null;
+        if (scanned) {
+            tables = scanTables();
+        } else {
+            deleteUnlisted(tables);
+        }
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(config.basePath(), "*" + WriteAheadLog.SUFFIX)) {
+            stream.forEach(logs::add);
+        }
+        int known = tables.size();
+        long lastGeneration = replayLogs(logs, tables);
+        tables.sort(Comparator.comparingLong(SSTable::newest).reversed());
+        if (scanned || tables.size() != known) {
+            Manifest.write(config.basePath(), tables);
+        }
+        for (Path log : logs) {
+            Files.delete(log);
+        }
+        if (!tables.isEmpty()) {
+            lastGeneration = Math.max(lastGeneration, tables.get(0).newest());
+        }
+        this.generation = new AtomicLong(lastGeneration + 1);
+        this.state = new State(newMemtable(), null, Collections.unmodifiableList(tables));
+
+        if (config.syncPolicy() == SyncPolicy.PERIODIC) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "dao-wal-sync"));
+            syncExecutor.scheduleWithFixedDelay(
+                    this::syncLogs,
+                    config.syncIntervalMillis(),
+                    config.syncIntervalMillis(),
+                    TimeUnit.MILLISECONDS
+            );
+        } else {
+            syncExecutor = null;
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Looks the key up from the freshest source to the oldest one.
+     *
+     * @return the latest entry (possibly a tombstone) or {@code null} if the key was never written
+     */
+    @Nullable
+    public Entry get(MemorySegment key) {
+        State current = acquireState();
+        Entry entry;
+        try {
+            entry = current.memtable.get(key);
+            if (entry == null && current.flushing != null) {
+                entry = current.flushing.get(key);
+            }
+            if (entry != null) {
+                return new Entry(key, entry.isTombstone() ? null : MemorySegment.ofArray(entry.value().toByteArray()));
+            }
+        } finally {
+            current.release();
+        }
+        long hash = BloomFilter.hash(key);
+        for (SSTable table : current.tables) {
+            entry = table.get(key, hash);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Live entries in {@code [from, to)}, {@code null} bound means unbounded.
+     */
+    public Iterator<Entry> get(@Nullable MemorySegment from, @Nullable MemorySegment to) {
+        State current = acquireState();
+        Iterator<Entry> result;
+        try {
+            result = new MergeIterator(current.sources(from, to), true);
+        } catch (RuntimeException e) {
+            current.release();
+            throw e;
+        }
+        Memtable.CLEANER.register(result, current::release);
+        return result;
+    }
+
+    public void upsert(Entry entry) {
+        upsert(memtable -> memtable.upsert(entry.key(), entry.value()));
+    }
+
+    /**
+     * Applies the entries in order as one write: a single upsert lock acquisition, memtable and log,
+     * and with {@link SyncPolicy#ALWAYS} a single force of the log.
+     * Readers may observe a part of the batch, and a crash may keep only a prefix of its records.
+     */
+    public void upsertAll(List<Entry> batch) {
+        if (!batch.isEmpty()) {
+            upsert(memtable -> memtable.upsertAll(batch));
+        }
+    }
+
+    /**
+     * Schedules the flush of the current memtable.
+     */
+    public Future<?> flush() {
+        return flushExecutor.submit(() -> {
+            upsertLock.writeLock().lock();
+            try {
+                State current = state;
+                if (current.flushing == null && !current.memtable.isEmpty()) {
+                    state = current.prepareFlush(newMemtable());
+                }
+            } finally {
+                upsertLock.writeLock().unlock();
+            }
+            flushPending();
+            return null;
+        });
+    }
+
+    /**
+     * Schedules the merge of all tables into one, dropping shadowed entries, tombstones and expired values.
+     */
+    public Future<?> compact() {
+        return compactionExecutor.submit(() -> {
+            List<SSTable> tables = state.tables;
+            compact(tables, tables);
+        });
+    }
+
+    public CompactionStatus compactionStatus() {
+        List<SSTable> tables = state.tables;
+        long tablesBytes = 0;
+        for (SSTable table : tables) {
+            tablesBytes += table.byteSize();
+        }
+        boolean running = compactionRunning;
+        return new CompactionStatus(
+                tables.size(),
+                tablesBytes,
+                running,
+                running ? compactionInput : 0,
+                running ? compactionWritten.get() : 0,
+                compactionsCompleted.sum(),
+                compactedBytes.sum()
+        );
+    }
+
+    public StorageStats storageStats() {
+        State current = state;
+        long tablesBytes = 0;
+        long bloomChecks = retiredBloomChecks.sum();
+        long bloomNegatives = retiredBloomNegatives.sum();
+        long falsePositives = retiredFalsePositives.sum();
+        for (SSTable table : current.tables) {
+            TableStats stats = table.stats();
+            tablesBytes += stats.bytes();
+            bloomChecks += stats.bloomChecks();
+            bloomNegatives += stats.bloomNegatives();
+            falsePositives += stats.falsePositives();
+        }
+        return new StorageStats(
+                current.memtable.byteSize(),
+                current.flushing == null ? 0 : current.flushing.byteSize(),
+                current.tables.size(),
+                tablesBytes,
+                bloomChecks,
+                bloomNegatives,
+                falsePositives,
+                blockCache.byteSize(),
+                blockCache.hits(),
+                blockCache.misses(),
+                blockCache.evictions()
+        );
+    }
+
+    /**
+     * Durations of successful flushes in microseconds.
+     */
+    public LatencyHistogram flushDurations() {
+        return flushDurations;
+    }
+
+    /**
+     * Durations of successful compactions in microseconds, including the rate limiter waits.
+     */
+    public LatencyHistogram compactionDurations() {
+        return compactionDurations;
+    }
+
+    /**
+     * Live tables from the freshest.
+     */
+    public List<TableStats> tableStats() {
+        List<SSTable> tables = state.tables;
+        List<TableStats> result = new ArrayList<>(tables.size());
+        for (SSTable table : tables) {
+            result.add(table.stats());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (syncExecutor != null) {
+                syncExecutor.shutdown();
+            }
+            // A running compaction notices the flag and gives up, its output is discarded on the next start
+            compactionExecutor.shutdown();
+            flush().get();
+            flushExecutor.shutdown();
+            if (!flushExecutor.awaitTermination(1, TimeUnit.MINUTES)
+                    || !compactionExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Background executors did not terminate");
+            }
+            // Nothing was written to the fresh memtable after the final flush
+            state.memtable.log().delete();
+            state.memtable.release();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Final flush failed", e.getCause());
+        }
+        if (state.flushing != null) {
+            throw new IOException("Memtable was not flushed");
+        }
+    }
+
+    private void upsert(MemtableWrite write) {
+        if (closed) {
+            throw new IllegalStateException("Storage is closed");
+        }
+        while (true) {
+            // Assigned under the lock, before anything can fail
+            Memtable memtable = null;
+            long position;
+            IOException failure = null;
+            upsertLock.readLock().lock();
+            try {
+                memtable = state.memtable;
+                position = write.apply(memtable);
+            } catch (IOException e) {
+                failure = e;
+                position = Memtable.FULL;
+            } finally {
+                upsertLock.readLock().unlock();
+            }
+            if (failure != null) {
+                WriteAheadLog log = memtable.log();
+                if (log != null && log.isFailed()) {
+                    // Later writes go to a fresh log, the records before the torn ones are flushed
+                    switchMemtable(memtable);
+                }
+                throw new UncheckedIOException("Can't append to the write-ahead log", failure);
+            }
+            if (position != Memtable.FULL) {
+                if (config.syncPolicy() == SyncPolicy.ALWAYS) {
+                    // Outside of the lock, so concurrent upserts pile up behind a single force
+                    sync(memtable, position);
+                }
+                return;
+            }
+            switchMemtable(memtable);
+        }
+    }
+
+    private void switchMemtable(Memtable full) {
+        upsertLock.writeLock().lock();
+        try {
+            State current = state;
+            if (current.memtable != full) {
+                // Somebody has already switched it
+                return;
+            }
+            if (current.flushing != null) {
+                throw new TooManyFlushesException();
+            }
+            state = current.prepareFlush(newMemtable());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't create a write-ahead log", e);
+        } finally {
+            upsertLock.writeLock().unlock();
+        }
+        flushExecutor.execute(this::flushPending);
+    }
+
+    private void flushPending() {
+        Memtable flushing = state.flushing;
+        if (flushing == null) {
+            return;
+        }
+        Path path = SSTable.path(config.basePath(), flushing.generation(), flushing.generation());
+        long start = System.nanoTime();
+        SSTable table;
+        try {
+            table = SSTable.write(
+                    path,
+                    () -> flushing.iterator(null, null),
+                    config.bloomBitsPerKey(),
+                    config.compression(),
+                    blockCache,
+                    config.expiry(),
+                    bytes -> { }
+            );
+        } catch (IOException e) {
+            // The memtable stays readable, the next flush() retries it
+            LOG.error("Flush to {} failed", path, e);
+            return;
+        }
+        upsertLock.writeLock().lock();
+        try {
+            state = state.afterFlush(table);
+        } finally {
+            upsertLock.writeLock().unlock();
+        }
+        // Readers that have not acquired it yet find the table in the new state
+        flushing.release();
+        flushDurations.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        // Otherwise the log stays, and is dropped on start once a later manifest lists the table
+        if (writeManifest()) {
+            try {
+                flushing.log().delete();
+            } catch (IOException e) {
+                // Replayed on the next start and dropped as covered by the table
+                LOG.warn("Can't delete the log of flushed generation {}", flushing.generation(), e);
+            }
+        }
+        scheduleCompaction();
+    }
+
+    private void scheduleCompaction() {
+        if (closed) {
+            return;
+        }
+        try {
+            compactionExecutor.execute(this::compactInBackground);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Storage is closing, compaction is not scheduled");
+        }
+    }
+
+    private void compactInBackground() {
+        dropExpired();
+        while (!closed) {
+            List<SSTable> tables = state.tables;
+            List<SSTable> run = compactionStrategy.select(tables);
+            if (run.isEmpty() || !compact(tables, run)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merges an adjacent run of tables into one.
+     *
+     * @return whether the run was replaced
+     */
+    private boolean compact(List<SSTable> tables, List<SSTable> run) {
+        if (run.isEmpty() || closed) {
+            return false;
+        }
+        // Tombstones may only be dropped when nothing older can be resurrected
+        boolean bottom = run.get(run.size() - 1) == tables.get(tables.size() - 1);
+        long inputBytes = 0;
+        for (SSTable table : run) {
+            inputBytes += table.byteSize();
+        }
+        Path path = SSTable.path(config.basePath(), run.get(0).newest(), run.get(run.size() - 1).oldest());
+        long now = System.currentTimeMillis();
+
+        long start = System.nanoTime();
+        compactionInput = inputBytes;
+        compactionWritten.set(0);
+        compactionRunning = true;
+        SSTable merged;
+        try {
+            merged = SSTable.write(
+                    path,
+                    () -> new PurgingIterator(mergeOf(run, bottom), config.expiry(), now, bottom),
+                    config.bloomBitsPerKey(),
+                    config.compression(),
+                    blockCache,
+                    config.expiry(),
+                    bytes -> {
+                        if (closed) {
+                            throw new CancellationException("Storage is closing");
+                        }
+                        compactionLimiter.acquire(bytes);
+                        compactionWritten.addAndGet(bytes);
+                    }
+            );
+        } catch (IOException e) {
+            LOG.error("Compaction into {} failed", path, e);
+            return false;
+        } catch (CancellationException e) {
+            LOG.info("Compaction into {} cancelled", path);
+            return false;
+        } finally {
+            compactionRunning = false;
+        }
+
+        upsertLock.writeLock().lock();
+        try {
+            state = state.afterCompaction(run, merged);
+        } finally {
+            upsertLock.writeLock().unlock();
+        }
+        compactionDurations.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        compactionsCompleted.increment();
+        compactedBytes.add(merged.byteSize());
+        // The replaced tables stay listed by the manifest on disk until it is rewritten
+        boolean published = writeManifest();
+        for (SSTable table : run) {
+            retire(table);
+            if (published && !table.path().equals(merged.path())) {
+                deleteTable(table);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the tables whose values have all expired, without rewriting anything. A table is kept while
+     * an older one that stays may hold keys in its range, whose older versions it shadows.
+     */
+    private void dropExpired() {
+        List<SSTable> tables = state.tables;
+        long now = System.currentTimeMillis();
+        List<SSTable> expired = new ArrayList<>();
+        List<SSTable> kept = new ArrayList<>(tables.size());
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            SSTable table = tables.get(i);
+            if (table.expiresAt() <= now && !overlapsAny(table, kept)) {
+                expired.add(table);
+            } else {
+                kept.add(table);
+            }
+        }
+        if (expired.isEmpty() || closed) {
+            return;
+        }
+        upsertLock.writeLock().lock();
+        try {
+            state = state.withoutTables(expired);
+        } finally {
+            upsertLock.writeLock().unlock();
+        }
+        LOG.info("Dropping {} tables of expired values", expired.size());
+        boolean published = writeManifest();
+        for (SSTable table : expired) {
+            retire(table);
+            if (published) {
+                deleteTable(table);
+            }
+        }
+    }
+
+    private static boolean overlapsAny(SSTable table, List<SSTable> others) {
+        if (table.minKey() == null) {
+            return false;
+        }
+        for (SSTable other : others) {
+            if (other.minKey() != null
+                    && MemorySegmentComparator.INSTANCE.compare(table.minKey(), other.maxKey()) <= 0
+                    && MemorySegmentComparator.INSTANCE.compare(other.minKey(), table.maxKey()) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps the lookup counters of a table leaving the storage.
+     */
+    private void retire(SSTable table) {
+        TableStats stats = table.stats();
+        retiredBloomChecks.add(stats.bloomChecks());
+        retiredBloomNegatives.add(stats.bloomNegatives());
+        retiredFalsePositives.add(stats.falsePositives());
+    }
+
+    private static Iterator<Entry> mergeOf(List<SSTable> run, boolean dropTombstones) {
+        List<Iterator<Entry>> sources = new ArrayList<>(run.size());
+        for (SSTable table : run) {
+            sources.add(table.iterator(null, null));
+        }
+        return new MergeIterator(sources, dropTombstones);
+    }
+
+    private Memtable newMemtable() throws IOException {
+        long memtableGeneration = generation.getAndIncrement();
+        WriteAheadLog log = WriteAheadLog.create(config.basePath(), memtableGeneration);
+        return new Memtable(config.flushThresholdBytes(), memtableGeneration, log);
+    }
+
+    private static void sync(Memtable memtable, long position) {
+        try {
+            memtable.log().sync(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't force the write-ahead log", e);
+        }
+    }
+
+    private void syncLogs() {
+        State current = state;
+        try {
+            if (current.flushing != null) {
+                current.flushing.log().sync();
+            }
+            current.memtable.log().sync();
+        } catch (IOException e) {
+            LOG.error("Periodic log sync failed", e);
+        }
+    }
+
+    /**
+     * Saves the current set of tables.
+     *
+     * @return whether the manifest was written
+     */
+    private boolean writeManifest() {
+        synchronized (manifestLock) {
+            try {
+                Manifest.write(config.basePath(), state.tables);
+                return true;
+            } catch (IOException e) {
+                LOG.error("Can't write the manifest", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Tables of the manifest, {@code null} if the directory has to be scanned instead.
+     */
+    @Nullable
+    private List<SSTable> listedTables() {
+        try {
+            List<SSTable> tables = Manifest.read(config.basePath(), blockCache);
+            return tables == null ? null : new ArrayList<>(tables);
+        } catch (IOException e) {
+            // Tables are published atomically, the directory is consistent without the manifest
+            LOG.warn("Can't read the manifest, scanning {}", config.basePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens every table of the directory, for storage written before the manifest or with a broken one.
+     */
+    private List<SSTable> scanTables() throws IOException {
+        List<SSTable> tables = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(config.basePath(), "*" + SSTable.SUFFIX)) {
+            for (Path file : stream) {
+                tables.add(SSTable.open(file, blockCache));
+            }
+        }
+        tables.sort(Comparator.comparingLong(SSTable::newest).reversed());
+        deleteCovered(tables);
+        return tables;
+    }
+
+    /**
+     * Removes tables of flushes and compactions interrupted before the manifest listed them,
+     * and tables replaced by a compaction interrupted after that.
+     */
+    private void deleteUnlisted(List<SSTable> tables) throws IOException {
+        Set<Path> listed = new HashSet<>();
+        for (SSTable table : tables) {
+            listed.add(table.path());
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(config.basePath(), "*" + SSTable.SUFFIX)) {
+            for (Path file : stream) {
+                if (!listed.remove(file)) {
+                    LOG.info("Deleting {} missing from the manifest", file);
+                    Files.delete(file);
+                }
+            }
+        }
+        if (!listed.isEmpty()) {
+            throw new IOException("Tables listed by the manifest are missing: " + listed);
+        }
+    }
+
+    /**
+     * Turns logs of memtables that had not been flushed into SSTables. The logs are left in place,
+     * they may be deleted once the manifest lists the tables.
+     *
+     * @param tables live tables, replayed ones are added
+     * @return the latest generation of a log, -1 if there are none
+     */
+    private long replayLogs(List<Path> logs, List<SSTable> tables) throws IOException {
+        long lastGeneration = -1;
+        for (Path log : logs) {
+            long logGeneration = WriteAheadLog.generationOf(log);
+            lastGeneration = Math.max(lastGeneration, logGeneration);
+            boolean flushed = false;
+            for (SSTable table : tables) {
+                if (table.oldest() <= logGeneration && logGeneration <= table.newest()) {
+                    flushed = true;
+                    break;
+                }
+            }
+            if (!flushed) {
+                Memtable memtable = new Memtable(
+                        Math.max(
+                                config.flushThresholdBytes(),
+                                Memtable.capacityFor(Files.size(log), WriteAheadLog.recordCount(log))
+                        ),
+                        logGeneration,
+                        null
+                );
+                int records;
+                try {
+                    records = WriteAheadLog.replay(log, memtable);
+                    if (!memtable.isEmpty()) {
+                        tables.add(SSTable.write(
+                                SSTable.path(config.basePath(), logGeneration, logGeneration),
+                                () -> memtable.iterator(null, null),
+                                config.bloomBitsPerKey(),
+                                config.compression(),
+                                blockCache,
+                                config.expiry(),
+                                bytes -> { }
+                        ));
+                    }
+                } finally {
+                    memtable.release();
+                }
+                LOG.info("Replayed {} records of {}", records, log);
+            }
+        }
+        return lastGeneration;
+    }
+
+    /**
+     * Removes tables left behind by a compaction interrupted after its result had been published.
+     */
+    private static void deleteCovered(List<SSTable> tables) throws IOException {
+        for (Iterator<SSTable> it = tables.iterator(); it.hasNext(); ) {
+            SSTable table = it.next();
+            for (SSTable other : tables) {
+                if (other.covers(table)) {
+                    Files.delete(table.path());
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void deleteTable(SSTable table) {
+        try {
+            // Readers of an older state keep the mapping, compacted tables have been mapped by the compaction
+            table.map();
+            Files.delete(table.path());
+        } catch (IOException e) {
+            LOG.warn("Can't delete replaced table {}", table.path(), e);
+        }
+    }
+
+    /**
+     * The current state with its memtables acquired, see {@link State#release()}.
+     */
+    private State acquireState() {
+        while (true) {
+            State current = state;
+            if (current.acquire()) {
+                return current;
+            }
+            // A flushed memtable is released after its table is published, the current one only on close
+            if (state == current) {
+                throw new IllegalStateException("Storage is closed");
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface MemtableWrite {
+        /**
+         * Writes into the memtable, see {@link Memtable#upsert}.
+         */
+        long apply(Memtable memtable) throws IOException;
+    }
+
+    /**
+     * Immutable snapshot of the storage, tables are ordered from the freshest.
+     */
+    private record State(Memtable memtable, @Nullable Memtable flushing, List<SSTable> tables) {
+
+        /**
+         * Keeps the memtables readable until {@link #release()}.
+         *
+         * @return {@code false} if one of them has been released by its owner already
+         */
+        boolean acquire() {
+            if (!memtable.acquire()) {
+                return false;
+            }
+            if (flushing != null && !flushing.acquire()) {
+                memtable.release();
+                return false;
+            }
+            return true;
+        }
+
+        void release() {
+            memtable.release();
+            if (flushing != null) {
+                flushing.release();
+            }
+        }
+
+        State prepareFlush(Memtable fresh) {
+            return new State(fresh, memtable, tables);
+        }
+
+        State afterFlush(SSTable flushed) {
+            List<SSTable> result = new ArrayList<>(tables.size() + 1);
+            result.add(flushed);
+            result.addAll(tables);
+            return new State(memtable, null, Collections.unmodifiableList(result));
+        }
+
+        State afterCompaction(List<SSTable> run, SSTable merged) {
+            List<SSTable> result = new ArrayList<>(tables.size() - run.size() + 1);
+            for (SSTable table : tables) {
+                if (table == run.get(0)) {
+                    result.add(merged);
+                } else if (!run.contains(table)) {
+                    result.add(table);
+                }
+            }
+            return new State(memtable, flushing, Collections.unmodifiableList(result));
+        }
+
+        State withoutTables(List<SSTable> dropped) {
+            List<SSTable> result = new ArrayList<>(tables);
+            result.removeAll(dropped);
+            return new State(memtable, flushing, Collections.unmodifiableList(result));
+        }
+
+        List<Iterator<Entry>> sources(@Nullable MemorySegment from, @Nullable MemorySegment to) {
+            List<Iterator<Entry>> result = new ArrayList<>(tables.size() + 2);
+            result.add(memtable.iterator(from, to));
+            if (flushing != null) {
+                result.add(flushing.iterator(from, to));
+            }
+            for (SSTable table : tables) {
+                result.add(table.iterator(from, to));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryHandles;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted in-memory table living entirely in an off-heap arena: a lock-free skip list whose nodes,
+ * keys and values are bump-allocated in the arena and link each other by arena offsets.
+ * Writers never block each other, and the table keeps nothing on heap, so however many entries it holds
+ * it adds nothing to GC pressure.
+ *
+ * <p>The arena is freed as soon as the memtable is {@linkplain #release() released} by its owner
+ * and by every reader that {@linkplain #acquire() acquired} it, rather than whenever the GC gets
+ * to a small heap object fronting a large off-heap arena. Segments of a released memtable must not
+ * be read anymore. A memtable nobody releases is freed once unreachable.
+ *
+ * <p>Node layout, 8-byte aligned, native byte order:
+ * <pre>
+ * long   sequence
+ * int    keySize
+ * int    valueSize (-1 for tombstone)
+ * int    height
+ * int    padding
+ * long[] offsets of the next nodes by level, 0 for none
+ * key, value
+ * </pre>
+ * The head node sits at offset 0. An update of a key is a new node in front of the older ones,
+ * nodes of a key being ordered by descending sequence, so lookups and iterators take the first one.
+ * Nothing is ever unlinked, so a node found to precede a new one keeps preceding it and a failed
+ * link CAS only has to resume the search from there.
+ *
+ * <p>Every memtable has its own flush generation and, unless it is rebuilt from a log, its own
+ * {@link WriteAheadLog}, which is deleted after the memtable is flushed.
+ */
+final class Memtable {
+
+    /**
+     * {@link #upsert} result of a full memtable.
+     */
+    static final long FULL = -1;
+
+    private static final int MAX_HEIGHT = 12;
+    private static final long SEQUENCE_OFFSET = 0;
+    private static final long KEY_SIZE_OFFSET = SEQUENCE_OFFSET + Long.BYTES;
+    private static final long VALUE_SIZE_OFFSET = KEY_SIZE_OFFSET + Integer.BYTES;
+    private static final long HEIGHT_OFFSET = VALUE_SIZE_OFFSET + Integer.BYTES;
+    private static final long NEXT_OFFSET = HEIGHT_OFFSET + 2 * Integer.BYTES;
+    private static final long HEAD = 0;
+    private static final long HEAD_SIZE = NEXT_OFFSET + MAX_HEIGHT * Long.BYTES;
+    private static final int TOMBSTONE_SIZE = -1;
+    private static final VarHandle NEXT = MemoryHandles.varHandle(long.class, Long.BYTES, ByteOrder.nativeOrder());
+    // Predecessors and successors of a node being linked, by level
+    private static final ThreadLocal<long[]> SPLICE = ThreadLocal.withInitial(() -> new long[2 * MAX_HEIGHT]);
+
+    /**
+     * Frees arenas and releases readers left unreleased once they are unreachable.
+     */
+    static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Upper bound of the arena bytes a node takes besides its key and value.
+     */
+    static final long MAX_NODE_OVERHEAD = HEAD_SIZE + Long.BYTES - 1;
+
+    private final ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
+    // The owner holds one until the memtable is flushed, 0 once the arena is freed
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final long capacity;
+    private final long generation;
+    @Nullable
+    private final WriteAheadLog log;
+    private final AtomicLong allocated = new AtomicLong(HEAD_SIZE);
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile MemorySegment arena;
+
+    Memtable(long capacity, long generation, @Nullable WriteAheadLog log) {
+        this.capacity = capacity;
+        this.generation = generation;
+        this.log = log;
+    }
+
+    /**
+     * Capacity the records of a log of {@code bytes} holding {@code records} records are sure to fit in.
+     */
+    static long capacityFor(long bytes, long records) {
+        return bytes + records * MAX_NODE_OVERHEAD;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * Keeps the arena from being freed until a matching {@link #release()}.
+     *
+     * @return {@code false} if it has been freed already
+     */
+    boolean acquire() {
+        int current = references.get();
+        while (current > 0) {
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = references.get();
+        }
+        return false;
+    }
+
+    /**
+     * Drops a reference, the last one frees the arena.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            scope.close();
+        }
+    }
+
+    @Nullable
+    WriteAheadLog log() {
+        return log;
+    }
+
+    /**
+     * Copies the entry into the arena and appends it to the log.
+     *
+     * @return log position of the record, {@link #FULL} if the memtable has to be flushed
+     */
+    long upsert(MemorySegment key, @Nullable MemorySegment value) throws IOException {
+        int height = randomHeight();
+        long size = nodeSize(height, key, value);
+        MemorySegment segment = arena(size);
+        long node = allocate(segment, size);
+        if (node < 0) {
+            return FULL;
+        }
+        writeNode(segment, node, height, key, value);
+        long position = 0;
+        if (log == null) {
+            setSequence(segment, node, sequence.incrementAndGet());
+        } else {
+            // Memtable order of concurrent updates of a key must match the log order
+            synchronized (log) {
+                position = log.append(key, value);
+                setSequence(segment, node, sequence.incrementAndGet());
+            }
+        }
+        link(segment, node);
+        return position;
+    }
+
+    /**
+     * Copies the entries into one slot of the arena and appends them to the log with a single write.
+     *
+     * @return log position of the last record, {@link #FULL} if the memtable has to be flushed
+     */
+    long upsertAll(List<Entry> batch) throws IOException {
+        int[] heights = new int[batch.size()];
+        long size = 0;
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = randomHeight();
+            size += nodeSize(heights[i], batch.get(i).key(), batch.get(i).value());
+        }
+        MemorySegment segment = arena(size);
+        long start = allocate(segment, size);
+        if (start < 0) {
+            return FULL;
+        }
+        long node = start;
+        for (int i = 0; i < heights.length; i++) {
+            Entry entry = batch.get(i);
+            writeNode(segment, node, heights[i], entry.key(), entry.value());
+            node += nodeSize(heights[i], entry.key(), entry.value());
+        }
+        long position = 0;
+        long first;
+        if (log == null) {
+            first = sequence.getAndAdd(heights.length) + 1;
+        } else {
+            synchronized (log) {
+                position = log.append(batch);
+                first = sequence.getAndAdd(heights.length) + 1;
+            }
+        }
+        node = start;
+        for (int i = 0; i < heights.length; i++) {
+            setSequence(segment, node, first + i);
+            link(segment, node);
+            node += nodeSize(heights[i], batch.get(i).key(), batch.get(i).value());
+        }
+        return position;
+    }
+
+    @Nullable
+    Entry get(MemorySegment key) {
+        MemorySegment segment = arena;
+        if (segment == null) {
+            return null;
+        }
+        long node = ceiling(segment, key);
+        return node != HEAD && compareKey(segment, node, key) == 0 ? entry(segment, node) : null;
+    }
+
+    Iterator<Entry> iterator(@Nullable MemorySegment from, @Nullable MemorySegment to) {
+        MemorySegment segment = arena;
+        if (segment == null) {
+            return Collections.emptyIterator();
+        }
+        long first = from == null ? nextNode(segment, HEAD, 0) : ceiling(segment, from);
+        return new Iterator<>() {
+            private long node = bounded(first);
+
+            @Override
+            public boolean hasNext() {
+                return node != HEAD;
+            }
+
+            @Override
+            public Entry next() {
+                if (node == HEAD) {
+                    throw new NoSuchElementException();
+                }
+                Entry result = entry(segment, node);
+                // Older versions of the key follow
+                long next = nextNode(segment, node, 0);
+                while (next != HEAD && compareKeys(segment, next, node) == 0) {
+                    next = nextNode(segment, next, 0);
+                }
+                node = bounded(next);
+                return result;
+            }
+
+            private long bounded(long candidate) {
+                return candidate == HEAD || to != null && compareKey(segment, candidate, to) >= 0 ? HEAD : candidate;
+            }
+        };
+    }
+
+    boolean isEmpty() {
+        MemorySegment segment = arena;
+        return segment == null || nextNode(segment, HEAD, 0) == HEAD;
+    }
+
+    long byteSize() {
+        return Math.min(allocated.get() - HEAD_SIZE, capacity);
+    }
+
+    /**
+     * Reserves {@code size} bytes of the arena.
+     *
+     * @return offset of the reserved bytes, negative if they don't fit
+     */
+    private long allocate(MemorySegment segment, long size) {
+        while (true) {
+            long offset = allocated.get();
+            if (offset + size > segment.byteSize()) {
+                return -1;
+            }
+            if (allocated.compareAndSet(offset, offset + size)) {
+                return offset;
+            }
+        }
+    }
+
+    /**
+     * The arena, allocated on first use. The first allocation sizes it to fit even an entry
+     * larger than the capacity, so an oversized entry only fits into an empty memtable.
+     */
+    private MemorySegment arena(long size) {
+        MemorySegment result = arena;
+        if (result == null) {
+            synchronized (this) {
+                result = arena;
+                if (result == null) {
+                    result = MemorySegment.allocateNative(HEAD_SIZE + Math.max(capacity, size), Long.BYTES, scope);
+                    arena = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Links the node into every level it spans, from the bottom, so it is found as soon as
+     * the bottom level has it.
+     */
+    private static void link(MemorySegment segment, long node) {
+        long[] splice = SPLICE.get();
+        int height = MemoryAccess.getIntAtOffset(segment, node + HEIGHT_OFFSET);
+        long start = HEAD;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            start = findPredecessor(segment, start, node, level, splice);
+        }
+        for (int level = 0; level < height; level++) {
+            while (true) {
+                long pred = splice[level];
+                long succ = splice[MAX_HEIGHT + level];
+                NEXT.set(segment, nextOffset(node, level), succ);
+                if (NEXT.compareAndSet(segment, nextOffset(pred, level), succ, node)) {
+                    break;
+                }
+                // Somebody has linked a node right after the predecessor, which still precedes this one
+                findPredecessor(segment, pred, node, level, splice);
+            }
+        }
+    }
+
+    /**
+     * Walks the level from {@code start} to the last node preceding {@code node}, records it
+     * and its successor in the splice.
+     *
+     * @return the last preceding node
+     */
+    private static long findPredecessor(MemorySegment segment, long start, long node, int level, long[] splice) {
+        long pred = start;
+        long next = nextNode(segment, pred, level);
+        while (next != HEAD && compareNodes(segment, next, node) < 0) {
+            pred = next;
+            next = nextNode(segment, pred, level);
+        }
+        splice[level] = pred;
+        splice[MAX_HEIGHT + level] = next;
+        return pred;
+    }
+
+    /**
+     * First node whose key is not less than {@code key}, {@link #HEAD} if there is none.
+     */
+    private static long ceiling(MemorySegment segment, MemorySegment key) {
+        long pred = HEAD;
+        long next = HEAD;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = nextNode(segment, pred, level);
+            while (next != HEAD && compareKey(segment, next, key) < 0) {
+                pred = next;
+                next = nextNode(segment, pred, level);
+            }
+        }
+        return next;
+    }
+
+    private static long nextNode(MemorySegment segment, long node, int level) {
+        return (long) NEXT.getVolatile(segment, nextOffset(node, level));
+    }
+
+    private static long nextOffset(long node, int level) {
+        return node + NEXT_OFFSET + (long) level * Long.BYTES;
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        // Every level has a quarter of the nodes of the one below
+        while (height < MAX_HEIGHT && (ThreadLocalRandom.current().nextInt() & 3) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    private static long nodeSize(int height, MemorySegment key, @Nullable MemorySegment value) {
+        long size = NEXT_OFFSET + (long) height * Long.BYTES + key.byteSize() + (value == null ? 0 : value.byteSize());
+        return (size + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static void writeNode(
+            MemorySegment segment,
+            long node,
+            int height,
+            MemorySegment key,
+            @Nullable MemorySegment value
+    ) {
+        MemoryAccess.setIntAtOffset(segment, node + KEY_SIZE_OFFSET, (int) key.byteSize());
+        MemoryAccess.setIntAtOffset(
+                segment,
+                node + VALUE_SIZE_OFFSET,
+                value == null ? TOMBSTONE_SIZE : (int) value.byteSize()
+        );
+        MemoryAccess.setIntAtOffset(segment, node + HEIGHT_OFFSET, height);
+        long keyOffset = keyOffset(node, height);
+        segment.asSlice(keyOffset, key.byteSize()).copyFrom(key);
+        if (value != null) {
+            segment.asSlice(keyOffset + key.byteSize(), value.byteSize()).copyFrom(value);
+        }
+    }
+
+    private static void setSequence(MemorySegment segment, long node, long value) {
+        MemoryAccess.setLongAtOffset(segment, node + SEQUENCE_OFFSET, value);
+    }
+
+    private static long keyOffset(long node, int height) {
+        return nextOffset(node, height);
+    }
+
+    private static long keyOffset(MemorySegment segment, long node) {
+        return keyOffset(node, MemoryAccess.getIntAtOffset(segment, node + HEIGHT_OFFSET));
+    }
+
+    private static int keySize(MemorySegment segment, long node) {
+        return MemoryAccess.getIntAtOffset(segment, node + KEY_SIZE_OFFSET);
+    }
+
+    private static Entry entry(MemorySegment segment, long node) {
+        long keyOffset = keyOffset(segment, node);
+        int keySize = keySize(segment, node);
+        int valueSize = MemoryAccess.getIntAtOffset(segment, node + VALUE_SIZE_OFFSET);
+        return new Entry(
+                segment.asSlice(keyOffset, keySize),
+                valueSize == TOMBSTONE_SIZE ? null : segment.asSlice(keyOffset + keySize, valueSize)
+        );
+    }
+
+    private static int compareKey(MemorySegment segment, long node, MemorySegment key) {
+        return MemorySegmentComparator.compare(
+                segment, keyOffset(segment, node), keySize(segment, node),
+                key, 0, key.byteSize()
+        );
+    }
+
+    private static int compareKeys(MemorySegment segment, long a, long b) {
+        return MemorySegmentComparator.compare(
+                segment, keyOffset(segment, a), keySize(segment, a),
+                segment, keyOffset(segment, b), keySize(segment, b)
+        );
+    }
+
+    /**
+     * Order of nodes: by key, then from the latest update.
+     */
+    private static int compareNodes(MemorySegment segment, long a, long b) {
+        int result = compareKeys(segment, a, b);
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(
+                MemoryAccess.getLongAtOffset(segment, b + SEQUENCE_OFFSET),
+                MemoryAccess.getLongAtOffset(segment, a + SEQUENCE_OFFSET)
+        );
+    }
+}
@@ -0,0 +1,84 @@
+package ok.dht.test.drozdov.dao;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Lazily merges sorted sources, yielding only the freshest entry for every key.
+ */
+final class MergeIterator implements Iterator<Entry> {
+
+    private final PriorityQueue<PeekIterator> queue;
+    private final boolean skipTombstones;
+    private Entry next;
+
+    /**
+     * Creates the merge.
+     *
+     * @param sources        sorted iterators, the freshest first
+     * @param skipTombstones whether deleted keys are hidden from the output
+     */
+    MergeIterator(List<Iterator<Entry>> sources, boolean skipTombstones) {
+        this.queue = new PriorityQueue<>(Math.max(1, sources.size()), MergeIterator::compare);
+        this.skipTombstones = skipTombstones;
+        int priority = 0;
+        for (Iterator<Entry> source : sources) {
+            PeekIterator iterator = new PeekIterator(source, priority++);
+            if (iterator.hasNext()) {
+                queue.add(iterator);
+            }
+        }
+        this.next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Entry next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Entry result = next;
+        next = advance();
+        return result;
+    }
+
+    private Entry advance() {
+        while (!queue.isEmpty()) {
+            PeekIterator top = queue.poll();
+            Entry entry = top.next();
+            skipKey(entry);
+            if (top.hasNext()) {
+                queue.add(top);
+            }
+            if (!skipTombstones || !entry.isTombstone()) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void skipKey(Entry entry) {
+        while (!queue.isEmpty()) {
+            PeekIterator iterator = queue.peek();
+            if (iterator.peek().key().mismatch(entry.key()) != -1) {
+                return;
+            }
+            queue.poll();
+            iterator.next();
+            if (iterator.hasNext()) {
+                queue.add(iterator);
+            }
+        }
+    }
+
+    private static int compare(PeekIterator a, PeekIterator b) {
+        int result = MemorySegmentComparator.INSTANCE.compare(a.peek().key(), b.peek().key());
+        return result == 0 ? Integer.compare(a.priority(), b.priority()) : result;
+    }
+}
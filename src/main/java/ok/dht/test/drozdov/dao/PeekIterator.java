@@ -0,0 +1,48 @@
+package ok.dht.test.drozdov.dao;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator with one-element lookahead and a priority used to order equal keys.
+ */
+final class PeekIterator implements Iterator<Entry> {
+
+    private final Iterator<Entry> delegate;
+    private final int priority;
+    private Entry current;
+
+    PeekIterator(Iterator<Entry> delegate, int priority) {
+        this.delegate = delegate;
+        this.priority = priority;
+    }
+
+    /**
+     * Lower value wins when several sources hold the same key.
+     */
+    int priority() {
+        return priority;
+    }
+
+    Entry peek() {
+        if (current == null && delegate.hasNext()) {
+            current = delegate.next();
+        }
+        return current;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return peek() != null;
+    }
+
+    @Override
+    public Entry next() {
+        Entry result = peek();
+        if (result == null) {
+            throw new NoSuchElementException();
+        }
+        current = null;
+        return result;
+    }
+}
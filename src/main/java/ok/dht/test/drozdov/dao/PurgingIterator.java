@@ -0,0 +1,69 @@
+package ok.dht.test.drozdov.dao;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Merged entries of a compaction with the values expired by its start purged. An expired value is kept in
+ * its {@linkplain Expiry#expired expired form} while it is still needed. Then it becomes a tombstone, which
+ * keeps shadowing older versions of the key, or is dropped along with tombstones when the compaction leaves
+ * nothing older behind.
+ */
+final class PurgingIterator implements Iterator<Entry> {
+
+    private final Iterator<Entry> entries;
+    private final Expiry expiry;
+    private final long now;
+    private final boolean dropExpired;
+    private Entry next;
+
+    /**
+     * Creates the purge.
+     *
+     * @param entries     merged entries
+     * @param now         wall clock time in milliseconds values expired by are purged
+     * @param dropExpired whether values no longer needed are dropped rather than turned into tombstones
+     */
+    PurgingIterator(Iterator<Entry> entries, Expiry expiry, long now, boolean dropExpired) {
+        this.entries = entries;
+        this.expiry = expiry;
+        this.now = now;
+        this.dropExpired = dropExpired;
+        this.next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Entry next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Entry result = next;
+        next = advance();
+        return result;
+    }
+
+    private Entry advance() {
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.isTombstone()) {
+                return entry;
+            }
+            if (expiry.droppableAt(entry.value()) <= now) {
+                if (dropExpired) {
+                    continue;
+                }
+                return Entry.tombstone(entry.key());
+            }
+            if (expiry.expiresAt(entry.value()) <= now) {
+                return new Entry(entry.key(), expiry.expired(entry.value()));
+            }
+            return entry;
+        }
+        return null;
+    }
+}
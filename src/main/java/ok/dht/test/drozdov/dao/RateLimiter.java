@@ -0,0 +1,42 @@
+package ok.dht.test.drozdov.dao;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Blocking byte rate limiter for background I/O.
+ */
+public final class RateLimiter {
+
+    private final long bytesPerSecond;
+    private long nextFreeNanos;
+
+    /**
+     * Creates the limiter.
+     *
+     * @param bytesPerSecond allowed throughput, non-positive value disables limiting
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.nextFreeNanos = System.nanoTime();
+    }
+
+    /**
+     * Parks the caller until {@code bytes} fit into the budget.
+     */
+    public void acquire(long bytes) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Idle time is not accumulated into a burst
+            nextFreeNanos = Math.max(nextFreeNanos, now) + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+            waitNanos = nextFreeNanos - now;
+        }
+        if (waitNanos > 0) {
+            LockSupport.parkNanos(waitNanos);
+        }
+    }
+}
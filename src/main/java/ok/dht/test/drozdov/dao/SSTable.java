@@ -0,0 +1,780 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Immutable sorted table mapped into memory.
+ *
+ * <p>File layout (native byte order):
+ * <pre>
+ * long   entryCount
+ * long   blockCount
+ * long   bloomWordCount
+ * int    bloomHashCount
+ * int    compression (see {@link Compression}, 0 for none)
+ * long[] bloomWords
+ * long[] blockOffsets
+ * int    dictionarySize, dictionary (compressed tables only)
+ * blocks
+ * </pre>
+ * Entries are grouped into blocks of about {@link #BLOCK_SIZE} bytes, every entry being
+ * {@code int keySize, key, int valueSize (-1 for tombstone), value}. The sparse index keeps the offset
+ * of every block, so a lookup binary searches block first keys and scans one block.
+ * A miss rejected by the Bloom filter does not touch the blocks at all.
+ *
+ * <p>A compressed block is {@code int size, int compressedSize, int firstKeySize, firstKey, compressed entries}:
+ * the first key stays uncompressed for the binary search, and only the block a lookup lands in is
+ * decompressed, or taken from the {@link BlockCache}. Hot blocks of uncompressed tables are cached too.
+ *
+ * <p>A table {@linkplain #listed listed} in the {@link Manifest} is mapped on first access, and a key
+ * outside of its recorded key range doesn't map it at all. The manifest also records when the last of
+ * its values {@linkplain Expiry expires} for good, so a table of expired values can be dropped unopened.
+ *
+ * <p>The file is named {@code <newest>_<oldest>.sst} after the range of flush generations it holds,
+ * so without a manifest a table left behind by an interrupted compaction is recognized as covered by
+ * its replacement.
+ */
+final class SSTable {
+
+    static final String SUFFIX = ".sst";
+
+    private static final int TOMBSTONE_SIZE = -1;
+    private static final long BLOCK_SIZE = 4096;
+    // Codecs find little to share within a few entries
+    private static final long COMPRESSED_BLOCK_SIZE = 16384;
+    private static final long HEADER_SIZE = 4L * Long.BYTES;
+    private static final long BLOCK_HEADER_SIZE = 3L * Integer.BYTES;
+    private static final AtomicLong TABLE_IDS = new AtomicLong();
+
+    private final Path path;
+    private final long byteSize;
+    private final long entryCount;
+    // Both null for an empty table
+    @Nullable
+    private final MemorySegment minKey;
+    @Nullable
+    private final MemorySegment maxKey;
+    private final long expiresAt;
+    // Identifies blocks of the table in the cache
+    private final long id;
+    private final BlockCache cache;
+    private final long newest;
+    private final long oldest;
+    private final LongAdder bloomChecks = new LongAdder();
+    private final LongAdder bloomNegatives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private volatile Contents contents;
+
+    private SSTable(
+            Path path,
+            long id,
+            long byteSize,
+            long entryCount,
+            @Nullable MemorySegment minKey,
+            @Nullable MemorySegment maxKey,
+            long expiresAt,
+            BlockCache cache,
+            @Nullable Contents contents
+    ) {
+        this.path = path;
+        this.id = id;
+        this.byteSize = byteSize;
+        this.entryCount = entryCount;
+        this.minKey = minKey;
+        this.maxKey = maxKey;
+        this.expiresAt = expiresAt;
+        this.cache = cache;
+        this.contents = contents;
+        String name = path.getFileName().toString();
+        int separator = name.indexOf('_');
+        this.newest = Long.parseLong(name.substring(0, separator));
+        this.oldest = Long.parseLong(name.substring(separator + 1, name.length() - SUFFIX.length()));
+    }
+
+    static Path path(Path dir, long newest, long oldest) {
+        return dir.resolve(newest + "_" + oldest + SUFFIX);
+    }
+
+    /**
+     * Maps the table, decompressed blocks of a compressed one are cached in {@code cache}.
+     * The expiry of its values is unknown, so the table is never dropped as expired.
+     */
+    static SSTable open(Path path, BlockCache cache) throws IOException {
+        return open(path, cache, Long.MAX_VALUE);
+    }
+
+    private static SSTable open(Path path, BlockCache cache, long expiresAt) throws IOException {
+        long id = TABLE_IDS.getAndIncrement();
+        Contents contents = Contents.map(path, id, cache);
+        MemorySegment minKey = null;
+        MemorySegment maxKey = null;
+        if (contents.entryCount > 0) {
+            minKey = contents.firstKey(0);
+            maxKey = contents.lastKey();
+        }
+        return new SSTable(
+                path,
+                id,
+                contents.mapped.byteSize(),
+                contents.entryCount,
+                minKey,
+                maxKey,
+                expiresAt,
+                cache,
+                contents
+        );
+    }
+
+    /**
+     * Table described by the manifest, the file is not touched until a lookup or a scan needs it.
+     *
+     * @param minKey first key, {@code null} for an empty table
+     * @param maxKey    last key, {@code null} for an empty table
+     * @param expiresAt see {@link #expiresAt()}
+     */
+    static SSTable listed(
+            Path path,
+            long byteSize,
+            long entryCount,
+            @Nullable MemorySegment minKey,
+            @Nullable MemorySegment maxKey,
+            long expiresAt,
+            BlockCache cache
+    ) {
+        return new SSTable(
+                path,
+                TABLE_IDS.getAndIncrement(),
+                byteSize,
+                entryCount,
+                minKey,
+                maxKey,
+                expiresAt,
+                cache,
+                null
+        );
+    }
+
+    /**
+     * Writes entries in one shot through a temporary file, so a partially written table is never visible.
+     *
+     * @param entries     supplies the same sorted entries several times: to size the file, to train
+     *                    the compression dictionary and to fill the file
+     * @param bitsPerKey  Bloom filter density
+     * @param compression codec of the blocks
+     * @param cache       cache of decompressed blocks of the written table
+     * @param expiry      expiry of the values, the latest time one is needed until is kept as {@link #expiresAt()}
+     * @param progress    receives the size of every written entry
+     */
+    static SSTable write(
+            Path path,
+            Supplier<? extends Iterator<Entry>> entries,
+            int bitsPerKey,
+            Compression compression,
+            BlockCache cache,
+            Expiry expiry,
+            LongConsumer progress
+    ) throws IOException {
+        BlockCodec codec = compression == Compression.NONE ? null : BlockCodec.forWrite(compression, entries);
+        long blockSize = codec == null ? BLOCK_SIZE : COMPRESSED_BLOCK_SIZE;
+        long count = 0;
+        long dataSize = 0;
+        long blocks = 0;
+        long blockLength = 0;
+        long maxBlockLength = 0;
+        long expiresAt = Long.MIN_VALUE;
+        for (Iterator<Entry> it = entries.get(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (!entry.isTombstone() && expiresAt != Long.MAX_VALUE) {
+                expiresAt = Math.max(expiresAt, expiry.droppableAt(entry.value()));
+            }
+            if (count == 0 || blockLength >= blockSize) {
+                dataSize += blockBound(codec, blockLength);
+                blocks++;
+                blockLength = 0;
+                if (codec != null) {
+                    dataSize += BLOCK_HEADER_SIZE + entry.key().byteSize();
+                }
+            }
+            count++;
+            blockLength += sizeOf(entry);
+            maxBlockLength = Math.max(maxBlockLength, blockLength);
+        }
+        dataSize += blockBound(codec, blockLength);
+
+        long bloomWords = BloomFilter.wordCount(count, bitsPerKey);
+        int bloomHashes = BloomFilter.hashCount(bitsPerKey);
+        long indexOffset = HEADER_SIZE + bloomWords * Long.BYTES;
+        long dataStart = indexOffset + blocks * Long.BYTES;
+        MemorySegment dictionary = null;
+        if (codec != null) {
+            dictionary = codec.dictionary();
+            dataStart += Integer.BYTES + dictionary.byteSize();
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        long fileSize;
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            Files.deleteIfExists(tmp);
+            Files.createFile(tmp);
+            // The size of compressed blocks is not known in advance, the file is truncated afterwards
+            MemorySegment file = MemorySegment.mapFile(
+                    tmp,
+                    0,
+                    dataStart + dataSize,
+                    FileChannel.MapMode.READ_WRITE,
+                    scope
+            );
+            MemoryAccess.setLongAtOffset(file, 0, count);
+            MemoryAccess.setLongAtOffset(file, Long.BYTES, blocks);
+            MemoryAccess.setLongAtOffset(file, 2L * Long.BYTES, bloomWords);
+            MemoryAccess.setIntAtOffset(file, 3L * Long.BYTES, bloomHashes);
+            MemoryAccess.setIntAtOffset(file, 3L * Long.BYTES + Integer.BYTES, compression.id());
+            BloomFilter bloom = new BloomFilter(file.asSlice(HEADER_SIZE, bloomWords * Long.BYTES), bloomHashes);
+            BlockWriter writer;
+            if (codec == null) {
+                writer = new BlockWriter(file, indexOffset, dataStart);
+            } else {
+                long dictionaryOffset = indexOffset + blocks * Long.BYTES;
+                writeSegment(file, dictionaryOffset, dictionary);
+                writer = new CompressingBlockWriter(
+                        file,
+                        indexOffset,
+                        dataStart,
+                        codec,
+                        MemorySegment.allocateNative(Math.max(maxBlockLength, 1), scope)
+                );
+            }
+
+            for (Iterator<Entry> it = entries.get(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (writer.blockLength() < 0 || writer.blockLength() >= blockSize) {
+                    writer.startBlock(entry.key());
+                }
+                bloom.add(BloomFilter.hash(entry.key()));
+                progress.accept(writer.add(entry));
+            }
+            fileSize = writer.finish();
+            file.force();
+        }
+        if (codec != null) {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.truncate(fileSize);
+                channel.force(true);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+        return open(path, cache, expiresAt);
+    }
+
+    /**
+     * Room a block of {@code length} entry bytes may take, its header aside.
+     */
+    private static long blockBound(@Nullable BlockCodec codec, long length) {
+        if (length == 0 || codec == null) {
+            return length;
+        }
+        return codec.maxCompressedSize(length);
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long byteSize() {
+        return byteSize;
+    }
+
+    long entryCount() {
+        return entryCount;
+    }
+
+    /**
+     * First key of the table, {@code null} if it is empty.
+     */
+    @Nullable
+    MemorySegment minKey() {
+        return minKey;
+    }
+
+    /**
+     * Last key of the table, {@code null} if it is empty.
+     */
+    @Nullable
+    MemorySegment maxKey() {
+        return maxKey;
+    }
+
+    /**
+     * Time the last value of the table is {@linkplain Expiry#droppableAt no longer needed} at:
+     * {@link Long#MIN_VALUE} if it holds tombstones only,
+     * {@link Long#MAX_VALUE} if some value never expires or the expiry is unknown.
+     */
+    long expiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Latest flush generation stored in the table.
+     */
+    long newest() {
+        return newest;
+    }
+
+    /**
+     * Earliest flush generation stored in the table.
+     */
+    long oldest() {
+        return oldest;
+    }
+
+    boolean covers(SSTable other) {
+        return this != other && oldest <= other.oldest && other.newest <= newest;
+    }
+
+    TableStats stats() {
+        return new TableStats(
+                path.getFileName().toString(),
+                entryCount,
+                byteSize,
+                bloomChecks.sum(),
+                bloomNegatives.sum(),
+                falsePositives.sum()
+        );
+    }
+
+    /**
+     * Point lookup.
+     *
+     * @param hash {@link BloomFilter#hash} of the key, computed once for all tables
+     */
+    @Nullable
+    Entry get(MemorySegment key, long hash) {
+        if (minKey == null
+                || MemorySegmentComparator.INSTANCE.compare(key, minKey) < 0
+                || MemorySegmentComparator.INSTANCE.compare(key, maxKey) > 0) {
+            return null;
+        }
+        Contents table = contents();
+        bloomChecks.increment();
+        if (!table.bloomFilter.mightContain(hash)) {
+            bloomNegatives.increment();
+            return null;
+        }
+        long index = table.blockOf(key);
+        if (index >= 0) {
+            MemorySegment block = table.block(index, true);
+            long offset = lowerBound(block, key);
+            if (offset < block.byteSize()) {
+                Entry entry = entryAt(block, offset);
+                if (entry.key().mismatch(key) == -1) {
+                    return entry;
+                }
+            }
+        }
+        falsePositives.increment();
+        return null;
+    }
+
+    /**
+     * Entries in {@code [from, to)}. Blocks are not added to the cache, so a scan doesn't evict hot blocks.
+     */
+    Iterator<Entry> iterator(@Nullable MemorySegment from, @Nullable MemorySegment to) {
+        if (minKey == null
+                || (from != null && MemorySegmentComparator.INSTANCE.compare(from, maxKey) > 0)
+                || (to != null && MemorySegmentComparator.INSTANCE.compare(to, minKey) <= 0)) {
+            return Collections.emptyIterator();
+        }
+        Contents table = contents();
+        long[] start = from == null ? new long[]{0, 0} : table.position(from);
+        long[] end = to == null ? new long[]{table.blockCount, 0} : table.position(to);
+        return new Iterator<>() {
+            private long index = start[0];
+            private long offset = start[1];
+            private MemorySegment block;
+
+            @Override
+            public boolean hasNext() {
+                return index < end[0] || (index == end[0] && offset < end[1]);
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (block == null) {
+                    block = table.block(index, false);
+                }
+                Entry entry = entryAt(block, offset);
+                offset = nextEntry(block, offset);
+                if (offset >= block.byteSize()) {
+                    index++;
+                    offset = 0;
+                    block = null;
+                }
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Maps the file unless it is mapped already, so the table stays readable once the file is deleted.
+     */
+    void map() {
+        contents();
+    }
+
+    private Contents contents() {
+        Contents result = contents;
+        if (result == null) {
+            synchronized (this) {
+                result = contents;
+                if (result == null) {
+                    try {
+                        result = Contents.map(path, id, cache);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Can't open " + path, e);
+                    }
+                    contents = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The mapped file with its header parsed.
+     */
+    private static final class Contents {
+
+        final MemorySegment mapped;
+        final long entryCount;
+        final long blockCount;
+        final BloomFilter bloomFilter;
+        private final long id;
+        private final long blockIndexOffset;
+        @Nullable
+        private final BlockCodec codec;
+        private final BlockCache cache;
+
+        private Contents(MemorySegment mapped, long id, BlockCache cache) {
+            this.mapped = mapped;
+            this.id = id;
+            this.cache = cache;
+            this.entryCount = MemoryAccess.getLongAtOffset(mapped, 0);
+            this.blockCount = MemoryAccess.getLongAtOffset(mapped, Long.BYTES);
+            long bloomWords = MemoryAccess.getLongAtOffset(mapped, 2L * Long.BYTES);
+            int bloomHashes = MemoryAccess.getIntAtOffset(mapped, 3L * Long.BYTES);
+            Compression compression = Compression.of(
+                    MemoryAccess.getIntAtOffset(mapped, 3L * Long.BYTES + Integer.BYTES)
+            );
+            this.bloomFilter = new BloomFilter(mapped.asSlice(HEADER_SIZE, bloomWords * Long.BYTES), bloomHashes);
+            this.blockIndexOffset = HEADER_SIZE + bloomWords * Long.BYTES;
+            long dictionaryOffset = blockIndexOffset + blockCount * Long.BYTES;
+            if (compression == Compression.NONE) {
+                this.codec = null;
+            } else {
+                int dictionarySize = MemoryAccess.getIntAtOffset(mapped, dictionaryOffset);
+                this.codec = BlockCodec.forRead(
+                        compression,
+                        mapped.asSlice(dictionaryOffset + Integer.BYTES, dictionarySize)
+                );
+            }
+        }
+
+        static Contents map(Path path, long id, BlockCache cache) throws IOException {
+            MemorySegment mapped = MemorySegment.mapFile(
+                    path,
+                    0,
+                    Files.size(path),
+                    FileChannel.MapMode.READ_ONLY,
+                    ResourceScope.newImplicitScope()
+            );
+            return new Contents(mapped, id, cache);
+        }
+
+        /**
+         * Block and offset in it of the first entry whose key is not less than {@code key},
+         * {@code blockCount} and 0 if there is none.
+         */
+        long[] position(MemorySegment key) {
+            long index = blockOf(key);
+            if (index < 0) {
+                return new long[]{0, 0};
+            }
+            MemorySegment block = block(index, false);
+            long offset = lowerBound(block, key);
+            if (offset < block.byteSize()) {
+                return new long[]{index, offset};
+            }
+            return new long[]{index + 1, 0};
+        }
+
+        /**
+         * The last block whose first key is not greater than the key, -1 if there is none.
+         */
+        long blockOf(MemorySegment key) {
+            long low = 0;
+            long high = blockCount - 1;
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                if (MemorySegmentComparator.INSTANCE.compare(firstKey(mid), key) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        MemorySegment firstKey(long index) {
+            long offset = blockOffset(index);
+            if (codec == null) {
+                return keyAt(mapped, offset);
+            }
+            int keySize = MemoryAccess.getIntAtOffset(mapped, offset + 2L * Integer.BYTES);
+            return mapped.asSlice(offset + BLOCK_HEADER_SIZE, keySize);
+        }
+
+        /**
+         * Key of the last entry of a non-empty table.
+         */
+        MemorySegment lastKey() {
+            MemorySegment block = block(blockCount - 1, false);
+            long offset = 0;
+            for (long next = nextEntry(block, offset); next < block.byteSize(); next = nextEntry(block, next)) {
+                offset = next;
+            }
+            return keyAt(block, offset);
+        }
+
+        /**
+         * Entries of the block: a slice of the mapped file, or the block decompressed or copied off heap by the cache.
+         *
+         * @param lookup whether the block is read by a point lookup, which counts for the cache admission,
+         *               rather than by a scan, which only uses cached blocks
+         */
+        MemorySegment block(long index, boolean lookup) {
+            MemorySegment result = lookup ? cache.get(id, index) : cache.peek(id, index);
+            if (result != null) {
+                return result;
+            }
+            long offset = blockOffset(index);
+            if (codec == null) {
+                long end = index + 1 < blockCount ? blockOffset(index + 1) : mapped.byteSize();
+                result = mapped.asSlice(offset, end - offset);
+                if (lookup && cache.isRequestedAgain(id, index)) {
+                    // A hot block is served from memory that can't be dropped with the page cache
+                    MemorySegment copy = MemorySegment.allocateNative(
+                            result.byteSize(),
+                            ResourceScope.newImplicitScope()
+                    );
+                    copy.copyFrom(result);
+                    cache.put(id, index, copy);
+                }
+                return result;
+            }
+            int size = MemoryAccess.getIntAtOffset(mapped, offset);
+            int compressedSize = MemoryAccess.getIntAtOffset(mapped, offset + Integer.BYTES);
+            int keySize = MemoryAccess.getIntAtOffset(mapped, offset + 2L * Integer.BYTES);
+            MemorySegment compressed = mapped.asSlice(offset + BLOCK_HEADER_SIZE + keySize, compressedSize);
+            // Released by the cleaner once the cache and the readers of its entries drop it
+            result = MemorySegment.allocateNative(size, ResourceScope.newImplicitScope());
+            codec.decompress(compressed.asByteBuffer(), result.asByteBuffer());
+            if (lookup) {
+                cache.put(id, index, result);
+            }
+            return result;
+        }
+
+        private long blockOffset(long index) {
+            return MemoryAccess.getLongAtOffset(mapped, blockIndexOffset + index * Long.BYTES);
+        }
+    }
+
+    /**
+     * Offset of the first entry of the block whose key is not less than {@code key}, the block size if none.
+     */
+    private static long lowerBound(MemorySegment block, MemorySegment key) {
+        long offset = 0;
+        while (offset < block.byteSize() && MemorySegmentComparator.INSTANCE.compare(keyAt(block, offset), key) < 0) {
+            offset = nextEntry(block, offset);
+        }
+        return offset;
+    }
+
+    private static MemorySegment keyAt(MemorySegment segment, long offset) {
+        int keySize = MemoryAccess.getIntAtOffset(segment, offset);
+        return segment.asSlice(offset + Integer.BYTES, keySize);
+    }
+
+    private static long nextEntry(MemorySegment block, long offset) {
+        long valueOffset = offset + Integer.BYTES + MemoryAccess.getIntAtOffset(block, offset);
+        int valueSize = MemoryAccess.getIntAtOffset(block, valueOffset);
+        return valueOffset + Integer.BYTES + (valueSize == TOMBSTONE_SIZE ? 0 : valueSize);
+    }
+
+    private static Entry entryAt(MemorySegment block, long offset) {
+        MemorySegment key = keyAt(block, offset);
+        long valueOffset = offset + Integer.BYTES + key.byteSize();
+        int valueSize = MemoryAccess.getIntAtOffset(block, valueOffset);
+        if (valueSize == TOMBSTONE_SIZE) {
+            return Entry.tombstone(key);
+        }
+        return new Entry(key, block.asSlice(valueOffset + Integer.BYTES, valueSize));
+    }
+
+    private static long sizeOf(Entry entry) {
+        long size = 2L * Integer.BYTES + entry.key().byteSize();
+        return entry.isTombstone() ? size : size + entry.value().byteSize();
+    }
+
+    private static long writeEntry(MemorySegment file, long offset, Entry entry) {
+        long position = writeSegment(file, offset, entry.key());
+        if (entry.isTombstone()) {
+            MemoryAccess.setIntAtOffset(file, position, TOMBSTONE_SIZE);
+            return position + Integer.BYTES;
+        }
+        return writeSegment(file, position, entry.value());
+    }
+
+    private static long writeSegment(MemorySegment file, long offset, MemorySegment segment) {
+        MemoryAccess.setIntAtOffset(file, offset, (int) segment.byteSize());
+        long position = offset + Integer.BYTES;
+        file.asSlice(position, segment.byteSize()).copyFrom(segment);
+        return position + segment.byteSize();
+    }
+
+    /**
+     * Writes blocks of entries as they are, right into the file.
+     */
+    private static class BlockWriter {
+
+        final MemorySegment file;
+        final long indexOffset;
+        long offset;
+        long blocks;
+        long blockLength = -1;
+
+        BlockWriter(MemorySegment file, long indexOffset, long dataStart) {
+            this.file = file;
+            this.indexOffset = indexOffset;
+            this.offset = dataStart;
+        }
+
+        /**
+         * Entry bytes in the current block, -1 before the first block.
+         */
+        long blockLength() {
+            return blockLength;
+        }
+
+        void startBlock(MemorySegment firstKey) {
+            MemoryAccess.setLongAtOffset(file, indexOffset + blocks * Long.BYTES, offset);
+            blocks++;
+            blockLength = 0;
+        }
+
+        /**
+         * Appends the entry to the current block.
+         *
+         * @return entry size
+         */
+        long add(Entry entry) {
+            long end = writeEntry(file, offset, entry);
+            long size = end - offset;
+            offset = end;
+            blockLength += size;
+            return size;
+        }
+
+        /**
+         * Completes the last block.
+         *
+         * @return size of the table
+         */
+        long finish() {
+            return offset;
+        }
+    }
+
+    /**
+     * Collects entries of a block in a staging segment and compresses them into the file once the block is full.
+     */
+    private static final class CompressingBlockWriter extends BlockWriter {
+
+        private final BlockCodec codec;
+        private final MemorySegment staging;
+        // Offset of the current block header
+        private long blockOffset;
+
+        CompressingBlockWriter(
+                MemorySegment file,
+                long indexOffset,
+                long dataStart,
+                BlockCodec codec,
+                MemorySegment staging
+        ) {
+            super(file, indexOffset, dataStart);
+            this.codec = codec;
+            this.staging = staging;
+        }
+
+        @Override
+        void startBlock(MemorySegment firstKey) {
+            finish();
+            blockOffset = offset;
+            super.startBlock(firstKey);
+            MemoryAccess.setIntAtOffset(file, offset + 2L * Integer.BYTES, (int) firstKey.byteSize());
+            file.asSlice(offset + BLOCK_HEADER_SIZE, firstKey.byteSize()).copyFrom(firstKey);
+            offset += BLOCK_HEADER_SIZE + firstKey.byteSize();
+        }
+
+        @Override
+        long add(Entry entry) {
+            long size = writeEntry(staging, blockLength, entry) - blockLength;
+            blockLength += size;
+            return size;
+        }
+
+        @Override
+        long finish() {
+            if (blockLength > 0) {
+                ByteBuffer target = file.asSlice(offset, codec.maxCompressedSize(blockLength)).asByteBuffer();
+                int compressedSize = codec.compress(staging.asSlice(0, blockLength).asByteBuffer(), target);
+                MemoryAccess.setIntAtOffset(file, blockOffset, (int) blockLength);
+                MemoryAccess.setIntAtOffset(file, blockOffset + Integer.BYTES, compressedSize);
+                offset += compressedSize;
+                blockLength = 0;
+            }
+            return offset;
+        }
+    }
+
+    static void deleteTemporary(Path dir) throws IOException {
+        try (var files = Files.newDirectoryStream(dir, "*.tmp")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+}
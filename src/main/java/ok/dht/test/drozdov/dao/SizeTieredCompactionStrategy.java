@@ -0,0 +1,49 @@
+package ok.dht.test.drozdov.dao;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Merges runs of similarly sized tables, so every entry is rewritten about once per size tier.
+ * Only adjacent tables are merged to keep the freshest-first order of the result intact.
+ */
+final class SizeTieredCompactionStrategy implements CompactionStrategy {
+
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+    // Tables below this size are considered equal
+    private static final long MIN_TABLE_BYTES = 1L << 20;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+
+    SizeTieredCompactionStrategy(int minThreshold, int maxThreshold) {
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+    }
+
+    @Override
+    public List<SSTable> select(List<SSTable> tables) {
+        int start = 0;
+        long runBytes = 0;
+        for (int i = 0; i < tables.size(); i++) {
+            long size = Math.max(tables.get(i).byteSize(), MIN_TABLE_BYTES);
+            int runLength = i - start;
+            if (runLength > 0) {
+                double average = (double) runBytes / runLength;
+                if (size < average * BUCKET_LOW || size > average * BUCKET_HIGH) {
+                    if (runLength >= minThreshold) {
+                        return tables.subList(start, i);
+                    }
+                    start = i;
+                    runBytes = 0;
+                }
+            }
+            runBytes += size;
+            if (i - start + 1 == maxThreshold) {
+                return tables.subList(start, i + 1);
+            }
+        }
+        return tables.size() - start >= minThreshold ? tables.subList(start, tables.size()) : Collections.emptyList();
+    }
+}
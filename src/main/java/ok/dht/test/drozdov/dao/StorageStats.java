@@ -0,0 +1,32 @@
+package ok.dht.test.drozdov.dao;
+
+/**
+ * Point-in-time view of the storage for monitoring.
+ * Lookup counters cover tables already replaced by compactions too, so they only grow.
+ *
+ * @param memtableBytes  arena bytes taken by the memtable accepting writes
+ * @param flushingBytes  arena bytes of the memtable being flushed, 0 if there is none
+ * @param tables         live SSTable count
+ * @param tablesBytes    total size of live SSTables
+ * @param bloomChecks    point lookups that reached a table
+ * @param bloomNegatives lookups rejected by a Bloom filter
+ * @param falsePositives lookups passed by a filter for an absent key
+ * @param cacheBytes     decompressed blocks in the block cache
+ * @param cacheHits      block reads of point lookups served by the cache
+ * @param cacheMisses    block reads of point lookups that missed the cache
+ * @param cacheEvictions blocks evicted from the cache or refused by its admission policy
+ */
+public record StorageStats(
+        long memtableBytes,
+        long flushingBytes,
+        int tables,
+        long tablesBytes,
+        long bloomChecks,
+        long bloomNegatives,
+        long falsePositives,
+        long cacheBytes,
+        long cacheHits,
+        long cacheMisses,
+        long cacheEvictions
+) {
+}
@@ -0,0 +1,19 @@
+package ok.dht.test.drozdov.dao;
+
+/**
+ * When write-ahead log records reach the disk.
+ */
+public enum SyncPolicy {
+    /**
+     * Every upsert returns after its record is forced, concurrent upserts share one force.
+     */
+    ALWAYS,
+    /**
+     * The log is forced in the background every {@link Config#syncIntervalMillis()}.
+     */
+    PERIODIC,
+    /**
+     * The log is left to the OS page cache, surviving process crashes but not power loss.
+     */
+    NONE
+}
@@ -0,0 +1,29 @@
+package ok.dht.test.drozdov.dao;
+
+/**
+ * Per-SSTable lookup counters used to size Bloom filters.
+ *
+ * @param name           file name
+ * @param entries        entry count
+ * @param bytes          file size
+ * @param bloomChecks    point lookups that reached the table
+ * @param bloomNegatives lookups rejected by the Bloom filter
+ * @param falsePositives lookups passed by the filter for an absent key
+ */
+public record TableStats(
+        String name,
+        long entries,
+        long bytes,
+        long bloomChecks,
+        long bloomNegatives,
+        long falsePositives
+) {
+
+    /**
+     * Observed share of absent keys the filter failed to reject.
+     */
+    public double falsePositiveRate() {
+        long absent = bloomNegatives + falsePositives;
+        return absent == 0 ? 0 : (double) falsePositives / absent;
+    }
+}
@@ -0,0 +1,13 @@
+package ok.dht.test.drozdov.dao;
+
+/**
+ * Thrown when the active memtable is full while the previous one is still being flushed.
+ */
+public class TooManyFlushesException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TooManyFlushesException() {
+        super("Memtable is full and the previous one is still being flushed");
+    }
+}
@@ -0,0 +1,395 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the upserts applied to one memtable, deleted once the memtable is flushed.
+ *
+ * <p>Record layout (native byte order):
+ * <pre>
+ * int keySize
+ * int valueSize (-1 for tombstone)
+ * int crc32c of the sizes, key and value
+ * key, value
+ * </pre>
+ *
+ * <p>Durability uses group commit: a thread waiting for its record forces everything appended so far,
+ * so threads queued behind it usually find their records already on disk.
+ *
+ * <p>A failed append is cut off the file, as replay stops at the first torn record and would lose
+ * every record appended after it. A log whose failed append can't be cut off is {@linkplain #isFailed failed}
+ * and refuses further appends.
+ */
+final class WriteAheadLog implements Closeable {
+
+    static final String SUFFIX = ".wal";
+
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int SIZES_SIZE = 2 * Integer.BYTES;
+    private static final int TOMBSTONE_SIZE = -1;
+    private static final int VERIFY_CHUNK = 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final CRC32C crc = new CRC32C();
+    private final Object syncLock = new Object();
+    // Guarded by this
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(4096).order(ByteOrder.nativeOrder());
+    // Guarded by this
+    private long written;
+    private volatile boolean failed;
+    private volatile long synced;
+    private volatile boolean closed;
+
+    // Visible for tests, which inject write failures through the channel
+    WriteAheadLog(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    static WriteAheadLog create(Path dir, long generation) throws IOException {
+        Path path = path(dir, generation);
+        FileChannel channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE
+        );
+        return new WriteAheadLog(path, channel);
+    }
+
+    static Path path(Path dir, long generation) {
+        return dir.resolve(generation + SUFFIX);
+    }
+
+    static long generationOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Appends the record.
+     *
+     * @return log position to pass to {@link #sync(long)} to make the record durable
+     */
+    synchronized long append(MemorySegment key, @Nullable MemorySegment value) throws IOException {
+        long start = startAppend();
+        try {
+            reserve(recordSize(key, value));
+            stage(key, value);
+            writeStaged();
+        } catch (IOException e) {
+            rollback(start, e);
+            throw e;
+        }
+        return written;
+    }
+
+    /**
+     * Appends the records in order, staging as many of them per write as fit into the buffer.
+     *
+     * @return log position to pass to {@link #sync(long)} to make all the records durable
+     */
+    synchronized long append(List<Entry> batch) throws IOException {
+        long start = startAppend();
+        try {
+            for (Entry entry : batch) {
+                int size = recordSize(entry.key(), entry.value());
+                if (buffer.position() + size > buffer.capacity()) {
+                    writeStaged();
+                    reserve(size);
+                }
+                stage(entry.key(), entry.value());
+            }
+            writeStaged();
+        } catch (IOException e) {
+            // Records of the batch already written are cut off too, the batch is applied whole or not at all
+            rollback(start, e);
+            throw e;
+        }
+        return written;
+    }
+
+    /**
+     * Whether a failed append left bytes behind, nothing may be appended after them.
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return file position the append starts at
+     */
+    private long startAppend() throws IOException {
+        if (failed) {
+            throw new IOException("Write-ahead log " + path + " has failed");
+        }
+        // Leftovers of a failed write are dropped
+        buffer.clear();
+        return channel.position();
+    }
+
+    /**
+     * Cuts the bytes of a failed append off. Positions handed out keep growing, so a later record
+     * written at the same file position is still forced by the next sync.
+     */
+    private void rollback(long start, IOException cause) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            failed = true;
+        }
+    }
+
+    private static int recordSize(MemorySegment key, @Nullable MemorySegment value) {
+        return HEADER_SIZE + (int) key.byteSize() + (value == null ? 0 : (int) value.byteSize());
+    }
+
+    private void reserve(int size) {
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2)).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Puts the record into the buffer at its position, which must have room for it.
+     */
+    private void stage(MemorySegment key, @Nullable MemorySegment value) {
+        // Buffers of shared segments can't be passed to NIO, so records are staged in a reusable buffer
+        int offset = buffer.position();
+        int size = recordSize(key, value);
+        MemorySegment staging = MemorySegment.ofByteBuffer(buffer.clear()).asSlice(offset, size);
+        MemoryAccess.setIntAtOffset(staging, 0, (int) key.byteSize());
+        MemoryAccess.setIntAtOffset(staging, Integer.BYTES, value == null ? TOMBSTONE_SIZE : (int) value.byteSize());
+        staging.asSlice(HEADER_SIZE, key.byteSize()).copyFrom(key);
+        if (value != null) {
+            staging.asSlice(HEADER_SIZE + key.byteSize(), value.byteSize()).copyFrom(value);
+        }
+
+        crc.reset();
+        crc.update(buffer.position(offset).limit(offset + SIZES_SIZE));
+        crc.update(buffer.limit(offset + size).position(offset + HEADER_SIZE));
+        buffer.putInt(offset + SIZES_SIZE, (int) crc.getValue());
+        buffer.limit(buffer.capacity()).position(offset + size);
+    }
+
+    private void writeStaged() throws IOException {
+        buffer.flip();
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        written += size;
+    }
+
+    /**
+     * Forces the log at least up to {@code position}, sharing the force with concurrent callers.
+     */
+    void sync(long position) throws IOException {
+        if (synced >= position || closed) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= position || closed) {
+                // Covered by the force of a concurrent caller
+                return;
+            }
+            long target;
+            synchronized (this) {
+                target = written;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                if (!closed) {
+                    throw e;
+                }
+                // The log was closed after its memtable had been flushed to a forced SSTable
+            }
+            synced = target;
+        }
+    }
+
+    /**
+     * Forces everything appended so far.
+     */
+    void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = written;
+        }
+        sync(target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * Closes and removes the log, its records must be durable elsewhere.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Number of records whose sizes fit into the log, intact or not.
+     */
+    static int recordCount(Path path) throws IOException {
+        long size = Files.size(path);
+        if (size == 0) {
+            return 0;
+        }
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            return recordOffsets(map(path, size, scope)).length;
+        }
+    }
+
+    /**
+     * Applies intact records of the log to the memtable.
+     * Records are verified in parallel chunks, then applied by parallel workers each owning a range
+     * of key hashes, so updates of any single key keep their log order.
+     * Everything from the first torn or corrupted record on is ignored.
+     *
+     * @return number of records applied
+     */
+    static int replay(Path path, Memtable target) throws IOException {
+        long size = Files.size(path);
+        if (size == 0) {
+            return 0;
+        }
+        long[] offsets;
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            offsets = recordOffsets(map(path, size, scope));
+        }
+        int count = offsets.length;
+
+        // Every worker maps the file on its own: buffers of shared segments can't be checksummed
+        int chunks = (count + VERIFY_CHUNK - 1) / VERIFY_CHUNK;
+        int valid = Math.min(count, IntStream.range(0, chunks).parallel()
+                .map(chunk -> firstCorrupted(path, size, offsets, chunk * VERIFY_CHUNK,
+                        Math.min(count, (chunk + 1) * VERIFY_CHUNK)))
+                .min()
+                .orElse(count));
+
+        int partitions = Runtime.getRuntime().availableProcessors();
+        IntStream.range(0, partitions).parallel()
+                .forEach(partition -> apply(path, size, offsets, valid, partitions, partition, target));
+        return valid;
+    }
+
+    private static MemorySegment map(Path path, long size, ResourceScope scope) {
+        try {
+            return MemorySegment.mapFile(path, 0, size, FileChannel.MapMode.READ_ONLY, scope);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void apply(
+            Path path,
+            long size,
+            long[] offsets,
+            int count,
+            int partitions,
+            int partition,
+            Memtable target
+    ) {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            MemorySegment log = map(path, size, scope);
+            for (int i = 0; i < count; i++) {
+                MemorySegment key = keyAt(log, offsets[i]);
+                if (Math.floorMod(BloomFilter.hash(key), partitions) == partition
+                        && target.upsert(key, valueAt(log, offsets[i])) == Memtable.FULL) {
+                    throw new IllegalStateException("Replay memtable overflow");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Offsets of records whose sizes fit into the file.
+     */
+    private static long[] recordOffsets(MemorySegment log) {
+        long[] result = new long[64];
+        int count = 0;
+        long offset = 0;
+        while (offset + HEADER_SIZE <= log.byteSize()) {
+            int keySize = MemoryAccess.getIntAtOffset(log, offset);
+            int valueSize = MemoryAccess.getIntAtOffset(log, offset + Integer.BYTES);
+            if (keySize < 0 || valueSize < TOMBSTONE_SIZE) {
+                break;
+            }
+            long end = offset + HEADER_SIZE + keySize + Math.max(valueSize, 0);
+            if (end > log.byteSize()) {
+                break;
+            }
+            if (count == result.length) {
+                result = Arrays.copyOf(result, count * 2);
+            }
+            result[count++] = offset;
+            offset = end;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int firstCorrupted(Path path, long size, long[] offsets, int from, int to) {
+        CRC32C checksum = new CRC32C();
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            MemorySegment log = map(path, size, scope);
+            for (int i = from; i < to; i++) {
+                long offset = offsets[i];
+                checksum.reset();
+                checksum.update(log.asSlice(offset, SIZES_SIZE).asByteBuffer());
+                checksum.update(keyAt(log, offset).asByteBuffer());
+                MemorySegment value = valueAt(log, offset);
+                if (value != null) {
+                    checksum.update(value.asByteBuffer());
+                }
+                if ((int) checksum.getValue() != MemoryAccess.getIntAtOffset(log, offset + SIZES_SIZE)) {
+                    return i;
+                }
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private static MemorySegment keyAt(MemorySegment log, long offset) {
+        return log.asSlice(offset + HEADER_SIZE, MemoryAccess.getIntAtOffset(log, offset));
+    }
+
+    @Nullable
+    private static MemorySegment valueAt(MemorySegment log, long offset) {
+        int keySize = MemoryAccess.getIntAtOffset(log, offset);
+        int valueSize = MemoryAccess.getIntAtOffset(log, offset + Integer.BYTES);
+        if (valueSize == TOMBSTONE_SIZE) {
+            return null;
+        }
+        return log.asSlice(offset + HEADER_SIZE + keySize, valueSize);
+    }
+}
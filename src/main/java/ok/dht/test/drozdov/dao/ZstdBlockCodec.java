@@ -0,0 +1,120 @@
+package ok.dht.test.drozdov.dao;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import jdk.incubator.foreign.MemorySegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Zstandard block codec with a dictionary of its own table.
+ * Blocks of a few kilobytes have little to share within themselves, repeated field names and values
+ * of the whole table are what the dictionary brings.
+ */
+final class ZstdBlockCodec implements BlockCodec {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ZstdBlockCodec.class);
+    private static final int LEVEL = 3;
+    private static final int DICTIONARY_SIZE = 16 << 10;
+    // Samples are copied to heap for the trainer, so their total is kept well below the heap
+    private static final int SAMPLES_SIZE = 1 << 20;
+
+    private final byte[] dictionary;
+    @Nullable
+    private final ZstdDictCompress compressDictionary;
+    @Nullable
+    private final ZstdDictDecompress decompressDictionary;
+
+    ZstdBlockCodec(byte[] dictionary) {
+        this.dictionary = dictionary;
+        if (dictionary.length == 0) {
+            compressDictionary = null;
+            decompressDictionary = null;
+        } else {
+            compressDictionary = new ZstdDictCompress(dictionary, LEVEL);
+            decompressDictionary = new ZstdDictDecompress(dictionary);
+        }
+    }
+
+    /**
+     * Trains the dictionary on the leading values, a codec without one is used if training fails.
+     */
+    static ZstdBlockCodec train(Iterator<Entry> entries) {
+        ZstdDictTrainer trainer = new ZstdDictTrainer(SAMPLES_SIZE, DICTIONARY_SIZE);
+        int samples = 0;
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.isTombstone()) {
+                continue;
+            }
+            if (!trainer.addSample(entry.value().toByteArray())) {
+                break;
+            }
+            samples++;
+        }
+        try {
+            return new ZstdBlockCodec(trainer.trainSamples());
+        } catch (ZstdException e) {
+            LOG.debug("Can't train a dictionary on {} samples", samples, e);
+            return new ZstdBlockCodec(new byte[0]);
+        }
+    }
+
+    @Override
+    public long maxCompressedSize(long size) {
+        return Zstd.compressBound(size);
+    }
+
+    @Override
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        long size = compressDictionary == null
+                ? Zstd.compressDirectByteBuffer(
+                        dst, dst.position(), dst.remaining(),
+                        src, src.position(), src.remaining(),
+                        LEVEL)
+                : Zstd.compressDirectByteBufferFastDict(
+                        dst, dst.position(), dst.remaining(),
+                        src, src.position(), src.remaining(),
+                        compressDictionary);
+        if (Zstd.isError(size)) {
+            throw new IllegalStateException("Can't compress a block: " + Zstd.getErrorName(size));
+        }
+        return (int) size;
+    }
+
+    @Override
+    public void decompress(ByteBuffer src, ByteBuffer dst) {
+        long size;
+        try {
+            size = decompressDictionary == null
+                    ? Zstd.decompressDirectByteBuffer(
+                            dst, dst.position(), dst.remaining(),
+                            src, src.position(), src.remaining())
+                    : Zstd.decompressDirectByteBufferFastDict(
+                            dst, dst.position(), dst.remaining(),
+                            src, src.position(), src.remaining(),
+                            decompressDictionary);
+        } catch (ZstdException e) {
+            // Decompression with a dictionary reports errors by throwing rather than by the result
+            throw new IllegalStateException("Corrupted block", e);
+        }
+        if (Zstd.isError(size)) {
+            throw new IllegalStateException("Corrupted block: " + Zstd.getErrorName(size));
+        }
+        if (size != dst.remaining()) {
+            throw new IllegalStateException("Block decompressed to " + size + " bytes instead of " + dst.remaining());
+        }
+    }
+
+    @Override
+    public MemorySegment dictionary() {
+        return MemorySegment.ofArray(dictionary);
+    }
+}
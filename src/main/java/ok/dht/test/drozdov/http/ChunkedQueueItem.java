@@ -0,0 +1,132 @@
+package ok.dht.test.drozdov.http;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.dao.Entry;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Session write queue item encoding entries into chunks on demand.
+ * The session calls {@link #write} whenever the socket is writable, so the iterator advances no faster
+ * than the client reads, and a single fixed buffer is reused for the whole response.
+ * Entries larger than the buffer are sent in several pieces of the same chunk.
+ *
+ * @see ChunkedResponse chunk formats
+ */
+final class ChunkedQueueItem extends Session.QueueItem {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Hex length of a chunk, its CRLF and binary sizes
+    private static final int MAX_CHUNK_HEADER = 2 * Long.BYTES + 2 + 2 * Integer.BYTES;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_BUFFERS_PER_WRITE = 16;
+    private static final int PIECES = 4;
+    private static final MemorySegment NEWLINE = MemorySegment.ofArray(new byte[]{'\n'});
+    private static final MemorySegment NOTHING = MemorySegment.ofArray(new byte[0]);
+    private static final MemorySegment CRLF = MemorySegment.ofArray(new byte[]{'\r', '\n'});
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Iterator<Entry> entries;
+    private final boolean binary;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final MemorySegment bufferSegment = MemorySegment.ofArray(buffer);
+    // key, separator, value, CRLF of the entry being encoded
+    private final MemorySegment[] pieces;
+    private int piece = PIECES;
+    private long pieceOffset;
+    private int position;
+    private int limit;
+    private boolean finished;
+
+    ChunkedQueueItem(byte[] head, Iterator<Entry> entries, boolean binary) {
+        this.entries = entries;
+        this.binary = binary;
+        this.pieces = new MemorySegment[]{null, binary ? NOTHING : NEWLINE, null, CRLF};
+        System.arraycopy(head, 0, buffer, 0, head.length);
+        this.limit = head.length;
+    }
+
+    @Override
+    public int remaining() {
+        return finished && position == limit ? 0 : 1;
+    }
+
+    @Override
+    public int write(Socket socket) throws IOException {
+        int total = 0;
+        for (int i = 0; i < MAX_BUFFERS_PER_WRITE; i++) {
+            if (position == limit) {
+                position = 0;
+                limit = 0;
+                fill();
+                if (limit == 0) {
+                    break;
+                }
+            }
+            int written = socket.write(buffer, position, limit - position, 0);
+            position += written;
+            total += written;
+            if (position < limit) {
+                // The socket is full, the session calls again once it is writable
+                break;
+            }
+        }
+        return total;
+    }
+
+    private void fill() {
+        while (limit < buffer.length && !finished) {
+            if (piece == PIECES) {
+                if (!entries.hasNext()) {
+                    if (buffer.length - limit < LAST_CHUNK.length) {
+                        return;
+                    }
+                    System.arraycopy(LAST_CHUNK, 0, buffer, limit, LAST_CHUNK.length);
+                    limit += LAST_CHUNK.length;
+                    finished = true;
+                    return;
+                }
+                if (buffer.length - limit < MAX_CHUNK_HEADER) {
+                    return;
+                }
+                startChunk(entries.next());
+            }
+            MemorySegment source = pieces[piece];
+            long size = Math.min(source.byteSize() - pieceOffset, buffer.length - limit);
+            bufferSegment.asSlice(limit, size).copyFrom(source.asSlice(pieceOffset, size));
+            limit += (int) size;
+            pieceOffset += size;
+            if (pieceOffset == source.byteSize()) {
+                piece++;
+                pieceOffset = 0;
+            }
+        }
+    }
+
+    private void startChunk(Entry entry) {
+        pieces[0] = entry.key();
+        pieces[2] = entry.value();
+        long size = entry.key().byteSize() + entry.value().byteSize()
+                + (binary ? 2 * Integer.BYTES : pieces[1].byteSize());
+        int digits = (Long.SIZE - Long.numberOfLeadingZeros(size) + 3) / 4;
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer[limit++] = HEX_DIGITS[(int) (size >>> shift) & 0xF];
+        }
+        buffer[limit++] = '\r';
+        buffer[limit++] = '\n';
+        if (binary) {
+            MemoryAccess.setIntAtOffset(bufferSegment, limit, ByteOrder.BIG_ENDIAN, (int) entry.key().byteSize());
+            MemoryAccess.setIntAtOffset(bufferSegment, limit + Integer.BYTES, ByteOrder.BIG_ENDIAN,
+                    (int) entry.value().byteSize());
+            limit += 2 * Integer.BYTES;
+        }
+        piece = 0;
+        pieceOffset = 0;
+    }
+}
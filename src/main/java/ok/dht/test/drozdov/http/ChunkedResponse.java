@@ -0,0 +1,46 @@
+package ok.dht.test.drozdov.http;
+
+import ok.dht.test.drozdov.dao.Entry;
+import one.nio.http.Response;
+
+import java.util.Iterator;
+
+/**
+ * Response streaming an entry per chunk of HTTP chunked transfer encoding.
+ * The entries are pulled lazily as the socket accepts data, see {@link ChunkedQueueItem}.
+ */
+public class ChunkedResponse extends Response {
+
+    private final Iterator<Entry> entries;
+    private final boolean binary;
+
+    /**
+     * Creates a response of {@code key '\n' value} chunks.
+     */
+    public ChunkedResponse(String resultCode, Iterator<Entry> entries) {
+        this(resultCode, entries, false);
+    }
+
+    private ChunkedResponse(String resultCode, Iterator<Entry> entries, boolean binary) {
+        super(resultCode);
+        addHeader("Transfer-Encoding: chunked");
+        this.entries = entries;
+        this.binary = binary;
+    }
+
+    /**
+     * Creates a response of {@code int keySize, int valueSize, key, value} chunks (big-endian),
+     * for clients that don't see chunk boundaries or keys that may contain line breaks.
+     */
+    public static ChunkedResponse binary(String resultCode, Iterator<Entry> entries) {
+        return new ChunkedResponse(resultCode, entries, true);
+    }
+
+    Iterator<Entry> entries() {
+        return entries;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+}
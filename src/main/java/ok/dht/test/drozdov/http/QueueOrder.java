@@ -0,0 +1,16 @@
+package ok.dht.test.drozdov.http;
+
+/**
+ * Order in which waiting requests are executed.
+ */
+public enum QueueOrder {
+    /**
+     * Oldest first. A full queue rejects new requests.
+     */
+    FIFO,
+    /**
+     * Newest first. A full queue rejects its oldest request to admit the new one, so under overload
+     * fresh requests, whose clients are still waiting, are served instead of the ones about to time out.
+     */
+    LIFO
+}
@@ -0,0 +1,44 @@
+package ok.dht.test.drozdov.http;
+
+import ok.dht.test.drozdov.metrics.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per route latency from the moment a request is parsed to the moment its response head is written,
+ * and response counts by status class. Recording only touches preallocated counters.
+ */
+public final class RequestMetrics {
+
+    private static final int STATUS_CLASSES = 6;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Route.values().length];
+    private final LongAdder[] responses = new LongAdder[Route.values().length * STATUS_CLASSES];
+
+    public RequestMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    void record(Route route, long startNanos, int statusClass) {
+        latencies[route.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        int index = statusClass > 0 && statusClass < STATUS_CLASSES ? statusClass : 0;
+        responses[route.ordinal() * STATUS_CLASSES + index].increment();
+    }
+
+    public LatencyHistogram latency(Route route) {
+        return latencies[route.ordinal()];
+    }
+
+    /**
+     * Responses of the route with statuses {@code statusClass}xx, from 1 to 5.
+     */
+    public long responses(Route route, int statusClass) {
+        return responses[route.ordinal() * STATUS_CLASSES + statusClass].sum();
+    }
+}
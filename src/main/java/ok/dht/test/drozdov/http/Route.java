@@ -0,0 +1,43 @@
+package ok.dht.test.drozdov.http;
+
+import one.nio.http.Request;
+
+/**
+ * Request kinds measured separately.
+ */
+public enum Route {
+    GET_ENTITY("get"),
+    PUT_ENTITY("put"),
+    DELETE_ENTITY("delete"),
+    OTHER("other");
+
+    private static final String ENTITY_PATH = "/v0/entity";
+
+    private final String label;
+
+    Route(String label) {
+        this.label = label;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    /**
+     * Classifies the request without allocating.
+     */
+    static Route of(Request request) {
+        String uri = request.getURI();
+        boolean entity = uri.startsWith(ENTITY_PATH)
+                && (uri.length() == ENTITY_PATH.length() || uri.charAt(ENTITY_PATH.length()) == '?');
+        if (!entity) {
+            return OTHER;
+        }
+        return switch (request.getMethod()) {
+            case Request.METHOD_GET -> GET_ENTITY;
+            case Request.METHOD_PUT -> PUT_ENTITY;
+            case Request.METHOD_DELETE -> DELETE_ENTITY;
+            default -> OTHER;
+        };
+    }
+}
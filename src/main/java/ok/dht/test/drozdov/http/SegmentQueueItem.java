@@ -0,0 +1,55 @@
+package ok.dht.test.drozdov.http;
+
+import jdk.incubator.foreign.MemorySegment;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Session write queue item sending the response head and then the body straight from its segment.
+ * An off-heap segment goes to the socket as a direct buffer view, a heap one through its backing array,
+ * so the body is never copied on the heap.
+ */
+final class SegmentQueueItem extends Session.QueueItem {
+
+    private final byte[] head;
+    private int headPosition;
+    private ByteBuffer body;
+
+    SegmentQueueItem(byte[] head, MemorySegment body) {
+        this.head = head;
+        this.body = body.asByteBuffer();
+    }
+
+    @Override
+    public int remaining() {
+        return head.length - headPosition + body.remaining();
+    }
+
+    @Override
+    public int write(Socket socket) throws IOException {
+        int total = 0;
+        if (headPosition < head.length) {
+            int written = socket.write(head, headPosition, head.length - headPosition, 0);
+            headPosition += written;
+            total += written;
+            if (headPosition < head.length) {
+                return total;
+            }
+        }
+        if (body.hasArray()) {
+            int written = socket.write(body.array(), body.arrayOffset() + body.position(), body.remaining(), 0);
+            body.position(body.position() + written);
+            return total + written;
+        }
+        try {
+            return total + socket.write(body);
+        } catch (IllegalStateException e) {
+            // A socket implementation going through NIO channels refuses buffers of shared segments
+            body = ByteBuffer.wrap(MemorySegment.ofByteBuffer(body).toByteArray());
+            return total + write(socket);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ok.dht.test.drozdov.http;
+
+import jdk.incubator.foreign.MemorySegment;
+import one.nio.http.Response;
+
+/**
+ * Response whose body is written to the socket right from the segment, see {@link SegmentQueueItem}.
+ * For a value in a memtable arena or a mapped SSTable this avoids copying it into a {@code byte[]} twice:
+ * into the body and into the serialized response.
+ */
+public class SegmentResponse extends Response {
+
+    private final MemorySegment body;
+
+    public SegmentResponse(String resultCode, MemorySegment body) {
+        super(resultCode);
+        addHeader("Content-Length: " + body.byteSize());
+        this.body = body;
+    }
+
+    MemorySegment body() {
+        return body;
+    }
+}
@@ -0,0 +1,171 @@
+package ok.dht.test.drozdov.http;
+
+import one.nio.http.HttpException;
+import one.nio.http.HttpServer;
+import one.nio.http.HttpServerConfig;
+import one.nio.http.HttpSession;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import one.nio.server.RejectedSessionException;
+import one.nio.server.SelectorThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP server handing requests over to a {@link WorkerPool}, so selector threads only do network I/O
+ * and a slow disk read can't stall the other connections of its selector.
+ *
+ * <p>Bodies of client requests are limited to {@link #MAX_REQUEST_BODY_BYTES}. Requests of the internal paths,
+ * sent by other nodes, may be larger: the records they carry hold a client value along with its version.
+ *
+ * <p>A {@linkplain #drain() draining} server refuses new connections and closes the open ones after their
+ * current response, so clients move on to other nodes while the requests in flight complete.
+ */
+public class ServiceHttpServer extends HttpServer {
+
+    /**
+     * Body limit of client requests, the one-nio default.
+     */
+    public static final int MAX_REQUEST_BODY_BYTES = 1 << 16;
+    /**
+     * Body limit of requests to the internal paths, leaves room for the version of every record.
+     */
+    public static final int MAX_INTERNAL_REQUEST_BODY_BYTES = 4 * MAX_REQUEST_BODY_BYTES;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ServiceHttpServer.class);
+
+    private final WorkerPool workers;
+    private final Set<String> internalPaths;
+    private final RequestMetrics metrics = new RequestMetrics();
+    // Requests handed over to workers and not answered yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean draining;
+
+    public ServiceHttpServer(
+            HttpServerConfig config,
+            WorkerPool workers,
+            Set<String> internalPaths,
+            Object... routers
+    ) throws IOException {
+        super(config, routers);
+        this.workers = workers;
+        this.internalPaths = Set.copyOf(internalPaths);
+    }
+
+    public RequestMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts refusing connections, the server keeps answering requests of the open ones.
+     */
+    public void drain() {
+        draining = true;
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Requests received and not answered yet.
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public HttpSession createSession(Socket socket) throws RejectedSessionException {
+        if (draining) {
+            throw new RejectedSessionException("Server is stopping");
+        }
+        return new ServiceHttpSession(socket, this, metrics);
+    }
+
+    /**
+     * Stops the server and closes the connections left open, idle keep-alive ones included.
+     * one-nio only closes its selectors, a client would keep sending requests nobody reads.
+     */
+    @Override
+    public synchronized void stop() {
+        for (SelectorThread selector : selectors) {
+            for (Session session : selector.selector) {
+                session.close();
+            }
+        }
+        super.stop();
+    }
+
+    @Override
+    public void handleRequest(Request request, HttpSession session) {
+        inFlight.incrementAndGet();
+        ((ServiceHttpSession) session).requestStarted(Route.of(request), System.nanoTime());
+        workers.execute(new WorkerPool.Task() {
+            @Override
+            public void run() {
+                dispatch(request, session);
+            }
+
+            @Override
+            public void reject() {
+                sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+            }
+        });
+    }
+
+    /**
+     * Answers a request no handler matches as a malformed one rather than with one-nio's 404,
+     * so clients can tell an unknown route from an absent entity.
+     */
+    @Override
+    public void handleDefault(Request request, HttpSession session) throws IOException {
+        session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+    }
+
+    int maxRequestBodyLength(String path) {
+        return internalPaths.contains(path) ? MAX_INTERNAL_REQUEST_BODY_BYTES : MAX_REQUEST_BODY_BYTES;
+    }
+
+    /**
+     * The request of a session is answered or will never be, its connection being closed.
+     */
+    void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    private void dispatch(Request request, HttpSession session) {
+        try {
+            super.handleRequest(request, session);
+        } catch (IOException e) {
+            LOG.debug("Can't send response to {}", session, e);
+            session.close();
+        } catch (RuntimeException e) {
+            LOG.error("Can't handle {}", request, e);
+            sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+        } catch (Exception e) {
+            // Generated handlers throw HttpException for a missing or malformed parameter without declaring it,
+            // uncaught it would kill the worker and leave the request unanswered
+            if (e instanceof HttpException) {
+                sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            } else {
+                LOG.error("Can't handle {}", request, e);
+                sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+            }
+        }
+    }
+
+    private static void sendResponse(HttpSession session, Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            LOG.debug("Can't send response to {}", session, e);
+            session.close();
+        }
+    }
+}
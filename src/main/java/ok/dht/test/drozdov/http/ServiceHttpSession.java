@@ -0,0 +1,97 @@
+package ok.dht.test.drozdov.http;
+
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+
+import java.io.IOException;
+
+/**
+ * Session writing {@link ChunkedResponse} bodies lazily and {@link SegmentResponse} bodies without copying,
+ * other responses are written as usual.
+ * It takes the body limit of the request being parsed from its path.
+ * It also times the request being handled, one-nio hands a session its next request only after the response.
+ * Once the server is draining, every response closes its connection.
+ */
+class ServiceHttpSession extends HttpSession {
+
+    private static final String CONNECTION_HEADER = "Connection:";
+
+    private final ServiceHttpServer httpServer;
+    private final RequestMetrics metrics;
+    // Written before the request is handed over to a worker, read when the response is sent
+    private Route route;
+    private long startNanos;
+
+    ServiceHttpSession(Socket socket, ServiceHttpServer server, RequestMetrics metrics) {
+        super(socket, server);
+        this.httpServer = server;
+        this.metrics = metrics;
+    }
+
+    void requestStarted(Route requestRoute, long requestStartNanos) {
+        this.route = requestRoute;
+        this.startNanos = requestStartNanos;
+    }
+
+    @Override
+    protected void writeResponse(Response response, boolean includeBody) throws IOException {
+        Route current = route;
+        if (current != null) {
+            route = null;
+            metrics.record(current, startNanos, response.getStatus() / 100);
+        }
+        boolean closing = httpServer.isDraining();
+        if (closing) {
+            closeConnection(response);
+        }
+        try {
+            if (includeBody && response instanceof ChunkedResponse chunked) {
+                write(new ChunkedQueueItem(response.toBytes(false), chunked.entries(), chunked.isBinary()));
+            } else if (includeBody && response instanceof SegmentResponse segment) {
+                write(new SegmentQueueItem(response.toBytes(false), segment.body()));
+            } else {
+                super.writeResponse(response, includeBody);
+            }
+        } finally {
+            if (current != null) {
+                httpServer.requestFinished();
+            }
+        }
+        if (closing) {
+            scheduleClose();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (route != null) {
+            // Dropped with its connection
+            route = null;
+            httpServer.requestFinished();
+        }
+        super.close();
+    }
+
+    /**
+     * Tells the client not to reuse the connection.
+     */
+    private static void closeConnection(Response response) {
+        // one-nio has already added its keep-alive header, the header array is edited in place
+        String[] headers = response.getHeaders();
+        for (int i = 1; i < headers.length; i++) {
+            String header = headers[i];
+            if (header != null && header.regionMatches(true, 0, CONNECTION_HEADER, 0, CONNECTION_HEADER.length())) {
+                headers[i] = "Connection: close";
+                return;
+            }
+        }
+        response.addHeader("Connection: close");
+    }
+
+    @Override
+    protected int getMaxRequestBodyLength() {
+        // Asked once the headers are parsed, before any of the body is read
+        return httpServer.maxRequestBodyLength(parsing.getPath());
+    }
+}
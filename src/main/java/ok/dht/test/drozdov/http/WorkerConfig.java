@@ -0,0 +1,39 @@
+package ok.dht.test.drozdov.http;
+
+/**
+ * Request execution settings.
+ *
+ * @param threads            worker count, may be in the thousands for {@link WorkerThreads#VIRTUAL}
+ * @param queueCapacity      requests waiting for a worker before new ones are dropped with 503
+ * @param queueTimeoutMillis requests waiting longer are answered with 503 instead of being executed
+ * @param queueOrder         which waiting request a free worker takes first
+ * @param workerThreads      kind of worker threads
+ * @param drainTimeoutMillis how long a stopping service waits for requests in flight before cutting them off
+ */
+public record WorkerConfig(
+        int threads,
+        int queueCapacity,
+        long queueTimeoutMillis,
+        QueueOrder queueOrder,
+        WorkerThreads workerThreads,
+        long drainTimeoutMillis
+) {
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 500;
+    public static final QueueOrder DEFAULT_QUEUE_ORDER = QueueOrder.LIFO;
+    public static final WorkerThreads DEFAULT_WORKER_THREADS = WorkerThreads.PLATFORM;
+    public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5000;
+
+    public WorkerConfig() {
+        this(
+                DEFAULT_THREADS,
+                DEFAULT_QUEUE_CAPACITY,
+                DEFAULT_QUEUE_TIMEOUT_MILLIS,
+                DEFAULT_QUEUE_ORDER,
+                DEFAULT_WORKER_THREADS,
+                DEFAULT_DRAIN_TIMEOUT_MILLIS
+        );
+    }
+}
@@ -0,0 +1,183 @@
+package ok.dht.test.drozdov.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed set of workers fed by a bounded queue.
+ * A task that can't be executed in time is {@linkplain Task#reject() rejected} instead,
+ * so overload turns into fast refusals rather than an ever growing latency.
+ */
+public final class WorkerPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerPool.class);
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingDeque<Queued> queue;
+    private final long queueTimeoutNanos;
+    private final boolean lifo;
+    private final List<Thread> workers;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private volatile boolean stopped;
+
+    public WorkerPool(WorkerConfig config) {
+        this.queue = new LinkedBlockingDeque<>(config.queueCapacity());
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.queueTimeoutMillis());
+        this.lifo = config.queueOrder() == QueueOrder.LIFO;
+        ThreadFactory factory = threadFactory(config.workerThreads());
+        this.workers = new ArrayList<>(config.threads());
+        for (int i = 0; i < config.threads(); i++) {
+            Thread worker = factory.newThread(this::work);
+            worker.setName("http-worker-" + i);
+            workers.add(worker);
+        }
+        workers.forEach(Thread::start);
+    }
+
+    /**
+     * Work item that has to answer even if it is never executed.
+     */
+    public interface Task extends Runnable {
+        /**
+         * Called instead of {@link #run()} when the task is dropped, must not block.
+         */
+        void reject();
+    }
+
+    /**
+     * Queues the task or rejects it right away if there is no room.
+     */
+    public void execute(Task task) {
+        if (stopped) {
+            reject(task, rejected);
+            return;
+        }
+        Queued queued = new Queued(task, System.nanoTime());
+        if (!lifo) {
+            if (!queue.offerLast(queued)) {
+                reject(task, rejected);
+            }
+            return;
+        }
+        // The oldest request is at the tail, its client is the least likely to still be waiting
+        dropExpired();
+        while (!queue.offerFirst(queued)) {
+            Queued oldest = queue.pollLast();
+            if (oldest != null) {
+                reject(oldest.task, rejected);
+            }
+        }
+    }
+
+    public WorkerStats stats() {
+        return new WorkerStats(
+                workers.size(),
+                active.get(),
+                queue.size(),
+                completed.sum(),
+                rejected.sum(),
+                expired.sum()
+        );
+    }
+
+    /**
+     * Rejects the queued tasks and waits for the running ones.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        rejectQueued();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        // Tasks queued concurrently with the stop
+        rejectQueued();
+    }
+
+    private void rejectQueued() {
+        for (Queued queued = queue.pollFirst(); queued != null; queued = queue.pollFirst()) {
+            reject(queued.task, rejected);
+        }
+    }
+
+    private void work() {
+        while (!stopped) {
+            Queued queued;
+            try {
+                queued = queue.pollFirst(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (queued == null) {
+                continue;
+            }
+            if (isExpired(queued, System.nanoTime())) {
+                reject(queued.task, expired);
+                continue;
+            }
+            active.incrementAndGet();
+            try {
+                queued.task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Task failed", e);
+            } finally {
+                active.decrementAndGet();
+                completed.increment();
+            }
+        }
+    }
+
+    private void dropExpired() {
+        long now = System.nanoTime();
+        for (Queued oldest = queue.peekLast(); oldest != null && isExpired(oldest, now); oldest = queue.peekLast()) {
+            if (queue.removeLastOccurrence(oldest)) {
+                reject(oldest.task, expired);
+            }
+        }
+    }
+
+    private boolean isExpired(Queued queued, long now) {
+        return now - queued.enqueuedNanos > queueTimeoutNanos;
+    }
+
+    private static void reject(Task task, LongAdder counter) {
+        counter.increment();
+        try {
+            task.reject();
+        } catch (RuntimeException e) {
+            LOG.error("Task rejection failed", e);
+        }
+    }
+
+    private static ThreadFactory threadFactory(WorkerThreads kind) {
+        if (kind == WorkerThreads.VIRTUAL) {
+            // Looked up reflectively to keep the sources at Java 17
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.warn("Virtual threads are not available, using platform threads", e);
+            }
+        }
+        return runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private record Queued(Task task, long enqueuedNanos) {
+    }
+}
@@ -0,0 +1,21 @@
+package ok.dht.test.drozdov.http;
+
+/**
+ * Point-in-time view of the request workers.
+ *
+ * @param threads   worker count
+ * @param active    workers executing a request
+ * @param queued    requests waiting for a worker
+ * @param completed requests executed since start
+ * @param rejected  requests dropped because the queue was full
+ * @param expired   requests dropped because they waited longer than the queue timeout
+ */
+public record WorkerStats(
+        int threads,
+        int active,
+        int queued,
+        long completed,
+        long rejected,
+        long expired
+) {
+}
@@ -0,0 +1,16 @@
+package ok.dht.test.drozdov.http;
+
+/**
+ * Kind of threads executing requests.
+ */
+public enum WorkerThreads {
+    /**
+     * Regular threads, their count should be close to the core count.
+     */
+    PLATFORM,
+    /**
+     * Virtual threads of JDK 21+ (19+ with preview enabled), cheap enough to block on disk and network.
+     * Falls back to {@link #PLATFORM} on older runtimes.
+     */
+    VIRTUAL
+}
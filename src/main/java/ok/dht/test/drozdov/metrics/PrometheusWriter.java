@@ -0,0 +1,113 @@
+package ok.dht.test.drozdov.metrics;
+
+/**
+ * Builds a scrape in the Prometheus text exposition format, version 0.0.4.
+ * Every metric family is declared by one of the {@code counter}, {@code gauge} or {@code histogram} calls
+ * and followed by its samples. Labels are passed as alternating names and values.
+ */
+public final class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Histogram buckets: powers of two from 64 us to about 8.4 s, exact for LatencyHistogram
+    private static final int MIN_BUCKET_EXPONENT = 6;
+    private static final int MAX_BUCKET_EXPONENT = 23;
+    private static final double MICROS_PER_SECOND = 1e6;
+
+    private final StringBuilder out = new StringBuilder(16 * 1024);
+
+    public PrometheusWriter counter(String name, String help) {
+        return family(name, "counter", help);
+    }
+
+    public PrometheusWriter gauge(String name, String help) {
+        return family(name, "gauge", help);
+    }
+
+    public PrometheusWriter histogram(String name, String help) {
+        return family(name, "histogram", help);
+    }
+
+    public PrometheusWriter sample(String name, double value, String... labels) {
+        out.append(name);
+        appendLabels(labels, null);
+        out.append(' ');
+        appendValue(value);
+        out.append('\n');
+        return this;
+    }
+
+    /**
+     * Samples of a microsecond histogram, exported in seconds.
+     */
+    public PrometheusWriter histogramSamples(String name, LatencyHistogram histogram, String... labels) {
+        // Count first, so no bucket can exceed it while values keep coming
+        long count = histogram.count();
+        long sum = histogram.sum();
+        String bucket = name + "_bucket";
+        for (int exponent = MIN_BUCKET_EXPONENT; exponent <= MAX_BUCKET_EXPONENT; exponent++) {
+            long bound = 1L << exponent;
+            out.append(bucket);
+            appendLabels(labels, Double.toString(bound / MICROS_PER_SECOND));
+            out.append(' ').append(Math.min(count, histogram.countAtMost(bound))).append('\n');
+        }
+        out.append(bucket);
+        appendLabels(labels, "+Inf");
+        out.append(' ').append(count).append('\n');
+        sample(name + "_sum", sum / MICROS_PER_SECOND, labels);
+        return sample(name + "_count", count, labels);
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    private PrometheusWriter family(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    private void appendLabels(String[] labels, String le) {
+        if (labels.length == 0 && le == null) {
+            return;
+        }
+        out.append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            appendLabel(labels[i], labels[i + 1]);
+        }
+        if (le != null) {
+            if (labels.length > 0) {
+                out.append(',');
+            }
+            appendLabel("le", le);
+        }
+        out.append('}');
+    }
+
+    private void appendLabel(String label, String value) {
+        out.append(label).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private void appendValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+}
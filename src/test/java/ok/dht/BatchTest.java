@@ -0,0 +1,100 @@
+package ok.dht;
+
+import java.io.ByteArrayOutputStream;
+import java.net.HttpURLConnection;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Batch writes through {@code /v0/entities/batch} of a replicated cluster.
+ */
+class BatchTest extends TestBase {
+
+    private static final int MAX_BODY = 1 << 16;
+    private static final int VALUE_SIZE = 100;
+    // Key and value sizes
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final long TTL_MILLIS = 1_000;
+
+    @ServiceTest(stage = 4, clusterSize = 3)
+    void batch(List<ServiceInfo> nodes) throws Exception {
+        byte[] body = batch(100);
+        assertEquals(HttpURLConnection.HTTP_CREATED, putBatch(nodes.get(0), body).statusCode());
+        for (ServiceInfo node : nodes) {
+            HttpResponse<byte[]> response = node.get(key(42));
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(value(42), response.body());
+        }
+    }
+
+    @ServiceTest(stage = 4, clusterSize = 3)
+    void batchNearLimit(List<ServiceInfo> nodes) throws Exception {
+        // The batch itself fits a client request, the replica batches outgrow it once every record carries its version
+        int count = MAX_BODY / (HEADER_SIZE + KEY_LENGTH + VALUE_SIZE);
+        byte[] body = batch(count);
+        assertTrue(body.length <= MAX_BODY);
+        assertEquals(HttpURLConnection.HTTP_CREATED, putBatch(nodes.get(0), body).statusCode());
+        for (ServiceInfo node : nodes) {
+            for (int i : new int[]{0, count / 2, count - 1}) {
+                HttpResponse<byte[]> response = node.get(key(i));
+                assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+                assertArrayEquals(value(i), response.body());
+            }
+        }
+    }
+
+    @ServiceTest(stage = 4, clusterSize = 3)
+    void batchWithTtl(List<ServiceInfo> nodes) throws Exception {
+        byte[] body = batch(10);
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, putBatch(nodes.get(0), body, "?ttl=0").statusCode());
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, putBatch(nodes.get(0), body, "?ttl=soon").statusCode());
+        assertEquals(HttpURLConnection.HTTP_CREATED, putBatch(nodes.get(0), body, "?ttl=1").statusCode());
+        assertEquals(HttpURLConnection.HTTP_OK, nodes.get(1).get(key(9)).statusCode());
+
+        Thread.sleep(TTL_MILLIS + 500);
+        for (ServiceInfo node : nodes) {
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, node.get(key(0)).statusCode());
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, node.get(key(9)).statusCode());
+        }
+    }
+
+    private HttpResponse<byte[]> putBatch(ServiceInfo node, byte[] body) throws Exception {
+        return putBatch(node, body, "");
+    }
+
+    private HttpResponse<byte[]> putBatch(ServiceInfo node, byte[] body, String query) throws Exception {
+        return client.send(
+                node.request("/v0/entities/batch" + query).PUT(HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
+    private static byte[] batch(int count) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            byte[] key = key(i).getBytes(StandardCharsets.UTF_8);
+            byte[] value = value(i);
+            result.writeBytes(ByteBuffer.allocate(HEADER_SIZE).putInt(key.length).putInt(value.length).array());
+            result.writeBytes(key);
+            result.writeBytes(value);
+        }
+        return result.toByteArray();
+    }
+
+    private static String key(int i) {
+        return String.format("%0" + KEY_LENGTH + "d", i);
+    }
+
+    private static byte[] value(int i) {
+        byte[] result = new byte[VALUE_SIZE];
+        ByteBuffer.wrap(result).putInt(i);
+        return result;
+    }
+}
@@ -0,0 +1,374 @@
+package ok.dht;
+
+import org.junit.jupiter.api.TestReporter;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Concurrent mixed load against clusters running in this JVM.
+ * Every read has to observe the writes acknowledged before it started, and the cluster has to keep up
+ * a minimum throughput and tail latency, so lock contention or a connection storm fails the build.
+ */
+class ClusterStressTest extends TestBase {
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+    private static final String REPLICATION = "&ack=2&from=3";
+    private static final int THREADS = 16;
+    private static final int KEYS_PER_THREAD = 32;
+    private static final int OPS_PER_THREAD = 500;
+    private static final long RUN_MILLIS = 15_000;
+    private static final long RESTART_PERIOD_MILLIS = 2_000;
+    private static final long DOWN_MILLIS = 300;
+    // Far below what a laptop sustains: the thresholds catch collapses, not small regressions
+    private static final double MIN_OPS_PER_SECOND = 200;
+    private static final long MAX_P99_MILLIS = 1_000;
+    private static final double MAX_FAILURE_RATE_WITH_RESTARTS = 0.01;
+    private static final int REPORTED_VIOLATIONS = 5;
+
+    private final Queue<String> violations = new ConcurrentLinkedQueue<>();
+
+    @ServiceTest(stage = 4, clusterSize = 3)
+    void mixedLoad(List<ServiceInfo> nodes, TestReporter reporter) throws Exception {
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            workers.add(new Worker(nodes, randomId(), OPS_PER_THREAD, Long.MAX_VALUE));
+        }
+        Totals totals = collect(workers);
+
+        assertNoViolations();
+        assertEquals(0, totals.failures, "Failed requests");
+        assertFast(totals, reporter);
+        verify(nodes, workers);
+    }
+
+    @ServiceTest(stage = 4, clusterSize = 3)
+    void hotKey(List<ServiceInfo> nodes, TestReporter reporter) throws Exception {
+        String key = randomId();
+        AtomicLong acknowledged = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS / 3);
+        List<Callable<Totals>> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            Totals totals = new Totals();
+            for (long version = 1; System.nanoTime() < deadline; version++) {
+                byte[] value = ByteBuffer.allocate(Long.BYTES + KEY_LENGTH).putLong(version).array();
+                long start = System.nanoTime();
+                HttpResponse<byte[]> response = send(nodes, node -> put(node, key, value));
+                totals.record(start, response != null && response.statusCode() == HttpURLConnection.HTTP_CREATED);
+                if (response != null && response.statusCode() == HttpURLConnection.HTTP_CREATED) {
+                    acknowledged.set(version);
+                }
+            }
+            return totals;
+        });
+        for (int i = 1; i < THREADS; i++) {
+            tasks.add(() -> {
+                Totals totals = new Totals();
+                while (System.nanoTime() < deadline) {
+                    long floor = acknowledged.get();
+                    long start = System.nanoTime();
+                    HttpResponse<byte[]> response = send(nodes, node -> get(node, key));
+                    if (response == null) {
+                        totals.record(start, false);
+                        continue;
+                    }
+                    long version = -1;
+                    if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+                        version = ByteBuffer.wrap(response.body()).getLong();
+                    } else if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                        version = 0;
+                    }
+                    totals.record(start, version >= 0);
+                    if (version >= 0 && version < floor) {
+                        violations.add("Read version " + version + " after version " + floor + " was acknowledged");
+                    }
+                }
+                return totals;
+            });
+        }
+        Totals totals = collect(tasks);
+
+        assertNoViolations();
+        assertEquals(0, totals.failures, "Failed requests");
+        assertFast(totals, reporter);
+    }
+
+    @ServiceTest(stage = 4, clusterSize = 5)
+    void rollingRestarts(List<ServiceInfo> nodes, TestReporter reporter) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            workers.add(new Worker(nodes, randomId(), Integer.MAX_VALUE, deadline));
+        }
+        ExecutorService chaos = Executors.newSingleThreadExecutor();
+        Future<Integer> restarts = chaos.submit(() -> {
+            int count = 0;
+            while (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESTART_PERIOD_MILLIS) < deadline) {
+                Thread.sleep(RESTART_PERIOD_MILLIS);
+                Service service = nodes.get(ThreadLocalRandom.current().nextInt(nodes.size())).service();
+                service.stop().get(10, TimeUnit.SECONDS);
+                Thread.sleep(DOWN_MILLIS);
+                service.start().get(10, TimeUnit.SECONDS);
+                count++;
+            }
+            return count;
+        });
+        Totals totals;
+        try {
+            totals = collect(workers);
+            assertTrue(restarts.get(10, TimeUnit.SECONDS) > 0, "No node was restarted");
+        } finally {
+            chaos.shutdownNow();
+        }
+
+        assertNoViolations();
+        assertTrue(
+                totals.failures <= totals.ops * MAX_FAILURE_RATE_WITH_RESTARTS,
+                "Failed " + totals.failures + " of " + totals.ops + " requests"
+        );
+        assertFast(totals, reporter);
+        verify(nodes, workers);
+    }
+
+    private static Totals collect(Collection<? extends Callable<Totals>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            long start = System.nanoTime();
+            List<Future<Totals>> futures = executor.invokeAll(tasks);
+            Totals result = new Totals();
+            for (Future<Totals> future : futures) {
+                result.add(future.get());
+            }
+            result.nanos = System.nanoTime() - start;
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads every key written by the workers once the load is over.
+     */
+    private void verify(List<ServiceInfo> nodes, List<Worker> workers) throws Exception {
+        for (Worker worker : workers) {
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                String key = worker.key(i);
+                HttpResponse<byte[]> response = send(nodes, node -> get(node, key));
+                if (response == null) {
+                    violations.add("No node answered a read of " + key);
+                } else {
+                    worker.check(i, response);
+                }
+            }
+        }
+        assertNoViolations();
+    }
+
+    private void assertNoViolations() {
+        List<String> first = violations.stream().limit(REPORTED_VIOLATIONS).toList();
+        assertTrue(violations.isEmpty(), violations.size() + " inconsistent reads, first ones: " + first);
+    }
+
+    /**
+     * Checks the throughput and tail latency of the run, publishing them along with the failures.
+     */
+    private static void assertFast(Totals totals, TestReporter reporter) {
+        double opsPerSecond = totals.ops * (double) TimeUnit.SECONDS.toNanos(1) / totals.nanos;
+        long p99 = TimeUnit.NANOSECONDS.toMillis(totals.percentile(0.99));
+        reporter.publishEntry(String.format(
+                Locale.ROOT,
+                "%d ops, %d failed, %.0f ops/s, p50 %.1f ms, p99 %d ms",
+                totals.ops,
+                totals.failures,
+                opsPerSecond,
+                totals.percentile(0.5) / 1e6,
+                p99
+        ));
+        assertTrue(opsPerSecond >= MIN_OPS_PER_SECOND, "Throughput " + opsPerSecond + " ops/s");
+        assertTrue(p99 <= MAX_P99_MILLIS, "p99 latency " + p99 + " ms");
+    }
+
+    /**
+     * Sends the request to a random node, moving on to the next ones while a node can't be reached.
+     *
+     * @return {@code null} if no node could be reached
+     */
+    private HttpResponse<byte[]> send(
+            List<ServiceInfo> nodes,
+            Function<ServiceInfo, HttpRequest> request
+    ) throws InterruptedException {
+        int first = ThreadLocalRandom.current().nextInt(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            ServiceInfo node = nodes.get((first + i) % nodes.size());
+            try {
+                return client.send(request.apply(node), HttpResponse.BodyHandlers.ofByteArray());
+            } catch (IOException e) {
+                // Stopped or restarting node
+            }
+        }
+        return null;
+    }
+
+    private static HttpRequest get(ServiceInfo node, String key) {
+        return entity(node, key).GET().build();
+    }
+
+    private static HttpRequest put(ServiceInfo node, String key, byte[] value) {
+        return entity(node, key).PUT(HttpRequest.BodyPublishers.ofByteArray(value)).build();
+    }
+
+    private static HttpRequest delete(ServiceInfo node, String key) {
+        return entity(node, key).DELETE().build();
+    }
+
+    private static HttpRequest.Builder entity(ServiceInfo node, String key) {
+        return node.request("/v0/entity?id=" + key + REPLICATION).timeout(REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Thread of mixed requests to keys of its own, so it knows which values its reads may return.
+     */
+    private final class Worker implements Callable<Totals> {
+
+        private final List<ServiceInfo> nodes;
+        private final String prefix;
+        private final int ops;
+        private final long deadline;
+        // Values a read of the key may return, null for an absent key.
+        // More than one after a write whose outcome is unknown.
+        private final List<List<byte[]>> expected = new ArrayList<>();
+
+        Worker(List<ServiceInfo> nodes, String prefix, int ops, long deadline) {
+            this.nodes = nodes;
+            this.prefix = prefix;
+            this.ops = ops;
+            this.deadline = deadline;
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                List<byte[]> values = new ArrayList<>();
+                values.add(null);
+                expected.add(values);
+            }
+        }
+
+        String key(int index) {
+            return prefix + "_" + index;
+        }
+
+        @Override
+        public Totals call() throws Exception {
+            Totals totals = new Totals();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int op = 0; op < ops && System.nanoTime() < deadline; op++) {
+                int index = random.nextInt(KEYS_PER_THREAD);
+                String key = key(index);
+                int kind = random.nextInt(100);
+                long start = System.nanoTime();
+                if (kind < 50) {
+                    HttpResponse<byte[]> response = send(nodes, node -> get(node, key));
+                    boolean answered = response != null && (response.statusCode() == HttpURLConnection.HTTP_OK
+                            || response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND);
+                    totals.record(start, answered);
+                    if (answered) {
+                        check(index, response);
+                    }
+                } else if (kind < 85) {
+                    byte[] value = randomValue();
+                    HttpResponse<byte[]> response = send(nodes, node -> put(node, key, value));
+                    written(index, value, response, HttpURLConnection.HTTP_CREATED, totals, start);
+                } else {
+                    HttpResponse<byte[]> response = send(nodes, node -> delete(node, key));
+                    written(index, null, response, HttpURLConnection.HTTP_ACCEPTED, totals, start);
+                }
+            }
+            return totals;
+        }
+
+        void check(int index, HttpResponse<byte[]> response) {
+            byte[] value = response.statusCode() == HttpURLConnection.HTTP_OK ? response.body() : null;
+            for (byte[] candidate : expected.get(index)) {
+                if (Arrays.equals(candidate, value)) {
+                    return;
+                }
+            }
+            violations.add("Unexpected " + response.statusCode() + " for " + key(index));
+        }
+
+        private void written(
+                int index,
+                byte[] value,
+                HttpResponse<byte[]> response,
+                int status,
+                Totals totals,
+                long start
+        ) {
+            boolean acknowledged = response != null && response.statusCode() == status;
+            totals.record(start, acknowledged);
+            List<byte[]> values = expected.get(index);
+            if (acknowledged) {
+                values.clear();
+            }
+            // An unacknowledged write may still have reached some replicas
+            values.add(value);
+        }
+    }
+
+    private static final class Totals {
+
+        private final List<long[]> latencies = new ArrayList<>();
+        private long[] current = new long[1024];
+        private int size;
+        long ops;
+        long failures;
+        long nanos;
+
+        void record(long startNanos, boolean success) {
+            if (size == current.length) {
+                latencies.add(current);
+                current = new long[current.length];
+                size = 0;
+            }
+            current[size++] = System.nanoTime() - startNanos;
+            ops++;
+            if (!success) {
+                failures++;
+            }
+        }
+
+        void add(Totals other) {
+            latencies.addAll(other.latencies);
+            latencies.add(Arrays.copyOf(other.current, other.size));
+            ops += other.ops;
+            failures += other.failures;
+        }
+
+        long percentile(double quantile) {
+            long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            if (all.length == 0) {
+                return 0;
+            }
+            return all[Math.min(all.length - 1, (int) (all.length * quantile))];
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ok.dht;
+
+import ok.dht.test.drozdov.DemoService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Handoff of keys to a node joining a running cluster.
+ */
+class HandoffTest extends TestBase {
+
+    private final List<ServiceInfo> services = new ArrayList<>();
+
+    @AfterEach
+    void cleanUp() throws Exception {
+        for (ServiceInfo service : services) {
+            service.cleanUp();
+        }
+    }
+
+    @Test
+    @Timeout(value = 1, unit = TimeUnit.MINUTES)
+    void joinHandsOffMoreThanRequestBody() throws Exception {
+        ServiceInfo first = start();
+        // About 300 KB, more than even an internal request body may carry
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        for (int i = 0; i < 300; i++) {
+            String key = randomId();
+            byte[] value = randomValue();
+            records.put(key, value);
+            assertEquals(HttpURLConnection.HTTP_CREATED, send(first, "/v0/entity?id=" + key + "&ack=1&from=1",
+                    HttpRequest.BodyPublishers.ofByteArray(value)).statusCode());
+        }
+
+        ServiceInfo second = start();
+        HttpResponse<byte[]> join = client.send(
+                first.request("/v0/admin/cluster/nodes?url=" + second.url())
+                        .POST(HttpRequest.BodyPublishers.noBody())
+                        .build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+        assertEquals(HttpURLConnection.HTTP_ACCEPTED, join.statusCode());
+        awaitHandOff(first);
+        awaitHandOff(second);
+
+        first.service().stop().get(10, TimeUnit.SECONDS);
+        for (Map.Entry<String, byte[]> record : records.entrySet()) {
+            HttpResponse<byte[]> response = client.send(
+                    second.request("/v0/entity?id=" + record.getKey() + "&ack=1&from=2").GET().build(),
+                    HttpResponse.BodyHandlers.ofByteArray()
+            );
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(record.getValue(), response.body());
+        }
+    }
+
+    private ServiceInfo start() throws Exception {
+        int port = randomPort();
+        String url = endpoint(port);
+        ServiceConfig config = new ServiceConfig(port, url, List.of(url), Files.createTempDirectory("service"));
+        ServiceInfo service = new ServiceInfo(new DemoService(config), config, client);
+        services.add(service);
+        service.service().start().get(10, TimeUnit.SECONDS);
+        return service;
+    }
+
+    private HttpResponse<byte[]> send(ServiceInfo service, String path, HttpRequest.BodyPublisher body)
+            throws Exception {
+        return client.send(service.request(path).PUT(body).build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private void awaitHandOff(ServiceInfo service) throws Exception {
+        while (true) {
+            HttpResponse<byte[]> response = client.send(
+                    HttpRequest.newBuilder(URI.create(service.url() + "/v0/admin/cluster")).GET().build(),
+                    HttpResponse.BodyHandlers.ofByteArray()
+            );
+            String stats = new String(response.body(), StandardCharsets.UTF_8);
+            if (stats.contains("\"version\":1") && stats.contains("\"handingOff\":false")) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static int randomPort() {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 0), 1);
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new RuntimeException("Can't discover a free port", e);
+        }
+    }
+}
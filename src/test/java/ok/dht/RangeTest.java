@@ -0,0 +1,85 @@
+package ok.dht;
+
+import java.io.ByteArrayOutputStream;
+import java.net.HttpURLConnection;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Key ranges streamed from {@code /v0/entities}.
+ */
+class RangeTest extends TestBase {
+
+    private static final int KEYS = 100;
+
+    @ServiceTest(stage = 6)
+    void rangeSkipsDeletedKeys(ServiceInfo service) throws Exception {
+        byte[][] values = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            values[i] = randomValue();
+            assertEquals(HttpURLConnection.HTTP_CREATED, service.upsert(key(i), values[i]).statusCode());
+        }
+        for (int i = 0; i < KEYS; i += 7) {
+            assertEquals(HttpURLConnection.HTTP_ACCEPTED, service.delete(key(i)).statusCode());
+            values[i] = null;
+        }
+
+        assertArrayEquals(entries(values, 10, 50), range(service, "start=" + key(10) + "&end=" + key(50)));
+        assertArrayEquals(entries(values, 90, KEYS), range(service, "start=" + key(90)));
+        assertArrayEquals(new byte[0], range(service, "start=" + key(50) + "&end=" + key(10)));
+    }
+
+    @ServiceTest(stage = 6)
+    void entriesLargerThanBuffer(ServiceInfo service) throws Exception {
+        // Every entry spans more than one refill of the 64 KB stream buffer
+        byte[][] values = new byte[5][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new byte[1 << 16];
+            ThreadLocalRandom.current().nextBytes(values[i]);
+            assertEquals(HttpURLConnection.HTTP_CREATED, service.upsert(key(i), values[i]).statusCode());
+        }
+        assertArrayEquals(entries(values, 0, values.length), range(service, "start=" + key(0)));
+    }
+
+    @ServiceTest(stage = 6)
+    void emptyStartIsBadRequest(ServiceInfo service) throws Exception {
+        HttpResponse<Void> response = client.send(
+                service.request("/v0/entities?start=").GET().build(),
+                HttpResponse.BodyHandlers.discarding()
+        );
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, response.statusCode());
+    }
+
+    private byte[] range(ServiceInfo service, String query) throws Exception {
+        // The client strips the chunked encoding, leaving the entries one after another
+        HttpResponse<byte[]> response = client.send(
+                service.request("/v0/entities?" + query).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+        assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+        return response.body();
+    }
+
+    /**
+     * Stream of the entries in {@code [from, to)}, deleted ones having {@code null} values.
+     */
+    private static byte[] entries(byte[][] values, int from, int to) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (int i = from; i < to; i++) {
+            if (values[i] != null) {
+                result.writeBytes(key(i).getBytes(StandardCharsets.UTF_8));
+                result.write('\n');
+                result.writeBytes(values[i]);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private static String key(int i) {
+        return String.format("%0" + KEY_LENGTH + "d", i);
+    }
+}
@@ -0,0 +1,60 @@
+package ok.dht;
+
+import java.net.HttpURLConnection;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Entity requests of a replicated cluster reaching every replica.
+ */
+class ReplicationTest extends TestBase {
+
+    // The largest body a client request may have
+    private static final int MAX_VALUE = 1 << 16;
+
+    @ServiceTest(stage = 4, clusterSize = 3)
+    void writeReachesAllReplicas(List<ServiceInfo> nodes) throws Exception {
+        String key = randomId();
+        byte[] value = randomValue();
+        assertEquals(HttpURLConnection.HTTP_CREATED, upsert(nodes.get(0), key, value, 3).statusCode());
+        for (ServiceInfo node : nodes) {
+            HttpResponse<byte[]> response = get(node, key, 3);
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(value, response.body());
+        }
+    }
+
+    @ServiceTest(stage = 4, clusterSize = 3)
+    void largestValueReplicated(List<ServiceInfo> nodes) throws Exception {
+        // Fills a whole client request, and doesn't fit one once the replicas get it with its version
+        String key = randomId();
+        byte[] value = new byte[MAX_VALUE];
+        ThreadLocalRandom.current().nextBytes(value);
+        assertEquals(HttpURLConnection.HTTP_CREATED, upsert(nodes.get(0), key, value, 3).statusCode());
+        for (ServiceInfo node : nodes) {
+            HttpResponse<byte[]> response = get(node, key, 3);
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(value, response.body());
+        }
+    }
+
+    private HttpResponse<byte[]> upsert(ServiceInfo node, String key, byte[] value, int replicas) throws Exception {
+        return client.send(
+                node.request(entity(key, replicas)).PUT(HttpRequest.BodyPublishers.ofByteArray(value)).build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
+    private HttpResponse<byte[]> get(ServiceInfo node, String key, int replicas) throws Exception {
+        return client.send(node.request(entity(key, replicas)).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String entity(String key, int replicas) {
+        return "/v0/entity?id=" + key + "&ack=" + replicas + "&from=" + replicas;
+    }
+}
@@ -22,6 +22,7 @@ import java.lang.reflect.Type;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.URI;
 import java.net.http.HttpClient;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -167,26 +168,26 @@ public @interface ServiceTest {
             ServiceTest annotation = context.getRequiredTestMethod().getAnnotation(ServiceTest.class);
             ServiceFactory.Factory f = (ServiceFactory.Factory) clazz.getDeclaredConstructor().newInstance();
 
-            int[] ports = new int[annotation.clusterSize()];
             List<String> cluster = new ArrayList<>(annotation.clusterSize());
 
             for (int i = 0; i < annotation.clusterSize(); i++) {
-                int port = randomPort();
-                ports[i] = port;
-                cluster.add("http://localhost:" + port);
+                cluster.add("http://localhost:" + randomPort());
             }
 
             Collections.sort(cluster);
 
+            // Stored first, so it is closed last: the nodes share the directory, each keeping its data apart
+            ExtensionContext.Store.CloseableResource dir = () -> FileUtils.delete(workingDir);
+            context.getStore(NAMESPACE).put(ID.incrementAndGet() + "", dir);
+
             List<ServiceInfo> services = new ArrayList<>(annotation.clusterSize());
             for (int i = 0; i < annotation.clusterSize(); i++) {
-                ServiceConfig config = new ServiceConfig(ports[i], cluster.get(i), cluster, workingDir);
+                // The port of the node's own URL: sorting the URLs has reordered them
+                int port = URI.create(cluster.get(i)).getPort();
+                ServiceConfig config = new ServiceConfig(port, cluster.get(i), cluster, workingDir);
                 Service service = f.create(config);
 
-                ExtensionContext.Store.CloseableResource res = () -> {
-                    service.stop().get(10, TimeUnit.MINUTES);
-                    FileUtils.delete(workingDir);
-                };
+                ExtensionContext.Store.CloseableResource res = () -> service.stop().get(10, TimeUnit.MINUTES);
 
                 context.getStore(NAMESPACE).put(ID.incrementAndGet() + "", res);
                 services.add(new ServiceInfo(service, config, HTTP_CLIENT));
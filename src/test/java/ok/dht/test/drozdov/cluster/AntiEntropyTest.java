@@ -0,0 +1,155 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.FileUtils;
+import ok.dht.test.drozdov.dao.Compression;
+import ok.dht.test.drozdov.dao.Config;
+import ok.dht.test.drozdov.dao.Entry;
+import ok.dht.test.drozdov.dao.MemorySegmentDao;
+import ok.dht.test.drozdov.dao.RateLimiter;
+import ok.dht.test.drozdov.http.WorkerConfig;
+import ok.dht.test.drozdov.http.WorkerPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Anti-entropy between a replica that purged an expired value and one still holding an older write of the key.
+ * The nodes can't reach each other, the test exchanges the records of the differing buckets itself
+ * the way a repair round applies them.
+ */
+class AntiEntropyTest {
+
+    private static final MemorySegment KEY = segment("key");
+    // Nothing listens there, a round only builds the trees
+    private static final List<String> NODES = List.of("http://localhost:1", "http://localhost:2");
+
+    private final List<Node> nodes = new ArrayList<>();
+    private WorkerPool workers;
+
+    @BeforeEach
+    void startWorkers() {
+        workers = new WorkerPool(new WorkerConfig());
+    }
+
+    @AfterEach
+    void cleanUp() throws Exception {
+        for (Node node : nodes) {
+            node.close();
+        }
+        workers.stop();
+    }
+
+    @Test
+    void purgedValueShadowsStaleReplica() throws Exception {
+        Node purged = open(0);
+        Node stale = open(1);
+        long timestamp = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) - TimeUnit.SECONDS.toMicros(10);
+        purged.replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp, bytes("value"), 1)));
+        purged.dao.flush().get();
+        purged.dao.compact().get();
+        stale.replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp - 1, bytes("stale"))));
+
+        BitSet diff = round(purged).diff(round(stale));
+        assertFalse(diff.isEmpty());
+        pull(stale, purged, diff);
+        pull(purged, stale, diff);
+
+        for (Node node : nodes) {
+            MemorySegment current = node.replica.get(KEY);
+            assertNotNull(current);
+            assertEquals(timestamp, VersionedValue.timestamp(current));
+            assertFalse(VersionedValue.isLive(current, System.currentTimeMillis()));
+        }
+        // Still shadowing the older write after the stale replica compacts
+        stale.dao.flush().get();
+        stale.dao.compact().get();
+        assertEquals(timestamp, VersionedValue.timestamp(stale.replica.get(KEY)));
+        assertTrue(round(purged).diff(round(stale)).isEmpty());
+    }
+
+    private Node open(int self) throws Exception {
+        Path dir = Files.createTempDirectory("anti-entropy");
+        MemorySegmentDao dao = new MemorySegmentDao(
+                new Config(dir.resolve("data"), Compression.NONE, VersionedValue.expiry(Duration.ofDays(1)))
+        );
+        DaoReplica replica = new DaoReplica(dao, new ReadCoalescer(Duration.ZERO, workers));
+        ReplicaClient client = new ReplicaClient(new ClientConfig());
+        Membership membership = new Membership(dir.resolve("topology"), NODES.get(self), NODES, client);
+        AntiEntropy antiEntropy = new AntiEntropy(
+                membership,
+                NODES.get(self),
+                replica,
+                client,
+                new RateLimiter(0),
+                0
+        );
+        Node node = new Node(self, dir, dao, replica, client, membership, antiEntropy);
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Runs a round of the node, returns its tree of the records shared with the other node.
+     */
+    private static MerkleTree round(Node node) throws InterruptedException {
+        node.antiEntropy.run(() -> false);
+        MerkleTree tree = node.antiEntropy.tree(NODES.get(1 - node.self));
+        assertNotNull(tree);
+        return tree;
+    }
+
+    /**
+     * Applies the records the source streams for the buckets to the target.
+     */
+    private static void pull(Node target, Node source, BitSet buckets) {
+        Iterator<Entry> records = source.antiEntropy.records(NODES.get(target.self), buckets);
+        assertNotNull(records);
+        while (records.hasNext()) {
+            Entry record = records.next();
+            assertTrue(VersionedValue.isValid(record.value()));
+            target.replica.upsert(record.key(), record.value());
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(bytes(value));
+    }
+
+    private record Node(
+            int self,
+            Path dir,
+            MemorySegmentDao dao,
+            DaoReplica replica,
+            ReplicaClient client,
+            Membership membership,
+            AntiEntropy antiEntropy
+    ) {
+
+        void close() throws Exception {
+            membership.close();
+            client.close();
+            dao.close();
+            FileUtils.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ok.dht.test.drozdov.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Transitions of the breaker between closed, open and half-open.
+ */
+class CircuitBreakerTest {
+
+    private static final int THRESHOLD = 3;
+
+    @Test
+    void opensAfterFailureRun() {
+        CircuitBreaker breaker = new CircuitBreaker(THRESHOLD, TimeUnit.HOURS.toNanos(1));
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        // A success resets the run
+        breaker.onSuccess();
+        for (int i = 0; i < THRESHOLD; i++) {
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void singleProbeAfterOpenPeriod() {
+        CircuitBreaker breaker = new CircuitBreaker(THRESHOLD, 0);
+        for (int i = 0; i < THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+
+        // A failed probe lets the next one through after another period
+        breaker.onFailure();
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+}
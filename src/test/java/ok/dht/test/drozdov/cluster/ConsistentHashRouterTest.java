@@ -0,0 +1,90 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Keys spread evenly over the ring, a new node only takes keys over, and replicas of a key are distinct nodes.
+ */
+class ConsistentHashRouterTest {
+
+    private static final int KEYS = 100_000;
+
+    @Test
+    void keysSpreadEvenly() {
+        List<String> nodes = nodes(10);
+        ConsistentHashRouter router = new ConsistentHashRouter(nodes);
+        int[] owned = new int[nodes.size()];
+        for (int i = 0; i < KEYS; i++) {
+            owned[owner(router, key(i))]++;
+        }
+
+        double shares = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            shares += router.share(node);
+        }
+        assertEquals(1, shares, 1e-9);
+        for (int node = 0; node < nodes.size(); node++) {
+            // About 6% off an even split with 256 virtual nodes
+            assertEquals(0.1, router.share(node), 0.02, nodes.get(node));
+            assertEquals(0.1, (double) owned[node] / KEYS, 0.02, nodes.get(node));
+        }
+    }
+
+    @Test
+    void newNodeOnlyTakesKeysOver() {
+        ConsistentHashRouter before = new ConsistentHashRouter(nodes(4));
+        ConsistentHashRouter after = new ConsistentHashRouter(nodes(5));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            int owner = owner(after, key(i));
+            if (owner != owner(before, key(i))) {
+                assertEquals(4, owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > KEYS / 10 && moved < KEYS * 3 / 10, moved + " keys moved");
+    }
+
+    @Test
+    void replicasAreDistinctAndStable() {
+        ConsistentHashRouter router = new ConsistentHashRouter(nodes(5));
+        int[] replicas = new int[3];
+        int[] again = new int[3];
+        for (int i = 0; i < KEYS; i++) {
+            router.replicas(key(i), replicas);
+            router.replicas(key(i), again);
+            assertArrayEquals(replicas, again);
+            assertEquals(3, Arrays.stream(replicas).distinct().count());
+        }
+        assertThrows(IllegalArgumentException.class, () -> router.replicas(key(0), new int[6]));
+    }
+
+    private static int owner(Router router, MemorySegment key) {
+        int[] replicas = new int[1];
+        router.replicas(key, replicas);
+        return replicas[0];
+    }
+
+    private static List<String> nodes(int count) {
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add("http://localhost:" + (8080 + i));
+        }
+        return result;
+    }
+
+    private static MemorySegment key(int i) {
+        return MemorySegment.ofArray(("key" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
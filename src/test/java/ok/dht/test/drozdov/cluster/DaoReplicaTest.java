@@ -0,0 +1,136 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.FileUtils;
+import ok.dht.test.drozdov.dao.Compression;
+import ok.dht.test.drozdov.dao.Config;
+import ok.dht.test.drozdov.dao.MemorySegmentDao;
+import ok.dht.test.drozdov.http.WorkerConfig;
+import ok.dht.test.drozdov.http.WorkerPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Purging of expired values and tombstones by compaction, as seen through the replica.
+ */
+class DaoReplicaTest {
+
+    private static final MemorySegment KEY = segment("key");
+
+    private Path dir;
+    private WorkerPool workers;
+    private MemorySegmentDao dao;
+    private DaoReplica replica;
+
+    @AfterEach
+    void cleanUp() throws Exception {
+        dao.close();
+        workers.stop();
+        FileUtils.delete(dir);
+    }
+
+    @Test
+    void expiredValueShadowsStaleCopies() throws Exception {
+        open(Duration.ofDays(1));
+        long timestamp = nowMicros() - TimeUnit.SECONDS.toMicros(10);
+        replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp, bytes("value"), 1)));
+        compact();
+
+        MemorySegment purged = replica.get(KEY);
+        assertNotNull(purged);
+        assertTrue(VersionedValue.isTombstone(purged));
+        assertEquals(timestamp, VersionedValue.timestamp(purged));
+
+        // A lagging replica, a hint or anti-entropy brings an older write of the key
+        replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp - 1, bytes("stale"))));
+        MemorySegment current = replica.get(KEY);
+        assertEquals(timestamp, VersionedValue.timestamp(current));
+        assertFalse(VersionedValue.isLive(current, System.currentTimeMillis()));
+    }
+
+    @Test
+    void expiredValueDroppedAfterGracePeriod() throws Exception {
+        open(Duration.ZERO);
+        long timestamp = nowMicros() - TimeUnit.SECONDS.toMicros(10);
+        replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp, bytes("value"), 1)));
+        compact();
+
+        assertNull(replica.get(KEY));
+    }
+
+    @Test
+    void liveValueKept() throws Exception {
+        open(Duration.ZERO);
+        long timestamp = nowMicros();
+        replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp, bytes("value"), 3600)));
+        compact();
+
+        MemorySegment current = replica.get(KEY);
+        assertNotNull(current);
+        assertTrue(VersionedValue.isLive(current, System.currentTimeMillis()));
+        assertEquals(segment("value").asByteBuffer(), VersionedValue.value(current).asByteBuffer());
+    }
+
+    @Test
+    void tombstoneShadowsStaleCopies() throws Exception {
+        open(Duration.ofDays(1));
+        long timestamp = nowMicros() - TimeUnit.SECONDS.toMicros(10);
+        replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp, (byte[]) null)));
+        compact();
+
+        replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp - 1, bytes("stale"))));
+        MemorySegment current = replica.get(KEY);
+        assertNotNull(current);
+        assertTrue(VersionedValue.isTombstone(current));
+        assertEquals(timestamp, VersionedValue.timestamp(current));
+    }
+
+    @Test
+    void tombstoneDroppedAfterGracePeriod() throws Exception {
+        open(Duration.ZERO);
+        long timestamp = nowMicros() - TimeUnit.SECONDS.toMicros(10);
+        replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp - 1, bytes("value"))));
+        dao.flush().get();
+        replica.upsert(KEY, MemorySegment.ofArray(VersionedValue.encode(timestamp, (byte[]) null)));
+        compact();
+
+        assertNull(replica.get(KEY));
+        assertFalse(replica.records().hasNext());
+    }
+
+    private void open(Duration gracePeriod) throws Exception {
+        dir = Files.createTempDirectory("replica");
+        dao = new MemorySegmentDao(new Config(dir, Compression.NONE, VersionedValue.expiry(gracePeriod)));
+        workers = new WorkerPool(new WorkerConfig());
+        replica = new DaoReplica(dao, new ReadCoalescer(Duration.ZERO, workers));
+    }
+
+    private void compact() throws Exception {
+        dao.flush().get();
+        dao.compact().get();
+    }
+
+    private static long nowMicros() {
+        return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(bytes(value));
+    }
+}
@@ -0,0 +1,187 @@
+package ok.dht.test.drozdov.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A read of one of two remote replicas goes to the spare when it is late or fails,
+ * and its hedge leaves the shared scheduler as soon as it can't be sent anymore.
+ */
+class HedgedReadTest {
+
+    private static final List<String> NODES = List.of("http://localhost:1", "http://localhost:2", "http://localhost:3");
+    // Longer than a window of the selector
+    private static final long WINDOW_WAIT_MILLIS = 1_100;
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    private final BlockingQueue<Call> calls = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Boolean> outcomes = new LinkedBlockingQueue<>();
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void lateReadHedgedToSpare() throws InterruptedException {
+        ReplicaSelector selector = primed(1_000);
+        HedgedRead read = read(selector);
+
+        assertFalse(read.start());
+        Call first = nextCall();
+        assertEquals(1, first.replica);
+        Call hedge = nextCall();
+        assertEquals(2, hedge.replica);
+        assertEquals(1, selector.hedges());
+
+        hedge.future.complete(new Status(HttpURLConnection.HTTP_NOT_FOUND));
+        assertEquals(Boolean.TRUE, outcomes.poll(5, TimeUnit.SECONDS));
+        first.future.complete(new Status(HttpURLConnection.HTTP_NOT_FOUND));
+        assertEquals(1, selector.hedgesWon());
+    }
+
+    @Test
+    void answeredReadCancelsHedge() throws InterruptedException {
+        scheduler.setRemoveOnCancelPolicy(true);
+        ReplicaSelector selector = primed(1_000_000);
+        HedgedRead read = read(selector);
+
+        read.start();
+        Call first = nextCall();
+        assertEquals(1, scheduler.getQueue().size());
+
+        first.future.complete(new Status(HttpURLConnection.HTTP_NOT_FOUND));
+        assertEquals(Boolean.TRUE, outcomes.poll(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.getQueue().isEmpty());
+        assertEquals(0, selector.hedges());
+    }
+
+    @Test
+    void failedReplicaReplacedAtOnce() throws InterruptedException {
+        scheduler.setRemoveOnCancelPolicy(true);
+        ReplicaSelector selector = primed(1_000_000);
+        HedgedRead read = read(selector);
+
+        read.start();
+        nextCall().future.completeExceptionally(new IOException("Connection refused"));
+        Call spare = nextCall();
+        assertEquals(2, spare.replica);
+        // The last spare is asked already, the hedge has nothing left to send
+        assertTrue(scheduler.getQueue().isEmpty());
+
+        spare.future.complete(new Status(HttpURLConnection.HTTP_NOT_FOUND));
+        assertEquals(Boolean.TRUE, outcomes.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, selector.hedges());
+    }
+
+    /**
+     * Read of replicas 1 and 2 by node 0 waiting for one answer.
+     */
+    private HedgedRead read(ReplicaSelector selector) {
+        return new HedgedRead(
+                new int[]{1, 2},
+                NODES,
+                1,
+                0,
+                new Quorum((response, reached) -> outcomes.add(reached), 1, 2, null),
+                selector,
+                scheduler,
+                replica -> {
+                    CompletableFuture<HttpResponse<byte[]>> future = new CompletableFuture<>();
+                    calls.add(new Call(replica, future));
+                    return future;
+                }
+        );
+    }
+
+    private Call nextCall() throws InterruptedException {
+        Call call = calls.poll(5, TimeUnit.SECONDS);
+        assertNotNull(call);
+        return call;
+    }
+
+    /**
+     * Selector with a complete window of remote reads lasting {@code latencyMicros} and a hedge earned.
+     */
+    private static ReplicaSelector primed(long latencyMicros) throws InterruptedException {
+        ReplicaSelector selector = new ReplicaSelector(new ClientConfig());
+        for (int i = 0; i < 20; i++) {
+            selector.sent(NODES.get(1));
+            selector.completed(NODES.get(1), latencyMicros, true);
+        }
+        Thread.sleep(WINDOW_WAIT_MILLIS);
+        selector.sent(NODES.get(1));
+        selector.completed(NODES.get(1), latencyMicros, true);
+        for (int i = 0; i < 10; i++) {
+            selector.order(new int[]{1, 2}, NODES, 0);
+        }
+        assertTrue(selector.hedgeDelayMicros() >= 0);
+        return selector;
+    }
+
+    private record Call(int replica, CompletableFuture<HttpResponse<byte[]>> future) {
+    }
+
+    /**
+     * Response of a replica carrying only its status.
+     */
+    private record Status(int statusCode) implements HttpResponse<byte[]> {
+
+        @Override
+        public HttpRequest request() {
+            return HttpRequest.newBuilder(uri()).build();
+        }
+
+        @Override
+        public Optional<HttpResponse<byte[]>> previousResponse() {
+            return Optional.empty();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.of(Map.of(), (name, value) -> true);
+        }
+
+        @Override
+        public byte[] body() {
+            return new byte[0];
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return Optional.empty();
+        }
+
+        @Override
+        public URI uri() {
+            return URI.create(NODES.get(1));
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return HttpClient.Version.HTTP_1_1;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Trees of the same records match whatever the order, a changed or missing record shows up as its bucket.
+ */
+class MerkleTreeTest {
+
+    private static final int KEYS = 10_000;
+
+    @Test
+    void sameRecordsInAnyOrderMatch() {
+        MerkleTree forward = new MerkleTree();
+        MerkleTree backward = new MerkleTree();
+        for (int i = 0; i < KEYS; i++) {
+            add(forward, i, "value" + i);
+            add(backward, KEYS - 1 - i, "value" + (KEYS - 1 - i));
+        }
+        assertTrue(forward.seal().diff(backward.seal()).isEmpty());
+    }
+
+    @Test
+    void differingRecordsGiveTheirBuckets() {
+        MerkleTree local = new MerkleTree();
+        MerkleTree remote = new MerkleTree();
+        for (int i = 0; i < KEYS; i++) {
+            add(local, i, "value" + i);
+            if (i != 1) {
+                add(remote, i, i == 2 ? "changed" : "value" + i);
+            }
+        }
+
+        BitSet expected = new BitSet(MerkleTree.LEAVES);
+        expected.set(MerkleTree.bucket(Hashing.hash(key(1))));
+        expected.set(MerkleTree.bucket(Hashing.hash(key(2))));
+        assertEquals(expected, local.seal().diff(remote.seal()));
+    }
+
+    @Test
+    void serializedTreeRoundTrips() {
+        MerkleTree tree = new MerkleTree();
+        for (int i = 0; i < KEYS; i++) {
+            add(tree, i, "value" + i);
+        }
+        byte[] bytes = tree.seal().toBytes();
+
+        MerkleTree copy = MerkleTree.fromBytes(bytes);
+        assertTrue(tree.diff(copy).isEmpty());
+        assertArrayEquals(bytes, copy.toBytes());
+        assertThrows(IllegalStateException.class, () -> add(copy, 0, "value"));
+        assertThrows(IllegalArgumentException.class, () -> MerkleTree.fromBytes(new byte[bytes.length - 1]));
+    }
+
+    private static void add(MerkleTree tree, int key, String value) {
+        tree.add(Hashing.hash(key(key)), Hashing.hash(segment(value)));
+    }
+
+    private static MemorySegment key(int i) {
+        return segment("key" + i);
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
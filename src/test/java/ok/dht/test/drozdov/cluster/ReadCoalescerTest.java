@@ -0,0 +1,147 @@
+package ok.dht.test.drozdov.cluster;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.drozdov.http.WorkerConfig;
+import ok.dht.test.drozdov.http.WorkerPool;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads arriving during a read of the key are executed once, on a worker, after it completes,
+ * and a write detaches the read in flight.
+ */
+class ReadCoalescerTest {
+
+    private static final MemorySegment KEY = MemorySegment.ofArray("key".getBytes(StandardCharsets.UTF_8));
+
+    // Flights executed so far, along with the thread executing them
+    private final BlockingQueue<Execution> executions = new LinkedBlockingQueue<>();
+    private WorkerPool workers;
+
+    @BeforeEach
+    void startWorkers() {
+        workers = new WorkerPool(new WorkerConfig());
+    }
+
+    @AfterEach
+    void stopWorkers() throws InterruptedException {
+        workers.stop();
+    }
+
+    @Test
+    void readsInFlightWaitForNextFlight() throws InterruptedException {
+        ReadCoalescer reads = new ReadCoalescer(Duration.ZERO, workers);
+        RecordingSession first = new RecordingSession();
+        RecordingSession second = new RecordingSession();
+        RecordingSession third = new RecordingSession();
+
+        reads.start(KEY, 2, 3, first, this::execute);
+        Execution running = next();
+        assertSame(Thread.currentThread(), running.thread);
+        reads.start(KEY, 2, 3, second, this::execute);
+        reads.start(KEY, 2, 3, third, this::execute);
+        assertNull(executions.poll());
+        assertEquals(2, reads.coalesced());
+
+        running.flight.respond(() -> new Response(Response.OK, Response.EMPTY), true);
+        assertEquals(HttpURLConnection.HTTP_OK, first.next());
+        // Executed again for the reads that arrived meanwhile, by a worker rather than the responding thread
+        Execution following = next();
+        assertTrue(following.thread.getName().startsWith("http-worker-"), following.thread.getName());
+        assertNull(second.responses.poll());
+
+        following.flight.respond(() -> new Response(Response.NOT_FOUND, Response.EMPTY), true);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, second.next());
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, third.next());
+        assertNull(executions.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void writeDetachesReadInFlight() throws InterruptedException {
+        ReadCoalescer reads = new ReadCoalescer(Duration.ofMinutes(1), workers);
+        RecordingSession before = new RecordingSession();
+        RecordingSession after = new RecordingSession();
+
+        reads.start(KEY, 2, 3, before, this::execute);
+        Execution detached = next();
+        reads.invalidate(KEY);
+        reads.start(KEY, 2, 3, after, this::execute);
+        Execution fresh = next();
+
+        detached.flight.respond(() -> new Response(Response.OK, Response.EMPTY), true);
+        assertEquals(HttpURLConnection.HTTP_OK, before.next());
+        assertNull(after.responses.poll());
+        fresh.flight.respond(() -> new Response(Response.NOT_FOUND, Response.EMPTY), true);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, after.next());
+
+        // Only the outcome of the read started after the write is reused
+        RecordingSession cached = new RecordingSession();
+        reads.start(KEY, 2, 3, cached, this::execute);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, cached.next());
+        assertEquals(1, reads.cacheHits());
+        assertEquals(0, reads.coalesced());
+        assertNull(executions.poll());
+    }
+
+    @Test
+    void readsOfOtherReplicationNotShared() throws InterruptedException {
+        ReadCoalescer reads = new ReadCoalescer(Duration.ZERO, workers);
+        reads.start(KEY, 2, 3, new RecordingSession(), this::execute);
+        next();
+        reads.start(KEY, 1, 3, new RecordingSession(), this::execute);
+        assertSame(Thread.currentThread(), next().thread);
+        assertEquals(0, reads.coalesced());
+    }
+
+    private void execute(ReadCoalescer.Flight flight) {
+        executions.add(new Execution(flight, Thread.currentThread()));
+    }
+
+    private Execution next() throws InterruptedException {
+        Execution execution = executions.poll(5, TimeUnit.SECONDS);
+        assertNotNull(execution);
+        return execution;
+    }
+
+    private record Execution(ReadCoalescer.Flight flight, Thread thread) {
+    }
+
+    /**
+     * Session keeping the statuses of the responses sent instead of writing them to a socket.
+     */
+    private static final class RecordingSession extends HttpSession {
+
+        private final BlockingQueue<Integer> responses = new LinkedBlockingQueue<>();
+
+        RecordingSession() {
+            super(null, null);
+        }
+
+        @Override
+        public void sendResponse(Response response) {
+            responses.add(response.getStatus());
+        }
+
+        int next() throws InterruptedException {
+            Integer status = responses.poll(5, TimeUnit.SECONDS);
+            assertNotNull(status);
+            return status;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ok.dht.test.drozdov.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Merging copies of the membership gossiped between nodes.
+ */
+class TopologyTest {
+
+    private static final String A = "http://localhost:8001";
+    private static final String B = "http://localhost:8002";
+    private static final String C = "http://localhost:8003";
+    private static final String D = "http://localhost:8004";
+
+    @Test
+    void laterVersionWins() {
+        Topology initial = Topology.initial(List.of(A, B));
+        Topology joined = initial.join(C);
+        assertSame(joined, initial.merge(joined));
+        assertSame(joined, joined.merge(initial));
+    }
+
+    @Test
+    void concurrentChangesResolvedAlike() {
+        Topology initial = Topology.initial(List.of(A, B));
+        Topology withC = initial.join(C);
+        Topology withD = initial.join(D);
+        assertEquals(withC.version(), withD.version());
+        assertSame(withC.merge(withD), withD.merge(withC));
+    }
+
+    @Test
+    void handoffProgressAccumulates() {
+        Topology joined = Topology.initial(List.of(A, B)).join(C);
+        assertTrue(joined.handingOff());
+        Topology doneA = joined.handedOff(A);
+        Topology doneB = joined.handedOff(B);
+        assertTrue(doneA.handingOff());
+        assertTrue(doneB.handingOff());
+
+        // A copy that has seen more of the handoff wins
+        assertSame(doneA, doneA.merge(joined));
+        assertSame(doneA, joined.merge(doneA));
+        // Neither has seen all of it, the merge has seen what both have
+        for (Topology merged : List.of(doneA.merge(doneB), doneB.merge(doneA))) {
+            assertFalse(merged.handingOff());
+            assertFalse(merged.handsOff(A));
+            assertFalse(merged.handsOff(B));
+            assertEquals(joined.version(), merged.version());
+            assertEquals(List.of(A, B, C), merged.nodes());
+        }
+    }
+
+    @Test
+    void bytesRoundTrip() {
+        Topology doneA = Topology.initial(List.of(A, B, C)).decommission(C).handedOff(A);
+        Topology parsed = Topology.fromBytes(doneA.toBytes());
+        assertEquals(doneA.version(), parsed.version());
+        assertEquals(doneA.nodes(), parsed.nodes());
+        assertEquals(doneA.peers(), parsed.peers());
+        assertFalse(parsed.handsOff(A));
+        assertTrue(parsed.handsOff(C));
+        assertArrayEquals(doneA.toBytes(), parsed.toBytes());
+
+        byte[] bytes = doneA.toBytes();
+        assertThrows(IllegalArgumentException.class, () -> Topology.fromBytes(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test
+    void changeWaitsForHandoff() {
+        Topology joined = Topology.initial(List.of(A, B)).join(C);
+        assertThrows(IllegalStateException.class, () -> joined.join(D));
+        Topology done = joined.handedOff(A).handedOff(B);
+        assertFalse(done.handingOff());
+        assertEquals(List.of(A, B, C, D), done.join(D).nodes());
+    }
+}
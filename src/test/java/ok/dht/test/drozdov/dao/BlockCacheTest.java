@@ -0,0 +1,97 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Admission of blocks into the cache: a hot working set survives a stream of blocks read once.
+ */
+class BlockCacheTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    // About a hundred blocks in each of the 16 stripes
+    private static final long CAPACITY = 16L * 100 * BLOCK_SIZE;
+    private static final int HOT_BLOCKS = 200;
+    private static final long HOT_TABLE = 1;
+    private static final long COLD_TABLE = 2;
+
+    @Test
+    void hotBlocksSurviveScan() {
+        BlockCache cache = new BlockCache(CAPACITY);
+        int cold = 0;
+        int hotHits = 0;
+        int rounds = 200;
+        for (int round = 0; round < rounds; round++) {
+            for (int block = 0; block < HOT_BLOCKS; block++) {
+                if (read(cache, HOT_TABLE, block) && round >= rounds / 2) {
+                    hotHits++;
+                }
+            }
+            // Ten times as many blocks as the cache holds go by requested once each
+            for (int i = 0; i < 100; i++) {
+                read(cache, COLD_TABLE, cold++);
+            }
+        }
+        int requests = HOT_BLOCKS * (rounds - rounds / 2);
+        assertTrue(hotHits > requests * 9 / 10, hotHits + " hits of " + requests);
+        assertTrue(cache.evictions() > 0);
+        assertTrue(cache.byteSize() <= CAPACITY);
+    }
+
+    @Test
+    void peekDoesNotCount() {
+        BlockCache cache = new BlockCache(CAPACITY);
+        assertNull(cache.get(HOT_TABLE, 0));
+        assertFalse(cache.isRequestedAgain(HOT_TABLE, 0));
+        MemorySegment data = block();
+        cache.put(HOT_TABLE, 0, data);
+        assertSame(data, cache.peek(HOT_TABLE, 0));
+        assertFalse(cache.isRequestedAgain(HOT_TABLE, 0));
+
+        assertNotNull(cache.get(HOT_TABLE, 0));
+        assertTrue(cache.isRequestedAgain(HOT_TABLE, 0));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    void oversizedBlockNotCached() {
+        BlockCache cache = new BlockCache(CAPACITY);
+        cache.put(HOT_TABLE, 0, MemorySegment.ofArray(new byte[(int) (CAPACITY / 16)]));
+        assertNull(cache.peek(HOT_TABLE, 0));
+        assertEquals(0, cache.byteSize());
+    }
+
+    @Test
+    void disabled() {
+        BlockCache cache = new BlockCache(0);
+        assertNull(cache.get(HOT_TABLE, 0));
+        cache.put(HOT_TABLE, 0, block());
+        assertNull(cache.get(HOT_TABLE, 0));
+        assertEquals(0, cache.byteSize());
+    }
+
+    /**
+     * Looks the block up as a point lookup does, offering it to the cache on a miss.
+     *
+     * @return whether the block was cached
+     */
+    private static boolean read(BlockCache cache, long table, long block) {
+        if (cache.get(table, block) != null) {
+            return true;
+        }
+        cache.put(table, block, block());
+        return false;
+    }
+
+    private static MemorySegment block() {
+        return MemorySegment.ofArray(new byte[BLOCK_SIZE]);
+    }
+}
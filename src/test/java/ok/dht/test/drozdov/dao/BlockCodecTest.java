@@ -0,0 +1,62 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Blocks compressed by a codec of a new table and decompressed by the codec reading it.
+ */
+class BlockCodecTest {
+
+    private static final int BLOCK_SIZE = 16384;
+
+    @ParameterizedTest
+    @EnumSource(value = Compression.class, names = "NONE", mode = EnumSource.Mode.EXCLUDE)
+    void roundTrip(Compression compression) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new Entry(segment("key" + i), segment("{\"user\":" + i + ",\"status\":\"active\"}")));
+        }
+        BlockCodec writer = BlockCodec.forWrite(compression, entries::iterator);
+        BlockCodec reader = BlockCodec.forRead(compression, writer.dictionary());
+
+        MemorySegment block = allocate(BLOCK_SIZE);
+        for (long offset = 0; offset < BLOCK_SIZE; offset += Integer.BYTES) {
+            // Repetitive, yet not trivial to compress
+            block.asByteBuffer().putInt((int) offset, (int) (offset / 64 * 31));
+        }
+        MemorySegment compressed = allocate(writer.maxCompressedSize(BLOCK_SIZE));
+        int size = writer.compress(block.asByteBuffer(), compressed.asByteBuffer());
+        assertTrue(size > 0 && size < BLOCK_SIZE, "compressed to " + size);
+
+        MemorySegment restored = allocate(BLOCK_SIZE);
+        reader.decompress(compressed.asSlice(0, size).asByteBuffer(), restored.asByteBuffer());
+        assertEquals(-1, block.mismatch(restored));
+
+        // Stray bytes instead of the compressed block
+        ByteBuffer corrupted = allocate(size).asByteBuffer();
+        assertThrows(
+                IllegalStateException.class,
+                () -> reader.decompress(corrupted, allocate(BLOCK_SIZE).asByteBuffer())
+        );
+    }
+
+    private static MemorySegment allocate(long size) {
+        return MemorySegment.allocateNative(size, ResourceScope.newImplicitScope());
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
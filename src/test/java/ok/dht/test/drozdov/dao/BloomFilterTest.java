@@ -0,0 +1,51 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Added keys are always found, and the false positive rate stays near the one the density promises.
+ */
+class BloomFilterTest {
+
+    private static final int KEYS = 100_000;
+    private static final int BITS_PER_KEY = 10;
+
+    @Test
+    void noFalseNegatives() {
+        BloomFilter filter = filled();
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain(BloomFilter.hash(key("key", i))));
+        }
+    }
+
+    @Test
+    void falsePositiveRate() {
+        BloomFilter filter = filled();
+        int falsePositives = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (filter.mightContain(BloomFilter.hash(key("absent", i)))) {
+                falsePositives++;
+            }
+        }
+        // About 0.8% at 10 bits per key
+        assertTrue(falsePositives < KEYS / 50, falsePositives + " false positives");
+    }
+
+    private static BloomFilter filled() {
+        long[] words = new long[Math.toIntExact(BloomFilter.wordCount(KEYS, BITS_PER_KEY))];
+        BloomFilter filter = new BloomFilter(MemorySegment.ofArray(words), BloomFilter.hashCount(BITS_PER_KEY));
+        for (int i = 0; i < KEYS; i++) {
+            filter.add(BloomFilter.hash(key("key", i)));
+        }
+        return filter;
+    }
+
+    private static MemorySegment key(String prefix, int i) {
+        return MemorySegment.ofArray((prefix + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
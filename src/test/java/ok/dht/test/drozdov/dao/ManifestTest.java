@@ -0,0 +1,120 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tables listed by the manifest come back as they were written, and their files are only opened by a lookup
+ * that falls into their key range.
+ */
+class ManifestTest {
+
+    private Path dir;
+    private BlockCache cache;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("manifest");
+        cache = new BlockCache(1 << 20);
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        FileUtils.delete(dir);
+    }
+
+    @Test
+    void listedTablesMatchWritten() throws IOException {
+        List<SSTable> written = List.of(write(2, 100, 200), write(1, 0, 100), write(0, 0, 0));
+        Manifest.write(dir, written);
+
+        List<SSTable> listed = Manifest.read(dir, cache);
+        assertNotNull(listed);
+        assertEquals(written.size(), listed.size());
+        for (int i = 0; i < written.size(); i++) {
+            SSTable expected = written.get(i);
+            SSTable actual = listed.get(i);
+            assertEquals(expected.path(), actual.path());
+            assertEquals(expected.byteSize(), actual.byteSize());
+            assertEquals(expected.entryCount(), actual.entryCount());
+            assertKey(expected.minKey(), actual.minKey());
+            assertKey(expected.maxKey(), actual.maxKey());
+        }
+        Entry entry = listed.get(0).get(key(150), BloomFilter.hash(key(150)));
+        assertEquals(segment("value150").asByteBuffer(), entry.value().asByteBuffer());
+    }
+
+    @Test
+    void tableOpenedByLookupInItsRange() throws IOException {
+        Manifest.write(dir, List.of(write(1, 100, 200)));
+        List<SSTable> listed = Manifest.read(dir, cache);
+        assertNotNull(listed);
+        SSTable table = listed.get(0);
+        // Without its file the table answers only as long as it doesn't have to open it
+        Files.delete(table.path());
+
+        assertNull(table.get(key(50), BloomFilter.hash(key(50))));
+        assertNull(table.get(key(250), BloomFilter.hash(key(250))));
+        assertThrows(UncheckedIOException.class, () -> table.get(key(150), BloomFilter.hash(key(150))));
+    }
+
+    @Test
+    void corruptedManifestIsRejected() throws IOException {
+        assertNull(Manifest.read(dir, cache));
+
+        Manifest.write(dir, List.of(write(1, 0, 10)));
+        Path path = dir.resolve(Manifest.FILE_NAME);
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(path, bytes);
+        assertThrows(IOException.class, () -> Manifest.read(dir, cache));
+    }
+
+    private SSTable write(long generation, int from, int to) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            entries.add(new Entry(key(i), segment("value" + i)));
+        }
+        return SSTable.write(
+                SSTable.path(dir, generation, generation),
+                entries::iterator,
+                10,
+                Compression.NONE,
+                cache,
+                Expiry.NEVER,
+                size -> { }
+        );
+    }
+
+    private static void assertKey(MemorySegment expected, MemorySegment actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else {
+            assertEquals(expected.asByteBuffer(), actual.asByteBuffer());
+        }
+    }
+
+    private static MemorySegment key(int i) {
+        return segment(String.format("%08d", i));
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,189 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads of the storage across the memtable and flushed tables, before and after a restart and a compaction,
+ * the tables a restart takes from the manifest or, without one, from the directory, and reads outliving
+ * the flush of the memtable they started on.
+ */
+class MemorySegmentDaoTest {
+
+    private static final int KEYS = 1000;
+
+    private Path dir;
+    private MemorySegmentDao dao;
+
+    @BeforeEach
+    void open() throws IOException {
+        dir = Files.createTempDirectory("dao");
+        dao = new MemorySegmentDao(new Config(dir));
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        dao.close();
+        FileUtils.delete(dir);
+    }
+
+    @Test
+    void latestEntryWins() throws Exception {
+        dao.upsert(new Entry(key(1), segment("old")));
+        dao.flush().get();
+        dao.upsert(new Entry(key(1), segment("new")));
+        dao.upsert(new Entry(key(2), segment("deleted")));
+        dao.flush().get();
+        dao.upsert(Entry.tombstone(key(2)));
+
+        assertEquals(segment("new").asByteBuffer(), dao.get(key(1)).value().asByteBuffer());
+        assertTrue(dao.get(key(2)).isTombstone());
+        assertNull(dao.get(key(3)));
+    }
+
+    @Test
+    void tablesSurviveRestart() throws Exception {
+        // Every third of the keys lands in its own table, every tenth key is deleted in a later one
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(new Entry(key(i), segment("value" + i)));
+            if (i % (KEYS / 3) == 0) {
+                dao.flush().get();
+            }
+        }
+        for (int i = 0; i < KEYS; i += 10) {
+            dao.upsert(Entry.tombstone(key(i)));
+        }
+        dao.close();
+        dao = new MemorySegmentDao(new Config(dir));
+
+        for (int i = 0; i < KEYS; i++) {
+            if (i % 10 == 0) {
+                assertDeleted(key(i));
+            } else {
+                assertEquals(segment("value" + i).asByteBuffer(), dao.get(key(i)).value().asByteBuffer());
+            }
+        }
+        Iterator<Entry> range = dao.get(key(100), key(200));
+        for (int i = 100; i < 200; i++) {
+            if (i % 10 != 0) {
+                assertEquals(key(i).asByteBuffer(), range.next().key().asByteBuffer());
+            }
+        }
+        assertFalse(range.hasNext());
+    }
+
+    @Test
+    void compactionMergesTables() throws Exception {
+        for (int table = 0; table < 3; table++) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(new Entry(key(i), segment("value" + table + "-" + i)));
+            }
+            dao.flush().get();
+        }
+        for (int i = 0; i < KEYS; i += 10) {
+            dao.upsert(Entry.tombstone(key(i)));
+        }
+        dao.flush().get();
+        assertEquals(4, dao.compactionStatus().tables());
+
+        dao.compact().get();
+
+        CompactionStatus status = dao.compactionStatus();
+        assertEquals(1, status.tables());
+        assertTrue(status.completed() > 0);
+        assertFalse(status.running());
+        // The merged table is the bottom one, so the tombstones are gone with the values they shadowed
+        for (int i = 0; i < KEYS; i++) {
+            if (i % 10 == 0) {
+                assertNull(dao.get(key(i)));
+            } else {
+                assertEquals(segment("value2-" + i).asByteBuffer(), dao.get(key(i)).value().asByteBuffer());
+            }
+        }
+    }
+
+    @Test
+    void unpublishedTablesDroppedOnRestart() throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(new Entry(key(i), segment("value" + i)));
+        }
+        dao.flush().get();
+        dao.close();
+        // Left behind by a flush that never got into the manifest
+        Path stray = SSTable.path(dir, 100, 100);
+        try (Stream<Path> files = Files.list(dir)) {
+            Path table = files.filter(file -> file.toString().endsWith(SSTable.SUFFIX)).findFirst().orElseThrow();
+            Files.copy(table, stray);
+        }
+
+        dao = new MemorySegmentDao(new Config(dir));
+        assertFalse(Files.exists(stray));
+        assertEquals(1, dao.compactionStatus().tables());
+        assertEquals(segment("value42").asByteBuffer(), dao.get(key(42)).value().asByteBuffer());
+    }
+
+    @Test
+    void missingManifestFallsBackToScan() throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(new Entry(key(i), segment("value" + i)));
+        }
+        dao.flush().get();
+        dao.close();
+        Files.delete(dir.resolve(Manifest.FILE_NAME));
+
+        dao = new MemorySegmentDao(new Config(dir));
+        assertTrue(Files.exists(dir.resolve(Manifest.FILE_NAME)));
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(segment("value" + i).asByteBuffer(), dao.get(key(i)).value().asByteBuffer());
+        }
+    }
+
+    @Test
+    void readsOutliveFlushOfTheirMemtable() throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(new Entry(key(i), segment("value" + i)));
+        }
+        Entry found = dao.get(key(1));
+        Iterator<Entry> scan = dao.get(null, null);
+        Entry first = scan.next();
+        dao.flush().get();
+
+        // The lookup has copied its value out, the scan holds the flushed memtable
+        assertEquals(segment("value1").asByteBuffer(), found.value().asByteBuffer());
+        assertEquals(segment("value0").asByteBuffer(), first.value().asByteBuffer());
+        int count = 1;
+        for (; scan.hasNext(); count++) {
+            assertEquals(segment("value" + count).asByteBuffer(), scan.next().value().asByteBuffer());
+        }
+        assertEquals(KEYS, count);
+    }
+
+    private void assertDeleted(MemorySegment key) {
+        // A compaction of the bottom tables drops the tombstone along with the value
+        Entry entry = dao.get(key);
+        assertTrue(entry == null || entry.isTombstone());
+    }
+
+    private static MemorySegment key(int i) {
+        return segment(String.format("%08d", i));
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
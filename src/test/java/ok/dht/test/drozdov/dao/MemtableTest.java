@@ -0,0 +1,194 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ordering of the skip list under concurrent writers and readers, and the arena outliving its last reader only.
+ */
+class MemtableTest {
+
+    private static final long CAPACITY = 16 << 20;
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 5_000;
+
+    @Test
+    void concurrentInsertsStaySorted() throws Exception {
+        Memtable memtable = new Memtable(CAPACITY, 1, null);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                // Threads interleave their keys, so they keep linking next to each other's nodes
+                writers.add(executor.submit(() -> {
+                    for (int i = thread; i < THREADS * KEYS_PER_THREAD; i += THREADS) {
+                        upsert(memtable, key(i), segment("v" + i));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Iterator<Entry> iterator = memtable.iterator(null, null);
+        for (int i = 0; i < THREADS * KEYS_PER_THREAD; i++) {
+            assertTrue(iterator.hasNext());
+            Entry entry = iterator.next();
+            assertEquals(key(i).asByteBuffer(), entry.key().asByteBuffer());
+            assertEquals(segment("v" + i).asByteBuffer(), entry.value().asByteBuffer());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    void latestVersionWins() throws IOException {
+        Memtable memtable = new Memtable(CAPACITY, 1, null);
+        memtable.upsert(key(1), segment("before"));
+        for (int version = 0; version < 100; version++) {
+            memtable.upsert(key(2), segment("v" + version));
+        }
+        memtable.upsert(key(3), segment("after"));
+
+        assertEquals(segment("v99").asByteBuffer(), memtable.get(key(2)).value().asByteBuffer());
+        Iterator<Entry> iterator = memtable.iterator(key(2), null);
+        assertEquals(segment("v99").asByteBuffer(), iterator.next().value().asByteBuffer());
+        // Older versions of the key are skipped
+        assertEquals(key(3).asByteBuffer(), iterator.next().key().asByteBuffer());
+        assertFalse(iterator.hasNext());
+
+        memtable.upsert(key(2), null);
+        Entry deleted = memtable.get(key(2));
+        assertNotNull(deleted);
+        assertTrue(deleted.isTombstone());
+    }
+
+    @Test
+    void concurrentVersionsOfKey() throws Exception {
+        Memtable memtable = new Memtable(CAPACITY, 1, null);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                        upsert(memtable, key(0), segment(thread + "-" + i));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The latest write of all is the last one of some thread
+        String latest = new String(memtable.get(key(0)).value().toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(latest.endsWith("-" + (KEYS_PER_THREAD - 1)), latest);
+        Iterator<Entry> iterator = memtable.iterator(null, null);
+        assertEquals(latest, new String(iterator.next().value().toByteArray(), StandardCharsets.UTF_8));
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    void iteratorUnderConcurrentWrites() throws Exception {
+        Memtable memtable = new Memtable(CAPACITY, 1, null);
+        int keys = 2 * KEYS_PER_THREAD;
+        for (int i = 0; i < keys; i += 2) {
+            memtable.upsert(key(i), segment("even"));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 1; i < keys; i += 2) {
+                    upsert(memtable, key(i), segment("odd"));
+                }
+                // Updates of keys the iterators have seen
+                for (int i = 0; i < keys; i += 2) {
+                    upsert(memtable, key(i), segment("updated"));
+                }
+                done.set(true);
+                return null;
+            });
+            do {
+                int evens = 0;
+                MemorySegment previous = null;
+                for (Iterator<Entry> iterator = memtable.iterator(null, null); iterator.hasNext(); ) {
+                    Entry entry = iterator.next();
+                    if (previous != null) {
+                        assertTrue(MemorySegmentComparator.INSTANCE.compare(previous, entry.key()) < 0);
+                    }
+                    previous = entry.key();
+                    if (index(entry.key()) % 2 == 0) {
+                        evens++;
+                    }
+                }
+                // Keys present before the scan are seen exactly once, whatever is written meanwhile
+                assertEquals(keys / 2, evens);
+            } while (!done.get());
+            writer.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertNull(memtable.get(segment("missing")));
+    }
+
+    @Test
+    void arenaFreedByLastRelease() throws IOException {
+        Memtable memtable = new Memtable(CAPACITY, 1, null);
+        memtable.upsert(key(1), segment("value"));
+        assertTrue(memtable.acquire());
+        Entry entry = memtable.get(key(1));
+        assertNotNull(entry);
+
+        // The owner is done with the memtable, the reader is not
+        memtable.release();
+        assertEquals(segment("value").asByteBuffer(), entry.value().asByteBuffer());
+
+        memtable.release();
+        assertThrows(IllegalStateException.class, () -> entry.value().toByteArray());
+        assertFalse(memtable.acquire());
+    }
+
+    private static void upsert(Memtable memtable, MemorySegment key, MemorySegment value) throws IOException {
+        assertTrue(memtable.upsert(key, value) != Memtable.FULL);
+    }
+
+    private static MemorySegment key(int i) {
+        return segment(String.format("%08d", i));
+    }
+
+    private static int index(MemorySegment key) {
+        return Integer.parseInt(new String(key.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
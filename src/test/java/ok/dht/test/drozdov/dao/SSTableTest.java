@@ -0,0 +1,116 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tables written and read back with every compression, spanning many blocks.
+ */
+class SSTableTest {
+
+    private static final int ENTRIES = 10_000;
+
+    private Path dir;
+    private final List<Entry> entries = new ArrayList<>();
+
+    @BeforeEach
+    void createEntries() throws IOException {
+        dir = Files.createTempDirectory("sstable");
+        for (int i = 0; i < ENTRIES; i++) {
+            // Every tenth key is deleted, values vary in size so blocks end at different entries
+            entries.add(new Entry(key(i), i % 10 == 3 ? null : segment("value" + i + "#".repeat(i % 97))));
+        }
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        FileUtils.delete(dir);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Compression.class)
+    void pointLookups(Compression compression) throws IOException {
+        for (SSTable table : List.of(write(compression), SSTable.open(path(), new BlockCache(1 << 20)))) {
+            assertEquals(ENTRIES, table.stats().entries());
+            for (Entry expected : entries) {
+                assertEntry(expected, table.get(expected.key(), BloomFilter.hash(expected.key())));
+            }
+            for (MemorySegment missing : List.of(segment("0"), segment("00000005x"), segment("z"))) {
+                assertNull(table.get(missing, BloomFilter.hash(missing)));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Compression.class)
+    void rangeScans(Compression compression) throws IOException {
+        SSTable table = write(compression);
+        assertEntries(0, ENTRIES, table.iterator(null, null));
+        assertEntries(1234, 5678, table.iterator(key(1234), key(5678)));
+        // Bounds between keys
+        assertEntries(1235, ENTRIES, table.iterator(segment("00001234x"), null));
+        assertFalse(table.iterator(key(ENTRIES), null).hasNext());
+        assertFalse(table.iterator(key(42), key(42)).hasNext());
+    }
+
+    private SSTable write(Compression compression) throws IOException {
+        long[] written = new long[1];
+        SSTable table = SSTable.write(
+                path(),
+                entries::iterator,
+                10,
+                compression,
+                new BlockCache(1 << 20),
+                Expiry.NEVER,
+                size -> written[0]++
+        );
+        assertEquals(ENTRIES, written[0]);
+        return table;
+    }
+
+    private Path path() {
+        return SSTable.path(dir, 1, 1);
+    }
+
+    private void assertEntries(int from, int to, Iterator<Entry> iterator) {
+        for (int i = from; i < to; i++) {
+            assertTrue(iterator.hasNext());
+            assertEntry(entries.get(i), iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    private static void assertEntry(Entry expected, Entry actual) {
+        assertEquals(expected.key().asByteBuffer(), actual.key().asByteBuffer());
+        if (expected.isTombstone()) {
+            assertTrue(actual.isTombstone());
+        } else {
+            assertEquals(expected.value().asByteBuffer(), actual.value().asByteBuffer());
+        }
+    }
+
+    private static MemorySegment key(int i) {
+        return segment(String.format("%08d", i));
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
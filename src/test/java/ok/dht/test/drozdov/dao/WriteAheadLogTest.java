@@ -0,0 +1,242 @@
+package ok.dht.test.drozdov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Replay of the log, including the one left behind by appends that fail half way through.
+ */
+class WriteAheadLogTest {
+
+    private Path dir;
+    private Path path;
+    private TearingChannel channel;
+    private WriteAheadLog log;
+
+    @BeforeEach
+    void open() throws IOException {
+        dir = Files.createTempDirectory("wal");
+        path = WriteAheadLog.path(dir, 1);
+        channel = new TearingChannel(FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        log = new WriteAheadLog(path, channel);
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        log.close();
+        FileUtils.delete(dir);
+    }
+
+    @Test
+    void replayRestoresAppends() throws IOException {
+        log.append(segment("k1"), segment("v1"));
+        log.append(segment("k2"), null);
+        log.append(List.of(
+                new Entry(segment("k3"), segment("v3")),
+                new Entry(segment("k1"), segment("v1'"))
+        ));
+        log.append(segment("k4"), MemorySegment.ofArray(new byte[0]));
+        log.sync();
+
+        Memtable replayed = replay(5);
+        assertEquals(segment("v1'").asByteBuffer(), replayed.get(segment("k1")).value().asByteBuffer());
+        assertTrue(replayed.get(segment("k2")).isTombstone());
+        assertEquals(segment("v3").asByteBuffer(), replayed.get(segment("k3")).value().asByteBuffer());
+        assertEquals(0, replayed.get(segment("k4")).value().byteSize());
+    }
+
+    @Test
+    void tornAppendIsCutOff() throws IOException {
+        long first = log.append(segment("k1"), segment("v1"));
+        channel.tearWrites = true;
+        assertThrows(IOException.class, () -> log.append(segment("k2"), segment("v2")));
+        channel.tearWrites = false;
+        long third = log.append(segment("k3"), segment("v3"));
+        log.sync(third);
+        assertTrue(third > first);
+
+        Memtable replayed = replay(2);
+        assertNotNull(replayed.get(segment("k1")));
+        assertNull(replayed.get(segment("k2")));
+        assertEquals(segment("v3").asByteBuffer(), replayed.get(segment("k3")).value().asByteBuffer());
+    }
+
+    @Test
+    void tornBatchIsCutOffWhole() throws IOException {
+        log.append(segment("k1"), segment("v1"));
+        channel.tearWrites = true;
+        assertThrows(IOException.class, () -> log.append(List.of(
+                new Entry(segment("k2"), segment("v2")),
+                new Entry(segment("k3"), null)
+        )));
+        channel.tearWrites = false;
+        log.append(List.of(new Entry(segment("k4"), segment("v4"))));
+        log.sync();
+
+        Memtable replayed = replay(2);
+        assertNull(replayed.get(segment("k2")));
+        assertNull(replayed.get(segment("k3")));
+        assertNotNull(replayed.get(segment("k4")));
+    }
+
+    @Test
+    void appendFailsAfterTornBytesStay() throws IOException {
+        log.append(segment("k1"), segment("v1"));
+        channel.tearWrites = true;
+        channel.failTruncates = true;
+        assertThrows(IOException.class, () -> log.append(segment("k2"), segment("v2")));
+        assertTrue(log.isFailed());
+        channel.tearWrites = false;
+        channel.failTruncates = false;
+        assertThrows(IOException.class, () -> log.append(segment("k3"), segment("v3")));
+
+        Memtable replayed = replay(1);
+        assertNotNull(replayed.get(segment("k1")));
+    }
+
+    private Memtable replay(int expectedRecords) throws IOException {
+        Memtable result = new Memtable(
+                Memtable.capacityFor(Files.size(path), WriteAheadLog.recordCount(path)),
+                1,
+                null
+        );
+        assertEquals(expectedRecords, WriteAheadLog.replay(path, result));
+        return result;
+    }
+
+    private static MemorySegment segment(String value) {
+        return MemorySegment.ofArray(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Channel failing writes after writing half of the bytes, as a full disk would.
+     */
+    private static final class TearingChannel extends FileChannel {
+
+        private final FileChannel delegate;
+        volatile boolean tearWrites;
+        volatile boolean failTruncates;
+
+        TearingChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!tearWrites) {
+                return delegate.write(src);
+            }
+            ByteBuffer half = src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            delegate.write(half);
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncates) {
+                throw new IOException("Input/output error");
+            }
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
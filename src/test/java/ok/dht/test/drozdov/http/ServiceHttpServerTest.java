@@ -0,0 +1,219 @@
+package ok.dht.test.drozdov.http;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import one.nio.http.HttpServerConfig;
+import one.nio.http.Param;
+import one.nio.http.Path;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.server.AcceptorConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Requests executed by the worker pool are answered whatever their handler throws,
+ * only internal paths accept bodies over the client limit, responses are counted by route and status class,
+ * segment bodies arrive whole whatever memory they are in, and a draining server lets the requests in flight
+ * complete while turning clients away.
+ */
+class ServiceHttpServerTest {
+
+    private static final String INTERNAL_PATH = "/internal";
+    private static final byte[] SEGMENT_BODY = new byte[4 << 20];
+    // Holds the slow request until the server is draining
+    private static final CountDownLatch RELEASE = new CountDownLatch(1);
+
+    static {
+        ThreadLocalRandom.current().nextBytes(SEGMENT_BODY);
+    }
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private WorkerPool workers;
+    private ServiceHttpServer server;
+    private int port;
+
+    @BeforeEach
+    void start() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        HttpServerConfig config = new HttpServerConfig();
+        AcceptorConfig acceptor = new AcceptorConfig();
+        acceptor.port = port;
+        config.acceptors = new AcceptorConfig[]{acceptor};
+        // A single worker, so a worker killed by the first request would leave the second one unanswered
+        workers = new WorkerPool(new WorkerConfig(
+                1,
+                WorkerConfig.DEFAULT_QUEUE_CAPACITY,
+                WorkerConfig.DEFAULT_QUEUE_TIMEOUT_MILLIS,
+                WorkerConfig.DEFAULT_QUEUE_ORDER,
+                WorkerConfig.DEFAULT_WORKER_THREADS,
+                WorkerConfig.DEFAULT_DRAIN_TIMEOUT_MILLIS
+        ));
+        server = new ServiceHttpServer(config, workers, Set.of(INTERNAL_PATH), new Router());
+        server.start();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        server.stop();
+        workers.stop();
+    }
+
+    @Test
+    void missingParameterIsBadRequest() throws Exception {
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, status("/echo"));
+        assertEquals(HttpURLConnection.HTTP_OK, status("/echo?id=1"));
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, status("/echo"));
+    }
+
+    @Test
+    void failingHandlerIsInternalError() throws Exception {
+        assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, status("/fail"));
+        assertEquals(HttpURLConnection.HTTP_OK, status("/echo?id=1"));
+    }
+
+    @Test
+    void internalPathsTakeLargerBodies() throws Exception {
+        byte[] clientMax = new byte[ServiceHttpServer.MAX_REQUEST_BODY_BYTES];
+        byte[] internalMax = new byte[ServiceHttpServer.MAX_INTERNAL_REQUEST_BODY_BYTES];
+        assertEquals(HttpURLConnection.HTTP_OK, put("/body", clientMax));
+        assertRefused("/body", new byte[clientMax.length + 1]);
+        assertEquals(HttpURLConnection.HTTP_OK, put(INTERNAL_PATH, internalMax));
+        assertRefused(INTERNAL_PATH, new byte[internalMax.length + 1]);
+    }
+
+    @Test
+    void responsesCountedByStatusClass() throws Exception {
+        status("/echo?id=1");
+        status("/echo?id=2");
+        status("/echo");
+        status("/fail");
+        status("/v0/entity?id=1");
+
+        RequestMetrics metrics = server.metrics();
+        assertEquals(2, metrics.responses(Route.OTHER, 2));
+        assertEquals(1, metrics.responses(Route.OTHER, 4));
+        assertEquals(1, metrics.responses(Route.OTHER, 5));
+        assertEquals(1, metrics.responses(Route.GET_ENTITY, 4));
+        assertEquals(0, metrics.responses(Route.GET_ENTITY, 2));
+        assertEquals(1, metrics.latency(Route.GET_ENTITY).count());
+    }
+
+    @Test
+    void segmentBodiesWrittenWhole() throws Exception {
+        // Larger than a socket buffer, so the body takes several writes
+        for (String memory : new String[]{"heap", "native"}) {
+            HttpRequest request = HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + port + "/segment?memory=" + memory)
+            ).GET().build();
+            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(SEGMENT_BODY, response.body(), memory);
+        }
+    }
+
+    @Test
+    void drainingServerFinishesRequestsInFlight() throws Exception {
+        assertEquals(HttpURLConnection.HTTP_OK, status("/echo?id=1"));
+        CompletableFuture<HttpResponse<String>> slow = client.sendAsync(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/slow")).GET().build(),
+                HttpResponse.BodyHandlers.ofString()
+        );
+        while (server.inFlight() == 0) {
+            Thread.sleep(1);
+        }
+
+        server.drain();
+        RELEASE.countDown();
+        HttpResponse<String> response = slow.get(10, TimeUnit.SECONDS);
+        assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+        assertEquals(Optional.of("close"), response.headers().firstValue("Connection"));
+        assertEquals(0, server.inFlight());
+        // The connection of the first request was closed after the response, a new one is refused
+        assertThrows(IOException.class, () -> status("/echo?id=2"));
+    }
+
+    private void assertRefused(String path, byte[] body) throws Exception {
+        int status;
+        try {
+            status = put(path, body);
+        } catch (IOException e) {
+            // The server closes the connection with the body still unread, the reset may beat its 413
+            return;
+        }
+        assertEquals(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, status);
+    }
+
+    private int put(String path, byte[] body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private int status(String path) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).GET().build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    public static final class Router {
+
+        @Path("/echo")
+        public Response echo(@Param(value = "id", required = true) String id) {
+            return Response.ok(id);
+        }
+
+        @Path({"/body", INTERNAL_PATH})
+        public Response body(Request request) {
+            return Response.ok(String.valueOf(request.getBody().length));
+        }
+
+        @Path("/v0/entity")
+        public Response entity(@Param(value = "id", required = true) String id) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+
+        @Path("/segment")
+        public Response segment(@Param(value = "memory", required = true) String memory) {
+            MemorySegment heap = MemorySegment.ofArray(SEGMENT_BODY);
+            if ("heap".equals(memory)) {
+                return new SegmentResponse(Response.OK, heap);
+            }
+            MemorySegment offHeap = MemorySegment.allocateNative(heap.byteSize(), ResourceScope.newImplicitScope());
+            offHeap.copyFrom(heap);
+            return new SegmentResponse(Response.OK, offHeap);
+        }
+
+        @Path("/slow")
+        public Response slow() throws InterruptedException {
+            RELEASE.await();
+            return Response.ok("slow");
+        }
+
+        @Path("/fail")
+        public Response fail() {
+            throw new IllegalStateException("Handler failure");
+        }
+    }
+}
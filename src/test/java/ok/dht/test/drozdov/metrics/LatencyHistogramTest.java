@@ -0,0 +1,39 @@
+package ok.dht.test.drozdov.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Percentiles of the log-linear histogram stay within its bucket precision.
+ */
+class LatencyHistogramTest {
+
+    // A bucket spans 1/16 of its power of two
+    private static final double PRECISION = 1.0 / 16;
+
+    @Test
+    void bucketsCoverTheirValues() {
+        for (long value = 0; value < 1 << 20; value += 1 + value / 100) {
+            int bucket = LatencyHistogram.bucket(value);
+            long upper = LatencyHistogram.upperBound(bucket);
+            assertTrue(upper >= value, value + " above " + upper);
+            assertTrue(upper <= value + value * PRECISION, value + " far below " + upper);
+            assertEquals(bucket, LatencyHistogram.bucket(upper));
+        }
+    }
+
+    @Test
+    void percentilesOfUniformLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.99));
+        for (long micros = 1; micros <= 100_000; micros++) {
+            histogram.record(micros);
+        }
+        assertEquals(100_000, histogram.count());
+        assertEquals(50_000, histogram.percentile(0.5), 50_000 * PRECISION);
+        assertEquals(99_000, histogram.percentile(0.99), 99_000 * PRECISION);
+        assertEquals(99_900, histogram.percentile(0.999), 99_900 * PRECISION);
+    }
+}